@@ -0,0 +1,139 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.config.Configuracao;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.ConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Busca dos segmentos atrasados do {@link Upload} ({@code procuraProximoArquivo}
+ * e {@code parseHoraArquivo}) sobre árvores sintéticas de dias × 144
+ * segmentos × adapters.
+ * <p>
+ * {@code varreBacklog} percorre o backlog inteiro como o
+ * {@code despachaAtrasados} (cada segmento devolvido avança o cursor);
+ * {@code procuraProximo} mede uma única busca a partir do meio da árvore.
+ * Com falhas no journal, uma parte dos segmentos está em backoff.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkBusca {
+
+    // "agora" das buscas: as falhas registradas nesse instante ficam em backoff
+    private static final long AGORA = 1_000_000;
+
+    @Param({"1", "7", "30"})
+    public int dias;
+
+    @Param({"1", "4"})
+    public int adapters;
+
+    @Param({"0", "100"})
+    public int falhas;
+
+    private Path dir;
+    private final List<Upload> uploads = new ArrayList<>();
+    private final List<LocalDateTime> limites = new ArrayList<>();
+    private final List<LocalDateTime> meios = new ArrayList<>();
+    private Path[] segmentos;
+    private int proximo;
+
+    @Setup(Level.Trial)
+    public void prepara() throws IOException, ConfigurationException {
+        dir = Files.createTempDirectory("benchmark-busca");
+        var channels = Files.writeString(dir.resolve("channels.conf"), Sintetico.channels(adapters));
+        var configuracao = Configuracao.load(new StringReader(Sintetico.configuracao(channels, dir, adapters, "")));
+
+        var random = new Random(42);
+        List<Path> todos = new ArrayList<>();
+        for (var adapter : configuracao.getAdapters()) {
+            var lista = Sintetico.segmentos(adapter.getDestino(), dias, LocalDate.of(2024, 3, 31));
+            todos.addAll(lista);
+            if (falhas > 0) {
+                var journal = new JournalUpload(adapter.getDestino());
+                journal.abrir();
+                for (int i = 0; i < falhas; i++) {
+                    journal.falhou(Sintetico.hora(lista.get(random.nextInt(lista.size() - 1))), AGORA);
+                }
+                journal.fechar();
+            }
+            // o último é o segmento em gravação, o penúltimo o recente
+            limites.add(Sintetico.hora(lista.get(lista.size() - 2)));
+            meios.add(Sintetico.hora(lista.get(lista.size() / 2)));
+
+            var upload = new Upload(adapter, configuracao, null);
+            upload.preparaBusca(null);
+            uploads.add(upload);
+        }
+        segmentos = todos.toArray(Path[]::new);
+    }
+
+    @TearDown(Level.Trial)
+    public void encerra() throws IOException {
+        uploads.forEach(Upload::stop);
+        uploads.clear();
+        limites.clear();
+        meios.clear();
+        Sintetico.remove(dir);
+    }
+
+    @Benchmark
+    public int varreBacklog(Blackhole bh) throws IOException {
+        int encontrados = 0;
+        for (int i = 0; i < uploads.size(); i++) {
+            var upload = uploads.get(i);
+            upload.preparaBusca(null);
+            Path arquivo;
+            while ((arquivo = upload.procuraProximoArquivo(AGORA, limites.get(i))) != null) {
+                var hora = IndiceSegmentos.parseHoraArquivo(arquivo);
+                bh.consume(hora);
+                upload.preparaBusca(hora);
+                encontrados++;
+            }
+        }
+        return encontrados;
+    }
+
+    @Benchmark
+    public Path procuraProximo() throws IOException {
+        var upload = uploads.get(0);
+        upload.preparaBusca(meios.get(0));
+        return upload.procuraProximoArquivo(AGORA, limites.get(0));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public LocalDateTime parseHoraArquivo() {
+        if (++proximo == segmentos.length) {
+            proximo = 0;
+        }
+        return IndiceSegmentos.parseHoraArquivo(segmentos[proximo]);
+    }
+
+}
@@ -0,0 +1,143 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.simulacao.ServidorUploadStub;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.ConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Vazão do upload retomável ({@link EnvioRetomavel}: offset, append e
+ * finalize) pelo {@link MotorUpload} até o {@link ServidorUploadStub} no
+ * mesmo processo, sem limite de banda.
+ * <p>
+ * Cada operação envia {@code envios} segmentos de {@code tamanho} MB em
+ * paralelo, como os atrasados de um adapter; a vazão em MB/s é
+ * envios × tamanho / (tempo da operação em s). Inclui a gravação no disco
+ * pelo stub e o SHA-256 do finalize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BenchmarkEnvio {
+
+    @Param({"16", "64"})
+    public int tamanho;
+
+    @Param({"1", "4"})
+    public int envios;
+
+    @Param({"false", "true"})
+    public boolean http2;
+
+    private Path dir;
+    private ServidorUploadStub servidor;
+    private MotorUpload motor;
+    private Adapter adapter;
+    private final List<Path> segmentos = new ArrayList<>();
+    private final List<URI> uris = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void prepara() throws IOException, ConfigurationException {
+        dir = Files.createTempDirectory("benchmark-envio");
+        servidor = new ServidorUploadStub(0, dir.resolve("recebidos"));
+        servidor.start();
+
+        var channels = Files.writeString(dir.resolve("channels.conf"), Sintetico.channels(1));
+        var chaves = "\"servidor\": \"127.0.0.1:" + servidor.getPorta() + "\", \"http2\": " + http2
+                + ", \"uploads-simultaneos\": " + (envios + 1) + ", \"uploads-por-adapter\": " + envios;
+        var configuracao = Configuracao.load(new StringReader(Sintetico.configuracao(channels, dir, 1, chaves)));
+        adapter = configuracao.getAdapters().get(0);
+        motor = new MotorUpload(configuracao);
+
+        var random = new Random(42);
+        var bloco = new byte[1024 * 1024];
+        var dirData = Files.createDirectories(adapter.getDestino().resolve("20240331"));
+        for (int i = 0; i < envios; i++) {
+            var segmento = dirData.resolve(String.format("%02d0000.mp4", i));
+            try (var canal = FileChannel.open(segmento, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (int mb = 0; mb < tamanho; mb++) {
+                    random.nextBytes(bloco);
+                    var buffer = ByteBuffer.wrap(bloco);
+                    while (buffer.hasRemaining()) {
+                        canal.write(buffer);
+                    }
+                }
+            }
+            segmentos.add(segmento);
+            uris.add(configuracao.getServidor().resolve(String.format("/upload/%s/%s/%3d/2024-03-31/%s",
+                    adapter.getGravador(), adapter.getPraca(), adapter.getRede(), segmento.getFileName())));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void encerra() throws IOException, InterruptedException {
+        motor.fechar(5000);
+        servidor.stop();
+        segmentos.clear();
+        uris.clear();
+        Sintetico.remove(dir);
+    }
+
+    @Benchmark
+    public long envia() throws Exception {
+        List<CompletableFuture<Long>> envios = new ArrayList<>();
+        for (int i = 0; i < segmentos.size(); i++) {
+            var segmento = segmentos.get(i);
+            var uri = uris.get(i);
+            envios.add(CompletableFuture.supplyAsync(() -> envia(segmento, uri), Thread::startVirtualThread));
+        }
+        long total = 0;
+        for (var envio : envios) {
+            total += envio.get();
+        }
+        return total;
+    }
+
+    private long envia(Path segmento, URI uri) {
+        try {
+            long tamanhoArquivo = Files.size(segmento);
+            var envio = new EnvioRetomavel(motor, adapter, MotorUpload.Classe.ATRASADO, uri, segmento);
+            envio.consultaOffset();
+            envio.append(tamanhoArquivo);
+            if (!envio.finaliza(tamanhoArquivo)) {
+                throw new IllegalStateException("Servidor recusou " + segmento);
+            }
+            return tamanhoArquivo;
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
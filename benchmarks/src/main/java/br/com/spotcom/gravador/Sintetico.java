@@ -0,0 +1,151 @@
+package br.com.spotcom.gravador;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Dados sintéticos dos benchmarks: árvores de segmentos como as do Gravador,
+ * channels-file no formato dvbv5 e a configuração JSON que usa os dois.
+ */
+public final class Sintetico {
+
+    public static final int SEGMENTOS_POR_DIA = 144;
+    // tamanho de uma seção do sr_channels.conf real, em linhas
+    private static final int LINHAS_POR_SERVICO = 30;
+
+    private static final DateTimeFormatter FORMATO_ARQUIVO = DateTimeFormatter.ofPattern("HHmmss");
+
+    private Sintetico() {
+    }
+
+    /**
+     * Cria {@code <destino>/yyyyMMdd/HHmmss.mp4} (vazios), um a cada 10
+     * minutos, nos dias que terminam em ultimoDia. Cada um tem como data de
+     * modificação o seu fim, como uma gravação antiga: o
+     * {@link IndiceSegmentos} os considera fechados sem a lista do ffmpeg.
+     *
+     * @return segmentos criados, em ordem.
+     */
+    public static List<Path> segmentos(Path destino, int dias, LocalDate ultimoDia) throws IOException {
+        List<Path> segmentos = new ArrayList<>(dias * SEGMENTOS_POR_DIA);
+        for (var dia = ultimoDia.minusDays(dias - 1); !dia.isAfter(ultimoDia); dia = dia.plusDays(1)) {
+            var dirData = Files.createDirectories(destino.resolve(dia.format(DateTimeFormatter.BASIC_ISO_DATE)));
+            for (int i = 0; i < SEGMENTOS_POR_DIA; i++) {
+                var hora = dia.atStartOfDay().plusMinutes(10L * i);
+                var segmento = Files.createFile(dirData.resolve(hora.format(FORMATO_ARQUIVO) + ".mp4"));
+                Files.setLastModifiedTime(segmento, FileTime.from(hora.plusMinutes(10).atZone(ZoneId.systemDefault()).toInstant()));
+                segmentos.add(segmento);
+            }
+        }
+        return segmentos;
+    }
+
+    public static LocalDateTime hora(Path segmento) {
+        return IndiceSegmentos.parseHoraArquivo(segmento);
+    }
+
+    /**
+     * @return nome do serviço i do channels-file gerado por
+     * {@link #channels(int)}.
+     */
+    public static String servico(int i) {
+        return "SERVICO " + i + (i % 2 == 0 ? " HD" : " OneSeg");
+    }
+
+    /**
+     * Channels-file com o mesmo formato (e aproximadamente o mesmo número de
+     * linhas por serviço) do sr_channels.conf, dois serviços por
+     * multiplex.
+     */
+    public static String channels(int servicos) {
+        var conf = new StringBuilder();
+        for (int i = 0; i < servicos; i++) {
+            conf.append('[').append(servico(i)).append("]\n");
+            conf.append("\tSERVICE_ID = ").append(60000 + i).append('\n');
+            conf.append("\tVIDEO_PID = ").append(256 + i * 16).append('\n');
+            conf.append("\tAUDIO_PID = ").append(257 + i * 16).append(' ').append(258 + i * 16).append('\n');
+            conf.append("\tFREQUENCY = ").append(473142857L + (i / 2) * 6000000L).append('\n');
+            conf.append("\tBANDWIDTH_HZ = 6000000\n");
+            conf.append("\tINVERSION = AUTO\n");
+            conf.append("\tGUARD_INTERVAL = AUTO\n");
+            conf.append("\tTRANSMISSION_MODE = AUTO\n");
+            conf.append("\tISDBT_LAYER_ENABLED = 7\n");
+            conf.append("\tISDBT_PARTIAL_RECEPTION = 1\n");
+            conf.append("\tISDBT_SOUND_BROADCASTING = 0\n");
+            conf.append("\tISDBT_SB_SUBCHANNEL_ID = 0\n");
+            conf.append("\tISDBT_SB_SEGMENT_IDX = 0\n");
+            conf.append("\tISDBT_SB_SEGMENT_COUNT = 0\n");
+            for (var camada : List.of("A", "B", "C")) {
+                conf.append("\tISDBT_LAYER").append(camada).append("_FEC = AUTO\n");
+                conf.append("\tISDBT_LAYER").append(camada).append("_MODULATION = QAM/AUTO\n");
+                conf.append("\tISDBT_LAYER").append(camada).append("_SEGMENT_COUNT = 0\n");
+                conf.append("\tISDBT_LAYER").append(camada).append("_TIME_INTERLEAVING = 0\n");
+            }
+            conf.append("\tCOUNTRY = BR\n");
+            conf.append("\tDELIVERY_SYSTEM = ISDBT\n");
+            conf.append('\n');
+        }
+        return conf.toString();
+    }
+
+    /**
+     * @return número de serviços para um channels-file de aproximadamente
+     * linhas linhas.
+     */
+    public static int servicosPorLinhas(int linhas) {
+        return Math.max(1, linhas / LINHAS_POR_SERVICO);
+    }
+
+    /**
+     * Configuração com um adapter fixo por serviço (os primeiros adapters
+     * serviços do channels-file), gravando em {@code <dir>/adapterN}.
+     *
+     * @param chaves demais chaves globais, em JSON (ex.:
+     * {@code "servidor": "127.0.0.1:8080", "http2": false}), ou vazio.
+     */
+    public static String configuracao(Path channelsFile, Path dir, int adapters, String chaves) {
+        var json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"gravador\": \"BENCH\",\n");
+        if (!chaves.isBlank()) {
+            json.append("  ").append(chaves).append(",\n");
+        }
+        json.append("  \"channels-file\": \"").append(channelsFile.toAbsolutePath()).append("\",\n");
+        json.append("  \"adapters\": [\n");
+        for (int i = 0; i < adapters; i++) {
+            json.append("    {\"adapter\": ").append(i)
+                    .append(", \"service-name\": \"").append(servico(i)).append('"')
+                    .append(", \"praca\": \"BEN\", \"rede\": ").append(100 + i)
+                    .append(", \"caminho\": \"").append(dir.resolve("adapter" + i).toAbsolutePath()).append("\"}")
+                    .append(i < adapters - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Remove o diretório e tudo que estiver abaixo dele.
+     */
+    public static void remove(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> arquivos = Files.walk(dir)) {
+            for (var arquivo : arquivos.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(arquivo);
+            }
+        }
+    }
+
+}
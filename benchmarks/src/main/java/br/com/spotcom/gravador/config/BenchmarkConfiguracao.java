@@ -0,0 +1,71 @@
+package br.com.spotcom.gravador.config;
+
+import br.com.spotcom.gravador.Sintetico;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration.ConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Carga da configuração: {@link Configuracao#load(java.io.Reader)} (JSON e
+ * channels-file) e só o INI do channels-file ({@link CatalogoCanais}), com
+ * channels-files sintéticos do tamanho do sr_channels.conf (~1.000 linhas)
+ * e maiores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkConfiguracao {
+
+    @Param({"1000", "10000"})
+    public int linhas;
+
+    @Param({"4", "16"})
+    public int adapters;
+
+    private Path dir;
+    private Path channels;
+    private String json;
+
+    @Setup(Level.Trial)
+    public void prepara() throws IOException {
+        dir = Files.createTempDirectory("benchmark-configuracao");
+        int servicos = Math.max(adapters, Sintetico.servicosPorLinhas(linhas));
+        channels = Files.writeString(dir.resolve("channels.conf"), Sintetico.channels(servicos));
+        json = Sintetico.configuracao(channels, dir, adapters, "");
+    }
+
+    @TearDown(Level.Trial)
+    public void encerra() throws IOException {
+        Sintetico.remove(dir);
+    }
+
+    @Benchmark
+    public Configuracao load() throws ConfigurationException {
+        return Configuracao.load(new StringReader(json));
+    }
+
+    @Benchmark
+    public CatalogoCanais carregaCatalogo() throws ConfigurationException {
+        return CatalogoCanais.carrega(channels);
+    }
+
+}
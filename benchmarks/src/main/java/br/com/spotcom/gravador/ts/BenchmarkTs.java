@@ -0,0 +1,163 @@
+package br.com.spotcom.gravador.ts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Processamento do MPEG-TS sobre um multiplex sintético ({@link GeradorTs})
+ * de 8 MB: {@link FiltroPrograma}, {@link MonitorTs} e o
+ * {@link CanalFiltrado} completo (leitura da origem, filtro e entrega ao
+ * destino). Com ruído, bytes soltos entre os pacotes forçam a
+ * ressincronização. Cada operação processa o multiplex inteiro; a vazão em
+ * MB/s é 8 / (tempo da operação em s).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BenchmarkTs {
+
+    private static final int PACOTES = 8 * 1024 * 1024 / PacoteTs.TAMANHO;
+    // pacotes entre os bytes de ruído
+    private static final int INTERVALO_RUIDO = 1000;
+
+    @Param({"4", "8"})
+    public int programas;
+
+    @Param({"false", "true"})
+    public boolean ruido;
+
+    private ByteBuffer mux;
+    private ByteBuffer saida;
+    private int serviceId;
+
+    @Setup(Level.Trial)
+    public void prepara() {
+        int[] servicos = new int[programas];
+        for (int i = 0; i < programas; i++) {
+            servicos[i] = 0xE760 + i;
+        }
+        serviceId = servicos[0];
+        var pacotes = ByteBuffer.allocateDirect(PACOTES * PacoteTs.TAMANHO);
+        new GeradorTs(servicos).preenche(pacotes);
+        pacotes.flip();
+        if (!ruido) {
+            mux = pacotes;
+        } else {
+            mux = ByteBuffer.allocateDirect(pacotes.capacity() + (PACOTES / INTERVALO_RUIDO + 1) * 3);
+            for (int i = 0; pacotes.hasRemaining(); i++) {
+                if (i % INTERVALO_RUIDO == INTERVALO_RUIDO - 1) {
+                    mux.put((byte) 0x12).put((byte) 0x34).put((byte) 0x56);
+                }
+                mux.put(pacotes.slice(pacotes.position(), PacoteTs.TAMANHO));
+                pacotes.position(pacotes.position() + PacoteTs.TAMANHO);
+            }
+            mux.flip();
+        }
+        saida = ByteBuffer.allocateDirect(mux.capacity());
+    }
+
+    @Benchmark
+    public long filtra() {
+        var filtro = new FiltroPrograma(serviceId);
+        mux.rewind();
+        saida.clear();
+        filtro.filtra(mux, saida);
+        return filtro.getPacotesRepassados();
+    }
+
+    @Benchmark
+    public long analisa() {
+        var monitor = new MonitorTs();
+        mux.rewind();
+        monitor.analisa(mux);
+        return monitor.getPerdasSincronismo();
+    }
+
+    @Benchmark
+    public long canalFiltrado() throws IOException {
+        mux.rewind();
+        long total = 0;
+        try (var canal = new CanalFiltrado(new Origem(mux), serviceId)) {
+            long n;
+            while ((n = canal.transferePara(DESCARTE)) >= 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Entrega o multiplex em leituras de até 64 KB, como a leitura do dvr0.
+     */
+    private static final class Origem implements ReadableByteChannel {
+
+        private static final int TAMANHO_LEITURA = 64 * 1024;
+
+        private final ByteBuffer mux;
+
+        Origem(ByteBuffer mux) {
+            this.mux = mux;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!mux.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(Math.min(dst.remaining(), mux.remaining()), TAMANHO_LEITURA);
+            dst.put(dst.position(), mux, mux.position(), n);
+            dst.position(dst.position() + n);
+            mux.position(mux.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static final WritableByteChannel DESCARTE = new WritableByteChannel() {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    };
+
+}
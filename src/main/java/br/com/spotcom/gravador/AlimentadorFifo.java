@@ -0,0 +1,106 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.ts.OrigemTransferivel;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+
+/**
+ * Entrega o stream ao ffmpeg por um named pipe (mkfifo): a origem escreve os
+ * próprios buffers off-heap no pipe e o ffmpeg o lê como um arquivo comum.
+ * <p>
+ * Substitui o ChannelInput do Jaffree, que serve o canal por um servidor FTP
+ * local copiando cada byte para um array do heap e deste para o socket.
+ */
+public class AlimentadorFifo {
+
+    private static final Path DIRETORIO = Path.of(System.getProperty("java.io.tmpdir"), "gravador-fifo");
+
+    private final OrigemTransferivel origem;
+    private final Path fifo;
+    private volatile boolean conectado;
+    private volatile boolean encerrado;
+    private Thread thread;
+
+    private AlimentadorFifo(OrigemTransferivel origem, Path fifo) {
+        this.origem = origem;
+        this.fifo = fifo;
+    }
+
+    /**
+     * Cria o named pipe e inicia a thread que o alimenta; a escrita começa
+     * quando o ffmpeg abrir o pipe.
+     *
+     * @param nome nome do pipe, único entre os gravadores.
+     */
+    public static AlimentadorFifo inicia(OrigemTransferivel origem, String nome) throws IOException {
+        Files.createDirectories(DIRETORIO);
+        var fifo = DIRETORIO.resolve(nome + ".ts");
+        Files.deleteIfExists(fifo);
+        try {
+            var mkfifo = new ProcessBuilder("mkfifo", "-m", "600", fifo.toString())
+                    .redirectErrorStream(true)
+                    .start();
+            if (mkfifo.waitFor() != 0) {
+                throw new IOException("mkfifo " + fifo + " falhou: " + new String(mkfifo.getInputStream().readAllBytes()).trim());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido ao criar " + fifo, ex);
+        }
+
+        var alimentador = new AlimentadorFifo(origem, fifo);
+        alimentador.thread = new Thread(alimentador::executa, "fifo-" + nome);
+        alimentador.thread.setDaemon(true);
+        alimentador.thread.start();
+        return alimentador;
+    }
+
+    public Path getFifo() {
+        return fifo;
+    }
+
+    private void executa() {
+        // bloqueia até o ffmpeg abrir o pipe para leitura
+        try (var canal = FileChannel.open(fifo, StandardOpenOption.WRITE)) {
+            conectado = true;
+            while (!encerrado && origem.transferePara(canal) >= 0) {
+                // noop
+            }
+        } catch (ClosedChannelException ex) {
+            // origem encerrada
+        } catch (IOException ex) {
+            // EPIPE quando o ffmpeg termina: esperado
+            if (!encerrado) {
+                System.out.println(LocalDateTime.now().toString() + " - Alimentação de " + fifo + " encerrada: " + ex);
+            }
+        } finally {
+            try {
+                Files.deleteIfExists(fifo);
+            } catch (IOException ex) {
+                // noop
+            }
+        }
+    }
+
+    /**
+     * Encerra a alimentação. A origem deve ser fechada pelo chamador.
+     */
+    public void stop() {
+        encerrado = true;
+        if (!conectado) {
+            // o ffmpeg não chegou a abrir o pipe: abre o outro lado (O_RDWR não
+            // bloqueia) para liberar a thread presa na abertura
+            try {
+                FileChannel.open(fifo, StandardOpenOption.READ, StandardOpenOption.WRITE).close();
+            } catch (IOException ex) {
+                // pipe já removido
+            }
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package br.com.spotcom.gravador;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import javax.imageio.ImageIO;
+
+/**
+ * Anexos de um segmento {@code yyyyMMdd/HHmmss.mp4}, gravados ao lado dele e
+ * enviados pelo {@link Upload} antes do segmento, para o servidor posicionar
+ * e mostrar prévias sem ler o MP4 inteiro:
+ * <ul>
+ * <li>{@code HHmmss.jpg}: mosaico das miniaturas do segmento, em linhas de
+ * {@value #COLUNAS}, na ordem do tempo;</li>
+ * <li>{@code HHmmss.idx}: índice binário (big-endian) dos quadros-chave e
+ * das miniaturas do mosaico:
+ * <pre>
+ * "IQC1"
+ * int escala (unidades de PTS por segundo)
+ * int n, n × (long posição no arquivo, long PTS)
+ * int colunas, int largura, int altura (de cada miniatura, 0 sem mosaico)
+ * int m, m × int instante (ms desde o horário do nome do segmento)
+ * </pre></li>
+ * </ul>
+ * As miniaturas vêm do mesmo ffmpeg da gravação, que grava um JPEG pequeno a
+ * cada intervalo em {@code <destino>/miniaturas/yyyyMMddHHmmss.jpg} (horário
+ * da gravação do quadro). Quando o segmento fecha, as do seu intervalo são
+ * reunidas no mosaico e removidas; as posições e os PTS vêm das tabelas do
+ * MP4 ({@link IndiceQuadrosChave}).
+ */
+public final class AnexosSegmento {
+
+    public static final int LARGURA_MINIATURA = 160;
+    static final String DIR_MINIATURAS = "miniaturas";
+    // padrão strftime do nome das miniaturas, equivalente a FORMATO_MINIATURA
+    static final String PADRAO_MINIATURA = "%Y%m%d%H%M%S.jpg";
+    private static final DateTimeFormatter FORMATO_MINIATURA = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'.jpg'");
+    private static final int COLUNAS = 10;
+    private static final int MAGICO = 0x49514331; // "IQC1"
+    private static final long SEGMENTO_S = 600;
+
+    private AnexosSegmento() {
+    }
+
+    public static Path indice(Path segmento) {
+        return segmento.resolveSibling(nomeBase(segmento) + ".idx");
+    }
+
+    public static Path mosaico(Path segmento) {
+        return segmento.resolveSibling(nomeBase(segmento) + ".jpg");
+    }
+
+    static Path diretorioMiniaturas(Path destino) {
+        return destino.resolve(DIR_MINIATURAS);
+    }
+
+    /**
+     * Gera os anexos que faltam de um segmento fechado.
+     *
+     * @param inicio horário do nome do segmento.
+     * @param fim início do segmento seguinte; null para o próximo corte de 10
+     * minutos.
+     * @return anexos existentes, a enviar antes do segmento. Sem o índice
+     * (MP4 sem moov) a lista fica vazia e o segmento é enviado sozinho.
+     */
+    public static List<Path> prepara(Path segmento, LocalDateTime inicio, LocalDateTime fim) throws IOException {
+        var indice = indice(segmento);
+        var mosaico = mosaico(segmento);
+        if (Files.exists(indice)) {
+            return Files.exists(mosaico) ? List.of(indice, mosaico) : List.of(indice);
+        }
+
+        if (fim == null) {
+            var dia = inicio.truncatedTo(ChronoUnit.DAYS);
+            fim = dia.plusSeconds((Duration.between(dia, inicio).toSeconds() / SEGMENTO_S + 1) * SEGMENTO_S);
+        }
+        var miniaturas = miniaturas(segmento.getParent().getParent(), inicio, fim);
+
+        IndiceQuadrosChave quadros;
+        try {
+            quadros = IndiceQuadrosChave.le(segmento);
+        } catch (IOException | RuntimeException ex) {
+            System.out.println(LocalDateTime.now().toString() + " - Índice de quadros-chave de " + segmento + " não gerado: " + ex);
+            // sem índice não há mosaico: as miniaturas do intervalo não seriam mais usadas
+            for (var miniatura : miniaturas.values()) {
+                Files.deleteIfExists(miniatura);
+            }
+            return List.of();
+        }
+
+        List<Integer> instantes = new ArrayList<>();
+        int largura = 0;
+        int altura = 0;
+        if (!miniaturas.isEmpty()) {
+            List<BufferedImage> imagens = new ArrayList<>();
+            for (var e : miniaturas.entrySet()) {
+                var imagem = ImageIO.read(e.getValue().toFile());
+                if (imagem != null) {
+                    imagens.add(imagem);
+                    instantes.add((int) Duration.between(inicio, e.getKey()).toMillis());
+                }
+            }
+            if (!imagens.isEmpty()) {
+                largura = imagens.get(0).getWidth();
+                altura = imagens.get(0).getHeight();
+                int colunas = Math.min(COLUNAS, imagens.size());
+                int linhas = (imagens.size() + COLUNAS - 1) / COLUNAS;
+                var folha = new BufferedImage(colunas * largura, linhas * altura, BufferedImage.TYPE_INT_RGB);
+                var g = folha.createGraphics();
+                for (int i = 0; i < imagens.size(); i++) {
+                    g.drawImage(imagens.get(i), i % COLUNAS * largura, i / COLUNAS * altura, largura, altura, null);
+                }
+                g.dispose();
+                var temporario = mosaico.resolveSibling(mosaico.getFileName() + ".tmp");
+                ImageIO.write(folha, "jpg", temporario.toFile());
+                Files.move(temporario, mosaico, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        var temporario = indice.resolveSibling(indice.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporario)))) {
+            out.writeInt(MAGICO);
+            out.writeInt(quadros.getEscala());
+            out.writeInt(quadros.getQuadros().size());
+            for (var q : quadros.getQuadros()) {
+                out.writeLong(q.posicao());
+                out.writeLong(q.pts());
+            }
+            out.writeInt(instantes.isEmpty() ? 0 : COLUNAS);
+            out.writeInt(largura);
+            out.writeInt(altura);
+            out.writeInt(instantes.size());
+            for (int instante : instantes) {
+                out.writeInt(instante);
+            }
+        }
+        Files.move(temporario, indice, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // só depois do índice: se falhar antes, o mosaico é refeito na próxima vez
+        for (var miniatura : miniaturas.values()) {
+            Files.deleteIfExists(miniatura);
+        }
+        return Files.exists(mosaico) ? List.of(indice, mosaico) : List.of(indice);
+    }
+
+    /**
+     * Remove os anexos do segmento (retenção).
+     *
+     * @return bytes liberados.
+     */
+    public static long remove(Path segmento) throws IOException {
+        return removeArquivo(indice(segmento)) + removeArquivo(mosaico(segmento));
+    }
+
+    /**
+     * @return tamanho dos anexos existentes do segmento, em bytes.
+     */
+    public static long tamanho(Path segmento) {
+        return tamanhoArquivo(indice(segmento)) + tamanhoArquivo(mosaico(segmento));
+    }
+
+    /**
+     * Remove as miniaturas gravadas antes de hora (o segmento mais antigo
+     * mantido): os segmentos delas já foram removidos e não terão mosaico.
+     *
+     * @return bytes liberados.
+     */
+    public static long removeMiniaturasAnteriores(Path destino, LocalDateTime hora) throws IOException {
+        long liberado = 0;
+        for (var miniatura : miniaturas(destino, LocalDateTime.MIN, hora).values()) {
+            liberado += removeArquivo(miniatura);
+        }
+        return liberado;
+    }
+
+    /**
+     * @return tamanho das miniaturas do destino ainda não reunidas em
+     * mosaicos, em bytes.
+     */
+    public static long tamanhoMiniaturas(Path destino) throws IOException {
+        long total = 0;
+        for (var miniatura : miniaturas(destino, LocalDateTime.MIN, LocalDateTime.MAX).values()) {
+            total += tamanhoArquivo(miniatura);
+        }
+        return total;
+    }
+
+    private static long removeArquivo(Path arquivo) throws IOException {
+        long tamanho = tamanhoArquivo(arquivo);
+        return Files.deleteIfExists(arquivo) ? tamanho : 0;
+    }
+
+    private static long tamanhoArquivo(Path arquivo) {
+        try {
+            return Files.size(arquivo);
+        } catch (IOException ex) {
+            // não existe
+            return 0;
+        }
+    }
+
+    /**
+     * @return miniaturas gravadas entre inicio (inclusive) e fim, em ordem.
+     */
+    private static TreeMap<LocalDateTime, Path> miniaturas(Path destino, LocalDateTime inicio, LocalDateTime fim) throws IOException {
+        var miniaturas = new TreeMap<LocalDateTime, Path>();
+        var dir = diretorioMiniaturas(destino);
+        if (!Files.isDirectory(dir)) {
+            return miniaturas;
+        }
+        try (var arquivos = Files.newDirectoryStream(dir, "*.jpg")) {
+            for (var arquivo : arquivos) {
+                try {
+                    var hora = LocalDateTime.parse(arquivo.getFileName().toString(), FORMATO_MINIATURA);
+                    if (!hora.isBefore(inicio) && hora.isBefore(fim)) {
+                        miniaturas.put(hora, arquivo);
+                    }
+                } catch (DateTimeParseException ex) {
+                    // outro arquivo
+                }
+            }
+        }
+        return miniaturas;
+    }
+
+    private static String nomeBase(Path segmento) {
+        var nome = segmento.getFileName().toString();
+        int ponto = nome.lastIndexOf('.');
+        return ponto < 0 ? nome : nome.substring(0, ponto);
+    }
+
+}
@@ -0,0 +1,149 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.config.Adapter;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Controle adaptativo da qualidade dos gravadores que recodificam.
+ * <p>
+ * A cada {@value #INTERVALO_MS} ms mede a velocidade de cada ffmpeg (avanço
+ * do out_time do -progress sobre o tempo real, na janela) e os quadros
+ * descartados. Se algum não acompanha o tempo real, o gravador de menor
+ * prioridade que ainda pode ser degradado desce um {@link NivelQualidade};
+ * se todos acompanham e a CPU tem folga por {@value #JANELAS_FOLGA} janelas
+ * seguidas, o de maior prioridade degradado sobe um nível. Um ajuste por vez:
+ * o próximo só é decidido depois que o anterior foi aplicado.
+ * <p>
+ * Com stream ao vivo o ffmpeg não passa de 1.0x, por isso a folga é medida
+ * pela carga da CPU. Os níveis só são aplicados no corte dos segmentos
+ * ({@link #ateProximoCorte(LocalDateTime)}), encerrando o ffmpeg logo antes
+ * do corte e iniciando o do novo nível nele ({@link Gravador#trocaNivel(long)}).
+ */
+public class ControleQualidade {
+
+    public static final long INTERVALO_MS = 10000;
+    // abaixo disso o encoder está atrasando
+    private static final double VELOCIDADE_MINIMA = 0.97;
+    private static final double CPU_FOLGA = 0.70;
+    private static final int JANELAS_FOLGA = 6;
+    // duração dos segmentos (-segment_time do Gravador)
+    private static final long SEGMENTO_MS = 600000;
+    // a troca é agendada este tempo antes do corte (o ffmpeg antigo é encerrado 1 s antes dele)
+    public static final long ANTECEDENCIA_MS = 5000;
+
+    private record Amostra(long tempoSaida, long instante, long descartados) {
+    }
+
+    private final DoubleSupplier cargaCpu;
+    // acessados somente pela thread do supervisor
+    private final Map<Gravador, Amostra> amostras = new HashMap<>();
+    private int janelasFolga;
+
+    public ControleQualidade() {
+        this(((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())::getCpuLoad);
+    }
+
+    /**
+     * @param cargaCpu carga da CPU do sistema, de 0 a 1 (negativa se
+     * desconhecida).
+     */
+    public ControleQualidade(DoubleSupplier cargaCpu) {
+        this.cargaCpu = cargaCpu;
+    }
+
+    /**
+     * Mede a janela que terminou e, se for o caso, define o novo nível de um
+     * gravador (aplicado no próximo corte).
+     */
+    public void avalia(Collection<Gravador> gravadores, long agora) {
+        amostras.keySet().retainAll(gravadores);
+        boolean falta = false;
+        boolean medidos = false;
+        Map<Gravador, Double> velocidades = new HashMap<>();
+        for (var g : gravadores) {
+            if (!g.isRecodificado() || !g.isRunning()) {
+                amostras.remove(g);
+                continue;
+            }
+            var atual = new Amostra(g.getTempoSaida(), agora, g.getTotalDescartados());
+            var anterior = amostras.put(g, atual);
+            // primeira amostra ou ffmpeg reiniciado
+            if (anterior == null || atual.tempoSaida() < anterior.tempoSaida() || atual.tempoSaida() == 0
+                    || agora - anterior.instante() < INTERVALO_MS / 2) {
+                continue;
+            }
+            double velocidade = (double) (atual.tempoSaida() - anterior.tempoSaida()) / (agora - anterior.instante());
+            velocidades.put(g, velocidade);
+            medidos = true;
+            if (velocidade < VELOCIDADE_MINIMA || atual.descartados() > anterior.descartados()) {
+                falta = true;
+            }
+        }
+        if (!medidos) {
+            return;
+        }
+        // ajuste anterior ainda não aplicado
+        if (gravadores.stream().anyMatch(g -> g.getNivel() != g.getNivelAtual())) {
+            janelasFolga = 0;
+            return;
+        }
+
+        if (falta) {
+            janelasFolga = 0;
+            List<Gravador> candidatos = new ArrayList<>(velocidades.keySet());
+            candidatos.removeIf(g -> g.getNivel() == NivelQualidade.MINIMO);
+            candidatos.stream()
+                    .min(Comparator.comparingInt(ControleQualidade::prioridade).thenComparing(velocidades::get))
+                    .ifPresentOrElse(g -> define(g, g.getNivel().abaixo(), velocidades),
+                            () -> System.out.println(LocalDateTime.now().toString() + " - Encoder sem folga e todos os gravadores já no nível mínimo"));
+            return;
+        }
+
+        double carga = cargaCpu.getAsDouble();
+        if (carga < 0 || carga > CPU_FOLGA) {
+            janelasFolga = 0;
+            return;
+        }
+        if (++janelasFolga < JANELAS_FOLGA) {
+            return;
+        }
+        janelasFolga = 0;
+        gravadores.stream()
+                .filter(g -> g.isRecodificado() && g.getNivel() != NivelQualidade.NORMAL)
+                .max(Comparator.comparingInt(ControleQualidade::prioridade))
+                .ifPresent(g -> define(g, g.getNivel().acima(), velocidades));
+    }
+
+    private static void define(Gravador g, NivelQualidade nivel, Map<Gravador, Double> velocidades) {
+        var velocidade = velocidades.get(g);
+        System.out.println(LocalDateTime.now().toString() + " - Adapter " + g.getAdapter() + " serviço "
+                + g.getSaidas().get(0).getServiceName() + (velocidade != null ? String.format(" a %.2fx", velocidade) : "")
+                + ": qualidade passa para " + nivel + " no próximo segmento");
+        g.setNivel(nivel);
+    }
+
+    private static int prioridade(Gravador g) {
+        return g.getSaidas().stream().mapToInt(Adapter::getPrioridade).max().orElse(0);
+    }
+
+    /**
+     * @return ms até o momento de aplicar os níveis: {@value #ANTECEDENCIA_MS}
+     * ms antes do próximo corte dos segmentos (múltiplos de 10 minutos do
+     * relógio).
+     */
+    public static long ateProximoCorte(LocalDateTime agora) {
+        long noDia = Duration.between(agora.toLocalDate().atStartOfDay(), agora).toMillis();
+        long ate = SEGMENTO_MS - noDia % SEGMENTO_MS - ANTECEDENCIA_MS;
+        return ate > 0 ? ate : ate + SEGMENTO_MS;
+    }
+
+}
@@ -0,0 +1,53 @@
+package br.com.spotcom.gravador;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Diretórios de data ({@code <destino>/yyyyMMdd}) dos segmentos.
+ * <p>
+ * O ffmpeg grava em {@code <destino>/%Y%m%d/%H%M%S.mp4} (strftime), assim o
+ * mesmo processo passa para o diretório do novo dia à meia-noite sem ser
+ * reiniciado. O segment muxer não cria diretórios, por isso o diretório do
+ * dia seguinte é criado com antecedência.
+ */
+public final class DiretoriosData {
+
+    public static final DateTimeFormatter FORMATO = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    // padrão strftime equivalente a FORMATO
+    static final String PADRAO_STRFTIME = "%Y%m%d";
+
+    private DiretoriosData() {
+    }
+
+    public static Path diretorio(Path destino, LocalDate data) {
+        return destino.resolve(data.format(FORMATO));
+    }
+
+    /**
+     * Cria os diretórios da data e do dia seguinte, se ainda não existirem.
+     */
+    public static void prepara(Path destino, LocalDate data) throws IOException {
+        cria(diretorio(destino, data));
+        cria(diretorio(destino, data.plusDays(1)));
+    }
+
+    private static void cria(Path dir) throws IOException {
+        if (Files.isDirectory(dir)) {
+            return;
+        }
+        try {
+            Files.createDirectory(dir);
+        } catch (FileAlreadyExistsException ex) {
+            // pode continuar
+        } catch (IOException | RuntimeException ex) {
+            throw new IOException("Não foi possível criar o diretório " + dir.toString(), ex);
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package br.com.spotcom.gravador;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Divide os núcleos da máquina entre os ffmpeg que recodificam, para que os
+ * encoders não disputem todos os núcleos entre si e com a JVM.
+ * <p>
+ * Cada gravador recebe ao menos um núcleo; os que sobram são distribuídos em
+ * proporção à prioridade. Com mais gravadores que núcleos, cada um fica com
+ * um núcleo, compartilhado em rodízio. A afinidade é aplicada com
+ * {@code taskset}, em todas as threads do processo.
+ */
+public final class DivisorNucleos {
+
+    private DivisorNucleos() {
+    }
+
+    /**
+     * @param nucleos núcleos disponíveis para os encoders.
+     * @param prioridades prioridade de cada gravador, na ordem de desempate.
+     * @return núcleos de cada gravador.
+     */
+    public static <T> Map<T, List<Integer>> divide(List<Integer> nucleos, Map<T, Integer> prioridades) {
+        Map<T, List<Integer>> divisao = new LinkedHashMap<>();
+        if (prioridades.isEmpty() || nucleos.isEmpty()) {
+            return divisao;
+        }
+        List<T> ordem = new ArrayList<>(prioridades.keySet());
+        ordem.sort(Comparator.comparing(prioridades::get, Comparator.reverseOrder()));
+
+        int n = nucleos.size();
+        if (ordem.size() >= n) {
+            for (int i = 0; i < ordem.size(); i++) {
+                divisao.put(ordem.get(i), List.of(nucleos.get(i % n)));
+            }
+            return divisao;
+        }
+
+        // um núcleo para cada e o restante pelo peso (maiores restos)
+        int minimo = prioridades.values().stream().mapToInt(Integer::intValue).min().orElse(0);
+        Map<T, Integer> quantidades = new LinkedHashMap<>();
+        Map<T, Double> restos = new LinkedHashMap<>();
+        int extras = n - ordem.size();
+        double somaPesos = ordem.stream().mapToDouble(e -> prioridades.get(e) - minimo + 1).sum();
+        int distribuidos = 0;
+        for (var e : ordem) {
+            double parte = extras * (prioridades.get(e) - minimo + 1) / somaPesos;
+            quantidades.put(e, 1 + (int) parte);
+            restos.put(e, parte - (int) parte);
+            distribuidos += (int) parte;
+        }
+        var porResto = new ArrayList<>(ordem);
+        porResto.sort(Comparator.comparing(restos::get, Comparator.reverseOrder()));
+        for (int i = 0; i < extras - distribuidos; i++) {
+            quantidades.merge(porResto.get(i), 1, Integer::sum);
+        }
+
+        int inicio = 0;
+        for (var e : ordem) {
+            int quantidade = quantidades.get(e);
+            divisao.put(e, List.copyOf(nucleos.subList(inicio, inicio + quantidade)));
+            inicio += quantidade;
+        }
+        return divisao;
+    }
+
+    /**
+     * Fixa todas as threads do processo nos núcleos informados.
+     */
+    public static void fixa(ProcessHandle processo, List<Integer> nucleos) {
+        var lista = nucleos.stream().map(String::valueOf).collect(Collectors.joining(","));
+        try {
+            var taskset = new ProcessBuilder("taskset", "-a", "-p", "-c", lista, String.valueOf(processo.pid()))
+                    .redirectErrorStream(true)
+                    .start();
+            var saida = new String(taskset.getInputStream().readAllBytes()).trim();
+            if (taskset.waitFor() != 0) {
+                System.out.println(LocalDateTime.now().toString() + " - taskset " + processo.pid() + " falhou: " + saida);
+            }
+        } catch (IOException ex) {
+            System.out.println(LocalDateTime.now().toString() + " - Não foi possível executar o taskset: " + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.metricas.Metricas;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+
+/**
+ * Envio retomável de um arquivo, em intervalos de bytes, pelo protocolo:
+ * <ul>
+ * <li>{@code GET <arquivo>/offset}: bytes já recebidos pelo servidor (404 se nenhum);</li>
+ * <li>{@code POST <arquivo>/append?offset=N}: grava o corpo a partir de N. Se
+ * o servidor possuir outro offset responde 409 com o offset no corpo;</li>
+ * <li>{@code POST <arquivo>/finalize?size=N&sha256=H}: confirma o arquivo,
+ * 201 se o tamanho e o hash conferem, 409 se não conferem (o servidor descarta
+ * o que recebeu).</li>
+ * </ul>
+ * onde {@code <arquivo>} é o endpoint {@code /upload/{gravador}/{praca}/{rede}/{data}/{arquivo}}.
+ * Os intervalos são lidos com leituras posicionais do FileChannel.
+ */
+class EnvioRetomavel {
+
+    /**
+     * Servidor não implementa o protocolo retomável (404/405/501 no append).
+     */
+    static class NaoSuportado extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        NaoSuportado(String message) {
+            super(message);
+        }
+
+    }
+
+    private final MotorUpload motor;
+    private final Adapter adapter;
+    private final MotorUpload.Classe classe;
+    private final URI uriArquivo;
+    private final Path arquivo;
+    private final Metricas.Contador bytes;
+    private long enviado;
+
+    EnvioRetomavel(MotorUpload motor, Adapter adapter, MotorUpload.Classe classe, URI uriArquivo, Path arquivo) {
+        this.motor = motor;
+        this.adapter = adapter;
+        this.classe = classe;
+        this.bytes = Metricas.global().contador("gravador_upload_bytes_total", "Bytes aceitos pelo servidor",
+                Metricas.rotulos(adapter, "classe", classe.name().toLowerCase()));
+        this.uriArquivo = uriArquivo;
+        this.arquivo = arquivo;
+    }
+
+    Path getArquivo() {
+        return arquivo;
+    }
+
+    long getEnviado() {
+        return enviado;
+    }
+
+    /**
+     * Consulta quantos bytes do arquivo o servidor já possui.
+     */
+    long consultaOffset() throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(URI.create(uriArquivo + "/offset"))
+                .GET()
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        var response = motor.envia(adapter, classe, request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            enviado = 0;
+        } else if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+            enviado = parseOffset(response.body());
+        } else {
+            throw new IOException("Falha ao consultar offset de " + arquivo + ". Servidor retornou status HTTP " + response.statusCode());
+        }
+        return enviado;
+    }
+
+    /**
+     * Envia os bytes de {@link #getEnviado()} até ate (exclusivo). Com limite
+     * de banda, o intervalo é dividido em requisições de até um segundo de
+     * taxa, cada uma aguardando a sua vez no {@link LimitadorBanda} antes de
+     * ser enviada (a espera nunca acontece dentro do HttpClient).
+     */
+    void append(long ate) throws IOException, InterruptedException {
+        var limitador = motor.getLimitador(classe);
+        while (enviado < ate) {
+            // sem limite a rajada é Long.MAX_VALUE: soma só o que falta, sem estourar
+            long parte = enviado + Math.min(ate - enviado, limitador.getRajada());
+            limitador.consome(parte - enviado);
+            if (!appendIntervalo(parte)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false se o servidor possui outro offset (já atualizado em
+     * {@link #getEnviado()}).
+     */
+    private boolean appendIntervalo(long ate) throws IOException, InterruptedException {
+        long inicio = enviado;
+        long tamanho = ate - inicio;
+        var request = HttpRequest.newBuilder(URI.create(uriArquivo + "/append?offset=" + inicio))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.fromPublisher(
+                        HttpRequest.BodyPublishers.ofInputStream(() -> abreIntervalo(inicio, tamanho)), tamanho))
+                .timeout(Duration.ofMinutes(10))
+                .build();
+        var response = motor.envia(adapter, classe, request, HttpResponse.BodyHandlers.ofString());
+        int status = response.statusCode();
+        if (status == HttpURLConnection.HTTP_CONFLICT) {
+            // servidor possui outro offset: continua a partir dele no próximo envio
+            enviado = parseOffset(response.body());
+            return false;
+        }
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_BAD_METHOD
+                || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+            throw new NaoSuportado("Servidor não suporta envio retomável (HTTP " + status + ")");
+        }
+        if (status / 100 != 2) {
+            throw new IOException("Falha no envio de " + arquivo + ". Servidor retornou status HTTP " + status);
+        }
+        enviado = ate;
+        bytes.soma(tamanho);
+        return true;
+    }
+
+    /**
+     * Confirma o arquivo completo com seu tamanho e hash.
+     *
+     * @return true se o servidor confirmou, false se o hash/tamanho não
+     * conferiu e o arquivo deve ser enviado novamente desde o início.
+     */
+    boolean finaliza(long tamanho) throws IOException, InterruptedException {
+        String hash = sha256(arquivo, tamanho);
+        var request = HttpRequest.newBuilder(URI.create(uriArquivo + "/finalize?size=" + tamanho + "&sha256=" + hash))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        var response = motor.envia(adapter, classe, request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == HttpURLConnection.HTTP_CREATED) {
+            return true;
+        }
+        if (response.statusCode() == HttpURLConnection.HTTP_CONFLICT) {
+            enviado = 0;
+            return false;
+        }
+        throw new IOException("Falha ao finalizar " + arquivo + ". Servidor retornou status HTTP " + response.statusCode());
+    }
+
+    private IntervaloArquivoInputStream abreIntervalo(long inicio, long tamanho) {
+        try {
+            return new IntervaloArquivoInputStream(arquivo, inicio, tamanho);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static long parseOffset(String body) throws IOException {
+        try {
+            return Long.parseLong(body.trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("Offset inválido retornado pelo servidor: " + body);
+        }
+    }
+
+    static String sha256(Path arquivo, long tamanho) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        var buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (var canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+            long pos = 0;
+            while (pos < tamanho) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), tamanho - pos));
+                int n = canal.read(buffer, pos);
+                if (n < 0) {
+                    throw new IOException("Arquivo " + arquivo + " menor que " + tamanho + " bytes");
+                }
+                pos += n;
+                buffer.flip();
+                digest.update(buffer);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+}
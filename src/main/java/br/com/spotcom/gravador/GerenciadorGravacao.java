@@ -1,21 +1,29 @@
 package br.com.spotcom.gravador;
 
+import br.com.spotcom.gravador.config.Adapter;
 import br.com.spotcom.gravador.config.Configuracao;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
-import java.time.Instant;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -24,30 +32,334 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class GerenciadorGravacao {
     
     private final Configuracao configuracao;
+    private final Supervisor supervisor;
+    private final GerenciadorZap zap;
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private final CountDownLatch stopSignal = new CountDownLatch(1);
+    private final Clock clock;
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final Map<Gravador, Supervisor.Filho> gravadores = new ConcurrentHashMap<>();
+    // um único leitor por dvr0, compartilhado pelos gravadores do mesmo adapter
+    private final Map<Integer, LeitorDvr> leitores = new ConcurrentHashMap<>();
+    // um monitor de saúde do stream por adapter
+    private final Map<Integer, MonitorAdapter> monitores = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> ultimoZap = new ConcurrentHashMap<>();
+    private volatile LocalDate data;
 
-    public GerenciadorGravacao(Configuracao configuracao) {
+    public GerenciadorGravacao(Configuracao configuracao, Supervisor supervisor, GerenciadorZap zap) {
+        this(configuracao, supervisor, zap, Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param zap dvbv5-zap dos adapters: o gravador de um adapter só é
+     * iniciado com o zap pronto, e o zap é reiniciado quando o monitor do
+     * adapter detecta perda de sinal.
+     * @param clock relógio da troca de dia e dos diretórios de data (testes).
+     */
+    public GerenciadorGravacao(Configuracao configuracao, Supervisor supervisor, GerenciadorZap zap, Clock clock) {
         this.configuracao = configuracao;
+        this.supervisor = supervisor;
+        this.zap = zap;
+        this.clock = clock;
     }
-    
+
+    /**
+     * Cria os gravadores como filhos do supervisor (que os inicia quando o
+     * supervisor e o zap do adapter estiverem prontos) e agenda a verificação
+     * de saúde e a preparação dos diretórios de cada dia.
+     */
     public void start() {
         if (!running.compareAndSet(false, true)) {
             throw new IllegalStateException("O serviço já está rodando");
         }
-        var thread = new Thread(this::handle);
-        thread.setDaemon(false);
-        thread.start();
+        // cada início do dvbv5-zap descarta o "stream recebido" da sintonia anterior
+        zap.setAoSintonizar(numero -> {
+            var monitor = monitores.get(numero);
+            if (monitor != null) {
+                monitor.novaSintonia();
+            }
+        });
+        adiciona(configuracao.getAdapters());
+
+        var escalonador = configuracao.getEscalonador();
+        if (escalonador != null) {
+            escalonador.getAtribuicoes().forEach((numero, frequencia) -> System.out.println(LocalDateTime.now().toString()
+                    + " - Sintonizador " + numero + ": multiplex " + frequencia + " Hz"));
+            // sintonizador com falhas seguidas: o multiplex passa para uma reserva
+            supervisor.setAoAbrirCircuito(filho -> {
+                int numero = zap.getAdapter(filho);
+                if (numero >= 0 && escalonador.isAutomatico(numero)) {
+                    executorService.submit(() -> realoca(numero));
+                }
+            });
+        }
+
+        data = LocalDate.now(clock);
+        preparaDiretorios(data);
+        agendaVirada();
+        long intervalo = Math.max(1000, configuracao.getTempoFalhaTs() / 2);
+        supervisor.agendaPeriodico(this::verificaSaude, intervalo, TimeUnit.MILLISECONDS);
+
+        if (configuracao.isQualidadeAdaptativa()) {
+            var controle = new ControleQualidade();
+            supervisor.agendaPeriodico(() -> controle.avalia(gravadores.keySet(), System.currentTimeMillis()),
+                    ControleQualidade.INTERVALO_MS, TimeUnit.MILLISECONDS);
+            agendaCorte();
+        }
+    }
+
+    /**
+     * Cria os gravadores das saídas informadas como filhos do supervisor,
+     * dependentes do zap do adapter. Renditions do mesmo serviço são
+     * agrupadas em um único gravador (um só decode).
+     */
+    public synchronized void adiciona(Collection<Adapter> adapters) {
+        Map<Object, List<Adapter>> grupos = new LinkedHashMap<>();
+        adapters.forEach(e -> {
+            var dirDestino = e.getDestino();
+
+            if (!Files.exists(dirDestino) || !Files.isDirectory(dirDestino)) {
+                try {
+                    Files.createDirectory(dirDestino);
+                } catch (FileAlreadyExistsException ex) {
+                    // pode continuar
+                } catch (IOException | RuntimeException ex) {
+                    System.out.println("Não foi possível criar o diretório " + dirDestino.toString());
+                    return;
+                }
+            }
+
+            grupos.computeIfAbsent(chave(e), k -> new ArrayList<>()).add(e);
+        });
+
+        grupos.values().forEach(saidas -> {
+            var adapter = saidas.get(0);
+            int numero = adapter.getAdapter();
+            LeitorDvr leitor = null;
+            // na captura direta o ffmpeg é o único leitor do dvr0 (sem monitor)
+            if (adapter.getCaptura() != Adapter.Captura.DIRETO) {
+                leitor = leitores.computeIfAbsent(numero,
+                        k -> new LeitorDvr(adapter.getOrigem(), configuracao.getTamanhoBufferDvr()));
+                final var compartilhado = leitor;
+                monitores.computeIfAbsent(numero, k -> {
+                    var monitor = new MonitorAdapter(compartilhado, numero, configuracao.getTempoFalhaTs());
+                    // alternativa ao lock informado pelo dvbv5-zap: primeiros pacotes válidos no dvr0
+                    monitor.setAoReceberStream(zap::streamRecebido);
+                    monitor.start();
+                    return monitor;
+                });
+            }
+            var g = new Gravador(leitor, saidas);
+            g.setClock(clock);
+            g.setTamanhoTransbordo(configuracao.getTamanhoTransbordo());
+            var dependencia = zap.getFilho(numero);
+            // o mesmo serviço pode ter vários grupos (destinos, modos): o destino da primeira saída identifica o grupo
+            var nome = "gravador-adapter" + numero + "-" + adapter.getServiceId() + "-" + adapter.getDestino().getFileName();
+            gravadores.put(g, supervisor.adiciona(nome, () -> {
+                startGravador(g);
+                return g.getTermino();
+            }, dependencia != null ? new Supervisor.Filho[] {dependencia} : new Supervisor.Filho[0]));
+        });
+        redistribuiNucleos();
+    }
+
+    /**
+     * Aplica uma nova configuração: encerra os gravadores das saídas
+     * removidas, ajusta os dvbv5-zap e inicia os gravadores das saídas
+     * adicionadas. Os demais gravadores continuam rodando, exceto o grupo
+     * que ganha ou perde uma rendition (um só ffmpeg por grupo) e os de
+     * adapters sintonizados novamente.
+     */
+    public synchronized void aplica(List<Adapter> removidas, List<Adapter> adicionadas) {
+        var chaves = adicionadas.stream().map(this::chave).collect(Collectors.toSet());
+        List<Adapter> afetadas = new ArrayList<>(removidas);
+        gravadores.keySet().forEach(g -> g.getSaidas().stream()
+                .filter(e -> chaves.contains(chave(e)))
+                .forEach(afetadas::add));
+        List<Adapter> paradas = new ArrayList<>(remove(afetadas));
+
+        var ressintonizados = zap.sincroniza(configuracao.getAdapters());
+        if (!ressintonizados.isEmpty()) {
+            // dependiam do dvbv5-zap substituído: são recriados com o novo
+            paradas.addAll(remove(gravadores.keySet().stream()
+                    .filter(g -> ressintonizados.contains(g.getAdapter()))
+                    .flatMap(g -> g.getSaidas().stream())
+                    .toList()));
+        }
+
+        var destinosRemovidos = removidas.stream().map(Adapter::getDestino).collect(Collectors.toSet());
+        List<Adapter> novas = new ArrayList<>();
+        paradas.stream().filter(e -> !destinosRemovidos.contains(e.getDestino())).forEach(novas::add);
+        novas.addAll(adicionadas);
+        if (!isShutdown()) {
+            adiciona(novas);
+        }
+    }
+
+    /**
+     * Encerra e remove os gravadores que têm alguma das saídas informadas.
+     * Leitor e monitor de um adapter que fica sem gravadores são liberados.
+     *
+     * @return todas as saídas dos gravadores removidos (um gravador pode ter
+     * outras renditions além das informadas).
+     */
+    public synchronized List<Adapter> remove(Collection<Adapter> adapters) {
+        var destinos = adapters.stream().map(Adapter::getDestino).collect(Collectors.toSet());
+        var removidos = gravadores.keySet().stream()
+                .filter(g -> g.getSaidas().stream().anyMatch(e -> destinos.contains(e.getDestino())))
+                .toList();
+        removidos.forEach(g -> supervisor.remove(gravadores.remove(g)));
+        removidos.forEach(Gravador::stop);
+        removidos.forEach(GerenciadorGravacao::stopGravador);
+        removidos.forEach(Gravador::removeMetricas);
+
+        redistribuiNucleos();
+
+        var emUso = gravadores.keySet().stream().map(Gravador::getAdapter).collect(Collectors.toSet());
+        for (var numero : List.copyOf(monitores.keySet())) {
+            if (!emUso.contains(numero)) {
+                monitores.remove(numero).stop();
+                leitores.remove(numero).removeMetricas();
+                ultimoZap.remove(numero);
+            }
+        }
+        return removidos.stream().flatMap(g -> g.getSaidas().stream()).toList();
+    }
+
+    /**
+     * Divide os núcleos entre os gravadores que recodificam, por prioridade
+     * ({@link DivisorNucleos}); os que só copiam ficam nos núcleos
+     * reservados. Recalculado sempre que gravadores entram ou saem e quando
+     * a prioridade de uma saída muda.
+     */
+    public synchronized void redistribuiNucleos() {
+        if (!configuracao.isParticaoNucleos()) {
+            return;
+        }
+        int total = Runtime.getRuntime().availableProcessors();
+        int reservados = Math.min(configuracao.getNucleosReservados(), total - 1);
+        var todos = IntStream.range(0, total).boxed().toList();
+        var livres = todos.subList(reservados, total);
+        var reserva = reservados > 0 ? todos.subList(0, reservados) : todos;
+
+        Map<Gravador, Integer> prioridades = new LinkedHashMap<>();
+        gravadores.keySet().stream()
+                .filter(Gravador::isRecodificado)
+                .sorted(Comparator.comparingInt(Gravador::getAdapter))
+                .forEach(g -> prioridades.put(g, g.getSaidas().stream().mapToInt(Adapter::getPrioridade).max().orElse(0)));
+        var divisao = DivisorNucleos.divide(livres, prioridades);
+        for (var g : gravadores.keySet()) {
+            var nucleos = divisao.getOrDefault(g, reserva);
+            if (!nucleos.equals(g.getNucleos())) {
+                System.out.println(LocalDateTime.now().toString() + " - Adapter " + g.getAdapter() + " serviço "
+                        + g.getSaidas().get(0).getServiceName() + ": núcleos " + nucleos);
+            }
+            g.setNucleos(nucleos);
+        }
+    }
+
+    /**
+     * Move o multiplex do sintonizador que falhou para uma reserva: encerra
+     * zap e gravadores do adapter e os recria no novo.
+     */
+    private void realoca(int de) {
+        int para = configuracao.getEscalonador().falhou(de, System.currentTimeMillis());
+        if (para < 0) {
+            System.out.println(LocalDateTime.now().toString() + " - Sintonizador " + de + " falhando e nenhum reserva disponível");
+            return;
+        }
+        System.out.println(LocalDateTime.now().toString() + " - Sintonizador " + de + " falhando, multiplex movido para o adapter " + para);
+        var afetados = configuracao.getAdapters().stream()
+                .filter(e -> e.isAutomatico() && e.getAdapter() == de)
+                .toList();
+        remove(afetados);
+        zap.remove(de);
+        afetados.forEach(e -> e.setAdapter(para));
+        if (!afetados.isEmpty() && !isShutdown()) {
+            zap.adiciona(afetados.get(0));
+            adiciona(afetados);
+        }
+    }
+
+    /**
+     * Troca de dia: os gravadores continuam rodando (o ffmpeg passa sozinho
+     * para o diretório do novo dia), só é preciso criar com antecedência o do
+     * dia seguinte. Agendado para logo após a meia-noite do relógio.
+     */
+    private void agendaVirada() {
+        var agora = LocalDateTime.now(clock);
+        long atraso = Duration.between(agora, agora.toLocalDate().plusDays(1).atStartOfDay()).toMillis() + 1000;
+        supervisor.agenda(() -> {
+            verificaDia();
+            if (!isShutdown()) {
+                agendaVirada();
+            }
+        }, atraso, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Se o dia do relógio mudou, prepara os diretórios do novo dia (e com
+     * eles os do dia seguinte).
+     */
+    void verificaDia() {
+        var hoje = LocalDate.now(clock);
+        if (!hoje.equals(data)) {
+            data = hoje;
+            preparaDiretorios(data);
+        }
     }
     
+    /**
+     * Troca, no corte dos segmentos, o ffmpeg dos gravadores cujo nível de
+     * qualidade foi alterado pelo {@link ControleQualidade}. A troca é feita
+     * pelo próprio gravador, sem passar pelo supervisor: não é uma falha.
+     */
+    private void agendaCorte() {
+        supervisor.agenda(() -> {
+            long corte = System.currentTimeMillis() + ControleQualidade.ANTECEDENCIA_MS;
+            for (var g : gravadores.keySet()) {
+                if (!isShutdown() && g.getNivel() != g.getNivelAtual() && g.isRunning() && g.restart()) {
+                    // fora da thread do supervisor: a troca dura até o corte
+                    executorService.submit(() -> g.trocaNivel(corte));
+                }
+            }
+            if (!isShutdown()) {
+                agendaCorte();
+            }
+        }, ControleQualidade.ateProximoCorte(LocalDateTime.now(clock)), TimeUnit.MILLISECONDS);
+    }
+
     public void stop() {
         shutdown.set(true);
     }
     
+    /**
+     * Encerra monitores e gravadores. O supervisor deve ter sido parado
+     * antes, para não reiniciá-los.
+     */
     public void stopAndWait(long timeout) throws InterruptedException {
         stop();
-        stopSignal.await(timeout, TimeUnit.MILLISECONDS);
+        if (!running.get()) {
+            return;
+        }
+        System.out.println(LocalDateTime.now().toString() + " - Parando todas as gravações");
+
+        monitores.values().forEach(MonitorAdapter::stop);
+
+        // sinaliza encerramento a todos os gravadores
+        gravadores.keySet().forEach(e -> e.stop());
+
+        // aguarda gravadores encerrarem
+        gravadores.keySet().forEach(g -> stopGravador(g));
+
+        // shutdown do executorService
+        executorService.shutdown();
+        if (!executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+            System.err.println("Não foi possível encerrar normalmente o ExecutorService!");
+        }
+
+        System.out.println(LocalDateTime.now().toString() + " - Gravações finalizadas");
+        running.set(false);
     }
     
     public boolean isRunning() {
@@ -58,87 +370,55 @@ public class GerenciadorGravacao {
         return shutdown.get();
     }
     
-    public void handle() {
-        var executorService = Executors.newCachedThreadPool();
-        List<Gravador> gravadores = new ArrayList<>();
-        try {
-            configuracao.getAdapters().forEach(e -> {
-                var origem = e.getOrigem();
-                var dirDestino = e.getDestino();
-
-                if (!Files.exists(dirDestino) || !Files.isDirectory(dirDestino)) {
-                    try {
-                        dirDestino = Files.createDirectory(dirDestino);
-                    } catch (FileAlreadyExistsException ex) {
-                        // pode continuar
-                    } catch (IOException | RuntimeException ex) {
-                        System.out.println("Não foi possível criar o diretório " + dirDestino.toString());
-                        return;
-                    }
-                }
+    /**
+     * Adapter sem stream saudável: reinicia o dvbv5-zap (nova sintonia).
+     * Stream saudável mas ffmpeg sem progresso: encerra somente o gravador,
+     * que o supervisor inicia novamente. Executado na thread do supervisor.
+     */
+    private void verificaSaude() {
+        if (isShutdown()) {
+            return;
+        }
+        long agora = System.currentTimeMillis();
+        long limite = configuracao.getTempoFalhaTs();
+        for (var monitor : monitores.values()) {
+            int numero = monitor.getAdapter();
+            if (monitor.isSemSinal(agora) && agora - ultimoZap.getOrDefault(numero, 0L) > limite) {
+                ultimoZap.put(numero, agora);
+                System.out.println(LocalDateTime.now().toString() + " - Adapter " + numero + " sem stream saudável há mais de "
+                        + limite / 1000 + " s");
+                zap.reinicia(numero);
+            }
+        }
+        for (var g : gravadores.keySet()) {
+            var monitor = monitores.get(g.getAdapter());
+            if (!g.isRestarting() && g.isParado(agora, limite) && (monitor == null || !monitor.isSemSinal(agora)) && g.restart()) {
+                System.out.println(LocalDateTime.now().toString() + " - ffmpeg do adapter " + g.getAdapter() + " sem progresso, reiniciando gravador");
+                // fora da thread do supervisor: o encerramento pode levar alguns segundos
+                executorService.submit(() -> stopGravador(g));
+            }
+        }
+    }
 
-                var gravador = new Gravador(origem, dirDestino, e.getServiceId(), e.getScale());
-                gravadores.add(gravador);
-            });
-                        
-            LocalDate data = LocalDate.now();
-            while (!isShutdown()) {
-                // se trocou o dia, deve reiniciar gravadores
-                if (!LocalDate.now().equals(data)) {
-                    data = LocalDate.now();
-                    final LocalDate dataInicio = data;
-                    
-                    // reinicia gravadores com a nova data em segundo plano (para um não esperar o outro)
-                    gravadores.forEach(g -> {
-                        // reinicia se já não estava reiniciando
-                        if (g.restart()) {
-                            executorService.submit(() -> {
-                                stopGravador(g);
-                                startGravador(g, dataInicio);
-                            });
-                        }
-                    });
-                }
-                
-                // reinicia gravadores parados
-                for (var g: gravadores) {
-                    if (!g.isRunning() && !g.isRestarting()) {
-                        // inicia se já não estava em processo de reinicio
-                        if (g.restart()) startGravador(g, data);
-                    }
-                }
+    /**
+     * Saídas com a mesma chave são gravadas por um único ffmpeg.
+     */
+    private Object chave(Adapter adapter) {
+        return configuracao.isMultiRendicao()
+                ? new ChaveGravador(adapter.getAdapter(), adapter.getServiceId(), adapter.isFiltrarTs(), adapter.getModo(), adapter.getCaptura())
+                : adapter.getDestino();
+    }
 
-                try {
-                    // dorme até o próximo segundo exato
-                    long delay = Instant.now().until(Instant.now().truncatedTo(ChronoUnit.SECONDS).plusSeconds(1), ChronoUnit.MICROS);
-                    TimeUnit.MICROSECONDS.sleep(delay);
-                } catch (InterruptedException ex) {
-                    // noop
-                }
-            }
-        } finally {
-            System.out.println(LocalDateTime.now().toString() + " - Parando todas as gravações");
-            
-            // sinaliza encerramento a todos os gravadores
-            gravadores.forEach(e -> e.stop());
-            
-            // aguarda gravadores encerrarem
-            gravadores.forEach(g -> stopGravador(g));
-
-            // shutdown do executorService
-            executorService.shutdown();
+    private void preparaDiretorios(LocalDate data) {
+        for (var adapter : configuracao.getAdapters()) {
             try {
-                executorService.awaitTermination(5000, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException ex) {
-                System.err.println("Não foi possível encerrar normalmente o ExecutorService!");
+                DiretoriosData.prepara(adapter.getDestino(), data);
+            } catch (IOException ex) {
+                System.err.println(ex);
             }
-
-            System.out.println(LocalDateTime.now().toString() + " - Gravações finalizadas");
-            running.set(false);
-            stopSignal.countDown();
         }
     }
-    
+
     private static void stopGravador(Gravador gravador) {
         System.out.println(LocalDateTime.now().toString() + " - Parando gravador");
         try {
@@ -153,13 +433,12 @@ public class GerenciadorGravacao {
         }
     }
     
-    private static void startGravador(Gravador gravador, LocalDate data) {
+    private static void startGravador(Gravador gravador) throws IOException {
         System.out.println(LocalDateTime.now().toString() + " - Iniciando gravador");
-        try {
-            gravador.start(data);
-        } catch (IOException ex) {
-            System.err.println(ex);
-        }
+        gravador.start();
+    }
+    
+    private record ChaveGravador(int adapter, int serviceId, boolean filtrarTs, Adapter.Modo modo, Adapter.Captura captura) {
     }
     
 }
@@ -0,0 +1,282 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.metricas.Metricas;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Retenção dos segmentos gravados.
+ * <p>
+ * Quando o uso de um disco passa da marca alta, os segmentos mais antigos
+ * dos destinos desse disco são removidos até o uso voltar à marca baixa.
+ * Destinos com cota são mantidos abaixo dela (remoção até 90% da cota);
+ * os anexos e as miniaturas ({@link AnexosSegmento}) contam na cota e saem
+ * com o segmento. Nunca é removido um segmento ainda não enviado nem o
+ * segmento em gravação.
+ * <p>
+ * A verificação é feita a cada {@value #INTERVALO_MS} ms numa thread própria
+ * e as remoções são espaçadas (limite por segundo configurado), para não
+ * disputar o disco com a gravação dos segmentos.
+ */
+public class GerenciadorRetencao {
+
+    /**
+     * Estado de envio dos segmentos.
+     */
+    @FunctionalInterface
+    public interface EstadoUpload {
+
+        boolean isEnviado(Path destino, LocalDateTime hora);
+
+    }
+
+    private static final long INTERVALO_MS = 30000;
+
+    private record Candidato(Adapter adapter, LocalDateTime hora, Path arquivo) {
+    }
+
+    private final Configuracao configuracao;
+    private final EstadoUpload estadoUpload;
+    // acessados somente pela thread da retenção
+    private final Map<Path, IndiceSegmentos> indices = new HashMap<>();
+    private volatile boolean encerrado;
+    private volatile long bloqueados;
+    private Thread thread;
+
+    /**
+     * @param estadoUpload informa se um segmento já foi enviado; sem upload
+     * ativo todos os segmentos podem ser removidos.
+     */
+    public GerenciadorRetencao(Configuracao configuracao, EstadoUpload estadoUpload) {
+        this.configuracao = configuracao;
+        this.estadoUpload = estadoUpload;
+        Metricas.global().medidor("gravador_retencao_bloqueados", "Segmentos que seriam removidos mas ainda não foram enviados",
+                () -> bloqueados);
+    }
+
+    public void start() {
+        encerrado = false;
+        thread = new Thread(this::executa, "retencao");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        encerrado = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void executa() {
+        try {
+            while (!encerrado) {
+                try {
+                    verifica();
+                } catch (IOException | RuntimeException ex) {
+                    System.out.println(LocalDateTime.now().toString() + " - Falha na retenção: " + ex);
+                }
+                TimeUnit.MILLISECONDS.sleep(INTERVALO_MS);
+            }
+        } catch (InterruptedException ex) {
+            // encerrado
+        } finally {
+            indices.values().forEach(IndiceSegmentos::fechar);
+            indices.clear();
+        }
+    }
+
+    /**
+     * Aplica as cotas dos destinos e as marcas de cada disco.
+     */
+    void verifica() throws IOException, InterruptedException {
+        var adapters = configuracao.getAdapters();
+        sincronizaIndices(adapters);
+        long totalBloqueados = 0;
+
+        for (var adapter : adapters) {
+            var indice = indices.get(adapter.getDestino());
+            if (indice == null) {
+                continue;
+            }
+            // miniaturas anteriores ao segmento mais antigo não entram mais em nenhum mosaico
+            var primeiro = indice.proximo(null);
+            if (primeiro != null) {
+                AnexosSegmento.removeMiniaturasAnteriores(adapter.getDestino(), IndiceSegmentos.parseHoraArquivo(primeiro));
+            }
+            if (adapter.getCota() <= 0) {
+                continue;
+            }
+            long usado = tamanho(adapter.getDestino(), indice);
+            if (usado > adapter.getCota()) {
+                long liberar = usado - adapter.getCota() * 9 / 10;
+                System.out.println(LocalDateTime.now().toString() + " - " + adapter.getDestino() + " acima da cota ("
+                        + usado / (1024 * 1024) + " MB), liberando " + liberar / (1024 * 1024) + " MB");
+                totalBloqueados += libera(List.of(adapter), liberar);
+            }
+        }
+
+        Map<FileStore, List<Adapter>> porDisco = new LinkedHashMap<>();
+        for (var adapter : adapters) {
+            if (indices.containsKey(adapter.getDestino())) {
+                porDisco.computeIfAbsent(Files.getFileStore(adapter.getDestino()), k -> new ArrayList<>()).add(adapter);
+            }
+        }
+        for (var e : porDisco.entrySet()) {
+            var disco = e.getKey();
+            long total = disco.getTotalSpace();
+            if (total <= 0) {
+                continue;
+            }
+            double uso = 1.0 - (double) disco.getUsableSpace() / total;
+            Metricas.global().medidor("gravador_disco_uso", "Fração usada do disco dos destinos", "disco", disco.name()).define(uso);
+            if (uso * 100 >= configuracao.getRetencaoAlta()) {
+                long liberar = (long) ((uso - configuracao.getRetencaoBaixa() / 100.0) * total);
+                System.out.println(LocalDateTime.now().toString() + " - Disco " + disco.name() + " com " + Math.round(uso * 100)
+                        + "% de uso, liberando " + liberar / (1024 * 1024) + " MB");
+                totalBloqueados += libera(e.getValue(), liberar);
+            }
+        }
+        bloqueados = totalBloqueados;
+    }
+
+    /**
+     * Acompanha os destinos da configuração atual (que pode ser recarregada).
+     */
+    private void sincronizaIndices(List<Adapter> adapters) {
+        var destinos = adapters.stream().map(Adapter::getDestino).collect(Collectors.toSet());
+        indices.entrySet().removeIf(e -> {
+            if (!destinos.contains(e.getKey())) {
+                e.getValue().fechar();
+                return true;
+            }
+            return false;
+        });
+        for (var destino : destinos) {
+            if (indices.containsKey(destino) || !Files.isDirectory(destino)) {
+                continue;
+            }
+            var indice = new IndiceSegmentos(destino);
+            try {
+                indice.iniciar();
+                indices.put(destino, indice);
+            } catch (IOException ex) {
+                System.out.println(LocalDateTime.now().toString() + " - Retenção não acompanha " + destino + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * @return bytes dos segmentos do destino, com os anexos e as miniaturas
+     * (contam na cota).
+     */
+    private static long tamanho(Path destino, IndiceSegmentos indice) throws IOException {
+        long total = AnexosSegmento.tamanhoMiniaturas(destino);
+        for (var arquivo : indice.posteriores(null).values()) {
+            try {
+                total += Files.size(arquivo);
+            } catch (IOException ex) {
+                // removido
+            }
+            total += AnexosSegmento.tamanho(arquivo);
+        }
+        return total;
+    }
+
+    /**
+     * Remove os segmentos mais antigos já enviados dos destinos, em ordem de
+     * hora, até liberar os bytes informados.
+     *
+     * @return segmentos que deveriam ser removidos mas ainda não foram
+     * enviados.
+     */
+    private long libera(List<Adapter> adapters, long bytes) throws InterruptedException {
+        List<Candidato> candidatos = new ArrayList<>();
+        for (var adapter : adapters) {
+            var indice = indices.get(adapter.getDestino());
+            // o mais recente está sendo gravado
+            var gravando = indice.ultimo();
+            indice.posteriores(null).forEach((hora, arquivo) -> {
+                if (!arquivo.equals(gravando)) {
+                    candidatos.add(new Candidato(adapter, hora, arquivo));
+                }
+            });
+        }
+        candidatos.sort(Comparator.comparing(Candidato::hora));
+
+        var metricas = Metricas.global();
+        long intervalo = 1000 / configuracao.getRemocoesPorSegundo();
+        long liberado = 0;
+        long naoEnviados = 0;
+        int removidos = 0;
+        for (var c : candidatos) {
+            if (liberado >= bytes || encerrado) {
+                break;
+            }
+            var destino = c.adapter().getDestino();
+            if (!estadoUpload.isEnviado(destino, c.hora())) {
+                naoEnviados++;
+                continue;
+            }
+            long tamanho;
+            try {
+                tamanho = Files.size(c.arquivo());
+                Files.delete(c.arquivo());
+                tamanho += AnexosSegmento.remove(c.arquivo());
+            } catch (NoSuchFileException ex) {
+                continue;
+            } catch (IOException ex) {
+                System.out.println(LocalDateTime.now().toString() + " - Não foi possível remover " + c.arquivo() + ": " + ex);
+                continue;
+            }
+            liberado += tamanho;
+            removidos++;
+            var rotulos = Metricas.rotulos(c.adapter());
+            metricas.contador("gravador_retencao_removidos_total", "Segmentos removidos pela retenção", rotulos).incrementa();
+            metricas.contador("gravador_retencao_bytes_total", "Bytes liberados pela retenção", rotulos).soma(tamanho);
+            removeDiretorioVazio(c.arquivo().getParent());
+            TimeUnit.MILLISECONDS.sleep(intervalo);
+        }
+        System.out.println(LocalDateTime.now().toString() + " - Retenção removeu " + removidos + " segmentos ("
+                + liberado / (1024 * 1024) + " MB)");
+        if (liberado < bytes && naoEnviados > 0) {
+            System.out.println(LocalDateTime.now().toString() + " - " + naoEnviados + " segmentos antigos aguardam upload e não foram removidos");
+        }
+        return naoEnviados;
+    }
+
+    /**
+     * Remove o diretório de um dia já passado que ficou vazio (o de hoje e o
+     * de amanhã são mantidos para o ffmpeg).
+     */
+    private static void removeDiretorioVazio(Path dirData) {
+        try {
+            var data = LocalDate.parse(dirData.getFileName().toString(), DiretoriosData.FORMATO);
+            if (data.isBefore(LocalDate.now())) {
+                Files.deleteIfExists(dirData);
+            }
+        } catch (DirectoryNotEmptyException | DateTimeParseException ex) {
+            // noop
+        } catch (IOException ex) {
+            System.out.println(LocalDateTime.now().toString() + " - Não foi possível remover " + dirData + ": " + ex);
+        }
+    }
+
+}
@@ -1,66 +1,146 @@
 package br.com.spotcom.gravador;
 
+import br.com.spotcom.gravador.config.Adapter;
 import br.com.spotcom.gravador.config.Configuracao;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
+ * Um {@link Upload} por adapter, cada um supervisionado pelo
+ * {@link Supervisor}: se o upload terminar (falha inesperada), é reiniciado
+ * com backoff.
  *
  * @author Michael Murussi <mike at performatica.com.br>
  */
 public class GerenciadorUpload {
 
-    private final Map<Upload, Thread> adapters;
-    private Thread thread;
-    private volatile boolean shutdown = false;
+    private final Configuracao configuracao;
+    private final MotorUpload motor;
+    private final Supervisor supervisor;
+    // um upload por destino
+    private final Map<Path, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<Upload, Supervisor.Filho> filhos = new ConcurrentHashMap<>();
+    private final Map<Upload, CompletableFuture<Void>> execucoes = new ConcurrentHashMap<>();
+    // destinos cujo upload removido ainda não terminou (o journal continua aberto)
+    private final Map<Path, CompletableFuture<Void>> encerrando = new ConcurrentHashMap<>();
+    // adapters que aguardam esse término para iniciar o upload do mesmo destino
+    private final Map<Path, Adapter> aguardando = new ConcurrentHashMap<>();
+    private volatile boolean iniciado;
 
-    public GerenciadorUpload(Configuracao configuracao) {
-        this.adapters = new HashMap<>(configuracao.getAdapters().size());
-        configuracao.getAdapters().forEach(e -> this.adapters.put(new Upload(e, configuracao), null));
+    public GerenciadorUpload(Configuracao configuracao, Supervisor supervisor) {
+        this.configuracao = configuracao;
+        this.motor = new MotorUpload(configuracao);
+        this.supervisor = supervisor;
     }
 
-    public void start() {
-        this.thread = new Thread(this::handle);
-        this.thread.start();
+    public synchronized void start() {
+        iniciado = true;
+        configuracao.getAdapters().forEach(this::adiciona);
     }
 
-    public void stopAndWait(long timeout) throws InterruptedException {
-        this.shutdown = true;
-        if (this.thread != null) {
-            this.thread.join(timeout);
+    /**
+     * Aplica uma nova configuração: encerra os uploads removidos (aguardando
+     * cada um terminar, já que o novo usa o mesmo journal) e inicia os
+     * adicionados. Um upload que não termina é interrompido; se ainda assim
+     * não terminar, o novo upload do mesmo destino só é iniciado quando ele
+     * terminar. Sem efeito se o upload não foi iniciado.
+     */
+    public synchronized void aplica(List<Adapter> removidos, List<Adapter> adicionados) {
+        if (!iniciado) {
+            return;
+        }
+        removidos.forEach(this::remove);
+        adicionados.forEach(this::adiciona);
+    }
+
+    private void adiciona(Adapter adapter) {
+        if (encerrando.containsKey(adapter.getDestino())) {
+            System.out.println(LocalDateTime.now().toString() + " - Upload de " + adapter.getDestino()
+                    + " aguardando o término do anterior");
+            aguardando.put(adapter.getDestino(), adapter);
+            return;
         }
+        var upload = new Upload(adapter, configuracao, motor);
+        uploads.put(adapter.getDestino(), upload);
+        filhos.put(upload, supervisor.adiciona("upload-adapter" + adapter.getAdapter() + "-" + adapter.getDestino().getFileName(), () -> {
+            if (upload.isShutdown()) {
+                throw new IllegalStateException("Upload encerrado");
+            }
+            var execucao = motor.executaAsync(upload);
+            execucoes.put(upload, execucao);
+            return execucao;
+        }));
     }
 
-    private void handle() {
-        try {
-            while (!shutdown) {
-                // inicia / reinicia uploads
-                for (var e : adapters.entrySet()) {
-                    if (!e.getKey().isShutdown() && (e.getValue() == null || !e.getValue().isAlive())) {
-                        var p = new Thread(e.getKey());
-                        e.setValue(p);
-                        p.start();
-                    }
-                }
+    private void remove(Adapter adapter) {
+        var destino = adapter.getDestino();
+        aguardando.remove(destino);
+        var upload = uploads.remove(destino);
+        if (upload == null) {
+            return;
+        }
+        supervisor.remove(filhos.remove(upload));
+        upload.stop();
+        var execucao = execucoes.remove(upload);
+        if (execucao != null && !aguarda(upload, execucao)) {
+            System.out.println(LocalDateTime.now().toString() + " - Upload de " + destino
+                    + " não terminou, o destino só volta a ser enviado depois do término");
+            encerrando.put(destino, execucao);
+            execucao.whenComplete((r, ex) -> encerrado(destino));
+        }
+    }
 
-                try {
-                    TimeUnit.MILLISECONDS.sleep(1000);
-                } catch (InterruptedException ex) {
-                    // noop
-                }
+    /**
+     * Aguarda o término do upload encerrado, interrompendo-o se demorar.
+     *
+     * @return true se terminou.
+     */
+    private boolean aguarda(Upload upload, CompletableFuture<Void> execucao) {
+        for (int tentativa = 0; tentativa < 2; tentativa++) {
+            try {
+                execucao.get(10000, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (ExecutionException ex) {
+                System.out.println(LocalDateTime.now().toString() + " - Upload de " + upload.getAdapter().getDestino()
+                        + " não encerrou normalmente: " + ex);
+                return true;
+            } catch (TimeoutException ex) {
+                upload.interrompe();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return execucao.isDone();
             }
-        } finally {
-            this.adapters.keySet().forEach(e -> e.stop());
-            this.adapters.values().forEach(e -> {
-                if (e != null) {
-                    try {
-                        e.join(2000);
-                    } catch (InterruptedException ex) {
-                        // noop
-                    }
-                }
-            });
         }
+        return false;
+    }
+
+    private synchronized void encerrado(Path destino) {
+        encerrando.remove(destino);
+        var adapter = aguardando.remove(destino);
+        if (adapter != null && iniciado) {
+            adiciona(adapter);
+        }
+    }
+
+    /**
+     * @return true se o segmento do destino já foi enviado; false se o
+     * destino não tem upload.
+     */
+    public boolean isEnviado(Path destino, LocalDateTime hora) {
+        var upload = uploads.get(destino);
+        return upload != null && upload.isEnviado(hora);
+    }
+
+    public void stopAndWait(long timeout) throws InterruptedException {
+        iniciado = false;
+        this.uploads.values().forEach(e -> e.stop());
+        motor.fechar(timeout);
     }
 }
@@ -2,33 +2,166 @@ package br.com.spotcom.gravador;
 
 import br.com.spotcom.gravador.config.Adapter;
 import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.metricas.Metricas;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
 
 /**
+ * Um dvbv5-zap por adapter, cada um supervisionado pelo {@link Supervisor}:
+ * o término do processo ({@code Process.onExit()}) dispara o reinício com
+ * backoff.
+ * <p>
+ * O adapter fica pronto (liberando os gravadores) quando a saída do
+ * dvbv5-zap informa lock do sintonizador (bit FE_HAS_LOCK do status) ou
+ * quando o monitor do adapter recebe o primeiro stream saudável
+ * ({@link #streamRecebido(int)}). Sem lock no tempo configurado o processo é
+ * encerrado e o supervisor tenta novamente.
  *
  * @author Michael Murussi <mike at performatica.com.br>
  */
-public class GerenciadorZap implements Runnable {
+public class GerenciadorZap {
 
+    // linha de status: "Lock   (0x1f) Signal= -33.00dBm C/N= 36.80dB UCB= 0 postBER= 0"
+    private static final Pattern STATUS = Pattern.compile("^\\s*\\w*\\s*\\(0x([0-9a-fA-F]{1,8})\\)");
+    private static final Pattern SINAL = Pattern.compile("Signal=\\s*(-?\\d+(?:\\.\\d+)?)");
+    private static final Pattern CN = Pattern.compile("C/N=\\s*(-?\\d+(?:\\.\\d+)?)");
+    private static final Pattern ESCAPE = Pattern.compile("\\u001B\\[[;\\d]*[A-Za-z]");
+    private static final int FE_HAS_LOCK = 0x10;
+
+    private final Configuracao configuracao;
     private final String channelsFile;
-    private final Map<Adapter, Process> adapters;
+    private final List<String> comando;
+    private final long tempoLock;
+    private final Supervisor supervisor;
+    private final Map<Integer, Process> processos = new ConcurrentHashMap<>();
+    private final Map<Integer, Supervisor.Filho> filhos = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> inicios = new ConcurrentHashMap<>();
+    // serviço sintonizado por cada adapter
+    private final Map<Integer, Adapter> sintonias = new ConcurrentHashMap<>();
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
+    private volatile IntConsumer aoSintonizar = numero -> {
+    };
 
-    public GerenciadorZap(Configuracao configuracao) {
+    public GerenciadorZap(Configuracao configuracao, Supervisor supervisor) {
+        this.configuracao = configuracao;
         this.channelsFile = configuracao.getChannelsFile().toAbsolutePath().toString();
-        this.adapters = new HashMap<>(configuracao.getAdapters().size());
-        configuracao.getAdapters().forEach(e -> this.adapters.putIfAbsent(e, null));
+        this.comando = configuracao.getComandoZap();
+        this.tempoLock = configuracao.getTempoLock();
+        this.supervisor = supervisor;
+    }
+
+    /**
+     * Chamado com o número do adapter a cada início do dvbv5-zap (nova
+     * sintonia), antes de aguardar o lock.
+     */
+    public void setAoSintonizar(IntConsumer aoSintonizar) {
+        this.aoSintonizar = aoSintonizar;
+    }
+
+    /**
+     * Adiciona ao supervisor os dvbv5-zap dos adapters configurados.
+     */
+    public void start() {
+        // um único dvbv5-zap por adapter: serviços do mesmo adapter estão na mesma frequência
+        Set<Integer> numeros = new HashSet<>();
+        configuracao.getAdapters().stream()
+                .filter(e -> numeros.add(e.getAdapter()))
+                .forEach(this::adiciona);
+    }
+
+    /**
+     * Passa a manter um dvbv5-zap sintonizando o serviço do adapter (e com
+     * ele todo o multiplex).
+     */
+    public synchronized void adiciona(Adapter adapter) {
+        int numero = adapter.getAdapter();
+        filhos.computeIfAbsent(numero, k -> {
+            sintonias.put(numero, adapter);
+            return supervisor.adiciona("zap-adapter" + numero, () -> inicia(adapter), true);
+        });
+    }
+
+    /**
+     * Ajusta os dvbv5-zap aos adapters informados (nova configuração):
+     * encerra os de adapters sem serviços, inicia os de adapters novos e
+     * sintoniza novamente os adapters cujo multiplex mudou (frequências
+     * diferentes no channels-file). Os demais continuam rodando.
+     *
+     * @return adapters sintonizados novamente: o filho do supervisor foi
+     * substituído e os gravadores que dependiam dele precisam ser recriados.
+     */
+    public synchronized Set<Integer> sincroniza(List<Adapter> adapters) {
+        Set<Integer> ressintonizados = new HashSet<>();
+        Map<Integer, Adapter> primeiros = new LinkedHashMap<>();
+        adapters.forEach(e -> primeiros.putIfAbsent(e.getAdapter(), e));
+        for (var numero : List.copyOf(filhos.keySet())) {
+            if (!primeiros.containsKey(numero)) {
+                System.out.println(LocalDateTime.now().toString() + " - Encerrando dvbv5-zap do adapter " + numero);
+                remove(numero);
+            }
+        }
+        var catalogo = configuracao.getCatalogo();
+        primeiros.forEach((numero, adapter) -> {
+            var atual = sintonias.get(numero);
+            if (atual != null && filhos.containsKey(numero)) {
+                var anterior = catalogo.canal(atual.getServiceName());
+                var novo = catalogo.canal(adapter.getServiceName());
+                if (anterior == null || novo == null) {
+                    // sem as duas frequências não há como saber se o multiplex mudou: mantém a sintonia
+                    System.out.println(LocalDateTime.now().toString() + " - Adapter " + numero + ": \""
+                            + (anterior == null ? atual : adapter).getServiceName()
+                            + "\" não está no channels-file, mantendo a sintonia atual");
+                } else if (anterior.frequencia() != novo.frequencia()) {
+                    System.out.println(LocalDateTime.now().toString() + " - Adapter " + numero + " passa a sintonizar \""
+                            + adapter.getServiceName() + "\"");
+                    remove(numero);
+                    ressintonizados.add(numero);
+                }
+            }
+            adiciona(adapter);
+        });
+        return ressintonizados;
+    }
+
+    /**
+     * Encerra o dvbv5-zap do adapter, que deixa de ser supervisionado.
+     */
+    public synchronized void remove(int adapter) {
+        sintonias.remove(adapter);
+        var filho = filhos.remove(adapter);
+        if (filho != null) {
+            supervisor.remove(filho);
+        }
+        var p = processos.remove(adapter);
+        if (p != null) {
+            p.destroy();
+        }
+        var metricas = Metricas.global();
+        var rotulo = String.valueOf(adapter);
+        for (var nome : List.of("gravador_zap_reinicios_total", "gravador_zap_lock", "gravador_zap_sinal", "gravador_zap_cn",
+                "gravador_zap_tempo_lock_segundos")) {
+            metricas.remove(nome, "adapter", rotulo);
+        }
     }
 
     private Process start(Adapter adapter) throws IOException {
-        var zap = new ProcessBuilder(
-                "dvbv5-zap",
+        List<String> argumentos = new ArrayList<>(comando);
+        argumentos.addAll(List.of(
                 "-P",
                 "-r",
                 "-cc=BR",
@@ -37,63 +170,163 @@ public class GerenciadorZap implements Runnable {
                 "-a",
                 String.valueOf(adapter.getAdapter()),
                 adapter.getServiceName()
-        );
-        return zap
-                .redirectError(ProcessBuilder.Redirect.DISCARD)
-                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        ));
+        return new ProcessBuilder(argumentos)
+                .redirectErrorStream(true)
                 .start();
     }
 
-    @Override
-    public void run() {
-        try {
-            while (!isShutdown()) {
-                // reinicia adaptadores parados
-                for (var e: adapters.entrySet()) {
-                    if (e.getValue() == null || !e.getValue().isAlive()) {
-                        try {
-                            var p = start(e.getKey());
-                            e.setValue(p);
-                        } catch (IOException ex) {
-                            LOG.log(Level.SEVERE, "não foi possível iniciar dvbv5-zap para adapter " + e.getKey().getAdapter(), ex);
-                        }
-                    }
-                }
+    private CompletionStage<?> inicia(Adapter adapter) throws IOException {
+        if (isShutdown()) {
+            throw new IllegalStateException("Zap encerrado");
+        }
+        int numero = adapter.getAdapter();
+        if (processos.containsKey(numero)) {
+            Metricas.global().contador("gravador_zap_reinicios_total", "Reinícios do dvbv5-zap",
+                    "adapter", String.valueOf(numero)).incrementa();
+        }
+        var p = start(adapter);
+        processos.put(numero, p);
+        inicios.put(numero, System.currentTimeMillis());
+        // o stream que já chegou é da sintonia anterior e não confirma esta
+        aoSintonizar.accept(numero);
 
-                try {
-                    TimeUnit.MILLISECONDS.sleep(1000);
-                } catch (InterruptedException ex) {
-                    // noop
-                }
+        var leitura = new Thread(() -> leSaida(numero, p), "zap-adapter" + numero + "-saida");
+        leitura.setDaemon(true);
+        leitura.start();
+
+        supervisor.agenda(() -> {
+            var filho = filhos.get(numero);
+            if (filho != null && processos.get(numero) == p && p.isAlive() && !filho.isPronto()) {
+                System.out.println(LocalDateTime.now().toString() + " - Adapter " + numero + " sem lock após "
+                        + tempoLock / 1000 + " s, reiniciando dvbv5-zap");
+                p.destroy();
             }
-        } finally {
-            // envia sinal para encerrar processos
-            adapters.values().stream().filter(e -> e != null).forEach(e -> e.destroy());
-            
-            // aguarda encerramento
-            for (var e: adapters.values()) {
-                if (e != null) {
-                    try {
-                        e.waitFor(5000, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException ex) {
-                        // noop
+        }, tempoLock, TimeUnit.MILLISECONDS);
+        return p.onExit();
+    }
+
+    /**
+     * Lê a saída do dvbv5-zap: atualiza as métricas de sinal e confirma o
+     * adapter pronto no primeiro status com lock.
+     */
+    private void leSaida(int numero, Process p) {
+        var metricas = Metricas.global();
+        var rotulo = String.valueOf(numero);
+        var lock = metricas.medidor("gravador_zap_lock", "1 se o sintonizador informa lock", "adapter", rotulo);
+        var sinal = metricas.medidor("gravador_zap_sinal", "Nível de sinal informado pelo dvbv5-zap (dBm ou %)", "adapter", rotulo);
+        var cn = metricas.medidor("gravador_zap_cn", "Relação portadora/ruído informada pelo dvbv5-zap (dB ou %)", "adapter", rotulo);
+        try (var reader = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String linha;
+            while ((linha = reader.readLine()) != null) {
+                linha = ESCAPE.matcher(linha).replaceAll("");
+                var status = STATUS.matcher(linha);
+                if (!status.find()) {
+                    if (!linha.isBlank()) {
+                        System.out.println(LocalDateTime.now().toString() + " - [ZAP " + numero + "] " + linha.strip());
                     }
+                    continue;
+                }
+                boolean comLock = (Long.parseLong(status.group(1), 16) & FE_HAS_LOCK) != 0;
+                lock.define(comLock ? 1 : 0);
+                var m = SINAL.matcher(linha);
+                if (m.find()) {
+                    sinal.define(Double.parseDouble(m.group(1)));
+                }
+                m = CN.matcher(linha);
+                if (m.find()) {
+                    cn.define(Double.parseDouble(m.group(1)));
+                }
+                if (comLock) {
+                    confirmaPronto(numero, "lock do sintonizador");
                 }
             }
-            
-            // força encerramento se ainda existirem processos rodando
-            adapters.values().stream().filter(e -> e != null && e.isAlive()).forEach(e -> e.destroyForcibly());
+        } catch (IOException ex) {
+            // processo encerrado
+        } finally {
+            lock.define(0);
+        }
+    }
+
+    /**
+     * O monitor do adapter recebeu um stream saudável: o sintonizador está
+     * pronto, mesmo que a saída do dvbv5-zap não tenha informado o lock.
+     */
+    public void streamRecebido(int adapter) {
+        confirmaPronto(adapter, "stream recebido");
+    }
+
+    private void confirmaPronto(int numero, String motivo) {
+        var filho = filhos.get(numero);
+        if (filho == null || filho.isPronto()) {
+            return;
+        }
+        Long inicio = inicios.get(numero);
+        if (inicio != null) {
+            long tempo = System.currentTimeMillis() - inicio;
+            Metricas.global().resumo("gravador_zap_tempo_lock_segundos", "Tempo entre o início do dvbv5-zap e o adapter pronto",
+                    "adapter", String.valueOf(numero)).registra(tempo / 1000.0);
+            System.out.println(LocalDateTime.now().toString() + " - Adapter " + numero + " pronto em " + tempo + " ms (" + motivo + ")");
+        }
+        supervisor.pronto(filho);
+    }
+
+    /**
+     * @return número do adapter do filho do supervisor, ou -1 se não for um
+     * dvbv5-zap deste gerenciador.
+     */
+    public int getAdapter(Supervisor.Filho filho) {
+        return filhos.entrySet().stream()
+                .filter(e -> e.getValue() == filho)
+                .mapToInt(Map.Entry::getKey)
+                .findFirst().orElse(-1);
+    }
+
+    /**
+     * @return filho do supervisor do dvbv5-zap do adapter (dependência dos
+     * gravadores do adapter), ou null se não houver.
+     */
+    public Supervisor.Filho getFilho(int adapter) {
+        return filhos.get(adapter);
+    }
+
+    /**
+     * Encerra o dvbv5-zap do adapter; o supervisor o inicia novamente (nova
+     * sintonia).
+     */
+    public void reinicia(int adapter) {
+        var p = processos.get(adapter);
+        if (p != null && p.isAlive()) {
+            System.out.println(LocalDateTime.now().toString() + " - Reiniciando dvbv5-zap do adapter " + adapter);
+            p.destroy();
         }
     }
-    
+
     public boolean isShutdown() {
         return shutdown.get();
     }
-    
+
+    /**
+     * Encerra os processos. O supervisor deve ter sido parado antes, para
+     * não reiniciá-los.
+     */
     public void stop() {
         shutdown.set(true);
-    }
 
-    private static final Logger LOG = Logger.getLogger(GerenciadorZap.class.getName());
+        // envia sinal para encerrar processos
+        processos.values().forEach(Process::destroy);
+
+        // aguarda encerramento
+        for (var p : processos.values()) {
+            try {
+                p.waitFor(5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                // noop
+            }
+        }
+
+        // força encerramento se ainda existirem processos rodando
+        processos.values().stream().filter(Process::isAlive).forEach(Process::destroyForcibly);
+    }
 
 }
@@ -1,22 +1,35 @@
 package br.com.spotcom.gravador;
 
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.metricas.Metricas;
+import br.com.spotcom.gravador.ts.CanalFiltrado;
+import br.com.spotcom.gravador.ts.OrigemTransferivel;
 import com.github.kokorin.jaffree.LogLevel;
+import com.github.kokorin.jaffree.ffmpeg.BaseInput;
 import com.github.kokorin.jaffree.ffmpeg.CaptureInput;
 import com.github.kokorin.jaffree.ffmpeg.ChannelInput;
 import com.github.kokorin.jaffree.ffmpeg.FFmpeg;
 import com.github.kokorin.jaffree.ffmpeg.FFmpegResultFuture;
+import com.github.kokorin.jaffree.ffmpeg.UrlInput;
 import com.github.kokorin.jaffree.ffmpeg.UrlOutput;
+import com.github.kokorin.jaffree.process.Stopper;
 import java.io.IOException;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  *
@@ -24,50 +37,425 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class Gravador {
 
-    private final Path origem;
-    private final Path dirDestino;
+    // na troca de nível o ffmpeg é encerrado este tempo antes do corte: o segmento fecha inteiro (o encoder esvazia)
+    private static final long ANTES_DO_CORTE_MS = 1000;
+
+    /**
+     * Um processo ffmpeg do gravador e a sua entrada.
+     */
+    private static final class Execucao {
+
+        final NivelQualidade nivel;
+        SeekableByteChannel entrada;
+        AlimentadorFifo alimentador;
+        FFmpegResultFuture futuro;
+        // processo iniciado pelo Jaffree (FFmpegProcesso)
+        volatile ProcessHandle processo;
+        volatile long ultimoProgresso = System.currentTimeMillis();
+        volatile long ultimoQuadro = -1;
+        volatile long tempoSaida;
+        volatile long totalDescartados;
+
+        Execucao(NivelQualidade nivel) {
+            this.nivel = nivel;
+        }
+
+        boolean isRunning() {
+            return futuro != null && !futuro.isDone() && !futuro.isCancelled();
+        }
+
+        // também chamado por trocaNivel, antes de o novo ffmpeg abrir o mesmo transbordo
+        synchronized void fechaEntrada() {
+            if (alimentador != null) {
+                alimentador.stop();
+                alimentador = null;
+            }
+            if (entrada != null) {
+                try {
+                    entrada.close();
+                } catch (IOException ex) {
+                    System.err.println("Falha ao encerrar input channel: " + ex.toString());
+                }
+                entrada = null;
+            }
+        }
+
+    }
+
+    private final LeitorDvr leitor;
+    private final List<Adapter> saidas;
     private final int pid;
-    private final String scale;
-    private FFmpegResultFuture ffmpegFuture;
+    private final boolean filtrarTs;
+    private final Adapter.Modo modo;
+    private final Adapter.Captura captura;
+    private long tamanhoTransbordo;
+    private Clock clock = Clock.systemDefaultZone();
+    // nível pedido pelo controle de qualidade e o do ffmpeg em execução
+    private volatile NivelQualidade nivel = NivelQualidade.NORMAL;
+    private volatile NivelQualidade nivelAtual = NivelQualidade.NORMAL;
+    // núcleos do DivisorNucleos, null sem partição
+    private volatile List<Integer> nucleos;
+    // ffmpeg em execução; na troca de nível, o que está sendo encerrado
+    private volatile Execucao atual;
+    private Execucao saindo;
+    private volatile CompletableFuture<Void> termino = CompletableFuture.completedFuture(null);
     private final AtomicBoolean restarting = new AtomicBoolean(false);
-    private SeekableByteChannel inputStream;
+    private boolean iniciado;
+    private final Metricas.Medidor fps;
+    private final Metricas.Medidor velocidade;
+    private final Metricas.Medidor descartados;
+    private final Metricas.Contador reinicios;
+    private final Metricas.Contador erros;
+    private final String[] rotulos;
+
+    /**
+     * @param saidas renditions do mesmo serviço (mesmo adapter e serviceId),
+     * cada uma com seu destino e scale. O stream é decodificado uma única vez
+     * e codificado para cada saída no mesmo processo ffmpeg.
+     * @param leitor leitor compartilhado do adapter; null na captura direta,
+     * em que o próprio ffmpeg abre o dvr0.
+     */
+    public Gravador(LeitorDvr leitor, List<Adapter> saidas) {
+        if (saidas.isEmpty()) {
+            throw new IllegalArgumentException("Gravador sem saídas");
+        }
+        this.leitor = leitor;
+        this.saidas = List.copyOf(saidas);
+        this.pid = saidas.get(0).getServiceId();
+        this.filtrarTs = saidas.get(0).isFiltrarTs();
+        this.modo = saidas.get(0).getModo();
+        this.captura = saidas.get(0).getCaptura();
+
+        var metricas = Metricas.global();
+        this.rotulos = Metricas.rotulos(saidas.get(0));
+        this.fps = metricas.medidor("gravador_ffmpeg_fps", "Quadros por segundo do ffmpeg (-progress)", rotulos);
+        this.velocidade = metricas.medidor("gravador_ffmpeg_speed", "Velocidade de codificação do ffmpeg em relação ao tempo real (-progress)", rotulos);
+        this.descartados = metricas.medidor("gravador_ffmpeg_quadros_descartados", "Quadros descartados pelo ffmpeg desde o último início", rotulos);
+        this.reinicios = metricas.contador("gravador_ffmpeg_reinicios_total", "Reinícios do ffmpeg", rotulos);
+        this.erros = metricas.contador("gravador_ffmpeg_erros_total", "Linhas de erro emitidas pelo ffmpeg", rotulos);
+    }
 
-    public Gravador(Path origem, Path dirDestino, int pid, String scale) {
-        this.origem = origem;
-        this.dirDestino = dirDestino;
-        this.pid = pid;
-        this.scale = scale;
+    /**
+     * Ativa o {@link TransbordoDisco} entre o leitor e o ffmpeg (não se
+     * aplica à captura direta).
+     *
+     * @param tamanho tamanho do arquivo, em bytes; 0 desativa.
+     */
+    public void setTamanhoTransbordo(long tamanho) {
+        this.tamanhoTransbordo = tamanho;
     }
 
-    public void start(LocalDate data) throws IOException {
+    /**
+     * Relógio da data dos diretórios preparados antes de iniciar o ffmpeg
+     * (o mesmo do {@link GerenciadorGravacao}).
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public synchronized void start() throws IOException {
         try {            
             if (isRunning()) {
                 throw new IllegalStateException("Gravador já está rodando!");
             }
-            
-            closeInput();
-            this.inputStream = Files.newByteChannel(origem);
-            
-            ffmpegFuture = buildFFmpeg(data).executeAsync();
-            ffmpegFuture.toCompletableFuture().whenComplete((result, ex) -> {
-                closeInput();
-            });
+            if (iniciado) {
+                reinicios.incrementa();
+            }
+            iniciado = true;
+            if (nivel != nivelAtual) {
+                registraNivel(nivel);
+            }
+            nivelAtual = nivel;
+            // aqui e não no construtor, que não deve publicar o gravador; substituem as do início anterior
+            var metricas = Metricas.global();
+            metricas.medidor("gravador_qualidade_nivel", "Nível de qualidade do ffmpeg em execução (0 = configurado)",
+                    () -> nivelAtual.ordinal(), rotulos);
+            metricas.medidor("gravador_ffmpeg_rodando", "1 se o ffmpeg está rodando", () -> isRunning() ? 1 : 0, rotulos);
+
+            var exec = inicia(nivelAtual);
+            termino = new CompletableFuture<>();
+            atual = exec;
+            monitora(exec);
+        } finally {
+            restarting.set(false);
+        }
+    }
+
+    /**
+     * Abre a entrada e inicia um ffmpeg no nível informado.
+     */
+    private Execucao inicia(NivelQualidade nivelExecucao) throws IOException {
+        var exec = new Execucao(nivelExecucao);
+        try {
+            if (captura != Adapter.Captura.DIRETO) {
+                var cursor = leitor.abrirCursor();
+                exec.entrada = cursor;
+                if (tamanhoTransbordo > 0) {
+                    // o multiplex inteiro passa pelo transbordo, o filtro fica depois dele
+                    try {
+                        exec.entrada = new TransbordoDisco(cursor, saidas.get(0).getDestino().resolve("transbordo.ts"),
+                                tamanhoTransbordo, leitor.getCapacidade(), rotulos);
+                    } catch (IOException ex) {
+                        cursor.close();
+                        exec.entrada = null;
+                        throw ex;
+                    }
+                }
+                if (filtrarTs) {
+                    // entrega ao ffmpeg somente os pacotes do serviço gravado (e uma PAT reescrita)
+                    exec.entrada = new CanalFiltrado(exec.entrada, pid);
+                }
+            }
+            if (captura == Adapter.Captura.FIFO) {
+                exec.alimentador = AlimentadorFifo.inicia((OrigemTransferivel) exec.entrada,
+                        "adapter" + getAdapter() + "-" + saidas.get(0).getDestino().getFileName());
+            }
+            exec.futuro = buildFFmpeg(exec).executeAsync();
+        } catch (IOException | RuntimeException ex) {
+            exec.fechaEntrada();
+            throw ex;
+        }
+        return exec;
+    }
+
+    /**
+     * Chamado depois de a execução ser publicada em atual: se o
+     * ffmpeg já terminou, o estágio roda nesta mesma thread.
+     */
+    private void monitora(Execucao exec) {
+        exec.futuro.toCompletableFuture().whenComplete((result, ex) -> termina(exec));
+    }
+
+    /**
+     * Libera a entrada do ffmpeg encerrado; o gravador só termina quando
+     * termina o ffmpeg atual (não o encerrado numa troca de nível).
+     */
+    private void termina(Execucao exec) {
+        exec.fechaEntrada();
+        CompletableFuture<Void> concluido = null;
+        synchronized (this) {
+            if (exec == atual) {
+                fps.define(0);
+                velocidade.define(0);
+                concluido = termino;
+            }
+        }
+        if (concluido != null) {
+            concluido.complete(null);
+        }
+    }
+
+    /**
+     * Aplica o nível pedido no corte dos segmentos, sem passar pelo
+     * supervisor: o ffmpeg é encerrado pouco antes do corte, fechando o
+     * segmento inteiro, e o novo é iniciado no corte, abrindo o próximo
+     * segmento no horário dele. Os dois nunca rodam ao mesmo tempo: a troca
+     * para um nível mais leve acontece justamente quando falta CPU. O término
+     * do gravador não é sinalizado, a não ser que o novo ffmpeg não inicie.
+     *
+     * @param corte instante do corte (System.currentTimeMillis()).
+     * @return true se o novo nível foi aplicado.
+     */
+    public boolean trocaNivel(long corte) {
+        try {
+            Execucao antiga;
+            synchronized (this) {
+                antiga = atual;
+                if (antiga == null || !antiga.isRunning() || nivel == nivelAtual) {
+                    return false;
+                }
+            }
+            espera(corte - ANTES_DO_CORTE_MS);
+            synchronized (this) {
+                if (atual != antiga) {
+                    return false;
+                }
+                saindo = antiga;
+                atual = null;
+            }
+            encerra(antiga);
+            antiga.fechaEntrada();
+            espera(corte);
+            synchronized (this) {
+                saindo = null;
+                if (termino.isDone()) {
+                    // parado durante a troca
+                    return false;
+                }
+                try {
+                    registraNivel(nivel);
+                    nivelAtual = nivel;
+                    atual = inicia(nivelAtual);
+                    monitora(atual);
+                } catch (IOException ex) {
+                    System.out.println(LocalDateTime.now().toString() + " - Adapter " + getAdapter()
+                            + ": não foi possível reiniciar o ffmpeg no novo nível: " + ex);
+                    // falha real: o supervisor reinicia o gravador
+                    termino.complete(null);
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
         } finally {
             restarting.set(false);
         }
     }
-    
-    private void closeInput() {
-        if (this.inputStream != null) {
+
+    private static void espera(long ate) throws InterruptedException {
+        long ms = ate - System.currentTimeMillis();
+        if (ms > 0) {
+            Thread.sleep(ms);
+        }
+    }
+
+    private static void encerra(Execucao exec) {
+        exec.futuro.graceStop();
+        try {
+            exec.futuro.get(10000, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | InterruptedException | TimeoutException ex) {
+            exec.futuro.forceStop();
+        }
+    }
+
+    /**
+     * Registra, no log e em {@code <destino>/qualidade.log}, o nível com que
+     * os segmentos a partir de agora são gravados.
+     */
+    private void registraNivel(NivelQualidade novo) {
+        var agora = LocalDateTime.now();
+        System.out.println(agora.toString() + " - Adapter " + getAdapter() + " serviço " + saidas.get(0).getServiceName()
+                + ": segmentos a partir de agora em " + novo);
+        for (var saida : saidas) {
+            if (saida.getModo() == Adapter.Modo.COPY) {
+                continue;
+            }
             try {
-                this.inputStream.close();
+                Files.writeString(saida.getDestino().resolve("qualidade.log"), agora.withNano(0) + " " + novo + System.lineSeparator(),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
             } catch (IOException ex) {
-                System.err.println("Falha ao encerrar input channel: " + ex.toString());
+                System.out.println(agora.toString() + " - Falha ao registrar qualidade em " + saida.getDestino() + ": " + ex);
             }
-            this.inputStream = null;
         }
     }
 
+    /**
+     * Define o nível de qualidade aplicado na próxima troca (ou no próximo
+     * início do ffmpeg).
+     */
+    public void setNivel(NivelQualidade nivel) {
+        this.nivel = nivel;
+    }
+
+    /**
+     * Define os núcleos do ffmpeg: a afinidade é aplicada já ao processo em
+     * execução, o número de threads no próximo início.
+     */
+    public void setNucleos(List<Integer> nucleos) {
+        if (nucleos.equals(this.nucleos)) {
+            return;
+        }
+        this.nucleos = List.copyOf(nucleos);
+        var exec = atual;
+        if (exec != null && exec.isRunning()) {
+            fixaNucleos(exec);
+        }
+    }
+
+    public List<Integer> getNucleos() {
+        return nucleos;
+    }
+
+    private void fixaNucleos(Execucao exec) {
+        var alvo = nucleos;
+        var processo = exec.processo;
+        if (alvo != null && processo != null) {
+            DivisorNucleos.fixa(processo, alvo);
+        }
+    }
+
+    /**
+     * FFmpeg que informa o processo assim que o Jaffree o inicia (pelo
+     * Stopper, que o recebe antes de qualquer leitura da saída): a afinidade
+     * é aplicada antes de o ffmpeg criar as threads dos codificadores, que a
+     * herdam.
+     */
+    private static final class FFmpegProcesso extends FFmpeg {
+
+        private final Consumer<Process> aoIniciar;
+
+        FFmpegProcesso(Consumer<Process> aoIniciar) {
+            super(Path.of("ffmpeg"));
+            this.aoIniciar = aoIniciar;
+        }
+
+        @Override
+        protected Stopper createStopper() {
+            var stopper = super.createStopper();
+            return new Stopper() {
+                @Override
+                public void graceStop() {
+                    stopper.graceStop();
+                }
+
+                @Override
+                public void forceStop() {
+                    stopper.forceStop();
+                }
+
+                @Override
+                public void setProcess(Process process) {
+                    stopper.setProcess(process);
+                    aoIniciar.accept(process);
+                }
+            };
+        }
+
+    }
+
+    public NivelQualidade getNivel() {
+        return nivel;
+    }
+
+    public NivelQualidade getNivelAtual() {
+        return nivelAtual;
+    }
+
+    /**
+     * @return true se alguma saída é recodificada (o nível de qualidade se
+     * aplica).
+     */
+    public boolean isRecodificado() {
+        return modo != Adapter.Modo.COPY;
+    }
+
+    /**
+     * @return instante do stream já codificado pelo ffmpeg em execução, em
+     * ms (-progress out_time).
+     */
+    public long getTempoSaida() {
+        var exec = atual;
+        return exec != null ? exec.tempoSaida : 0;
+    }
+
+    /**
+     * @return quadros descartados pelo ffmpeg em execução.
+     */
+    public long getTotalDescartados() {
+        var exec = atual;
+        return exec != null ? exec.totalDescartados : 0;
+    }
+
+    /**
+     * @return estágio completado quando o gravador iniciado por último
+     * terminar (após liberar a entrada). As trocas de nível não o completam.
+     */
+    public CompletableFuture<?> getTermino() {
+        return termino;
+    }
+
     public boolean isRestarting() {
         return restarting.get();
     }
@@ -76,94 +464,342 @@ public class Gravador {
         return restarting.compareAndSet(false, true);
     }
 
+    /**
+     * @return true se o ffmpeg está rodando mas não informa quadros novos há
+     * mais que limite ms (ou 3 vezes o limite desde o início, enquanto ainda
+     * analisa o stream).
+     */
+    public boolean isParado(long agora, long limite) {
+        var exec = atual;
+        if (exec == null || !exec.isRunning()) {
+            return false;
+        }
+        long espera = exec.ultimoQuadro < 0 ? 3 * limite : limite;
+        return agora - exec.ultimoProgresso > espera;
+    }
+
+    public List<Adapter> getSaidas() {
+        return saidas;
+    }
+
+    public int getAdapter() {
+        return saidas.get(0).getAdapter();
+    }
+
     public boolean isRunning() {
-        return ffmpegFuture != null && !ffmpegFuture.isDone() && !ffmpegFuture.isCancelled();
+        var exec = atual;
+        return exec != null && exec.isRunning();
     }
 
-    private FFmpeg buildFFmpeg(LocalDate data) throws IOException {
-        String sdir = data.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        Path dir = dirDestino.resolve(sdir);
-        if (!Files.exists(dir) || !Files.isDirectory(dir)) {
-            try {
-                dir = Files.createDirectory(dir);
-            } catch (FileAlreadyExistsException ex) {
-                // pode continuar
-            } catch (IOException | RuntimeException ex) {
-                throw new IOException("Não foi possível criar o diretório " + dir.toString());
-            }
+    private FFmpeg buildFFmpeg(Execucao exec) throws IOException {
+        var threads = nucleos;
+        var input = buildInput(exec)
+                .setFormat("mpegts")
+                .addArgument("-fix_sub_duration");
+        if (threads != null && modo != Adapter.Modo.COPY) {
+            input.addArguments("-threads", String.valueOf(threads.size()));
         }
+        var ffmpeg = new FFmpegProcesso(p -> {
+            exec.processo = p.toHandle();
+            fixaNucleos(exec);
+        }).addInput(input);
+        var hoje = LocalDate.now(clock);
 
-        var ffmpeg = FFmpeg.atPath()
-                .addInput(ChannelInput
-                        .fromChannel(inputStream)
-                        .setFormat("mpegts")
-                        .addArgument("-fix_sub_duration")
-                )
-                .addArguments("-map", String.format("0:p:%d:0", pid))
-                .addArguments("-map", String.format("0:p:%d:1", pid));
+        String video = String.format("0:p:%d:0", pid);
+        String audio = String.format("0:p:%d:1", pid);
 
-        ffmpeg.addOutput(UrlOutput
-                        .toPath(dir.resolve("%H%M%S.mp4"))
-                        .setFormat("segment")
-                        .addArguments("-segment_time", "600") // 10 minutos
-                        .addArguments("-segment_atclocktime", "1")
-                        .addArguments("-segment_clocktime_offset", "0")
-                        .addArguments("-reset_timestamps", "1")
-                        // .addArguments("-x264-params", "keyint=12:no-scenecut=1")
-                        // .addArguments("-force_key_frames", "expr:gte(t,n_forced*600)")
-                        .addArguments("-force_key_frames", "expr:gte(t,n_forced*1)")
-                        // .addArguments("-force_key_frames", "expr:if(isnan(prev_forced_n),1,eq(n,prev_forced_n+10))")
-                        .addArguments("-c:v", "libx264")
-                        // .addArguments("-vf", "scale=" + scale)
-                        .addArguments("-c:a", "aac")
-                        .addArguments("-copytb", "1")
-                        .addArguments("-abort_on", "empty_output")
-                        .addArguments("-strftime", "1")
+        // saídas com mosaico: uma miniatura a cada intervalo, tirada do mesmo decode
+        var comMiniaturas = saidas.stream().filter(s -> s.isAnexos() && s.getIntervaloMiniaturas() > 0).toList();
+
+        if (modo == Adapter.Modo.COPY) {
+            if (!comMiniaturas.isEmpty()) {
+                // para as miniaturas basta decodificar os quadros-chave
+                input.addArguments("-skip_frame:v", "nokey");
+                ffmpeg.setComplexFilter(grafoMiniaturas(video, comMiniaturas));
+            }
+            // sem decode: cada saída recebe o vídeo da transmissão diretamente
+            for (var saida : saidas) {
+                ffmpeg.addOutput(buildOutput(saida, exec.nivel, threads, hoje)
+                        .addArguments("-map", video)
+                        .addArguments("-map", audio)
+                );
+            }
+        } else if (saidas.size() == 1 && comMiniaturas.isEmpty()) {
+            var saida = saidas.get(0);
+            var output = buildOutput(saida, exec.nivel, threads, hoje)
+                    .addArguments("-map", video)
+                    .addArguments("-map", audio);
+            var escala = escala(saida, exec.nivel);
+            if (escala != null) {
+                output.addArguments("-vf", "scale=" + escala);
+            }
+            ffmpeg.addOutput(output);
+        } else {
+            // decodifica uma vez e divide o vídeo entre as renditions: [v0], [v1], ... e as miniaturas
+            int ramos = saidas.size() + (comMiniaturas.isEmpty() ? 0 : 1);
+            var grafo = new StringBuilder();
+            grafo.append('[').append(video).append("]split=").append(ramos);
+            for (int i = 0; i < ramos; i++) {
+                grafo.append("[s").append(i).append(']');
+            }
+            for (int i = 0; i < saidas.size(); i++) {
+                var saida = saidas.get(i);
+                var escala = escala(saida, exec.nivel);
+                grafo.append(";[s").append(i).append(']')
+                        .append(escala != null ? "scale=" + escala : "null")
+                        .append("[v").append(i).append(']');
+            }
+            if (!comMiniaturas.isEmpty()) {
+                grafo.append(';').append(grafoMiniaturas("s" + saidas.size(), comMiniaturas));
+            }
+            ffmpeg.setComplexFilter(grafo.toString());
+
+            for (int i = 0; i < saidas.size(); i++) {
+                ffmpeg.addOutput(buildOutput(saidas.get(i), exec.nivel, threads, hoje)
+                        .addArguments("-map", "[v" + i + "]")
+                        .addArguments("-map", audio)
                 );
-        
-        if (scale != null && !scale.isBlank()) {
-            ffmpeg.addArguments("-vf", "scale=" + scale);
+            }
+        }
+
+        for (int i = 0; i < comMiniaturas.size(); i++) {
+            ffmpeg.addOutput(buildOutputMiniaturas(comMiniaturas.get(i))
+                    .addArguments("-map", "[m" + i + "]"));
+        }
+
+        if (threads != null && modo != Adapter.Modo.COPY) {
+            // decoder, filtros e libx264 com tantas threads quanto os núcleos do gravador
+            ffmpeg.addArguments("-filter_threads", String.valueOf(threads.size()));
+            ffmpeg.addArguments("-filter_complex_threads", String.valueOf(threads.size()));
         }
-        
         ffmpeg.setOverwriteOutput(true);
         ffmpeg.setLogLevel(LogLevel.ERROR);
+        ffmpeg.setProgressListener(progresso -> {
+            if (progresso.getFrame() != null && progresso.getFrame() > exec.ultimoQuadro) {
+                exec.ultimoQuadro = progresso.getFrame();
+                exec.ultimoProgresso = System.currentTimeMillis();
+            }
+            if (progresso.getDrop() != null) {
+                exec.totalDescartados = progresso.getDrop();
+            }
+            if (progresso.getTimeMillis() != null) {
+                exec.tempoSaida = progresso.getTimeMillis();
+            }
+            // as métricas são do ffmpeg que grava no destino
+            if (exec != atual) {
+                return;
+            }
+            if (progresso.getFps() != null) {
+                fps.define(progresso.getFps());
+            }
+            if (progresso.getSpeed() != null) {
+                velocidade.define(progresso.getSpeed());
+            }
+            if (progresso.getDrop() != null) {
+                descartados.define(progresso.getDrop());
+            }
+        });
+        ffmpeg.setOutputListener(line -> {
+            // com LogLevel.ERROR só são emitidos erros
+            erros.incrementa();
+            System.out.println(LocalDateTime.now().toString() + " - [FFMPEG] " + line);
+        });
+
+        return ffmpeg;
+    }
+
+    private BaseInput<?> buildInput(Execucao exec) {
+        return switch (captura) {
+            case FIFO -> UrlInput.fromPath(exec.alimentador.getFifo());
+            case DIRETO -> UrlInput.fromPath(saidas.get(0).getOrigem());
+            default -> ChannelInput.fromChannel(exec.entrada);
+        };
+    }
+
+    /**
+     * Saída segmentada em {@code <destino>/%Y%m%d/%H%M%S.mp4}: a virada do
+     * dia é feita pelo próprio ffmpeg, sem reiniciar o processo, desde que o
+     * diretório do dia já exista (ver {@link DiretoriosData}). Cada segmento
+     * concluído (trailer gravado) é listado em {@link IndiceSegmentos#lista},
+     * que é o que o marca como fechado para o upload.
+     */
+    private static UrlOutput buildOutput(Adapter saida, NivelQualidade nivel, List<Integer> nucleos, LocalDate hoje) throws IOException {
+        DiretoriosData.prepara(saida.getDestino(), hoje);
+        var lista = IndiceSegmentos.lista(saida.getDestino());
+        Files.createDirectories(lista.getParent());
 
+        var output = UrlOutput
+                .toPath(padraoSaida(saida))
+                .setFormat("segment")
+                .addArguments("-segment_time", "600") // 10 minutos
+                .addArguments("-segment_atclocktime", "1")
+                .addArguments("-segment_clocktime_offset", "0")
+                .addArguments("-segment_list", lista.toString())
+                .addArguments("-segment_list_type", "flat")
+                .addArguments("-reset_timestamps", "1");
+
+        if (saida.isAoVivo()) {
+            // MP4 fragmentado: o upload ao vivo envia cada fragmento assim que é gravado
+            long fragmento = saida.getLatenciaAlvo() * 1000 / 2;
+            output.addArguments("-segment_format_options",
+                    "movflags=+frag_keyframe+empty_moov+default_base_moof:frag_duration=" + fragmento);
+        }
+
+        if (saida.getModo() == Adapter.Modo.COPY) {
+            // o segmento só pode ser cortado num IDR da transmissão: o corte ocorre no primeiro
+            // keyframe após o horário, e o nome (strftime) registra esse horário real de início.
+            // O áudio da transmissão (AAC LATM) não é aceito no MP4, por isso é convertido.
+            return output
+                    .addArguments("-c:v", "copy")
+                    .addArguments("-c:a", "aac")
+                    .addArguments("-copytb", "1")
+                    .addArguments("-abort_on", "empty_output")
+                    .addArguments("-strftime", "1");
+        }
+
+        if (nucleos != null && saida.getModo() != Adapter.Modo.COPY) {
+            output.addArguments("-threads", String.valueOf(nucleos.size()));
+        }
+        if (nivel.getPreset() != null) {
+            output.addArguments("-preset", nivel.getPreset());
+        }
+        if (nivel.getCrf() != null) {
+            output.addArguments("-crf", String.valueOf(nivel.getCrf()));
+        }
+
+        return output
+                // .addArguments("-x264-params", "keyint=12:no-scenecut=1")
+                // .addArguments("-force_key_frames", "expr:gte(t,n_forced*600)")
+                .addArguments("-force_key_frames", "expr:gte(t,n_forced*1)")
                 // .addArguments("-force_key_frames", "expr:if(isnan(prev_forced_n),1,eq(n,prev_forced_n+10))")
-                // .addArguments("-crf", "20")
-                // .addArguments("-g", "48")
-                // .addArguments("-keyint_min", "48")
-                // .addArguments("-sc_threshold", "0")
-                // .setLogLevel(LogLevel.ERROR)
-                /*
-                .setOutputListener(line -> {
-                    System.out.println("[FFMPEG] " + line);
-                    return true;
-                });
-                */
+                .addArguments("-c:v", "libx264")
+                .addArguments("-c:a", "aac")
+                .addArguments("-copytb", "1")
+                .addArguments("-abort_on", "empty_output")
+                .addArguments("-strftime", "1");
+    }
 
-        return ffmpeg;
+    /**
+     * Miniaturas em {@code <destino>/miniaturas/%Y%m%d%H%M%S.jpg}, reunidas
+     * no mosaico de cada segmento pelo {@link AnexosSegmento}.
+     */
+    private static UrlOutput buildOutputMiniaturas(Adapter saida) throws IOException {
+        var dir = Files.createDirectories(AnexosSegmento.diretorioMiniaturas(saida.getDestino()));
+        return UrlOutput
+                .toPath(dir.resolve(AnexosSegmento.PADRAO_MINIATURA))
+                .setFormat("image2")
+                .addArguments("-strftime", "1")
+                .addArguments("-c:v", "mjpeg")
+                .addArguments("-q:v", "5");
+    }
+
+    /**
+     * Filtros das miniaturas a partir do rótulo de entrada: uma saída [m0],
+     * [m1], ... por destino, cada uma com o seu intervalo.
+     */
+    private static String grafoMiniaturas(String entrada, List<Adapter> comMiniaturas) {
+        var grafo = new StringBuilder();
+        grafo.append('[').append(entrada).append(']');
+        if (comMiniaturas.size() == 1) {
+            return grafo.append(filtroMiniaturas(comMiniaturas.get(0))).append("[m0]").toString();
+        }
+        grafo.append("split=").append(comMiniaturas.size());
+        for (int i = 0; i < comMiniaturas.size(); i++) {
+            grafo.append("[t").append(i).append(']');
+        }
+        for (int i = 0; i < comMiniaturas.size(); i++) {
+            grafo.append(";[t").append(i).append(']').append(filtroMiniaturas(comMiniaturas.get(i)))
+                    .append("[m").append(i).append(']');
+        }
+        return grafo.toString();
+    }
+
+    private static String filtroMiniaturas(Adapter saida) {
+        return "fps=1/" + saida.getIntervaloMiniaturas() + ",scale=" + AnexosSegmento.LARGURA_MINIATURA + ":-2";
+    }
+
+    private static Path padraoSaida(Adapter saida) {
+        return saida.getDestino().resolve(DiretoriosData.PADRAO_STRFTIME).resolve("%H%M%S.mp4");
+    }
+
+    private static boolean hasScale(Adapter saida) {
+        return saida.getScale() != null && !saida.getScale().isBlank();
+    }
+
+    /**
+     * @return scale da saída no nível de qualidade informado, ou null para
+     * manter a resolução da transmissão.
+     */
+    private String escala(Adapter saida, NivelQualidade nivel) {
+        int divisor = nivel.getDivisorEscala();
+        if (divisor == 1 || modo == Adapter.Modo.COPY) {
+            return hasScale(saida) ? saida.getScale() : null;
+        }
+        if (hasScale(saida)) {
+            var partes = saida.getScale().split(":");
+            try {
+                int largura = Integer.parseInt(partes[0].trim()) / divisor / 2 * 2;
+                int altura = Integer.parseInt(partes[1].trim()) / divisor / 2 * 2;
+                return largura + ":" + altura;
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                // expressão: reduz depois de aplicá-la
+                return saida.getScale() + ",scale=trunc(iw/" + 2 * divisor + ")*2:trunc(ih/" + 2 * divisor + ")*2";
+            }
+        }
+        return "trunc(iw/" + 2 * divisor + ")*2:trunc(ih/" + 2 * divisor + ")*2";
     }
 
     public void stop() {
-        // if (!isRunning()) return;
-        ffmpegFuture.graceStop();
+        List<Execucao> execucoes;
+        CompletableFuture<Void> parado = null;
+        synchronized (this) {
+            execucoes = execucoes();
+            // troca de nível, entre o ffmpeg antigo e o novo
+            if (atual == null) {
+                parado = termino;
+            }
+        }
+        // gravador ainda não iniciado (aguardando o zap): nada a parar
+        execucoes.forEach(e -> e.futuro.graceStop());
+        if (parado != null) {
+            parado.complete(null);
+        }
     }
 
     public void stopAndWait(long timeout) throws InterruptedException, TimeoutException, ExecutionException {
+        var execucoes = execucoes();
         stop();
-        // if (!isRunning()) return;
-        ffmpegFuture.get(timeout, TimeUnit.MILLISECONDS);
+        for (var exec : execucoes) {
+            exec.futuro.get(timeout, TimeUnit.MILLISECONDS);
+        }
     }
 
-    public void forceStop() {
-        if (ffmpegFuture == null) {
-            return;
+    private synchronized List<Execucao> execucoes() {
+        return Stream.of(atual, saindo).filter(Objects::nonNull).toList();
+    }
+
+    /**
+     * Remove as séries do gravador (e do seu transbordo) das métricas;
+     * chamado quando o gravador sai da configuração. Os reinícios mantêm as
+     * séries.
+     */
+    public void removeMetricas() {
+        var metricas = Metricas.global();
+        for (var nome : List.of("gravador_ffmpeg_fps", "gravador_ffmpeg_speed", "gravador_ffmpeg_quadros_descartados",
+                "gravador_ffmpeg_reinicios_total", "gravador_ffmpeg_erros_total", "gravador_qualidade_nivel",
+                "gravador_ffmpeg_rodando", "gravador_transbordo_bytes_total", "gravador_transbordo_cheio_total")) {
+            metricas.remove(nome, rotulos);
         }
-        ffmpegFuture.forceStop();
-        try {
-            ffmpegFuture.get(5000, TimeUnit.MILLISECONDS);
-        } catch (ExecutionException | InterruptedException | TimeoutException ex) {
-            // noop
+    }
+
+    public void forceStop() {
+        for (var exec : execucoes()) {
+            exec.futuro.forceStop();
+            try {
+                exec.futuro.get(5000, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | InterruptedException | TimeoutException ex) {
+                // noop
+            }
         }
     }
 
@@ -0,0 +1,383 @@
+package br.com.spotcom.gravador;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Posição (byte no arquivo) e PTS dos quadros-chave do vídeo de um segmento
+ * MP4, lidos das tabelas que o próprio muxer do ffmpeg gravou: stss, stts,
+ * ctts, stsc, stsz e stco/co64 no MP4 comum, tfhd/tfdt/trun de cada moof no
+ * MP4 fragmentado (upload ao vivo). Só os cabeçalhos são lidos, nada é
+ * decodificado.
+ * <p>
+ * O PTS fica na escala de tempo da trilha de vídeo ({@link #getEscala()}),
+ * sem aplicar a edit list.
+ */
+public class IndiceQuadrosChave {
+
+    public record QuadroChave(long posicao, long pts) {
+    }
+
+    private static final int MOOV = tipo("moov");
+    private static final int MOOF = tipo("moof");
+    private static final int TRAK = tipo("trak");
+    private static final int TKHD = tipo("tkhd");
+    private static final int MDIA = tipo("mdia");
+    private static final int MDHD = tipo("mdhd");
+    private static final int HDLR = tipo("hdlr");
+    private static final int VIDE = tipo("vide");
+    private static final int MINF = tipo("minf");
+    private static final int STBL = tipo("stbl");
+    private static final int STTS = tipo("stts");
+    private static final int CTTS = tipo("ctts");
+    private static final int STSS = tipo("stss");
+    private static final int STSC = tipo("stsc");
+    private static final int STSZ = tipo("stsz");
+    private static final int STCO = tipo("stco");
+    private static final int CO64 = tipo("co64");
+    private static final int MVEX = tipo("mvex");
+    private static final int TREX = tipo("trex");
+    private static final int TRAF = tipo("traf");
+    private static final int TFHD = tipo("tfhd");
+    private static final int TFDT = tipo("tfdt");
+    private static final int TRUN = tipo("trun");
+    // moov e moof maiores que isso não são de um segmento de 10 minutos
+    private static final long TAMANHO_MAXIMO = 64L * 1024 * 1024;
+    private static final int NAO_SINCRONIZADO = 0x00010000;
+
+    private final int escala;
+    private final List<QuadroChave> quadros;
+
+    private IndiceQuadrosChave(int escala, List<QuadroChave> quadros) {
+        this.escala = escala;
+        this.quadros = List.copyOf(quadros);
+    }
+
+    /**
+     * @return unidades de PTS por segundo.
+     */
+    public int getEscala() {
+        return escala;
+    }
+
+    /**
+     * @return quadros-chave em ordem de posição no arquivo.
+     */
+    public List<QuadroChave> getQuadros() {
+        return quadros;
+    }
+
+    /**
+     * Lê o índice de um segmento fechado.
+     *
+     * @throws IOException se o arquivo não tem moov com trilha de vídeo (ex.:
+     * ffmpeg interrompido antes de fechar o segmento).
+     */
+    public static IndiceQuadrosChave le(Path mp4) throws IOException {
+        try (var canal = FileChannel.open(mp4, StandardOpenOption.READ)) {
+            long tamanho = canal.size();
+            Trilha trilha = null;
+            List<QuadroChave> quadros = new ArrayList<>();
+            long pos = 0;
+            while (pos + 8 <= tamanho) {
+                var cabecalho = le(canal, pos, (int) Math.min(16, tamanho - pos));
+                long caixa = cabecalho.getInt(0) & 0xFFFFFFFFL;
+                int tipo = cabecalho.getInt(4);
+                int inicio = 8;
+                if (caixa == 1 && cabecalho.limit() >= 16) {
+                    caixa = cabecalho.getLong(8);
+                    inicio = 16;
+                } else if (caixa == 0) {
+                    caixa = tamanho - pos;
+                }
+                if (caixa < inicio || pos + caixa > tamanho) {
+                    // última caixa incompleta
+                    break;
+                }
+                if ((tipo == MOOV || tipo == MOOF) && caixa > TAMANHO_MAXIMO) {
+                    throw new IOException("Caixa " + nome(tipo) + " de " + caixa + " bytes em " + mp4);
+                }
+                if (tipo == MOOV) {
+                    var moov = le(canal, pos, (int) caixa);
+                    trilha = trilhaVideo(moov);
+                    if (trilha == null) {
+                        throw new IOException("Segmento " + mp4 + " sem trilha de vídeo");
+                    }
+                    amostras(moov, trilha, quadros);
+                } else if (tipo == MOOF && trilha != null) {
+                    fragmento(le(canal, pos, (int) caixa), pos, trilha, quadros);
+                }
+                pos += caixa;
+            }
+            if (trilha == null) {
+                throw new IOException("Segmento " + mp4 + " sem moov");
+            }
+            return new IndiceQuadrosChave(trilha.escala, quadros);
+        }
+    }
+
+    private static final class Trilha {
+
+        int id;
+        int escala;
+        long duracaoPadrao;
+        long tamanhoPadrao;
+        int flagsPadrao;
+        // DTS do próximo fragmento, se ele não tiver tfdt
+        long proximoDts;
+    }
+
+    private static Trilha trilhaVideo(ByteBuffer moov) {
+        for (int trak = procura(moov, 8, moov.limit(), TRAK); trak >= 0; trak = procura(moov, fim(moov, trak), moov.limit(), TRAK)) {
+            int mdia = procura(moov, trak + 8, fim(moov, trak), MDIA);
+            if (mdia < 0) {
+                continue;
+            }
+            int hdlr = procura(moov, mdia + 8, fim(moov, mdia), HDLR);
+            int mdhd = procura(moov, mdia + 8, fim(moov, mdia), MDHD);
+            int tkhd = procura(moov, trak + 8, fim(moov, trak), TKHD);
+            if (hdlr < 0 || mdhd < 0 || tkhd < 0 || moov.getInt(hdlr + 16) != VIDE) {
+                continue;
+            }
+            var trilha = new Trilha();
+            trilha.id = moov.getInt(tkhd + 12 + (moov.get(tkhd + 8) == 1 ? 16 : 8));
+            trilha.escala = moov.getInt(mdhd + 12 + (moov.get(mdhd + 8) == 1 ? 16 : 8));
+
+            int mvex = procura(moov, 8, moov.limit(), MVEX);
+            if (mvex >= 0) {
+                for (int trex = procura(moov, mvex + 8, fim(moov, mvex), TREX); trex >= 0;
+                        trex = procura(moov, fim(moov, trex), fim(moov, mvex), TREX)) {
+                    if (moov.getInt(trex + 12) == trilha.id) {
+                        trilha.duracaoPadrao = u32(moov, trex + 20);
+                        trilha.tamanhoPadrao = u32(moov, trex + 24);
+                        trilha.flagsPadrao = moov.getInt(trex + 28);
+                    }
+                }
+            }
+            trilha.proximoDts = 0;
+            return trilha;
+        }
+        return null;
+    }
+
+    /**
+     * Quadros-chave das tabelas do stbl (vazias no MP4 fragmentado).
+     */
+    private static void amostras(ByteBuffer moov, Trilha trilha, List<QuadroChave> quadros) {
+        int stbl = -1;
+        for (int trak = procura(moov, 8, moov.limit(), TRAK); trak >= 0 && stbl < 0; trak = procura(moov, fim(moov, trak), moov.limit(), TRAK)) {
+            int tkhd = procura(moov, trak + 8, fim(moov, trak), TKHD);
+            if (tkhd < 0 || moov.getInt(tkhd + 12 + (moov.get(tkhd + 8) == 1 ? 16 : 8)) != trilha.id) {
+                continue;
+            }
+            int mdia = procura(moov, trak + 8, fim(moov, trak), MDIA);
+            int minf = mdia < 0 ? -1 : procura(moov, mdia + 8, fim(moov, mdia), MINF);
+            stbl = minf < 0 ? -1 : procura(moov, minf + 8, fim(moov, minf), STBL);
+        }
+        if (stbl < 0) {
+            return;
+        }
+        int fimStbl = fim(moov, stbl);
+        int stsz = procura(moov, stbl + 8, fimStbl, STSZ);
+        int stts = procura(moov, stbl + 8, fimStbl, STTS);
+        int stsc = procura(moov, stbl + 8, fimStbl, STSC);
+        int stco = procura(moov, stbl + 8, fimStbl, STCO);
+        boolean largo = stco < 0;
+        if (largo) {
+            stco = procura(moov, stbl + 8, fimStbl, CO64);
+        }
+        if (stsz < 0 || stts < 0 || stsc < 0 || stco < 0) {
+            return;
+        }
+        int ctts = procura(moov, stbl + 8, fimStbl, CTTS);
+        int stss = procura(moov, stbl + 8, fimStbl, STSS);
+
+        int tamanhoFixo = moov.getInt(stsz + 12);
+        int total = moov.getInt(stsz + 16);
+        int entradasStsc = moov.getInt(stsc + 12);
+        int chunks = moov.getInt(stco + 12);
+        // tabelas percorridas em paralelo às amostras
+        int iStts = 0, restaStts = 0;
+        long delta = 0;
+        int iCtts = 0, restaCtts = 0;
+        long composicao = 0;
+        int iStss = 0;
+        int iStsc = 0;
+        long dts = 0;
+        int amostra = 0;
+        for (int chunk = 1; chunk <= chunks && amostra < total; chunk++) {
+            while (iStsc + 1 < entradasStsc && moov.getInt(stsc + 16 + (iStsc + 1) * 12) <= chunk) {
+                iStsc++;
+            }
+            int porChunk = moov.getInt(stsc + 16 + iStsc * 12 + 4);
+            long posicao = largo ? moov.getLong(stco + 16 + (chunk - 1) * 8) : u32(moov, stco + 16 + (chunk - 1) * 4);
+            for (int j = 0; j < porChunk && amostra < total; j++) {
+                amostra++;
+                while (restaStts == 0 && iStts < moov.getInt(stts + 12)) {
+                    restaStts = moov.getInt(stts + 16 + iStts * 8);
+                    delta = u32(moov, stts + 16 + iStts * 8 + 4);
+                    iStts++;
+                }
+                if (ctts >= 0) {
+                    while (restaCtts == 0 && iCtts < moov.getInt(ctts + 12)) {
+                        restaCtts = moov.getInt(ctts + 16 + iCtts * 8);
+                        composicao = moov.getInt(ctts + 16 + iCtts * 8 + 4);
+                        iCtts++;
+                    }
+                    restaCtts--;
+                }
+                boolean chave = stss < 0;
+                if (stss >= 0) {
+                    while (iStss < moov.getInt(stss + 12) && moov.getInt(stss + 16 + iStss * 4) < amostra) {
+                        iStss++;
+                    }
+                    chave = iStss < moov.getInt(stss + 12) && moov.getInt(stss + 16 + iStss * 4) == amostra;
+                }
+                if (chave) {
+                    quadros.add(new QuadroChave(posicao, dts + composicao));
+                }
+                posicao += tamanhoFixo != 0 ? tamanhoFixo : u32(moov, stsz + 20 + (amostra - 1) * 4);
+                dts += delta;
+                restaStts--;
+            }
+        }
+        trilha.proximoDts = dts;
+    }
+
+    /**
+     * Quadros-chave de um moof, que começa em posicaoMoof no arquivo.
+     */
+    private static void fragmento(ByteBuffer moof, long posicaoMoof, Trilha trilha, List<QuadroChave> quadros) {
+        for (int traf = procura(moof, 8, moof.limit(), TRAF); traf >= 0; traf = procura(moof, fim(moof, traf), moof.limit(), TRAF)) {
+            int fimTraf = fim(moof, traf);
+            int tfhd = procura(moof, traf + 8, fimTraf, TFHD);
+            if (tfhd < 0 || moof.getInt(tfhd + 12) != trilha.id) {
+                continue;
+            }
+            int flags = moof.getInt(tfhd + 8) & 0xFFFFFF;
+            int p = tfhd + 16;
+            long base = posicaoMoof;
+            if ((flags & 0x01) != 0) {
+                base = moof.getLong(p);
+                p += 8;
+            }
+            if ((flags & 0x02) != 0) {
+                p += 4;
+            }
+            long duracaoPadrao = trilha.duracaoPadrao;
+            if ((flags & 0x08) != 0) {
+                duracaoPadrao = u32(moof, p);
+                p += 4;
+            }
+            long tamanhoPadrao = trilha.tamanhoPadrao;
+            if ((flags & 0x10) != 0) {
+                tamanhoPadrao = u32(moof, p);
+                p += 4;
+            }
+            int flagsPadrao = trilha.flagsPadrao;
+            if ((flags & 0x20) != 0) {
+                flagsPadrao = moof.getInt(p);
+            }
+
+            long dts = trilha.proximoDts;
+            int tfdt = procura(moof, traf + 8, fimTraf, TFDT);
+            if (tfdt >= 0) {
+                dts = moof.get(tfdt + 8) == 1 ? moof.getLong(tfdt + 12) : u32(moof, tfdt + 12);
+            }
+            long dados = base;
+            for (int trun = procura(moof, traf + 8, fimTraf, TRUN); trun >= 0; trun = procura(moof, fim(moof, trun), fimTraf, TRUN)) {
+                int flagsTrun = moof.getInt(trun + 8) & 0xFFFFFF;
+                int amostras = moof.getInt(trun + 12);
+                int q = trun + 16;
+                if ((flagsTrun & 0x01) != 0) {
+                    dados = base + moof.getInt(q);
+                    q += 4;
+                }
+                int primeira = flagsPadrao;
+                boolean temPrimeira = (flagsTrun & 0x04) != 0;
+                if (temPrimeira) {
+                    primeira = moof.getInt(q);
+                    q += 4;
+                }
+                for (int i = 0; i < amostras; i++) {
+                    long duracao = duracaoPadrao;
+                    long tamanho = tamanhoPadrao;
+                    int flagsAmostra = i == 0 && temPrimeira ? primeira : flagsPadrao;
+                    long composicao = 0;
+                    if ((flagsTrun & 0x100) != 0) {
+                        duracao = u32(moof, q);
+                        q += 4;
+                    }
+                    if ((flagsTrun & 0x200) != 0) {
+                        tamanho = u32(moof, q);
+                        q += 4;
+                    }
+                    if ((flagsTrun & 0x400) != 0) {
+                        flagsAmostra = moof.getInt(q);
+                        q += 4;
+                    }
+                    if ((flagsTrun & 0x800) != 0) {
+                        composicao = moof.getInt(q);
+                        q += 4;
+                    }
+                    if ((flagsAmostra & NAO_SINCRONIZADO) == 0) {
+                        quadros.add(new QuadroChave(dados, dts + composicao));
+                    }
+                    dados += tamanho;
+                    dts += duracao;
+                }
+            }
+            trilha.proximoDts = dts;
+        }
+    }
+
+    /**
+     * @return início da primeira caixa do tipo entre inicio e fim, ou -1.
+     */
+    private static int procura(ByteBuffer buf, int inicio, int fim, int tipo) {
+        int pos = inicio;
+        while (pos + 8 <= fim) {
+            int tamanho = buf.getInt(pos);
+            if (tamanho < 8 || pos + tamanho > fim) {
+                return -1;
+            }
+            if (buf.getInt(pos + 4) == tipo) {
+                return pos;
+            }
+            pos += tamanho;
+        }
+        return -1;
+    }
+
+    private static int fim(ByteBuffer buf, int caixa) {
+        return caixa + buf.getInt(caixa);
+    }
+
+    private static long u32(ByteBuffer buf, int pos) {
+        return buf.getInt(pos) & 0xFFFFFFFFL;
+    }
+
+    private static ByteBuffer le(FileChannel canal, long pos, int tamanho) throws IOException {
+        var buf = ByteBuffer.allocate(tamanho);
+        while (buf.hasRemaining()) {
+            if (canal.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("Fim inesperado do arquivo");
+            }
+        }
+        return buf.flip();
+    }
+
+    private static int tipo(String nome) {
+        return (nome.charAt(0) << 24) | (nome.charAt(1) << 16) | (nome.charAt(2) << 8) | nome.charAt(3);
+    }
+
+    private static String nome(int tipo) {
+        return new String(new char[] {(char) (tipo >>> 24), (char) ((tipo >> 16) & 0xFF), (char) ((tipo >> 8) & 0xFF), (char) (tipo & 0xFF)});
+    }
+
+}
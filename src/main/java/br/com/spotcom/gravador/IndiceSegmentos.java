@@ -0,0 +1,492 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.metricas.Metricas;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Índice em memória dos segmentos gravados (yyyyMMdd/HHmmss.mp4) de um
+ * diretório de destino.
+ * <p>
+ * O diretório é varrido uma única vez na inicialização; depois o índice é
+ * mantido por um WatchService (criação de diretórios de data e de segmentos,
+ * remoção de segmentos). As consultas são O(log n) e quem aguarda novos
+ * segmentos é acordado pelos eventos, sem varrer o disco periodicamente.
+ * <p>
+ * Um segmento está fechado quando o segment muxer do ffmpeg o lista em
+ * {@link #lista(Path)}, depois de gravar o trailer (moov). Se o ffmpeg
+ * terminou no meio do segmento ele nunca é listado: é considerado fechado
+ * quando já existe um posterior e o arquivo está há {@value #SEM_ESCRITA_MS}
+ * ms sem escrita.
+ */
+public class IndiceSegmentos {
+
+    private static final Pattern PADRAO_DIR = Pattern.compile("\\d{8}");
+    private static final Pattern PADRAO_ARQUIVO = Pattern.compile("\\d{6}\\.mp4");
+    private static final DateTimeFormatter FORMATO_ARQUIVO = DateTimeFormatter.ofPattern("HHmmss'.mp4'");
+    // -segment_list do ffmpeg (tipo flat): o nome de cada segmento concluído, um por linha
+    private static final String DIR_LISTA = ".segmentos";
+    private static final String ARQUIVO_LISTA = "concluidos.txt";
+    static final long SEM_ESCRITA_MS = 30000;
+
+    private final Path dir;
+    private final TreeMap<LocalDateTime, Path> segmentos = new TreeMap<>();
+    private final Set<LocalDateTime> fechados = new HashSet<>();
+    // nomes listados antes de o segmento ser indexado
+    private final Set<String> pendentes = new HashSet<>();
+    // bytes da lista já lidos (acessado pela thread do acompanhamento)
+    private long posicaoLista;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition alterado = lock.newCondition();
+    private long versao;
+    private WatchService watchService;
+    private Thread thread;
+    private Metricas.Resumo latenciaFechamento;
+
+    public IndiceSegmentos(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return lista dos segmentos concluídos pelo ffmpeg que grava no
+     * destino (recriada a cada início do ffmpeg).
+     */
+    public static Path lista(Path destino) {
+        return destino.resolve(DIR_LISTA).resolve(ARQUIVO_LISTA);
+    }
+
+    /**
+     * Resumo onde é registrada, a cada novo segmento, a latência entre o
+     * horário do nome do segmento (o fechamento do anterior) e o evento de
+     * criação do arquivo.
+     */
+    public void setLatenciaFechamento(Metricas.Resumo latenciaFechamento) {
+        this.latenciaFechamento = latenciaFechamento;
+    }
+
+    /**
+     * Varre o diretório e passa a acompanhar as alterações. Chamadas
+     * seguintes não têm efeito enquanto o índice estiver ativo.
+     */
+    public synchronized void iniciar() throws IOException {
+        if (thread != null && thread.isAlive()) {
+            return;
+        }
+        // o acompanhamento anterior terminou com falha: descarta o WatchService e o que foi indexado com ele
+        if (watchService != null) {
+            watchService.close();
+        }
+        watchService = dir.getFileSystem().newWatchService();
+        try {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            Files.createDirectories(lista(dir).getParent())
+                    .register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            // registra antes de varrer para não perder arquivos criados durante a varredura
+            revarre();
+        } catch (IOException | RuntimeException ex) {
+            watchService.close();
+            throw ex;
+        }
+        thread = new Thread(this::acompanha, "indice-" + dir.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void fechar() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                // noop
+            }
+        }
+        // acorda quem aguarda alterações (encerramento do upload)
+        lock.lock();
+        try {
+            versao++;
+            alterado.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void registraDiretorio(Path dirData) throws IOException {
+        if (!Files.isDirectory(dirData)) {
+            return;
+        }
+        dirData.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        try (var fileStream = Files.newDirectoryStream(dirData, p -> PADRAO_ARQUIVO.matcher(p.getFileName().toString()).matches()
+                && Files.isReadable(p))) {
+            for (var arquivo : fileStream) {
+                adiciona(arquivo);
+            }
+        }
+    }
+
+    private void acompanha() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                var base = (Path) key.watchable();
+                for (WatchEvent<?> evento : key.pollEvents()) {
+                    if (evento.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // eventos perdidos: revarre o diretório
+                        revarre();
+                        continue;
+                    }
+                    var path = base.resolve((Path) evento.context());
+                    var nome = path.getFileName().toString();
+                    boolean criado = evento.kind() == StandardWatchEventKinds.ENTRY_CREATE;
+                    if (base.equals(lista(dir).getParent())) {
+                        if (nome.equals(ARQUIVO_LISTA)) {
+                            leLista();
+                        }
+                    } else if (base.equals(dir) && PADRAO_DIR.matcher(nome).matches()) {
+                        if (criado) {
+                            registraDiretorio(path);
+                        }
+                    } else if (PADRAO_ARQUIVO.matcher(nome).matches()) {
+                        if (criado) {
+                            adiciona(path);
+                            registraFechamento(path);
+                        } else {
+                            remove(path);
+                        }
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ex) {
+            // encerrado
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.SEVERE, "Falha ao acompanhar " + dir, ex);
+        }
+    }
+
+    private void revarre() throws IOException {
+        lock.lock();
+        try {
+            segmentos.clear();
+            fechados.clear();
+            pendentes.clear();
+        } finally {
+            lock.unlock();
+        }
+        try (var dirStream = Files.newDirectoryStream(dir, p -> PADRAO_DIR.matcher(p.getFileName().toString()).matches())) {
+            for (var dirData : dirStream) {
+                registraDiretorio(dirData);
+            }
+        }
+        posicaoLista = 0;
+        leLista();
+    }
+
+    /**
+     * Lê as linhas completas acrescentadas à lista desde a última leitura.
+     * A lista menor que o já lido foi recriada por um novo ffmpeg.
+     */
+    private void leLista() throws IOException {
+        List<String> nomes = new ArrayList<>();
+        try (var canal = FileChannel.open(lista(dir))) {
+            long tamanho = canal.size();
+            if (tamanho < posicaoLista) {
+                posicaoLista = 0;
+            }
+            var buffer = ByteBuffer.allocate((int) (tamanho - posicaoLista));
+            while (buffer.hasRemaining() && canal.read(buffer, posicaoLista + buffer.position()) > 0) {
+                // lê até o tamanho medido
+            }
+            var texto = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+            int fim = texto.lastIndexOf('\n');
+            if (fim < 0) {
+                return;
+            }
+            posicaoLista += fim + 1;
+            for (var linha : texto.substring(0, fim).split("\n")) {
+                if (!linha.isBlank()) {
+                    nomes.add(linha.trim());
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            posicaoLista = 0;
+            return;
+        }
+        lock.lock();
+        try {
+            nomes.forEach(this::marcaFechado);
+            versao++;
+            alterado.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marca como fechado o segmento mais recente com o nome listado (o
+     * segment muxer lista só o nome, sem o diretório do dia).
+     */
+    private void marcaFechado(String nome) {
+        if (segmentos.isEmpty()) {
+            pendentes.add(nome);
+            return;
+        }
+        var limite = segmentos.lastKey().minusDays(1);
+        for (var e : segmentos.descendingMap().entrySet()) {
+            if (e.getKey().isBefore(limite)) {
+                break;
+            }
+            if (e.getValue().getFileName().toString().equals(nome)) {
+                fechados.add(e.getKey());
+                return;
+            }
+        }
+        pendentes.add(nome);
+    }
+
+    /**
+     * Chamado com o lock.
+     */
+    private boolean isFechado(Map.Entry<LocalDateTime, Path> e) {
+        if (fechados.contains(e.getKey())) {
+            return true;
+        }
+        if (segmentos.higherKey(e.getKey()) == null) {
+            return false;
+        }
+        try {
+            // ffmpeg encerrado no meio do segmento: não será mais escrito
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(e.getValue()).toMillis() < SEM_ESCRITA_MS) {
+                return false;
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+        fechados.add(e.getKey());
+        return true;
+    }
+
+    void adiciona(Path arquivo) {
+        LocalDateTime hora;
+        try {
+            hora = parseHoraArquivo(arquivo);
+        } catch (DateTimeException | NumberFormatException ex) {
+            return;
+        }
+        lock.lock();
+        try {
+            segmentos.put(hora, arquivo);
+            if (pendentes.remove(arquivo.getFileName().toString())) {
+                fechados.add(hora);
+            }
+            versao++;
+            alterado.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void registraFechamento(Path arquivo) {
+        var resumo = latenciaFechamento;
+        if (resumo == null) {
+            return;
+        }
+        try {
+            var hora = parseHoraArquivo(arquivo);
+            long latencia = Duration.between(hora, LocalDateTime.now()).toMillis();
+            // ignora arquivos antigos (cópias, recuperação)
+            if (latencia >= 0 && latencia < 600000) {
+                resumo.registra(latencia / 1000.0);
+            }
+        } catch (DateTimeException | NumberFormatException ex) {
+            // noop
+        }
+    }
+
+    void remove(Path arquivo) {
+        lock.lock();
+        try {
+            var e = segmentos.entrySet().stream().filter(s -> s.getValue().equals(arquivo)).findFirst();
+            e.ifPresent(s -> {
+                segmentos.remove(s.getKey());
+                fechados.remove(s.getKey());
+            });
+            versao++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return primeiro segmento posterior a hora (ou o primeiro de todos se
+     * hora for nula), ou null se não existir.
+     */
+    public Path proximo(LocalDateTime hora) {
+        lock.lock();
+        try {
+            var e = hora == null ? segmentos.firstEntry() : segmentos.higherEntry(hora);
+            return e != null ? e.getValue() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return segmento da hora informada ou null se não existir.
+     */
+    public Path arquivo(LocalDateTime hora) {
+        lock.lock();
+        try {
+            return segmentos.get(hora);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return segmento seguinte a hora, se estiver fechado, ou null (um
+     * segmento ainda aberto não é pulado).
+     */
+    public Path proximoFechado(LocalDateTime hora) {
+        lock.lock();
+        try {
+            var e = hora == null ? segmentos.firstEntry() : segmentos.higherEntry(hora);
+            return e != null && isFechado(e) ? e.getValue() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return segmento mais recente (o que está sendo gravado) ou null.
+     */
+    public Path ultimo() {
+        lock.lock();
+        try {
+            var e = segmentos.lastEntry();
+            return e != null ? e.getValue() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return segmento fechado mais recente (normalmente o anterior ao que
+     * está sendo gravado) ou null.
+     */
+    public Path ultimoFechado() {
+        lock.lock();
+        try {
+            for (var e : segmentos.descendingMap().entrySet()) {
+                if (isFechado(e)) {
+                    return e.getValue();
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int tamanho() {
+        lock.lock();
+        try {
+            return segmentos.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cópia dos segmentos posteriores a hora (todos se nula), em ordem.
+     */
+    public Map<LocalDateTime, Path> posteriores(LocalDateTime hora) {
+        lock.lock();
+        try {
+            return new TreeMap<>(hora == null ? segmentos : segmentos.tailMap(hora, false));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getVersao() {
+        lock.lock();
+        try {
+            return versao;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Aguarda até que o índice seja alterado após a versão informada.
+     *
+     * @return true se houve alteração, false se o tempo esgotou.
+     */
+    public boolean aguardaAlteracao(long versaoAtual, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (versao == versaoAtual) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = alterado.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return caminho do segmento da hora informada no destino (inverso de
+     * {@link #parseHoraArquivo(Path)}).
+     */
+    static Path caminhoArquivo(Path dir, LocalDateTime hora) {
+        return DiretoriosData.diretorio(dir, hora.toLocalDate()).resolve(hora.format(FORMATO_ARQUIVO));
+    }
+
+    static LocalDateTime parseHoraArquivo(Path arquivo) {
+        // diretório de data: yyyymmdd
+        var dirData = arquivo.getName(arquivo.getNameCount() - 2);
+        var data = LocalDate.parse(dirData.toString(), DateTimeFormatter.BASIC_ISO_DATE);
+
+        // nome do arquivo: hhmmss.mp4
+        var nomeArquivo = arquivo.getFileName().toString();
+        int h = Integer.parseInt(nomeArquivo.substring(0, 2));
+        int m = Integer.parseInt(nomeArquivo.substring(2, 4));
+        int s = Integer.parseInt(nomeArquivo.substring(4, 6));
+
+        return data.atTime(h, m, s);
+    }
+
+    private static final Logger LOG = Logger.getLogger(IndiceSegmentos.class.getName());
+
+}
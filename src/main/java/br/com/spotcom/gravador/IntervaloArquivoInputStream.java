@@ -0,0 +1,74 @@
+package br.com.spotcom.gravador;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * InputStream de um intervalo de bytes de um arquivo, lido com leituras
+ * posicionais do FileChannel (não depende nem altera a posição do canal).
+ * Com um {@link LimitadorBanda}, cada leitura consome os seus bytes antes de
+ * ser entregue, assim o corpo da requisição sai no ritmo do limite.
+ */
+class IntervaloArquivoInputStream extends InputStream {
+
+    private final FileChannel canal;
+    private long posicao;
+    private final long fim;
+    private final LimitadorBanda limitador;
+
+    IntervaloArquivoInputStream(Path arquivo, long inicio, long tamanho) throws IOException {
+        this(arquivo, inicio, tamanho, null);
+    }
+
+    IntervaloArquivoInputStream(Path arquivo, long inicio, long tamanho, LimitadorBanda limitador) throws IOException {
+        this.canal = FileChannel.open(arquivo, StandardOpenOption.READ);
+        this.posicao = inicio;
+        this.fim = inicio + tamanho;
+        this.limitador = limitador;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (posicao >= fim) {
+            return -1;
+        }
+        int n = (int) Math.min(len, fim - posicao);
+        if (limitador != null) {
+            n = (int) Math.min(n, limitador.getRajada());
+            try {
+                limitador.consome(n);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envio interrompido");
+            }
+        }
+        int lidos = canal.read(ByteBuffer.wrap(b, off, n), posicao);
+        if (lidos < 0) {
+            throw new IOException("Arquivo menor que o intervalo esperado");
+        }
+        posicao += lidos;
+        return lidos;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, fim - posicao);
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+}
@@ -0,0 +1,400 @@
+package br.com.spotcom.gravador;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journal em disco do estado de upload dos segmentos de um adapter.
+ * <p>
+ * Cada alteração de estado é acrescentada ao arquivo como uma linha
+ * {@code <hora do segmento> <estado> <tentativas> <próxima tentativa (epoch ms)>}.
+ * Os segmentos concluídos em sequência são resumidos numa marca
+ * ({@code MARCA <hora>}), onde o envio continua ao reabrir. Os registros
+ * ficam no journal até o arquivo do segmento deixar de existir
+ * ({@link #descartaRemovidos(Predicate)}), assim a retenção confere o envio
+ * de cada arquivo; só os segmentos até a base ({@code BASE <hora>}, a marca
+ * inicial informada pelo servidor) não têm registro. O fsync é feito
+ * em lote (a cada {@value #LOTE_FSYNC} registros ou {@value #INTERVALO_FSYNC} ms);
+ * perder o último lote só causa o reenvio (retomável) de algum segmento.
+ * <p>
+ * O arquivo é compactado quando acumula muitas linhas obsoletas. Cada
+ * {@link Upload} possui o seu; os métodos são sincronizados porque os
+ * segmentos atrasados são enviados em paralelo.
+ */
+public class JournalUpload {
+
+    public enum Estado {
+        PENDENTE, ENVIANDO, CONCLUIDO, FALHOU
+    }
+
+    public static final class Registro {
+
+        private Estado estado;
+        private int tentativas;
+        private long proximaTentativa;
+
+        public Estado getEstado() {
+            return estado;
+        }
+
+        public int getTentativas() {
+            return tentativas;
+        }
+
+        public long getProximaTentativa() {
+            return proximaTentativa;
+        }
+
+    }
+
+    private static final String NOME_ARQUIVO = ".upload-journal";
+    private static final String MARCA = "MARCA";
+    private static final String BASE = "BASE";
+    private static final int LOTE_FSYNC = 32;
+    private static final long INTERVALO_FSYNC = 1000;
+    private static final long BACKOFF_INICIAL = 30_000;
+    private static final long BACKOFF_MAXIMO = 3_600_000;
+
+    private final Path arquivo;
+    private final TreeMap<LocalDateTime, Registro> registros = new TreeMap<>();
+    // índices dos registros em FALHOU: por hora do segmento e quantos por próxima tentativa
+    private final TreeMap<LocalDateTime, Registro> falhas = new TreeMap<>();
+    private final TreeMap<Long, Integer> tentativas = new TreeMap<>();
+    private LocalDateTime marca;
+    private LocalDateTime base;
+    private FileChannel canal;
+    private boolean novo;
+    private int linhas;
+    private int pendentesFsync;
+    private long ultimoFsync;
+
+    public JournalUpload(Path dir) {
+        this.arquivo = dir.resolve(NOME_ARQUIVO);
+    }
+
+    /**
+     * Carrega o journal existente (ou cria um novo). Chamadas seguintes não
+     * têm efeito.
+     */
+    public synchronized void abrir() throws IOException {
+        if (canal != null) {
+            return;
+        }
+        novo = !Files.exists(arquivo);
+        if (!novo) {
+            for (var linha : Files.readAllLines(arquivo, StandardCharsets.UTF_8)) {
+                carrega(linha);
+            }
+            // journal anterior à base: os registros até a marca já foram descartados
+            if (base == null) {
+                base = marca;
+            }
+        }
+        canal = FileChannel.open(arquivo, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        // registros interrompidos durante o envio voltam a ficar pendentes (o envio é retomável)
+        registros.values().stream()
+                .filter(r -> r.estado == Estado.ENVIANDO)
+                .forEach(r -> r.estado = Estado.PENDENTE);
+        reindexa();
+    }
+
+    private void carrega(String linha) {
+        var campos = linha.trim().split(" ");
+        try {
+            linhas++;
+            if (campos[0].equals(MARCA) && campos.length == 2) {
+                marca = LocalDateTime.parse(campos[1]);
+            } else if (campos[0].equals(BASE) && campos.length == 2) {
+                base = LocalDateTime.parse(campos[1]);
+                registros.headMap(base, true).clear();
+            } else if (campos.length == 4) {
+                var hora = LocalDateTime.parse(campos[0]);
+                var registro = registros.computeIfAbsent(hora, k -> new Registro());
+                registro.estado = Estado.valueOf(campos[1]);
+                registro.tentativas = Integer.parseInt(campos[2]);
+                registro.proximaTentativa = Long.parseLong(campos[3]);
+            }
+        } catch (RuntimeException ex) {
+            // linha incompleta (queda durante a escrita): ignora
+            LOG.log(Level.WARNING, "Linha inválida no journal {0}: {1}", new Object[]{arquivo, linha});
+        }
+    }
+
+    /**
+     * @return true se o journal não existia ao ser aberto.
+     */
+    public synchronized boolean isNovo() {
+        return novo;
+    }
+
+    public synchronized LocalDateTime getMarca() {
+        return marca;
+    }
+
+    /**
+     * Define a marca inicial (ex.: último arquivo recebido pelo servidor num
+     * journal novo), que é também a base: os segmentos até ela são
+     * considerados enviados sem registro próprio.
+     */
+    public synchronized void setMarca(LocalDateTime marca) throws IOException {
+        this.base = marca;
+        registros.headMap(marca, true).clear();
+        reindexa();
+        escreve(BASE + " " + marca);
+        avancaMarca(marca);
+    }
+
+    private void avancaMarca(LocalDateTime marca) throws IOException {
+        this.marca = marca;
+        escreve(MARCA + " " + marca);
+    }
+
+    public synchronized Registro get(LocalDateTime hora) {
+        return registros.get(hora);
+    }
+
+    /**
+     * @return true se o segmento já foi enviado ou está até a marca (não é
+     * mais procurado pelo envio).
+     */
+    public synchronized boolean isConcluido(LocalDateTime hora) {
+        var registro = registros.get(hora);
+        if (registro != null) {
+            return registro.estado == Estado.CONCLUIDO;
+        }
+        return marca != null && !hora.isAfter(marca);
+    }
+
+    /**
+     * @return true se o envio do segmento foi confirmado: pelo seu registro,
+     * ou por estar até a base. Um segmento que a marca passou sem registro
+     * (não estava no índice) não conta como enviado.
+     */
+    public synchronized boolean isEnviado(LocalDateTime hora) {
+        var registro = registros.get(hora);
+        if (registro != null) {
+            return registro.estado == Estado.CONCLUIDO;
+        }
+        return base != null && !hora.isAfter(base);
+    }
+
+    /**
+     * @return true se o segmento pode ser enviado agora (pendente ou falha
+     * com o backoff vencido; não se já estiver sendo enviado).
+     */
+    public synchronized boolean isDisponivel(LocalDateTime hora, long agora) {
+        if (isConcluido(hora)) {
+            return false;
+        }
+        var registro = registros.get(hora);
+        if (registro == null || registro.estado == Estado.PENDENTE) {
+            return true;
+        }
+        return registro.estado == Estado.FALHOU && registro.proximaTentativa <= agora;
+    }
+
+    public synchronized void enviando(LocalDateTime hora) throws IOException {
+        var registro = registros.computeIfAbsent(hora, k -> new Registro());
+        desindexa(hora, registro);
+        registro.estado = Estado.ENVIANDO;
+        grava(hora, registro);
+    }
+
+    /**
+     * Marca o segmento como enviado e avança a marca enquanto os segmentos
+     * seguintes (segundo proximo) também estiverem concluídos.
+     */
+    public synchronized void concluido(LocalDateTime hora, Function<LocalDateTime, LocalDateTime> proximo) throws IOException {
+        var registro = registros.computeIfAbsent(hora, k -> new Registro());
+        desindexa(hora, registro);
+        registro.estado = Estado.CONCLUIDO;
+        grava(hora, registro);
+
+        var novaMarca = marca;
+        LocalDateTime seguinte = proximo.apply(novaMarca);
+        while (seguinte != null && registros.containsKey(seguinte) && registros.get(seguinte).estado == Estado.CONCLUIDO) {
+            novaMarca = seguinte;
+            seguinte = proximo.apply(novaMarca);
+        }
+        if (novaMarca != null && !novaMarca.equals(marca)) {
+            avancaMarca(novaMarca);
+        }
+    }
+
+    /**
+     * Registra a falha do envio, agendando nova tentativa com backoff
+     * exponencial.
+     *
+     * @return horário (epoch ms) da próxima tentativa.
+     */
+    public synchronized long falhou(LocalDateTime hora, long agora) throws IOException {
+        var registro = registros.computeIfAbsent(hora, k -> new Registro());
+        desindexa(hora, registro);
+        registro.estado = Estado.FALHOU;
+        registro.tentativas++;
+        long backoff = Math.min(BACKOFF_MAXIMO, BACKOFF_INICIAL << Math.min(20, registro.tentativas - 1));
+        registro.proximaTentativa = agora + backoff;
+        indexa(hora, registro);
+        grava(hora, registro);
+        return registro.proximaTentativa;
+    }
+
+    /**
+     * @return menor horário (epoch ms) de nova tentativa entre os segmentos
+     * com falha, ou Long.MAX_VALUE se não houver.
+     */
+    public synchronized long proximaTentativa() {
+        return tentativas.isEmpty() ? Long.MAX_VALUE : tentativas.firstKey();
+    }
+
+    /**
+     * Segmentos com falha, em ordem (cópia do índice, sem percorrer os
+     * registros).
+     */
+    public synchronized Map<LocalDateTime, Registro> falhas() {
+        return new TreeMap<>(falhas);
+    }
+
+    /**
+     * Inclui o registro nos índices de falhas, se estiver em FALHOU.
+     */
+    private void indexa(LocalDateTime hora, Registro registro) {
+        if (registro.estado == Estado.FALHOU) {
+            falhas.put(hora, registro);
+            tentativas.merge(registro.proximaTentativa, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Retira o registro dos índices de falhas; chamado antes de alterar o
+     * estado ou a próxima tentativa.
+     */
+    private void desindexa(LocalDateTime hora, Registro registro) {
+        if (falhas.remove(hora) != null) {
+            tentativas.computeIfPresent(registro.proximaTentativa, (k, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    /**
+     * Refaz os índices de falhas depois de uma remoção em lote de registros.
+     */
+    private void reindexa() {
+        falhas.clear();
+        tentativas.clear();
+        registros.forEach(this::indexa);
+    }
+
+    /**
+     * Descarta os registros (inclusive falhas) dos segmentos cujo arquivo não
+     * existe mais: removidos pela retenção ou manualmente. Compacta o
+     * journal se algum foi descartado.
+     *
+     * @return quantidade de registros descartados.
+     */
+    public synchronized int descartaRemovidos(Predicate<LocalDateTime> existe) throws IOException {
+        int antes = registros.size();
+        registros.keySet().removeIf(hora -> !existe.test(hora));
+        int descartados = antes - registros.size();
+        if (descartados > 0) {
+            reindexa();
+        }
+        if (descartados > 0 && canal != null) {
+            compacta();
+        }
+        return descartados;
+    }
+
+    private void grava(LocalDateTime hora, Registro registro) throws IOException {
+        escreve(hora + " " + registro.estado + " " + registro.tentativas + " " + registro.proximaTentativa);
+    }
+
+    private void escreve(String linha) throws IOException {
+        if (canal == null) {
+            throw new IllegalStateException("Journal não aberto");
+        }
+        var bytes = ByteBuffer.wrap((linha + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            canal.write(bytes);
+        }
+        linhas++;
+        pendentesFsync++;
+        sincroniza(false);
+        if (linhas > 1000 && linhas > 4 * (registros.size() + 1)) {
+            compacta();
+        }
+    }
+
+    /**
+     * Faz o fsync do journal se o lote estiver cheio, se o intervalo passou
+     * ou se forcar for true.
+     */
+    public synchronized void sincroniza(boolean forcar) throws IOException {
+        if (canal == null || pendentesFsync == 0) {
+            return;
+        }
+        long agora = System.currentTimeMillis();
+        if (forcar || pendentesFsync >= LOTE_FSYNC || agora - ultimoFsync >= INTERVALO_FSYNC) {
+            canal.force(false);
+            pendentesFsync = 0;
+            ultimoFsync = agora;
+        }
+    }
+
+    /**
+     * Reescreve o journal apenas com a base, a marca e o estado atual de cada
+     * registro, substituindo o arquivo de forma atômica.
+     */
+    public synchronized void compacta() throws IOException {
+        var temp = arquivo.resolveSibling(NOME_ARQUIVO + ".tmp");
+        var conteudo = new StringBuilder();
+        if (base != null) {
+            conteudo.append(BASE).append(' ').append(base).append('\n');
+        }
+        if (marca != null) {
+            conteudo.append(MARCA).append(' ').append(marca).append('\n');
+        }
+        registros.forEach((hora, r) -> conteudo.append(hora).append(' ').append(r.estado).append(' ')
+                .append(r.tentativas).append(' ').append(r.proximaTentativa).append('\n'));
+        try (var novoCanal = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var bytes = ByteBuffer.wrap(conteudo.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                novoCanal.write(bytes);
+            }
+            novoCanal.force(true);
+        }
+        canal.close();
+        Files.move(temp, arquivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        canal = FileChannel.open(arquivo, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        linhas = registros.size() + (marca != null ? 1 : 0) + (base != null ? 1 : 0);
+        pendentesFsync = 0;
+    }
+
+    public synchronized void fechar() {
+        if (canal == null) {
+            return;
+        }
+        try {
+            sincroniza(true);
+            canal.close();
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "Falha ao fechar journal " + arquivo, ex);
+        }
+        canal = null;
+    }
+
+    private static final Logger LOG = Logger.getLogger(JournalUpload.class.getName());
+
+}
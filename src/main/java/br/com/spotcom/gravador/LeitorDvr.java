@@ -0,0 +1,354 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.metricas.Metricas;
+import br.com.spotcom.gravador.ts.OrigemTransferivel;
+import br.com.spotcom.gravador.ts.PacoteTs;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leitor único de um dispositivo /dev/dvb/adapterN/dvr0, compartilhado por
+ * todas as gravações do mesmo adapter.
+ * <p>
+ * Uma thread lê o dispositivo para um buffer circular off-heap. Cada consumidor
+ * ({@link Cursor}) mantém sua própria posição de leitura e nunca bloqueia o
+ * leitor: se ficar mais atrasado que o tamanho do buffer ele é descartado
+ * (a leitura falha e o gravador é reiniciado pelo gerenciador) e contabilizado
+ * em {@link #getDescartes()}.
+ */
+public class LeitorDvr {
+
+    // tamanho máximo de cada leitura do dispositivo, múltiplo do pacote TS
+    private static final int TAMANHO_LEITURA = PacoteTs.TAMANHO * 1024;
+
+    private final Path origem;
+    private final int capacidade;
+    private final ByteBuffer anel;
+    private final Set<Cursor> cursores = ConcurrentHashMap.newKeySet();
+    private final Object monitor = new Object();
+    private final AtomicLong descartes = new AtomicLong();
+    private final LongAdder totalLido = new LongAdder();
+
+    // total de bytes já escritos no anel e limite da região sendo escrita
+    private volatile long escrito;
+    private volatile long reservado;
+    private volatile boolean encerrado = true;
+    private volatile int sessao;
+    private volatile ReadableByteChannel canal;
+    private Thread thread;
+
+    public LeitorDvr(Path origem, int capacidade) {
+        this.origem = origem;
+        // múltiplo do pacote e de cada leitura, assim os pacotes não ficam quebrados no fim do anel
+        this.capacidade = Math.max(2, capacidade / TAMANHO_LEITURA) * TAMANHO_LEITURA;
+        this.anel = ByteBuffer.allocateDirect(this.capacidade);
+
+        var metricas = Metricas.global();
+        metricas.contador("gravador_dvr_bytes_total", "Bytes lidos do dispositivo dvr",
+                totalLido::sum, "dvr", origem.toString());
+        metricas.contador("gravador_dvr_descartes_total", "Consumidores atrasados descartados",
+                descartes::get, "dvr", origem.toString());
+        metricas.medidor("gravador_dvr_cursores", "Consumidores abertos do dispositivo dvr",
+                () -> cursores.size(), "dvr", origem.toString());
+    }
+
+    /**
+     * Remove as séries do leitor das métricas; chamado quando o adapter fica
+     * sem gravadores (a função dos cursores mantém o anel alcançável).
+     */
+    public void removeMetricas() {
+        var metricas = Metricas.global();
+        metricas.remove("gravador_dvr_bytes_total", "dvr", origem.toString());
+        metricas.remove("gravador_dvr_descartes_total", "dvr", origem.toString());
+        metricas.remove("gravador_dvr_cursores", "dvr", origem.toString());
+    }
+
+    /**
+     * Abre um novo consumidor a partir da posição atual do stream, iniciando a
+     * leitura do dispositivo se ainda não estiver rodando.
+     */
+    public synchronized Cursor abrirCursor() throws IOException {
+        if (encerrado) {
+            canal = Files.newByteChannel(origem);
+            escrito = 0;
+            reservado = 0;
+            sessao++;
+            encerrado = false;
+            final var proprio = canal;
+            thread = new Thread(() -> executa(proprio), "leitor-" + origem);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long inicio = escrito - (escrito % PacoteTs.TAMANHO);
+        var cursor = new Cursor(inicio);
+        cursores.add(cursor);
+        return cursor;
+    }
+
+    private synchronized void fecharCursor(Cursor cursor) {
+        cursores.remove(cursor);
+        // sem consumidores o dispositivo é liberado
+        if (cursores.isEmpty()) {
+            encerra();
+        }
+    }
+
+    private void encerra() {
+        encerrado = true;
+        if (canal != null) {
+            try {
+                canal.close();
+            } catch (IOException ex) {
+                System.err.println("Falha ao encerrar " + origem + ": " + ex.toString());
+            }
+        }
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    private void executa(ReadableByteChannel proprio) {
+        var escrita = anel.duplicate();
+        try {
+            while (!encerrado && canal == proprio) {
+                long atual = escrito;
+                int pos = (int) (atual % capacidade);
+                // leituras parciais desalinham a posição: não passa do fim do anel
+                int tamanho = Math.min(TAMANHO_LEITURA, capacidade - pos);
+                reservado = atual + tamanho;
+                VarHandle.storeStoreFence();
+
+                escrita.limit(pos + tamanho).position(pos);
+                int n = proprio.read(escrita);
+                if (n < 0) {
+                    break;
+                }
+                escrito = atual + n;
+                totalLido.add(n);
+                synchronized (monitor) {
+                    monitor.notifyAll();
+                }
+            }
+        } catch (IOException ex) {
+            if (!encerrado) {
+                System.err.println(LocalDateTime.now().toString() + " - Falha na leitura de " + origem + ": " + ex.toString());
+            }
+        } finally {
+            synchronized (this) {
+                // só encerra se o leitor não foi reaberto nesse meio tempo
+                if (canal == proprio) {
+                    encerra();
+                }
+            }
+        }
+    }
+
+    public Path getOrigem() {
+        return origem;
+    }
+
+    public int getCapacidade() {
+        return capacidade;
+    }
+
+    public long getBytesLidos() {
+        return escrito;
+    }
+
+    public long getDescartes() {
+        return descartes.get();
+    }
+
+    public int getTotalCursores() {
+        return cursores.size();
+    }
+
+    /**
+     * Consumidor do leitor com posição de leitura própria. Implementa
+     * SeekableByteChannel apenas para ser aceito pelo ChannelInput do Jaffree,
+     * position(long) é ignorado pois o stream é ao vivo. Na captura por FIFO
+     * é consumido por {@link #transferePara(WritableByteChannel)}.
+     */
+    public class Cursor implements SeekableByteChannel, OrigemTransferivel {
+
+        // lido também pelo transbordo (atraso), escrito só pelo consumidor
+        private volatile long lido;
+        private final long inicio;
+        private final int sessaoCursor = sessao;
+        private volatile boolean aberto = true;
+        private boolean descartado;
+
+        private Cursor(long inicio) {
+            this.inicio = inicio;
+            this.lido = inicio;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            long disponivel = aguarda();
+            return disponivel < 0 ? -1 : copia(dst, disponivel);
+        }
+
+        /**
+         * Escreve a região disponível do anel diretamente no destino (uma
+         * única cópia, do buffer off-heap para o kernel).
+         */
+        @Override
+        public long transferePara(WritableByteChannel destino) throws IOException {
+            long disponivel = aguarda();
+            if (disponivel < 0) {
+                return -1;
+            }
+            if (disponivel > capacidade) {
+                descarta();
+            }
+            int n = (int) disponivel;
+            int pos = (int) (lido % capacidade);
+            var regiao = anel.duplicate();
+            regiao.limit(pos + Math.min(n, capacidade - pos)).position(pos);
+            int escritos = 0;
+            while (regiao.hasRemaining()) {
+                escritos += destino.write(regiao);
+                // o leitor alcançou a região que estava sendo escrita
+                VarHandle.loadLoadFence();
+                if (reservado - lido > capacidade) {
+                    descarta();
+                }
+            }
+            lido += escritos;
+            return escritos;
+        }
+
+        /**
+         * Aguarda dados novos no anel.
+         *
+         * @return bytes disponíveis para este cursor, ou -1 no fim do stream.
+         */
+        private long aguarda() throws IOException {
+            while (true) {
+                if (!aberto) {
+                    throw new ClosedChannelException();
+                }
+                if (descartado) {
+                    throw new IOException("Consumidor de " + origem + " descartado por atraso");
+                }
+                // leitor foi reaberto: este cursor pertence a uma sessão encerrada
+                if (sessao != sessaoCursor) {
+                    return -1;
+                }
+                long disponivel = escrito - lido;
+                if (disponivel > 0) {
+                    return disponivel;
+                }
+                if (encerrado) {
+                    return -1;
+                }
+                synchronized (monitor) {
+                    if (escrito == lido && !encerrado && sessao == sessaoCursor) {
+                        try {
+                            monitor.wait(1000);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new ClosedChannelException();
+                        }
+                    }
+                }
+            }
+        }
+
+        private int copia(ByteBuffer dst, long disponivel) throws IOException {
+            if (disponivel > capacidade) {
+                descarta();
+            }
+            int n = (int) Math.min(disponivel, dst.remaining());
+            int pos = (int) (lido % capacidade);
+            int n1 = Math.min(n, capacidade - pos);
+            dst.put(dst.position(), anel, pos, n1);
+            if (n1 < n) {
+                dst.put(dst.position() + n1, anel, 0, n - n1);
+            }
+            // se o leitor começou a sobrescrever a região copiada os dados não são confiáveis
+            VarHandle.loadLoadFence();
+            if (reservado - lido > capacidade) {
+                descarta();
+            }
+            dst.position(dst.position() + n);
+            lido += n;
+            return n;
+        }
+
+        private void descarta() throws IOException {
+            descartado = true;
+            descartes.incrementAndGet();
+            System.out.println(LocalDateTime.now().toString() + " - Consumidor atrasado descartado em " + origem
+                    + " (total " + descartes.get() + ")");
+            throw new IOException("Consumidor de " + origem + " descartado por atraso");
+        }
+
+        /**
+         * @return bytes já lidos do dispositivo que este cursor ainda não
+         * consumiu.
+         */
+        public long getAtraso() {
+            return Math.max(0, escrito - lido);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return lido - inicio;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            // stream ao vivo, não há como reposicionar
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return 0;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return aberto;
+        }
+
+        @Override
+        public void close() {
+            if (!aberto) {
+                return;
+            }
+            aberto = false;
+            fecharCursor(this);
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,96 @@
+package br.com.spotcom.gravador;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket para limitar a taxa de envio (bytes/s). Os bytes são
+ * consumidos antes do envio; quando o saldo fica negativo quem consumiu
+ * dorme o tempo necessário para pagar a dívida. A rajada máxima é de um
+ * segundo de taxa.
+ * <p>
+ * Um limitador pode ter prioridade sobre outro: os bytes que passam por ele
+ * também são debitados (sem espera) do outro, que fica apenas com a banda
+ * que sobrar. A dívida debitada assim é limitada a um segundo de taxa.
+ */
+public class LimitadorBanda {
+
+    private final long taxa;
+    private final LimitadorBanda prioridadeSobre;
+    private double tokens;
+    private long ultimaReposicao = System.nanoTime();
+
+    /**
+     * @param taxa bytes por segundo, 0 ou negativo para ilimitado.
+     */
+    public LimitadorBanda(long taxa) {
+        this(taxa, null);
+    }
+
+    /**
+     * @param taxa bytes por segundo, 0 ou negativo para ilimitado.
+     * @param prioridadeSobre limitador que cede banda a este, ou null.
+     */
+    public LimitadorBanda(long taxa, LimitadorBanda prioridadeSobre) {
+        this.taxa = taxa;
+        this.prioridadeSobre = prioridadeSobre;
+        this.tokens = Math.max(0, taxa);
+    }
+
+    public static LimitadorBanda kbps(long kbps) {
+        return new LimitadorBanda(kbps * 1000 / 8);
+    }
+
+    public static LimitadorBanda kbps(long kbps, LimitadorBanda prioridadeSobre) {
+        return new LimitadorBanda(kbps * 1000 / 8, prioridadeSobre);
+    }
+
+    public boolean isIlimitado() {
+        return taxa <= 0;
+    }
+
+    public long getTaxa() {
+        return taxa;
+    }
+
+    /**
+     * @return maior quantidade de bytes que deve ser enviada de uma só vez.
+     */
+    public long getRajada() {
+        return isIlimitado() ? Long.MAX_VALUE : Math.max(1, taxa);
+    }
+
+    public void consome(long bytes) throws InterruptedException {
+        if (prioridadeSobre != null) {
+            prioridadeSobre.debita(bytes);
+        }
+        if (isIlimitado()) {
+            return;
+        }
+        long espera;
+        synchronized (this) {
+            repoe();
+            tokens -= bytes;
+            espera = tokens < 0 ? (long) (-tokens * 1e9 / taxa) : 0;
+        }
+        if (espera > 0) {
+            TimeUnit.NANOSECONDS.sleep(espera);
+        }
+    }
+
+    private void debita(long bytes) {
+        if (isIlimitado()) {
+            return;
+        }
+        synchronized (this) {
+            repoe();
+            tokens = Math.max(-taxa, tokens - bytes);
+        }
+    }
+
+    private void repoe() {
+        long agora = System.nanoTime();
+        tokens = Math.min(taxa, tokens + (agora - ultimaReposicao) * taxa / 1e9);
+        ultimaReposicao = agora;
+    }
+
+}
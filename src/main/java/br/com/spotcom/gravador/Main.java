@@ -1,8 +1,11 @@
 package br.com.spotcom.gravador;
 
 import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.metricas.Metricas;
+import br.com.spotcom.gravador.metricas.ServidorMetricas;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -24,52 +27,74 @@ public class Main {
             return;
         }
         
-        System.out.println(LocalDateTime.now().toString() + " - Iniciando zap");
-        var zap = new GerenciadorZap(config);
-        var zapThread = new Thread(zap);
-        zapThread.start();
-        
-        // aguarda 5 segundos para zap estar pronto
-        try {
-            Thread.sleep(5000);
-        } catch (InterruptedException ex) {
-            // noop
+        ServidorMetricas servidorMetricas = null;
+        if (config.getPortaMetricas() > 0) {
+            try {
+                servidorMetricas = new ServidorMetricas(config.getEnderecoMetricas(), config.getPortaMetricas(), Metricas.global());
+                servidorMetricas.start();
+                System.out.println(LocalDateTime.now().toString() + " - Métricas em http://" + config.getEnderecoMetricas() + ":" + config.getPortaMetricas() + "/metrics");
+            } catch (IOException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "não foi possível iniciar o endpoint de métricas", ex);
+            }
         }
+        final ServidorMetricas metricas = servidorMetricas;
         
+        var supervisor = new Supervisor();
+
+        System.out.println(LocalDateTime.now().toString() + " - Iniciando zap");
+        var zap = new GerenciadorZap(config, supervisor);
+        zap.start();
+        
+        // cada gravador é iniciado assim que o sintonizador do seu adapter estiver pronto
         System.out.println(LocalDateTime.now().toString() + " - Iniciando gravadores");
-        GerenciadorGravacao gerenciador = new GerenciadorGravacao(config);
+        GerenciadorGravacao gerenciador = new GerenciadorGravacao(config, supervisor, zap);
         gerenciador.start();
         
-        final GerenciadorUpload gerenciadorUpload = new GerenciadorUpload(config);
+        final GerenciadorUpload gerenciadorUpload = new GerenciadorUpload(config, supervisor);
         if (config.isUploadAtivo()) {
             System.out.println(LocalDateTime.now().toString() + " - Iniciando upload");
             gerenciadorUpload.start();
         }
+        supervisor.start();
+        
+        // remove os segmentos mais antigos já enviados quando o disco (ou a cota do destino) enche
+        var retencao = new GerenciadorRetencao(config, config.isUploadAtivo()
+                ? gerenciadorUpload::isEnviado
+                : (destino, hora) -> true);
+        retencao.start();
+        
+        // alterações no config.json são aplicadas sem reiniciar as gravações não afetadas
+        var recarregador = new RecarregadorConfiguracao(Path.of("config.json"), config, gerenciador, gerenciadorUpload);
+        try {
+            recarregador.start();
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "não foi possível acompanhar config.json", ex);
+        }
         
         // shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // sem reinícios a partir daqui
+            recarregador.stop();
+            retencao.stop();
+            supervisor.stop();
             try {
                 gerenciador.stopAndWait(15000);
             } catch (InterruptedException ex) {
                 System.out.println(LocalDateTime.now().toString() + " - " + ex.toString());
             }
             zap.stop();
-            if (zapThread.isAlive()) {
-                try {
-                    zapThread.join(10000);
-                } catch (InterruptedException ex) {
-                    System.out.println(LocalDateTime.now().toString() + " - " + ex.toString());
-                }
-            }
             try {
                 gerenciadorUpload.stopAndWait(5000);
             } catch (InterruptedException ex) {
                 System.out.println(LocalDateTime.now().toString() + " - " + ex.toString());
             }
+            if (metricas != null) {
+                metricas.stop();
+            }
         }));
         
         try {
-            zapThread.join();
+            supervisor.aguardaEncerramento();
         } catch (InterruptedException ex) {
            System.out.println(LocalDateTime.now().toString() + " - " + ex.toString());
         }
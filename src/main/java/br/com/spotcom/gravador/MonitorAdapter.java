@@ -0,0 +1,198 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.metricas.Metricas;
+import br.com.spotcom.gravador.ts.MonitorTs;
+import br.com.spotcom.gravador.ts.PacoteTs;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Acompanha a saúde do stream de um adapter: consome o {@link LeitorDvr} com
+ * um cursor próprio e alimenta um {@link MonitorTs} com o multiplex
+ * completo. As contagens são expostas como métricas.
+ * <p>
+ * {@link #isSemSinal(long)} indica que o adapter não entrega um stream
+ * saudável há mais que o limite configurado (sintonizador sem lock ou leitura
+ * do dvr parada); quem chama decide reiniciar o dvbv5-zap.
+ */
+public class MonitorAdapter {
+
+    private final LeitorDvr leitor;
+    private final int adapter;
+    private final long limiteMillis;
+    private final MonitorTs monitor = new MonitorTs();
+    private final boolean[] pidsRegistrados = new boolean[8192];
+    private volatile boolean encerrado;
+    private volatile LeitorDvr.Cursor cursor;
+    private volatile IntConsumer aoReceberStream;
+    // incrementada a cada sintonia do dvbv5-zap: o cursor aberto antes dela lê o stream anterior
+    private final AtomicInteger sintonia = new AtomicInteger();
+    private Thread thread;
+
+    public MonitorAdapter(LeitorDvr leitor, int adapter, long limiteMillis) {
+        this.leitor = leitor;
+        this.adapter = adapter;
+        this.limiteMillis = limiteMillis;
+
+        var metricas = Metricas.global();
+        var numero = String.valueOf(adapter);
+        metricas.contador("gravador_ts_perdas_sincronismo_total", "Perdas de sincronismo do transport stream",
+                monitor::getPerdasSincronismo, "adapter", numero);
+        metricas.contador("gravador_ts_erros_continuidade_total", "Erros de continuity counter",
+                monitor::getErrosContinuidade, "adapter", numero);
+        metricas.contador("gravador_ts_erros_tei_total", "Pacotes com transport error indicator",
+                monitor::getErrosTei, "adapter", numero);
+        metricas.contador("gravador_ts_lacunas_pcr_total", "Intervalos entre PCRs acima do limite",
+                monitor::getLacunasPcr, "adapter", numero);
+        metricas.contador("gravador_ts_janelas_sem_dados_total", "Janelas de um segundo sem pacotes de um PID ativo",
+                monitor::getJanelasSemDados, "adapter", numero);
+        metricas.medidor("gravador_ts_segundos_sem_sinal", "Segundos desde a última janela saudável do stream",
+                () -> (System.currentTimeMillis() - monitor.getUltimaJanelaSaudavel()) / 1000.0, "adapter", numero);
+    }
+
+    /**
+     * Chamado (na thread do monitor) ao fim de cada janela saudável do
+     * stream, com o número do adapter: indica que o sintonizador está
+     * entregando dados.
+     */
+    public void setAoReceberStream(IntConsumer aoReceberStream) {
+        this.aoReceberStream = aoReceberStream;
+    }
+
+    /**
+     * O dvbv5-zap do adapter foi (re)iniciado: o que já está no anel do
+     * leitor é da sintonia anterior. O cursor é reaberto na posição atual e
+     * só as janelas saudáveis lidas por ele confirmam o stream.
+     */
+    public void novaSintonia() {
+        sintonia.incrementAndGet();
+        var atual = cursor;
+        if (atual != null) {
+            atual.close();
+        }
+    }
+
+    public void start() {
+        encerrado = false;
+        thread = new Thread(this::executa, "monitor-adapter" + adapter);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Encerra o monitor, que sai das métricas (o adapter ficou sem
+     * gravadores ou o serviço está parando).
+     */
+    public void stop() {
+        encerrado = true;
+        var atual = cursor;
+        if (atual != null) {
+            atual.close();
+        }
+        var metricas = Metricas.global();
+        var numero = String.valueOf(adapter);
+        for (var nome : List.of("gravador_ts_perdas_sincronismo_total", "gravador_ts_erros_continuidade_total",
+                "gravador_ts_erros_tei_total", "gravador_ts_lacunas_pcr_total", "gravador_ts_janelas_sem_dados_total",
+                "gravador_ts_segundos_sem_sinal", "gravador_ts_pid_pacotes_total", "gravador_ts_pid_erros_continuidade_total",
+                "gravador_ts_pid_erros_tei_total", "gravador_ts_pid_lacunas_pcr_total", "gravador_ts_pid_janelas_sem_dados_total")) {
+            metricas.remove(nome, "adapter", numero);
+        }
+    }
+
+    public int getAdapter() {
+        return adapter;
+    }
+
+    public MonitorTs getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * @return true se não há uma janela saudável do stream há mais que o
+     * limite configurado.
+     */
+    public boolean isSemSinal(long agora) {
+        return agora - monitor.getUltimaJanelaSaudavel() > limiteMillis;
+    }
+
+    private void executa() {
+        var buffer = ByteBuffer.allocateDirect(PacoteTs.TAMANHO * 1024);
+        long ultimoRegistro = 0;
+        long ultimaSaudavel = monitor.getUltimaJanelaSaudavel();
+        while (!encerrado) {
+            int sintoniaCursor = sintonia.get();
+            try (var atual = leitor.abrirCursor()) {
+                cursor = atual;
+                monitor.reinicia();
+                buffer.clear();
+                while (!encerrado && atual.read(buffer) >= 0) {
+                    buffer.flip();
+                    monitor.analisa(buffer);
+                    buffer.compact();
+
+                    long saudavel = monitor.getUltimaJanelaSaudavel();
+                    if (saudavel != ultimaSaudavel) {
+                        ultimaSaudavel = saudavel;
+                        var callback = aoReceberStream;
+                        if (callback != null && sintoniaCursor == sintonia.get()) {
+                            callback.accept(adapter);
+                        }
+                    }
+
+                    long agora = System.currentTimeMillis();
+                    if (agora - ultimoRegistro >= MonitorTs.JANELA_MS) {
+                        registraPids();
+                        ultimoRegistro = agora;
+                    }
+                }
+            } catch (IOException ex) {
+                if (!encerrado && sintoniaCursor == sintonia.get()) {
+                    System.out.println(LocalDateTime.now().toString() + " - Monitor do adapter " + adapter + ": " + ex.getMessage());
+                }
+            } finally {
+                cursor = null;
+            }
+
+            if (!encerrado && sintoniaCursor == sintonia.get()) {
+                // stream encerrado ou cursor descartado: reabre em seguida
+                try {
+                    TimeUnit.MILLISECONDS.sleep(1000);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Registra as métricas dos PIDs que apareceram no stream.
+     */
+    private void registraPids() {
+        var metricas = Metricas.global();
+        var numero = String.valueOf(adapter);
+        for (int pid = 0; pid < pidsRegistrados.length; pid++) {
+            if (pidsRegistrados[pid] || !monitor.isPresente(pid)) {
+                continue;
+            }
+            pidsRegistrados[pid] = true;
+            final int p = pid;
+            var rotulo = String.valueOf(pid);
+            metricas.contador("gravador_ts_pid_pacotes_total", "Pacotes recebidos por PID",
+                    () -> monitor.getPacotes(p), "adapter", numero, "pid", rotulo);
+            metricas.contador("gravador_ts_pid_erros_continuidade_total", "Erros de continuity counter por PID",
+                    () -> monitor.getErrosContinuidade(p), "adapter", numero, "pid", rotulo);
+            metricas.contador("gravador_ts_pid_erros_tei_total", "Pacotes com transport error indicator por PID",
+                    () -> monitor.getErrosTei(p), "adapter", numero, "pid", rotulo);
+            metricas.contador("gravador_ts_pid_lacunas_pcr_total", "Intervalos entre PCRs acima do limite por PID",
+                    () -> monitor.getLacunasPcr(p), "adapter", numero, "pid", rotulo);
+            metricas.contador("gravador_ts_pid_janelas_sem_dados_total", "Janelas de um segundo sem pacotes do PID",
+                    () -> monitor.getJanelasSemDados(p), "adapter", numero, "pid", rotulo);
+        }
+    }
+
+}
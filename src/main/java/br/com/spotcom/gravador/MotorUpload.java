@@ -0,0 +1,137 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.metricas.Metricas;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Motor de upload único do processo, compartilhado por todos os adapters.
+ * <p>
+ * Usa um só HttpClient (HTTP/2 quando o servidor suporta, senão HTTP/1.1) e
+ * executa os uploads em virtual threads. O número de requisições simultâneas
+ * é limitado globalmente e por adapter.
+ * <p>
+ * As requisições têm duas classes: {@link Classe#RECENTE} (o segmento mais
+ * recente, que os clientes aguardam) e {@link Classe#ATRASADO} (o backlog).
+ * Os atrasados nunca ocupam todas as vagas globais, sobrando sempre uma para
+ * o recente, que também não disputa o limite por adapter. Cada classe tem o
+ * seu {@link LimitadorBanda}; o do recente tem prioridade sobre o dos
+ * atrasados.
+ */
+public class MotorUpload {
+
+    public enum Classe {
+        RECENTE, ATRASADO
+    }
+
+    private final HttpClient client;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore global;
+    private final Semaphore vagasAtrasado;
+    private final LimitadorBanda bandaRecente;
+    private final LimitadorBanda bandaAtrasado;
+    private final Map<Classe, Metricas.Resumo> duracao = new EnumMap<>(Classe.class);
+    private final int limitePorAdapter;
+    private final Map<Adapter, Semaphore> porAdapter = new ConcurrentHashMap<>();
+
+    public MotorUpload(Configuracao configuracao) {
+        this.client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(30))
+                .version(configuracao.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .executor(executor)
+                .build();
+        int simultaneos = configuracao.getUploadsSimultaneos();
+        this.global = new Semaphore(simultaneos, true);
+        this.vagasAtrasado = new Semaphore(Math.max(1, simultaneos - 1), true);
+        this.limitePorAdapter = configuracao.getUploadsPorAdapter();
+        // o recente consome também a banda dos atrasados, que ficam com o que sobrar
+        this.bandaAtrasado = LimitadorBanda.kbps(configuracao.getBandaAtrasado());
+        this.bandaRecente = LimitadorBanda.kbps(configuracao.getBandaRecente(), bandaAtrasado);
+
+        var metricas = Metricas.global();
+        for (var classe : Classe.values()) {
+            duracao.put(classe, metricas.resumo("gravador_upload_requisicao_segundos", "Duração das requisições de upload",
+                    "classe", classe.name().toLowerCase()));
+        }
+        metricas.medidor("gravador_upload_fila", "Requisições de upload aguardando vaga no limite global", () -> global.getQueueLength());
+        metricas.medidor("gravador_upload_ativos", "Requisições de upload em andamento",
+                () -> simultaneos - global.availablePermits());
+    }
+
+    /**
+     * Envia a requisição respeitando os limites de concorrência da classe.
+     * Bloqueia (a virtual thread) enquanto não houver vaga.
+     */
+    public <T> HttpResponse<T> envia(Adapter adapter, Classe classe, HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        if (classe == Classe.RECENTE) {
+            return enviaGlobal(classe, request, handler);
+        }
+        var limiteAdapter = porAdapter.computeIfAbsent(adapter, k -> new Semaphore(limitePorAdapter, true));
+        limiteAdapter.acquire();
+        try {
+            vagasAtrasado.acquire();
+            try {
+                return enviaGlobal(classe, request, handler);
+            } finally {
+                vagasAtrasado.release();
+            }
+        } finally {
+            limiteAdapter.release();
+        }
+    }
+
+    private <T> HttpResponse<T> enviaGlobal(Classe classe, HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        global.acquire();
+        long inicio = System.nanoTime();
+        try {
+            return client.send(request, handler);
+        } finally {
+            duracao.get(classe).registra((System.nanoTime() - inicio) / 1e9);
+            global.release();
+        }
+    }
+
+    public LimitadorBanda getLimitador(Classe classe) {
+        return classe == Classe.RECENTE ? bandaRecente : bandaAtrasado;
+    }
+
+    public Future<?> executa(Runnable tarefa) {
+        return executor.submit(tarefa);
+    }
+
+    /**
+     * Executa a tarefa numa virtual thread; o estágio é completado quando
+     * ela terminar.
+     */
+    public CompletableFuture<Void> executaAsync(Runnable tarefa) {
+        return CompletableFuture.runAsync(tarefa, executor);
+    }
+
+    public void fechar(long timeout) throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return uploads aguardando vaga no limite global.
+     */
+    public int getAguardando() {
+        return global.getQueueLength();
+    }
+
+}
@@ -0,0 +1,60 @@
+package br.com.spotcom.gravador;
+
+/**
+ * Degraus de qualidade da codificação libx264, do configurado (NORMAL) ao
+ * mais leve. Usados pelo {@link ControleQualidade} quando o encoder não
+ * acompanha o tempo real.
+ */
+public enum NivelQualidade {
+
+    NORMAL(null, null, 1),
+    RAPIDO("veryfast", null, 1),
+    LEVE("superfast", 26, 1),
+    MINIMO("ultrafast", 28, 2);
+
+    private final String preset;
+    private final Integer crf;
+    private final int divisorEscala;
+
+    NivelQualidade(String preset, Integer crf, int divisorEscala) {
+        this.preset = preset;
+        this.crf = crf;
+        this.divisorEscala = divisorEscala;
+    }
+
+    /**
+     * @return preset do libx264, ou null para o padrão.
+     */
+    public String getPreset() {
+        return preset;
+    }
+
+    /**
+     * @return crf do libx264, ou null para o padrão.
+     */
+    public Integer getCrf() {
+        return crf;
+    }
+
+    /**
+     * @return divisor aplicado à largura e à altura da saída.
+     */
+    public int getDivisorEscala() {
+        return divisorEscala;
+    }
+
+    public NivelQualidade abaixo() {
+        return this == MINIMO ? MINIMO : values()[ordinal() + 1];
+    }
+
+    public NivelQualidade acima() {
+        return this == NORMAL ? NORMAL : values()[ordinal() - 1];
+    }
+
+    @Override
+    public String toString() {
+        return name() + " (preset " + (preset != null ? preset : "padrão") + ", crf " + (crf != null ? crf : "padrão")
+                + (divisorEscala > 1 ? ", resolução 1/" + divisorEscala : "") + ")";
+    }
+
+}
@@ -0,0 +1,144 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.config.Configuracao;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.commons.configuration.ConfigurationException;
+
+/**
+ * Recarrega o config.json quando ele é alterado, sem reiniciar o processo.
+ * <p>
+ * A nova configuração é comparada saída a saída com a atual
+ * ({@link Configuracao#aplica(Configuracao)}): só são encerrados, iniciados
+ * ou reiniciados os dvbv5-zap, gravadores e uploads cujas configurações
+ * mudaram; os demais continuam gravando. Uma configuração inválida é
+ * ignorada e a atual é mantida.
+ */
+public class RecarregadorConfiguracao {
+
+    // editores gravam o arquivo em várias etapas: aguarda a última
+    private static final long ESPERA_MS = 500;
+
+    private final Path arquivo;
+    private final Configuracao configuracao;
+    private final GerenciadorGravacao gravacao;
+    private final GerenciadorUpload upload;
+    private WatchService watchService;
+    private byte[] conteudo;
+
+    public RecarregadorConfiguracao(Path arquivo, Configuracao configuracao, GerenciadorGravacao gravacao, GerenciadorUpload upload) {
+        this.arquivo = arquivo.toAbsolutePath();
+        this.configuracao = configuracao;
+        this.gravacao = gravacao;
+        this.upload = upload;
+    }
+
+    public void start() throws IOException {
+        conteudo = Files.readAllBytes(arquivo);
+        watchService = arquivo.getFileSystem().newWatchService();
+        // observa o diretório: editores costumam substituir o arquivo (rename)
+        arquivo.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        var thread = new Thread(this::acompanha, "config");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                // noop
+            }
+        }
+    }
+
+    private void acompanha() {
+        try {
+            while (true) {
+                var key = watchService.take();
+                boolean alterado = key.pollEvents().stream()
+                        .anyMatch(e -> e.context() instanceof Path p && p.equals(arquivo.getFileName()));
+                key.reset();
+                if (!alterado) {
+                    continue;
+                }
+                // agrupa os eventos seguintes
+                while ((key = watchService.poll(ESPERA_MS, TimeUnit.MILLISECONDS)) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                recarrega();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException ex) {
+            // encerrado
+        } catch (RuntimeException ex) {
+            LOG.log(Level.SEVERE, "Falha ao acompanhar " + arquivo, ex);
+        }
+    }
+
+    /**
+     * Lê o arquivo e aplica as alterações.
+     */
+    public synchronized void recarrega() {
+        Configuracao nova;
+        try {
+            var lido = Files.readAllBytes(arquivo);
+            if (Arrays.equals(lido, conteudo)) {
+                return;
+            }
+            conteudo = lido;
+            nova = Configuracao.load(arquivo.toFile());
+        } catch (IOException | ConfigurationException | RuntimeException ex) {
+            System.out.println(LocalDateTime.now().toString() + " - Configuração inválida, mantida a anterior: " + ex.getMessage());
+            return;
+        }
+
+        Configuracao.Diferenca diferenca;
+        try {
+            diferenca = configuracao.aplica(nova);
+        } catch (IllegalArgumentException ex) {
+            System.out.println(LocalDateTime.now().toString() + " - Configuração não aplicada: " + ex.getMessage());
+            return;
+        }
+        if (!diferenca.requerReinicio().isEmpty()) {
+            System.out.println(LocalDateTime.now().toString() + " - Alterações que só valem após reiniciar: "
+                    + String.join(", ", diferenca.requerReinicio()));
+        }
+        if (diferenca.prioridadeAlterada()) {
+            // sem gravadores alterados os núcleos não seriam divididos novamente
+            gravacao.redistribuiNucleos();
+        }
+        if (diferenca.isVazia()) {
+            System.out.println(LocalDateTime.now().toString() + " - Configuração recarregada, nenhuma gravação alterada");
+            return;
+        }
+        System.out.println(LocalDateTime.now().toString() + " - Configuração recarregada: gravações -" + destinos(diferenca.gravacaoRemovida())
+                + " +" + destinos(diferenca.gravacaoAdicionada()) + ", uploads -" + destinos(diferenca.uploadRemovido())
+                + " +" + destinos(diferenca.uploadAdicionado()));
+
+        gravacao.aplica(diferenca.gravacaoRemovida(), diferenca.gravacaoAdicionada());
+        upload.aplica(diferenca.uploadRemovido(), diferenca.uploadAdicionado());
+    }
+
+    private static String destinos(List<Adapter> adapters) {
+        return adapters.stream()
+                .map(e -> e.getDestino().getFileName().toString())
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    private static final Logger LOG = Logger.getLogger(RecarregadorConfiguracao.class.getName());
+
+}
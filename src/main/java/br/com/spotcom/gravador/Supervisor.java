@@ -0,0 +1,320 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.metricas.Metricas;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Supervisor dos processos e tarefas do gravador (dvbv5-zap, ffmpeg,
+ * uploads), orientado a eventos.
+ * <p>
+ * Cada filho é iniciado por uma {@link Tarefa} que devolve o estágio
+ * completado quando o filho termina ({@code Process.onExit()},
+ * {@code FFmpegResultFuture.toCompletableFuture()}...). Ao terminar, o filho
+ * é reiniciado após um backoff exponencial com jitter; depois de
+ * {@value #LIMITE_FALHAS} falhas seguidas o circuito abre e só há uma nova
+ * tentativa após {@value #PAUSA_CIRCUITO_MS} ms. Um filho que rodou por mais
+ * de {@value #ESTAVEL_MS} ms zera a contagem de falhas.
+ * <p>
+ * Um filho só é iniciado quando todas as suas dependências estão prontas
+ * (por exemplo, o gravador de um adapter depende do zap do adapter). Todo o
+ * estado é alterado numa única thread, acordada apenas pelos eventos e pelos
+ * agendamentos: não há varredura periódica.
+ */
+public class Supervisor {
+
+    static final long BACKOFF_INICIAL_MS = 1000;
+    static final long BACKOFF_MAXIMO_MS = 5 * 60 * 1000;
+    static final long ESTAVEL_MS = 60 * 1000;
+    static final int LIMITE_FALHAS = 5;
+    static final long PAUSA_CIRCUITO_MS = 10 * 60 * 1000;
+
+    /**
+     * Inicia o filho e devolve o estágio completado quando ele terminar.
+     */
+    @FunctionalInterface
+    public interface Tarefa {
+
+        CompletionStage<?> inicia() throws Exception;
+
+    }
+
+    public enum Estado {
+        AGUARDANDO, RODANDO, BACKOFF, CIRCUITO_ABERTO, PARADO
+    }
+
+    public final class Filho {
+
+        private final String nome;
+        private final Tarefa tarefa;
+        private final List<Filho> dependencias;
+        private final boolean confirmaPronto;
+        private final List<Filho> dependentes = new ArrayList<>();
+        private volatile Estado estado = Estado.AGUARDANDO;
+        private volatile boolean pronto;
+        private volatile int falhasSeguidas;
+        private long inicio;
+        private int geracao;
+        private final Metricas.Contador falhas;
+
+        private Filho(String nome, Tarefa tarefa, boolean confirmaPronto, List<Filho> dependencias) {
+            this.nome = nome;
+            this.tarefa = tarefa;
+            this.confirmaPronto = confirmaPronto;
+            this.dependencias = dependencias;
+            this.falhas = Metricas.global().contador("gravador_supervisor_falhas_total", "Términos e falhas de início dos filhos do supervisor", "filho", nome);
+            Metricas.global().medidor("gravador_supervisor_circuito_aberto", "1 se o circuito do filho está aberto",
+                    () -> estado == Estado.CIRCUITO_ABERTO ? 1 : 0, "filho", nome);
+        }
+
+        public String getNome() {
+            return nome;
+        }
+
+        public Estado getEstado() {
+            return estado;
+        }
+
+        /**
+         * @return true se está rodando e pronto para os dependentes.
+         */
+        public boolean isPronto() {
+            return pronto;
+        }
+
+        public int getFalhasSeguidas() {
+            return falhasSeguidas;
+        }
+
+        private boolean dependenciasProntas() {
+            return dependencias.stream().allMatch(Filho::isPronto);
+        }
+
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "supervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Filho> filhos = new ArrayList<>();
+    private final CountDownLatch encerrado = new CountDownLatch(1);
+    private volatile boolean parando;
+    private volatile Consumer<Filho> aoAbrirCircuito;
+    private boolean iniciado;
+
+    /**
+     * Adiciona um filho, pronto assim que iniciado.
+     */
+    public Filho adiciona(String nome, Tarefa tarefa, Filho... dependencias) {
+        return adiciona(nome, tarefa, false, dependencias);
+    }
+
+    /**
+     * Adiciona um filho.
+     *
+     * @param confirmaPronto se true o filho só fica pronto (liberando os
+     * dependentes) quando {@link #pronto(Filho)} for chamado.
+     */
+    public Filho adiciona(String nome, Tarefa tarefa, boolean confirmaPronto, Filho... dependencias) {
+        var filho = new Filho(nome, tarefa, confirmaPronto, List.of(dependencias));
+        executor.execute(() -> {
+            filhos.add(filho);
+            for (var dependencia : dependencias) {
+                dependencia.dependentes.add(filho);
+            }
+            if (iniciado) {
+                tentaIniciar(filho);
+            }
+        });
+        return filho;
+    }
+
+    /**
+     * Remove o filho: não é mais iniciado nem reiniciado. Quem o criou
+     * encerra o que estiver rodando; os dependentes devem ser removidos
+     * também.
+     */
+    public void remove(Filho filho) {
+        if (parando) {
+            return;
+        }
+        // nesta thread: um filho novo com o mesmo nome pode ser adicionado logo em seguida
+        Metricas.global().remove("gravador_supervisor_falhas_total", "filho", filho.nome);
+        Metricas.global().remove("gravador_supervisor_circuito_aberto", "filho", filho.nome);
+        executor.execute(() -> {
+            filho.estado = Estado.PARADO;
+            filho.pronto = false;
+            // descarta términos e reinícios já agendados
+            filho.geracao++;
+            filhos.remove(filho);
+            filho.dependencias.forEach(e -> e.dependentes.remove(filho));
+        });
+    }
+
+    /**
+     * Chamado, na thread do supervisor, quando o circuito de um filho abre
+     * (falhas seguidas).
+     */
+    public void setAoAbrirCircuito(Consumer<Filho> aoAbrirCircuito) {
+        this.aoAbrirCircuito = aoAbrirCircuito;
+    }
+
+    /**
+     * Inicia os filhos cujas dependências estão prontas; os demais são
+     * iniciados quando elas ficarem prontas.
+     */
+    public void start() {
+        executor.execute(() -> {
+            iniciado = true;
+            List.copyOf(filhos).forEach(this::tentaIniciar);
+        });
+    }
+
+    /**
+     * Confirma que o filho está pronto (por exemplo, o sintonizador obteve
+     * lock), liberando os dependentes.
+     */
+    public void pronto(Filho filho) {
+        executor.execute(() -> {
+            if (filho.estado == Estado.RODANDO && !filho.pronto) {
+                filho.pronto = true;
+                List.copyOf(filho.dependentes).forEach(this::tentaIniciar);
+            }
+        });
+    }
+
+    /**
+     * O filho continua rodando mas deixou de estar pronto: novos inícios dos
+     * dependentes aguardam.
+     */
+    public void naoPronto(Filho filho) {
+        executor.execute(() -> filho.pronto = false);
+    }
+
+    public ScheduledFuture<?> agenda(Runnable acao, long atraso, TimeUnit unidade) {
+        return executor.schedule(protege(acao), atraso, unidade);
+    }
+
+    public ScheduledFuture<?> agendaPeriodico(Runnable acao, long periodo, TimeUnit unidade) {
+        return executor.scheduleWithFixedDelay(protege(acao), periodo, periodo, unidade);
+    }
+
+    /**
+     * Para de reiniciar filhos. Os filhos são encerrados por quem os criou.
+     */
+    public void stop() {
+        parando = true;
+        executor.shutdownNow();
+        encerrado.countDown();
+    }
+
+    public boolean isParando() {
+        return parando;
+    }
+
+    public void aguardaEncerramento() throws InterruptedException {
+        encerrado.await();
+    }
+
+    private void tentaIniciar(Filho filho) {
+        if (parando || filho.estado != Estado.AGUARDANDO) {
+            return;
+        }
+        if (!filho.dependenciasProntas()) {
+            // será chamado novamente quando a dependência ficar pronta
+            return;
+        }
+        inicia(filho);
+    }
+
+    private void inicia(Filho filho) {
+        int geracao = ++filho.geracao;
+        filho.inicio = System.currentTimeMillis();
+        CompletionStage<?> termino;
+        try {
+            termino = filho.tarefa.inicia();
+        } catch (Exception | Error ex) {
+            LOG.log(Level.SEVERE, "Falha ao iniciar " + filho.nome, ex);
+            terminou(filho, geracao);
+            return;
+        }
+        filho.estado = Estado.RODANDO;
+        if (!filho.confirmaPronto) {
+            filho.pronto = true;
+            List.copyOf(filho.dependentes).forEach(this::tentaIniciar);
+        }
+        termino.whenComplete((r, ex) -> {
+            if (!parando) {
+                executor.execute(() -> terminou(filho, geracao));
+            }
+        });
+    }
+
+    private void terminou(Filho filho, int geracao) {
+        if (parando || geracao != filho.geracao) {
+            return;
+        }
+        filho.pronto = false;
+        filho.falhas.incrementa();
+        long duracao = System.currentTimeMillis() - filho.inicio;
+        if (duracao >= ESTAVEL_MS) {
+            filho.falhasSeguidas = 0;
+        }
+        int falhas = ++filho.falhasSeguidas;
+
+        long atraso;
+        if (falhas >= LIMITE_FALHAS) {
+            filho.estado = Estado.CIRCUITO_ABERTO;
+            atraso = PAUSA_CIRCUITO_MS;
+            System.out.println(LocalDateTime.now().toString() + " - " + filho.nome + " falhou " + falhas
+                    + " vezes seguidas, nova tentativa em " + atraso / 1000 + " s");
+            var callback = aoAbrirCircuito;
+            if (callback != null) {
+                protege(() -> callback.accept(filho)).run();
+            }
+        } else {
+            filho.estado = Estado.BACKOFF;
+            atraso = backoff(falhas);
+            System.out.println(LocalDateTime.now().toString() + " - " + filho.nome + " terminou, reiniciando em " + atraso + " ms");
+        }
+        executor.schedule(() -> {
+            if (filho.geracao == geracao) {
+                filho.estado = Estado.AGUARDANDO;
+                tentaIniciar(filho);
+            }
+        }, atraso, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Backoff exponencial com "equal jitter": metade fixa, metade aleatória.
+     */
+    static long backoff(int falhas) {
+        long base = Math.min(BACKOFF_MAXIMO_MS, BACKOFF_INICIAL_MS << Math.min(falhas - 1, 20));
+        return base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+    }
+
+    private static Runnable protege(Runnable acao) {
+        return () -> {
+            try {
+                acao.run();
+            } catch (RuntimeException ex) {
+                LOG.log(Level.SEVERE, ex.toString(), ex);
+            }
+        };
+    }
+
+    private static final Logger LOG = Logger.getLogger(Supervisor.class.getName());
+
+}
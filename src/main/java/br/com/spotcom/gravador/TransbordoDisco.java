@@ -0,0 +1,295 @@
+package br.com.spotcom.gravador;
+
+import br.com.spotcom.gravador.metricas.Metricas;
+import br.com.spotcom.gravador.ts.OrigemTransferivel;
+import br.com.spotcom.gravador.ts.PacoteTs;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Buffer de jitter entre o {@link LeitorDvr} e o ffmpeg, transbordando para
+ * um arquivo pré-alocado.
+ * <p>
+ * Enquanto o ffmpeg acompanha o stream ele lê direto do cursor (o anel do
+ * leitor é o estágio em memória). Quando o atraso do cursor passa de um
+ * quarto do anel (encoder mais lento que o tempo real), uma thread própria
+ * passa a drenar o cursor para o arquivo, circular, e o ffmpeg lê do arquivo
+ * até alcançá-lo; então volta a ler do cursor. Assim o cursor não é
+ * descartado por atraso e nenhum dado da transmissão é perdido, desde que o
+ * atraso caiba no arquivo.
+ */
+public class TransbordoDisco implements SeekableByteChannel, OrigemTransferivel {
+
+    private static final long INTERVALO_MS = 20;
+    // ~1 MB, múltiplo do tamanho do pacote TS
+    private static final int TAMANHO_BLOCO = PacoteTs.TAMANHO * 5577;
+
+    private final LeitorDvr.Cursor cursor;
+    private final Path caminho;
+    private final FileChannel arquivo;
+    private final long capacidade;
+    private final long limiar;
+    // quem lê o cursor: o consumidor ou a thread de transbordo, nunca os dois
+    private final ReentrantLock leitura = new ReentrantLock();
+    private final ByteBuffer bloco = ByteBuffer.allocateDirect(TAMANHO_BLOCO);
+    private final ByteBuffer blocoConsumidor = ByteBuffer.allocateDirect(TAMANHO_BLOCO);
+    private final Metricas.Contador transbordados;
+    private final Metricas.Contador cheio;
+    private final String[] rotulos;
+    private final Thread thread;
+
+    // total de bytes gravados no arquivo e já entregues ao consumidor
+    private volatile long gravado;
+    private volatile long lido;
+    private long posicao;
+    private boolean avisadoCheio;
+    private volatile boolean aberto = true;
+    // funções das métricas, removidas no close somente se ainda registradas
+    private final DoubleSupplier ocupacao = () -> gravado - lido;
+    private final DoubleSupplier atraso;
+
+    /**
+     * @param capacidade tamanho do arquivo, em bytes; é criado (preenchido)
+     * na primeira vez e reaproveitado nos reinícios seguintes.
+     * @param capacidadeAnel capacidade do anel do leitor, define o atraso a
+     * partir do qual o cursor é drenado para o arquivo.
+     */
+    public TransbordoDisco(LeitorDvr.Cursor cursor, Path caminho, long capacidade, int capacidadeAnel, String... rotulos) throws IOException {
+        this.cursor = cursor;
+        this.caminho = caminho;
+        this.capacidade = capacidade / PacoteTs.TAMANHO * PacoteTs.TAMANHO;
+        this.limiar = capacidadeAnel / 4;
+        this.arquivo = FileChannel.open(caminho, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            preAloca();
+        } catch (IOException ex) {
+            arquivo.close();
+            throw ex;
+        }
+
+        var metricas = Metricas.global();
+        this.rotulos = rotulos;
+        this.transbordados = metricas.contador("gravador_transbordo_bytes_total", "Bytes desviados para o arquivo de transbordo", rotulos);
+        this.cheio = metricas.contador("gravador_transbordo_cheio_total", "Vezes que o arquivo de transbordo encheu", rotulos);
+        this.atraso = cursor::getAtraso;
+        metricas.medidor("gravador_transbordo_ocupacao_bytes", "Bytes no arquivo de transbordo aguardando o ffmpeg",
+                ocupacao, rotulos);
+        metricas.medidor("gravador_dvr_atraso_bytes", "Bytes do anel do leitor ainda não lidos pelo gravador",
+                atraso, rotulos);
+
+        this.thread = new Thread(this::executa, "transbordo-" + caminho.getParent().getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Reserva o espaço em disco escrevendo zeros (um arquivo esparso poderia
+     * não ter espaço quando fosse preciso).
+     */
+    private void preAloca() throws IOException {
+        if (arquivo.size() == capacidade) {
+            return;
+        }
+        System.out.println(LocalDateTime.now().toString() + " - Criando arquivo de transbordo " + caminho + " ("
+                + Math.round(capacidade / (1024.0 * 1024)) + " MB)");
+        arquivo.truncate(0);
+        var zeros = ByteBuffer.allocateDirect(TAMANHO_BLOCO);
+        long pos = 0;
+        while (pos < capacidade) {
+            zeros.clear().limit((int) Math.min(TAMANHO_BLOCO, capacidade - pos));
+            pos += arquivo.write(zeros, pos);
+        }
+        arquivo.force(false);
+    }
+
+    private void executa() {
+        try {
+            while (aberto) {
+                // enquanto houver dados no arquivo o consumidor não lê o cursor
+                if ((cursor.getAtraso() > limiar || gravado > lido) && leitura.tryLock()) {
+                    try {
+                        transborda();
+                    } finally {
+                        leitura.unlock();
+                    }
+                }
+                TimeUnit.MILLISECONDS.sleep(INTERVALO_MS);
+            }
+        } catch (InterruptedException | ClosedChannelException ex) {
+            // encerrado
+        } catch (IOException ex) {
+            if (aberto) {
+                System.out.println(LocalDateTime.now().toString() + " - Falha no transbordo " + caminho + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Drena o cursor para o arquivo enquanto houver atraso e espaço.
+     */
+    private void transborda() throws IOException {
+        while (aberto && cursor.getAtraso() > 0) {
+            long livre = capacidade - (gravado - lido);
+            if (livre < PacoteTs.TAMANHO) {
+                if (!avisadoCheio) {
+                    avisadoCheio = true;
+                    cheio.incrementa();
+                    System.out.println(LocalDateTime.now().toString() + " - Arquivo de transbordo " + caminho + " cheio");
+                }
+                return;
+            }
+            avisadoCheio = false;
+            bloco.clear().limit((int) Math.min(TAMANHO_BLOCO, livre));
+            int n = cursor.read(bloco);
+            if (n <= 0) {
+                return;
+            }
+            bloco.flip();
+            long pos = gravado % capacidade;
+            int contiguo = (int) Math.min(n, capacidade - pos);
+            bloco.limit(contiguo);
+            escreve(bloco, pos);
+            bloco.limit(n);
+            escreve(bloco, 0);
+            gravado += n;
+            transbordados.soma(n);
+        }
+    }
+
+    private void escreve(ByteBuffer origem, long pos) throws IOException {
+        while (origem.hasRemaining()) {
+            pos += arquivo.write(origem, pos);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            verificaAberto();
+            long disponivel = gravado - lido;
+            if (disponivel > 0) {
+                long pos = lido % capacidade;
+                int n = (int) Math.min(Math.min(disponivel, capacidade - pos), dst.remaining());
+                var parte = dst.slice(dst.position(), n);
+                while (parte.hasRemaining()) {
+                    arquivo.read(parte, pos + parte.position());
+                }
+                dst.position(dst.position() + n);
+                lido += n;
+                posicao += n;
+                return n;
+            }
+            leitura.lock();
+            try {
+                // a thread de transbordo pode ter gravado nesse meio tempo
+                if (gravado > lido) {
+                    continue;
+                }
+                int n = cursor.read(dst);
+                if (n > 0) {
+                    posicao += n;
+                }
+                return n;
+            } finally {
+                leitura.unlock();
+            }
+        }
+    }
+
+    /**
+     * Do arquivo, entrega ao destino com transferTo (sem passar pela JVM); do
+     * cursor, por um bloco próprio, para não bloquear o transbordo enquanto
+     * o destino (ffmpeg) não lê.
+     */
+    @Override
+    public long transferePara(WritableByteChannel destino) throws IOException {
+        verificaAberto();
+        long disponivel = gravado - lido;
+        if (disponivel > 0) {
+            long pos = lido % capacidade;
+            long n = arquivo.transferTo(pos, Math.min(disponivel, capacidade - pos), destino);
+            lido += n;
+            posicao += n;
+            return n;
+        }
+        blocoConsumidor.clear();
+        int n = read(blocoConsumidor);
+        if (n < 0) {
+            return -1;
+        }
+        blocoConsumidor.flip();
+        while (blocoConsumidor.hasRemaining()) {
+            destino.write(blocoConsumidor);
+        }
+        return n;
+    }
+
+    private void verificaAberto() throws ClosedChannelException {
+        if (!aberto) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return posicao;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        // stream ao vivo, não há como reposicionar
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return 0;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return aberto;
+    }
+
+    /**
+     * Descarta o que ainda estava no arquivo (o gravador é reiniciado a
+     * partir do momento atual) e fecha o cursor.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!aberto) {
+            return;
+        }
+        aberto = false;
+        thread.interrupt();
+        cursor.close();
+        arquivo.close();
+        // as funções mantêm este transbordo e o cursor alcançáveis; num reinício o transbordo
+        // do novo ffmpeg pode já ter registrado as suas com os mesmos rótulos
+        var metricas = Metricas.global();
+        metricas.removeSe("gravador_transbordo_ocupacao_bytes", ocupacao, rotulos);
+        metricas.removeSe("gravador_dvr_atraso_bytes", atraso, rotulos);
+    }
+
+}
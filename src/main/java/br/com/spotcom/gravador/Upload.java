@@ -2,28 +2,28 @@ package br.com.spotcom.gravador;
 
 import br.com.spotcom.gravador.config.Adapter;
 import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.metricas.Metricas;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
-import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.Month;
 import java.time.format.DateTimeFormatter;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 /**
  *
@@ -31,47 +31,156 @@ import java.util.regex.Pattern;
  */
 public class Upload implements Runnable {
 
+    // tamanho de cada intervalo enviado no upload retomável
+    private static final long TAMANHO_BLOCO = 8L * 1024 * 1024;
+    // intervalo entre os relatórios do backlog
+    private static final long INTERVALO_RELATORIO = 60000;
+    // intervalo entre as limpezas do journal (registros de segmentos removidos)
+    private static final long INTERVALO_LIMPEZA = 600000;
+
     private final Adapter adapter;
     private final Configuracao configuracao;
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
-    private final HttpClient client;
+    private final MotorUpload motor;
+    private final IndiceSegmentos indice;
+    private final JournalUpload journal;
+    // segmentos atrasados sendo enviados em paralelo
+    private final Map<LocalDateTime, Future<?>> atrasados = new ConcurrentHashMap<>();
+    private final LongAdder bytesAtrasados = new LongAdder();
+    private final Map<MotorUpload.Classe, Metricas.Resumo> latencia = new EnumMap<>(MotorUpload.Classe.class);
+    private final Metricas.Contador falhas;
+    // thread que executa run(), para interrompe()
+    private Thread thread;
+    // último segmento já examinado em ordem; falhas anteriores a ele são retentadas pelo journal
+    private LocalDateTime cursor;
+    private boolean cursorIniciado;
+    private long ultimoRelatorio = System.currentTimeMillis();
+    private long ultimaLimpeza;
+    private long bytesUltimoRelatorio;
+    private double taxaAtrasados;
+    private volatile int backlogSegmentos;
+    private volatile long backlogBytes;
+    private volatile long estimativaBacklog = -1;
 
-    public Upload(Adapter adapter, Configuracao configuracao) {
+    public Upload(Adapter adapter, Configuracao configuracao, MotorUpload motor) {
         this.adapter = adapter;
         this.configuracao = configuracao;
-        this.client = HttpClient.newBuilder()
-                .followRedirects(HttpClient.Redirect.NORMAL)
-                .connectTimeout(Duration.ofSeconds(30))
-                .version(HttpClient.Version.HTTP_1_1)
-                .build();
+        this.motor = motor;
+        this.indice = new IndiceSegmentos(adapter.getDestino());
+        this.journal = new JournalUpload(adapter.getDestino());
+
+        var metricas = Metricas.global();
+        var rotulos = Metricas.rotulos(adapter);
+        indice.setLatenciaFechamento(metricas.resumo("gravador_segmento_fechamento_segundos",
+                "Latência entre o fechamento do segmento e sua detecção pelo upload", rotulos));
+        metricas.medidor("gravador_upload_backlog_segmentos", "Segmentos fechados ainda não enviados", () -> backlogSegmentos, rotulos);
+        metricas.medidor("gravador_upload_backlog_bytes", "Bytes dos segmentos fechados ainda não enviados", () -> backlogBytes, rotulos);
+        metricas.medidor("gravador_upload_backlog_estimativa_segundos", "Tempo estimado para enviar o backlog (-1 se indeterminado)",
+                () -> estimativaBacklog < 0 ? -1 : estimativaBacklog / 1000.0, rotulos);
+        metricas.medidor("gravador_upload_atrasados_enviando", "Segmentos atrasados sendo enviados", () -> atrasados.size(), rotulos);
+        this.falhas = metricas.contador("gravador_upload_falhas_total", "Segmentos cujo envio falhou", rotulos);
+        for (var classe : MotorUpload.Classe.values()) {
+            latencia.put(classe, metricas.resumo("gravador_upload_latencia_segundos",
+                    "Latência entre a última gravação do segmento e a confirmação do servidor",
+                    Metricas.rotulos(adapter, "classe", classe.name().toLowerCase())));
+        }
     }
     
+    /**
+     * O segmento fechado mais recente é sempre enviado primeiro, nesta
+     * thread; os atrasados (backlog) são enviados em paralelo, até o limite
+     * de uploads por adapter, com a banda que sobrar.
+     */
     @Override
     public void run() {
-        LocalDateTime ultimoArquivoEnviado = null;
+        synchronized (this) {
+            thread = Thread.currentThread();
+        }
+        try {
+            executa();
+        } finally {
+            synchronized (this) {
+                thread = null;
+                // interrupção que chegou depois do fim não vale para a próxima tarefa do executor
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Interrompe a thread do upload já encerrado com {@link #stop()} que
+     * não termina (ex.: bloqueado num envio).
+     */
+    public synchronized void interrompe() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void executa() {
+        UploadAoVivo aoVivo = null;
         
-        var dir = adapter.getDestino();
         while (!isShutdown()) {
             try {             
-                // recupera status da API (horário do último arquivo recebido)
-                if (ultimoArquivoEnviado == null) {
-                    ultimoArquivoEnviado = getUltimoArquivoRecebido();
-                }
+                // varre o diretório uma única vez, depois o índice é atualizado por eventos
+                indice.iniciar();
+                long versaoIndice = indice.getVersao();
                 
-                // seleciona próximo arquivo para envio após horário do último enviado (se nulo retornará o primeiro disponível)
-                Path proximoArquivoEnvio = procuraProximoArquivo(dir, ultimoArquivoEnviado);
-                                
-                if (proximoArquivoEnvio == null) {
-                    // ainda não existe arquivo disponível para envio, aguarda 5 segundos
-                    TimeUnit.MILLISECONDS.sleep(5000);
+                // o progresso é mantido no journal local, o servidor só é consultado para iniciar um journal novo
+                iniciaJournal();
+                
+                long agora = System.currentTimeMillis();
+                Path recente = procuraRecente(agora);
+                despachaAtrasados(agora, recente);
+                relataBacklog(agora);
+                limpaJournal(agora);
+                
+                if (recente != null) {
+                    LocalDateTime horaArquivo = IndiceSegmentos.parseHoraArquivo(recente);
+                    journal.enviando(horaArquivo);
+                    try {
+                        boolean enviado;
+                        if (aoVivo != null && aoVivo.getArquivo().equals(recente)) {
+                            // segmento enviado ao vivo foi fechado: envia os anexos, o restante e finaliza
+                            enviado = enviaAnexos(recente, horaArquivo, MotorUpload.Classe.RECENTE);
+                            try {
+                                if (enviado) {
+                                    aoVivo.finaliza();
+                                }
+                            } catch (IOException ex) {
+                                LOG.log(Level.SEVERE, "Falha ao finalizar envio ao vivo, enviando arquivo completo", ex);
+                                enviado = upload(recente, horaArquivo, MotorUpload.Classe.RECENTE);
+                            }
+                            aoVivo = null;
+                        } else {
+                            // efetua upload do arquivo
+                            enviado = upload(recente, horaArquivo, MotorUpload.Classe.RECENTE);
+                        }
+                        registraResultado(recente, horaArquivo, MotorUpload.Classe.RECENTE, enviado);
+                    } catch (IOException | RuntimeException ex) {
+                        registraResultado(recente, horaArquivo, MotorUpload.Classe.RECENTE, false);
+                        throw ex;
+                    }
+                } else if (adapter.isAoVivo() && procuraArquivoAtual() != null) {
+                    // em dia com o envio: transmite os fragmentos do segmento em gravação
+                    Path atual = procuraArquivoAtual();
+                    if (aoVivo == null || !aoVivo.getArquivo().equals(atual)) {
+                        URI uri = getEndPointURI(getEndpointArquivo(atual, IndiceSegmentos.parseHoraArquivo(atual)));
+                        var envio = new EnvioRetomavel(motor, adapter, MotorUpload.Classe.RECENTE, uri, atual);
+                        envio.consultaOffset();
+                        aoVivo = new UploadAoVivo(envio, adapter.getLatenciaAlvo());
+                    }
+                    aoVivo.enviaFragmentos();
+                    journal.sincroniza(false);
+                    TimeUnit.MILLISECONDS.sleep(adapter.getLatenciaAlvo() / 4);
                 } else {
-                    LocalDateTime horaArquivo = parseHoraArquivo(proximoArquivoEnvio);
-                    
-                    // efetua upload do arquivo
-                    upload(proximoArquivoEnvio, horaArquivo);
-
-                    // atualiza horário do último arquivo enviado
-                    ultimoArquivoEnviado = horaArquivo;
+                    // aguarda um novo segmento, a próxima retentativa de uma falha ou o fim de um atrasado
+                    journal.sincroniza(true);
+                    long espera = Math.max(1000, Math.min(60000, journal.proximaTentativa() - agora));
+                    if (!atrasados.isEmpty()) {
+                        espera = 1000;
+                    }
+                    indice.aguardaAlteracao(versaoIndice, espera, TimeUnit.MILLISECONDS);
                 }
             } catch (InterruptedException ex) {
                 // noop
@@ -86,35 +195,347 @@ public class Upload implements Runnable {
                 }
             }
         }
+        aguardaAtrasados();
+        journal.fechar();
+    }
+
+    private void registraResultado(Path arquivo, LocalDateTime hora, MotorUpload.Classe classe, boolean enviado) throws IOException {
+        if (enviado) {
+            journal.concluido(hora, this::proximaHora);
+            try {
+                long gravado = Files.getLastModifiedTime(arquivo).toMillis();
+                latencia.get(classe).registra((System.currentTimeMillis() - gravado) / 1000.0);
+            } catch (IOException ex) {
+                // removido
+            }
+        } else if (!isShutdown()) {
+            falhas.incrementa();
+            // não bloqueia os próximos: o segmento volta a ser tentado após o backoff
+            long proxima = journal.falhou(hora, System.currentTimeMillis());
+            LOG.log(Level.SEVERE, "Falha no Upload do arquivo {0}, nova tentativa em {1} s.",
+                    new Object[]{arquivo.toString(), (proxima - System.currentTimeMillis()) / 1000});
+        }
+    }
+
+    /**
+     * Inicia o envio dos segmentos atrasados até o limite de uploads por
+     * adapter. O segmento recente (ou, se ele já foi enviado, o último
+     * fechado) fica para a thread principal.
+     */
+    private void despachaAtrasados(long agora, Path recente) throws IOException {
+        var limite = recente != null ? IndiceSegmentos.parseHoraArquivo(recente) : ultimaHoraFechada();
+        while (!isShutdown() && atrasados.size() < configuracao.getUploadsPorAdapter()) {
+            Path arquivo = procuraProximoArquivo(agora, limite);
+            if (arquivo == null) {
+                return;
+            }
+            LocalDateTime hora = IndiceSegmentos.parseHoraArquivo(arquivo);
+            if (cursor == null || hora.isAfter(cursor)) {
+                cursor = hora;
+            }
+            journal.enviando(hora);
+            atrasados.put(hora, motor.executa(() -> enviaAtrasado(arquivo, hora)));
+        }
+    }
+
+    private void enviaAtrasado(Path arquivo, LocalDateTime hora) {
+        try {
+            registraResultado(arquivo, hora, MotorUpload.Classe.ATRASADO, upload(arquivo, hora, MotorUpload.Classe.ATRASADO));
+        } catch (InterruptedException ex) {
+            // noop
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.SEVERE, ex.toString(), ex);
+            try {
+                registraResultado(arquivo, hora, MotorUpload.Classe.ATRASADO, false);
+            } catch (IOException | RuntimeException e) {
+                // journal indisponível: o segmento volta como pendente ao reabrir
+            }
+        } finally {
+            atrasados.remove(hora);
+        }
+    }
+
+    private void aguardaAtrasados() {
+        atrasados.values().forEach(f -> f.cancel(true));
+        long limite = System.currentTimeMillis() + 5000;
+        while (!atrasados.isEmpty() && System.currentTimeMillis() < limite) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Calcula o backlog (segmentos fechados ainda não enviados) e o tempo
+     * estimado para zerá-lo, pela taxa média de envio dos atrasados.
+     */
+    private void relataBacklog(long agora) {
+        if (agora - ultimoRelatorio < INTERVALO_RELATORIO) {
+            return;
+        }
+        var ultimo = ultimaHoraFechada();
+        int segmentos = 0;
+        long bytes = 0;
+        if (ultimo != null) {
+            for (var e : indice.posteriores(journal.getMarca()).entrySet()) {
+                if (e.getKey().isAfter(ultimo)) {
+                    break;
+                }
+                if (!journal.isConcluido(e.getKey())) {
+                    segmentos++;
+                    try {
+                        bytes += Files.size(e.getValue());
+                    } catch (IOException ex) {
+                        // removido
+                    }
+                }
+            }
+        }
+
+        long total = bytesAtrasados.sum();
+        double taxa = (total - bytesUltimoRelatorio) * 1000.0 / (agora - ultimoRelatorio);
+        taxaAtrasados = taxaAtrasados == 0 ? taxa : 0.7 * taxaAtrasados + 0.3 * taxa;
+        bytesUltimoRelatorio = total;
+        ultimoRelatorio = agora;
+
+        backlogSegmentos = segmentos;
+        backlogBytes = bytes;
+        estimativaBacklog = bytes == 0 ? 0 : taxaAtrasados > 0 ? (long) (bytes * 1000 / taxaAtrasados) : -1;
+        if (segmentos > 1) {
+            System.out.println(LocalDateTime.now().toString() + " - Backlog de upload em " + adapter.getDestino()
+                    + ": " + segmentos + " segmentos, " + bytes / (1024 * 1024) + " MB, "
+                    + (estimativaBacklog >= 0 ? "estimativa " + Duration.ofMillis(estimativaBacklog).toMinutes() + " min" : "estimativa indeterminada")
+                    + " (" + (long) (taxaAtrasados * 8 / 1000) + " kbit/s)");
+        }
+    }
+
+    /**
+     * @return segmentos fechados ainda não enviados, no último relatório.
+     */
+    public int getBacklogSegmentos() {
+        return backlogSegmentos;
+    }
+
+    /**
+     * @return bytes dos segmentos fechados ainda não enviados, no último
+     * relatório.
+     */
+    public long getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    /**
+     * @return tempo estimado (ms) para enviar todo o backlog, ou -1 se não
+     * há taxa de envio medida.
+     */
+    public long getEstimativaBacklog() {
+        return estimativaBacklog;
+    }
+
+    private void iniciaJournal() throws IOException, InterruptedException {
+        if (cursorIniciado) {
+            return;
+        }
+        journal.abrir();
+        if (journal.isNovo() && journal.getMarca() == null) {
+            // journal novo: parte do último arquivo recebido pelo servidor, se ele estiver acessível
+            try {
+                var ultimo = getUltimoArquivoRecebido();
+                if (ultimo != null) {
+                    journal.setMarca(ultimo);
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Servidor indisponível, todos os segmentos locais serão enviados: {0}", ex.toString());
+            }
+        }
+        cursor = journal.getMarca();
+        cursorIniciado = true;
+    }
+
+    /**
+     * Segmento fechado mais recente, se ainda não foi enviado e não está em
+     * backoff.
+     */
+    private Path procuraRecente(long agora) {
+        var arquivo = indice.ultimoFechado();
+        if (arquivo == null) {
+            return null;
+        }
+        var hora = IndiceSegmentos.parseHoraArquivo(arquivo);
+        return journal.isDisponivel(hora, agora) ? arquivo : null;
+    }
+
+    private LocalDateTime ultimaHoraFechada() {
+        var arquivo = indice.ultimoFechado();
+        return arquivo != null ? IndiceSegmentos.parseHoraArquivo(arquivo) : null;
     }
+
+    /**
+     * Próximo segmento atrasado a enviar: primeiro as falhas cujo backoff
+     * venceu, depois o próximo segmento fechado após o cursor e anterior a
+     * limite.
+     */
+    Path procuraProximoArquivo(long agora, LocalDateTime limite) {
+        for (var falha : journal.falhas().entrySet()) {
+            if (limite != null && !falha.getKey().isBefore(limite)) {
+                break;
+            }
+            if (falha.getValue().getProximaTentativa() <= agora) {
+                var arquivo = indice.arquivo(falha.getKey());
+                if (arquivo != null) {
+                    return arquivo;
+                }
+            }
+        }
         
-    private void upload(Path arquivo, LocalDateTime dataHoraArquivo) throws FileNotFoundException, InterruptedException {
-        var endpoint = String.format("/upload/%s/%s/%3d/%s/%s", 
-                adapter.getGravador(),
-                adapter.getPraca(),
-                adapter.getRede(),
-                dataHoraArquivo.format(DateTimeFormatter.ISO_LOCAL_DATE),
-                arquivo.getFileName().toString()
-        );
+        // só retorna segmentos concluídos pelo ffmpeg, evitando assim enviar arquivos que ainda estão sendo gravados
+        Path arquivo;
+        while (limite != null && (arquivo = indice.proximoFechado(cursor)) != null) {
+            var hora = IndiceSegmentos.parseHoraArquivo(arquivo);
+            if (!hora.isBefore(limite)) {
+                return null;
+            }
+            if (journal.isDisponivel(hora, agora)) {
+                return arquivo;
+            }
+            cursor = hora;
+        }
+        return null;
+    }
 
-        URI uri = getEndPointURI(endpoint);
+    /**
+     * Inicia o índice e o journal sem consultar o servidor e posiciona o
+     * cursor da busca (benchmarks).
+     */
+    void preparaBusca(LocalDateTime cursor) throws IOException {
+        indice.iniciar();
+        journal.abrir();
+        this.cursor = cursor;
+        cursorIniciado = true;
+    }
 
-        var request = HttpRequest.newBuilder(uri)
-                .header("Content-Type", "application/octet-stream")
-                .POST(HttpRequest.BodyPublishers.ofFile(arquivo))
-                .timeout(Duration.ofMinutes(10))
-                .build();
+    /**
+     * @return segmento em gravação, se ainda não foi enviado.
+     */
+    private Path procuraArquivoAtual() {
+        var atual = indice.ultimo();
+        if (atual == null) {
+            return null;
+        }
+        var hora = IndiceSegmentos.parseHoraArquivo(atual);
+        return (cursor == null || hora.isAfter(cursor)) && !journal.isConcluido(hora) ? atual : null;
+    }
+
+    private LocalDateTime proximaHora(LocalDateTime hora) {
+        var proximo = indice.proximo(hora);
+        return proximo != null ? IndiceSegmentos.parseHoraArquivo(proximo) : null;
+    }
+        
+    private boolean upload(Path arquivo, LocalDateTime dataHoraArquivo, MotorUpload.Classe classe) throws FileNotFoundException, InterruptedException {
+        if (!enviaAnexos(arquivo, dataHoraArquivo, classe)) {
+            return false;
+        }
+        URI uri = getEndPointURI(getEndpointArquivo(arquivo, dataHoraArquivo));
+        var envio = new EnvioRetomavel(motor, adapter, classe, uri, arquivo);
+
+        // tenta enviar novamente se houver problemas de conexão, continuando de onde o servidor parou
+        // (desiste após 3 tentativas seguidas sem progresso)
+        int tentativas = 0;
+        while (!isShutdown() && tentativas < 3) {
+            tentativas++;
+            try {
+                long tamanho = Files.size(arquivo);
+                envio.consultaOffset();
+                while (!isShutdown() && envio.getEnviado() < tamanho) {
+                    long anterior = envio.getEnviado();
+                    envio.append(Math.min(tamanho, anterior + TAMANHO_BLOCO));
+                    if (envio.getEnviado() <= anterior) {
+                        // servidor não avançou (ex.: 409 com o mesmo offset): conta como tentativa
+                        break;
+                    }
+                    tentativas = 0;
+                    if (classe == MotorUpload.Classe.ATRASADO) {
+                        bytesAtrasados.add(envio.getEnviado() - anterior);
+                    }
+                }
+                if (isShutdown()) {
+                    return false;
+                }
+                if (envio.getEnviado() < tamanho) {
+                    LOG.log(Level.WARNING, "Servidor não avançou o envio de {0} (offset {1}), nova tentativa.",
+                            new Object[]{arquivo.toString(), envio.getEnviado()});
+                } else if (envio.finaliza(tamanho)) {
+                    return true;
+                } else {
+                    LOG.log(Level.SEVERE, "Hash do arquivo {0} não confere no servidor, reenviando.", arquivo.toString());
+                }
+            } catch (EnvioRetomavel.NaoSuportado ex) {
+                return uploadCompleto(uri, arquivo, classe);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Falha no upload do arquivo " + arquivo.toString(), ex);
+            }
+            
+            // espera um pouco antes de tentar novamente
+            TimeUnit.MILLISECONDS.sleep(5000);
+        }
         
+        // se chegou até aqui significa que não conseguiu enviar
+        return false;
+    }
+
+    /**
+     * Gera (se ainda não existem) e envia os anexos do segmento, cada um numa
+     * única requisição: quando o segmento chega ao servidor, o índice e o
+     * mosaico já estão lá.
+     *
+     * @return false se algum anexo não foi enviado (o segmento fica para a
+     * próxima tentativa).
+     */
+    private boolean enviaAnexos(Path arquivo, LocalDateTime dataHoraArquivo, MotorUpload.Classe classe) throws FileNotFoundException, InterruptedException {
+        if (!adapter.isAnexos()) {
+            return true;
+        }
+        List<Path> anexos;
+        try {
+            anexos = AnexosSegmento.prepara(arquivo, dataHoraArquivo, proximaHora(dataHoraArquivo));
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Falha ao gerar os anexos de " + arquivo.toString() + ", enviando somente o segmento", ex);
+            return true;
+        }
+        for (var anexo : anexos) {
+            if (!uploadCompleto(getEndPointURI(getEndpointArquivo(anexo, dataHoraArquivo)), anexo, classe)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Envio do arquivo inteiro numa única requisição, para servidores sem o
+     * protocolo retomável.
+     */
+    private boolean uploadCompleto(URI uri, Path arquivo, MotorUpload.Classe classe) throws FileNotFoundException, InterruptedException {
         // tenta enviar novamente se houver problemas de conexão (desiste após 3 tentativas)
         int tentativas = 0;
         while (!isShutdown() && tentativas < 3) {
             tentativas++;
             try {
-                var response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                // a banda é consumida a cada parte lida do arquivo, enquanto o corpo é enviado
+                long tamanho = Files.size(arquivo);
+                var limitador = motor.getLimitador(classe);
+                var request = HttpRequest.newBuilder(uri)
+                        .header("Content-Type", "application/octet-stream")
+                        .POST(HttpRequest.BodyPublishers.fromPublisher(
+                                HttpRequest.BodyPublishers.ofInputStream(() -> abreLimitado(arquivo, tamanho, limitador)), tamanho))
+                        .timeout(Duration.ofMinutes(10))
+                        .build();
+                var response = motor.envia(adapter, classe, request, HttpResponse.BodyHandlers.discarding());
                 if (response.statusCode() != HttpURLConnection.HTTP_CREATED) {
                     throw new RuntimeException("Falha no upload do arquivo " + arquivo.toString() + ". Servidor retornou status HTTP " + response.statusCode());
                 }
-                return;
+                return true;
             } catch (IOException | InterruptedException ex) {
                 LOG.log(Level.SEVERE, "Falha no upload do arquivo " + arquivo.toString(), ex);
             }
@@ -124,15 +545,70 @@ public class Upload implements Runnable {
         }
         
         // se chegou até aqui significa que não conseguiu enviar
-        LOG.log(Level.SEVERE, "Falha no Upload do arquivo {0}, desistindo.", arquivo.toString());
+        return false;
     }
         
+    private static IntervaloArquivoInputStream abreLimitado(Path arquivo, long tamanho, LimitadorBanda limitador) {
+        try {
+            return new IntervaloArquivoInputStream(arquivo, 0, tamanho, limitador);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return true se o envio do segmento da hora informada foi confirmado
+     * (registro do journal, ou antes da base informada pelo servidor).
+     */
+    public boolean isEnviado(LocalDateTime hora) {
+        return journal.isEnviado(hora);
+    }
+
+    /**
+     * Descarta do journal, a cada {@value #INTERVALO_LIMPEZA} ms, os
+     * registros dos segmentos que não existem mais: as falhas deixam de ser
+     * retentadas e os concluídos já foram removidos pela retenção.
+     */
+    private void limpaJournal(long agora) throws IOException {
+        if (agora - ultimaLimpeza < INTERVALO_LIMPEZA) {
+            return;
+        }
+        ultimaLimpeza = agora;
+        int descartados = journal.descartaRemovidos(hora -> Files.exists(IndiceSegmentos.caminhoArquivo(adapter.getDestino(), hora)));
+        if (descartados > 0) {
+            LOG.log(Level.INFO, "{0} registros de segmentos removidos descartados do journal de {1}",
+                    new Object[]{descartados, adapter.getDestino()});
+        }
+    }
+
+    public Adapter getAdapter() {
+        return adapter;
+    }
+
     public boolean isShutdown() {
         return shutdown.get();
     }
     
     public void stop() {
         shutdown.set(true);        
+        indice.fechar();
+        var metricas = Metricas.global();
+        var rotulos = Metricas.rotulos(adapter);
+        for (var nome : List.of("gravador_segmento_fechamento_segundos", "gravador_upload_backlog_segmentos",
+                "gravador_upload_backlog_bytes", "gravador_upload_backlog_estimativa_segundos",
+                "gravador_upload_atrasados_enviando", "gravador_upload_falhas_total", "gravador_upload_latencia_segundos")) {
+            metricas.remove(nome, rotulos);
+        }
+    }
+        
+    private String getEndpointArquivo(Path arquivo, LocalDateTime dataHoraArquivo) {
+        return String.format("/upload/%s/%s/%3d/%s/%s", 
+                adapter.getGravador(),
+                adapter.getPraca(),
+                adapter.getRede(),
+                dataHoraArquivo.format(DateTimeFormatter.ISO_LOCAL_DATE),
+                arquivo.getFileName().toString()
+        );
     }
         
     /**
@@ -154,7 +630,7 @@ public class Upload implements Runnable {
                 .timeout(Duration.ofSeconds(30))
                 .build();
 
-        var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        var response = motor.envia(adapter, MotorUpload.Classe.RECENTE, request, HttpResponse.BodyHandlers.ofString());
         if (response.statusCode() == HttpURLConnection.HTTP_OK) {
             System.out.println(response.body());
             return LocalDateTime.parse(response.body(), DateTimeFormatter.ISO_DATE_TIME);
@@ -163,83 +639,6 @@ public class Upload implements Runnable {
         return null;
     }
     
-    private static Path procuraProximoArquivo(Path dir, LocalDateTime ultimoArquivoEnviado) throws IOException {
-        var currentDir = ultimoArquivoEnviado != null ? dir.resolve(ultimoArquivoEnviado.format(DateTimeFormatter.BASIC_ISO_DATE)) : null;
-        var currentFile = currentDir != null & ultimoArquivoEnviado != null ? currentDir.resolve(ultimoArquivoEnviado.format(DateTimeFormatter.ofPattern("HHmmss")) + ".mp4") : null;
-        
-        // data: yyyymmdd
-        var dirPattern = Pattern.compile("\\d{8}");
-        DirectoryStream.Filter<Path> dirFilter = path -> {
-            return dirPattern.matcher(path.getFileName().toString()).matches()
-                    && (currentDir == null || path.compareTo(currentDir) >= 0)
-                    && Files.isDirectory(path);
-        };
-
-        // hhmmss.mp4
-        var filePattern = Pattern.compile("\\d{6}\\.mp4");
-        DirectoryStream.Filter<Path> fileFilter = path -> {
-            return filePattern.matcher(path.getFileName().toString()).matches()
-                    && (currentFile == null || path.compareTo(currentFile) > 0)
-                    && Files.isReadable(path);
-        };
-        
-        // TreeSet é ordenado pela ordem natural. É necessário ler todos pois DirectoryStream não possui ordem específica
-        TreeSet<Path> arquivos = new TreeSet<>();
-        try (var dirStream = Files.newDirectoryStream(dir, dirFilter)) {
-            for (var dirPath : dirStream) {
-                try (var fileStream = Files.newDirectoryStream(dirPath, fileFilter)) {
-                    for (var path : fileStream) {
-                        arquivos.add(path);
-                    }
-                }
-            }
-        }
-
-        // só retorna o arquivo se já existe um próximo (size > 1), evitando assim retornar arquivos que ainda estão sendo gravados
-        if (arquivos.size() < 2) {
-            return null;
-        }
-        
-        // retorna o primeiro arquivo filtrado (que seja maior que o horário do último arquivo gravado e não esteja atualmente sendo gravado, ou seja, existe um próximo arquivo)
-        return arquivos.first();        
-        
-        /*
-        // encontra próximo arquivo (o stream não possui ordem específica por isso é necessário o teste adicional para encontrar o "menor dos maiores")
-        Path proximo = null;
-        try (var dirStream = Files.newDirectoryStream(dir, dirFilter)) {
-            for (var dirPath : dirStream) {
-                try (var fileStream = Files.newDirectoryStream(dirPath, fileFilter)) {
-                    for (var path : fileStream) {
-                        if (proximo == null || path.getFileName().compareTo(proximo.getFileName()) < 0) {
-                            proximo = path;
-                        }
-                    }
-                }
-            }
-        }
-        
-        return proximo;
-        */
-    }
-    
-    private static LocalDateTime parseHoraArquivo(Path arquivo) {
-        // diretório de data: yyyymmdd
-        var dirData = getParentDir(arquivo);
-        var data = LocalDate.parse(dirData.toString(), DateTimeFormatter.BASIC_ISO_DATE);
-        
-        // nome do arquivo: hhmmss.mp4
-        var nomeArquivo = arquivo.getFileName().toString();
-        int h = Integer.parseInt(nomeArquivo.substring(0, 2));
-        int m = Integer.parseInt(nomeArquivo.substring(2, 4));
-        int s = Integer.parseInt(nomeArquivo.substring(4, 6));
-        
-        return data.atTime(h, m, s);
-    }
-    
-    private static Path getParentDir(Path path) {
-        return path.getName(path.getNameCount() - 2);
-    }
-    
     private URI getEndPointURI(String endpoint) {
         try {
             return configuracao.getServidor().resolve(endpoint);
@@ -0,0 +1,223 @@
+package br.com.spotcom.gravador;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Envio ao vivo do segmento que ainda está sendo gravado (MP4 fragmentado).
+ * <p>
+ * A cada chamada de {@link #enviaFragmentos()} os fragmentos completos
+ * (boxes moof/mdat de nível superior) gravados desde o último envio são
+ * enviados pelo protocolo de {@link EnvioRetomavel}. Quando o segmento é
+ * fechado, {@link #finaliza()} envia o restante e confirma o arquivo.
+ * <p>
+ * A latência de cada envio é medida da captura do primeiro quadro do
+ * fragmento mais antigo enviado até a confirmação do servidor, e comparada
+ * com a latência alvo configurada. O instante da captura é o início do
+ * segmento (nome do arquivo; o ffmpeg grava com -reset_timestamps) somado ao
+ * tempo de mídia do fragmento (tfdt do moof, na timescale da track no moov).
+ */
+class UploadAoVivo {
+
+    private static final int MOOV = tipo("moov");
+    private static final int MOOF = tipo("moof");
+    private static final int TRAK = tipo("trak");
+    private static final int TKHD = tipo("tkhd");
+    private static final int MDIA = tipo("mdia");
+    private static final int MDHD = tipo("mdhd");
+    private static final int TRAF = tipo("traf");
+    private static final int TFHD = tipo("tfhd");
+    private static final int TFDT = tipo("tfdt");
+    // moov e moof maiores que isto não são interpretados (só pulados)
+    private static final long MAXIMO_LEITURA = 1024 * 1024;
+
+    private final EnvioRetomavel envio;
+    private final Path arquivo;
+    private final long alvoMillis;
+    // início do segmento (epoch ms), onde o tempo de mídia é zero
+    private final long inicioSegmento;
+    // timescale de cada track_ID, do moov
+    private final Map<Integer, Long> timescales = new HashMap<>();
+    // tempo de mídia (ms) do primeiro fragmento completo encontrado na última procura, -1 se nenhum
+    private long inicioFragmentos = -1;
+    private long fimFragmentos;
+    private long totalFragmentos;
+    private long somaLatencia;
+    private long maxLatencia;
+    private long ultimaLatencia = -1;
+
+    UploadAoVivo(EnvioRetomavel envio, long alvoMillis) {
+        this.envio = envio;
+        this.arquivo = envio.getArquivo();
+        this.alvoMillis = alvoMillis;
+        this.inicioSegmento = IndiceSegmentos.parseHoraArquivo(arquivo).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    Path getArquivo() {
+        return arquivo;
+    }
+
+    /**
+     * Envia os fragmentos completos ainda não enviados.
+     */
+    void enviaFragmentos() throws IOException, InterruptedException {
+        inicioFragmentos = -1;
+        fimFragmentos = procuraFimFragmentos(fimFragmentos);
+        if (fimFragmentos > envio.getEnviado()) {
+            envio.append(fimFragmentos);
+            if (inicioFragmentos >= 0) {
+                registraLatencia(System.currentTimeMillis() - (inicioSegmento + inicioFragmentos));
+            }
+        }
+    }
+
+    /**
+     * Envia o restante do segmento (já fechado) e confirma o arquivo.
+     */
+    void finaliza() throws IOException, InterruptedException {
+        long tamanho = Files.size(arquivo);
+        envio.append(tamanho);
+        if (envio.getEnviado() != tamanho || !envio.finaliza(tamanho)) {
+            throw new IOException("Envio ao vivo de " + arquivo + " incompleto ou com hash divergente");
+        }
+        if (totalFragmentos > 0) {
+            System.out.println(LocalDateTime.now().toString() + " - Ao vivo " + arquivo.getFileName()
+                    + ": " + totalFragmentos + " envios, latência média " + (somaLatencia / totalFragmentos)
+                    + " ms, máxima " + maxLatencia + " ms (alvo " + alvoMillis + " ms)");
+        }
+    }
+
+    /**
+     * Percorre os boxes de nível superior do MP4 a partir de pos e retorna o
+     * fim do último box completo. Do moov guarda as timescales e do primeiro
+     * moof o tempo de mídia ({@link #inicioFragmentos}).
+     */
+    private long procuraFimFragmentos(long pos) throws IOException {
+        var cabecalho = ByteBuffer.allocate(16);
+        try (var canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+            long tamanhoArquivo = canal.size();
+            while (pos + 8 <= tamanhoArquivo) {
+                cabecalho.clear();
+                canal.read(cabecalho, pos);
+                long tamanhoBox = cabecalho.getInt(0) & 0xFFFFFFFFL;
+                if (tamanhoBox == 1 && cabecalho.position() == 16) {
+                    tamanhoBox = cabecalho.getLong(8);
+                }
+                // tamanho 0 (até o fim do arquivo) ou inválido: box ainda não terminou
+                if (tamanhoBox < 8 || pos + tamanhoBox > tamanhoArquivo) {
+                    break;
+                }
+                int tipo = cabecalho.getInt(4);
+                if ((tipo == MOOV || (tipo == MOOF && inicioFragmentos < 0)) && tamanhoBox <= MAXIMO_LEITURA) {
+                    var box = ByteBuffer.allocate((int) tamanhoBox);
+                    while (box.hasRemaining() && canal.read(box, pos + box.position()) > 0) {
+                        // lê o box inteiro
+                    }
+                    if (tipo == MOOV) {
+                        leTimescales(box);
+                    } else {
+                        inicioFragmentos = tempoMidia(box);
+                    }
+                }
+                pos += tamanhoBox;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return posição do primeiro box do tipo entre inicio e fim, ou -1.
+     */
+    private static int procuraBox(ByteBuffer box, int inicio, int fim, int tipo) {
+        int pos = inicio;
+        while (pos + 8 <= fim) {
+            int tamanho = box.getInt(pos);
+            if (tamanho < 8 || pos + tamanho > fim) {
+                return -1;
+            }
+            if (box.getInt(pos + 4) == tipo) {
+                return pos;
+            }
+            pos += tamanho;
+        }
+        return -1;
+    }
+
+    /**
+     * moov/trak: tkhd (track_ID) e mdia/mdhd (timescale). Os campos de data
+     * têm 64 bits na versão 1 dos boxes.
+     */
+    private void leTimescales(ByteBuffer moov) {
+        int pos = 8;
+        int trak;
+        while ((trak = procuraBox(moov, pos, moov.limit(), TRAK)) >= 0) {
+            int fimTrak = trak + moov.getInt(trak);
+            int tkhd = procuraBox(moov, trak + 8, fimTrak, TKHD);
+            int mdia = procuraBox(moov, trak + 8, fimTrak, MDIA);
+            int mdhd = mdia < 0 ? -1 : procuraBox(moov, mdia + 8, mdia + moov.getInt(mdia), MDHD);
+            if (tkhd >= 0 && mdhd >= 0) {
+                int track = moov.getInt(tkhd + (moov.get(tkhd + 8) == 1 ? 28 : 20));
+                long timescale = moov.getInt(mdhd + (moov.get(mdhd + 8) == 1 ? 28 : 20)) & 0xFFFFFFFFL;
+                if (timescale > 0) {
+                    timescales.put(track, timescale);
+                }
+            }
+            pos = fimTrak;
+        }
+    }
+
+    /**
+     * @return tempo de mídia (ms) do fragmento: baseMediaDecodeTime do tfdt
+     * da primeira traf, ou -1 se não for possível obtê-lo.
+     */
+    private long tempoMidia(ByteBuffer moof) {
+        int traf = procuraBox(moof, 8, moof.limit(), TRAF);
+        if (traf < 0) {
+            return -1;
+        }
+        int fimTraf = traf + moof.getInt(traf);
+        int tfhd = procuraBox(moof, traf + 8, fimTraf, TFHD);
+        int tfdt = procuraBox(moof, traf + 8, fimTraf, TFDT);
+        if (tfhd < 0 || tfdt < 0) {
+            return -1;
+        }
+        Long timescale = timescales.get(moof.getInt(tfhd + 12));
+        if (timescale == null) {
+            return -1;
+        }
+        long base = moof.get(tfdt + 8) == 1 ? moof.getLong(tfdt + 12) : moof.getInt(tfdt + 12) & 0xFFFFFFFFL;
+        return base * 1000 / timescale;
+    }
+
+    private static int tipo(String nome) {
+        return ByteBuffer.wrap(nome.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+
+    /**
+     * @return latência (ms) do último envio, ou -1 se ainda não medida.
+     */
+    long getUltimaLatencia() {
+        return ultimaLatencia;
+    }
+
+    private void registraLatencia(long latencia) {
+        ultimaLatencia = latencia;
+        totalFragmentos++;
+        somaLatencia += latencia;
+        maxLatencia = Math.max(maxLatencia, latencia);
+        if (latencia > alvoMillis) {
+            System.out.println(LocalDateTime.now().toString() + " - Ao vivo " + arquivo.getFileName()
+                    + ": latência " + latencia + " ms acima do alvo de " + alvoMillis + " ms");
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package br.com.spotcom.gravador.config;
 
 import java.nio.file.Path;
+import java.util.Objects;
 
 /**
  *
@@ -8,14 +9,44 @@ import java.nio.file.Path;
  */
 public class Adapter {
     
+    /**
+     * TRANSCODE recodifica com libx264/aac. COPY repassa o vídeo da transmissão
+     * sem recodificar (somente o áudio é convertido para AAC em MP4).
+     */
+    public enum Modo {
+        TRANSCODE, COPY
+    }
+
+    /**
+     * Como o stream chega ao ffmpeg. CANAL: pelo ChannelInput do Jaffree
+     * (servidor FTP local, cópias em buffers do heap). FIFO: o leitor
+     * compartilhado escreve direto num named pipe lido pelo ffmpeg. DIRETO: o
+     * ffmpeg abre o dvr0, sem leitor nem monitor na JVM; exige o adapter
+     * exclusivo da saída.
+     */
+    public enum Captura {
+        CANAL, FIFO, DIRETO
+    }
+
     private final String gravador;
-    private final int adapter;
+    private volatile int adapter;
     private final String serviceName;
     private final String praca;
     private final int rede;
     private int serviceId;
     private final String scale;
     private final String caminho;
+    private boolean filtrarTs = true;
+    private Modo modo = Modo.TRANSCODE;
+    private Captura captura = Captura.CANAL;
+    private boolean aoVivo;
+    private long latenciaAlvo = 5000;
+    private boolean automatico;
+    private long cota;
+    private volatile int prioridade;
+    private boolean anexos;
+    private int intervaloMiniaturas = 10;
+    private String modeloOrigem = "/dev/dvb/adapter%d/dvr0";
 
     public Adapter(String gravador, int adapter, String serviceName, String praca, int rede, String scale, String caminho) {
         this.gravador = gravador;
@@ -35,6 +66,25 @@ public class Adapter {
         return adapter;
     }
 
+    /**
+     * Número do adapter atribuído pelo {@link EscalonadorSintonizadores}
+     * (serviços com sintonizador automático).
+     */
+    public void setAdapter(int adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * @return true se o número do adapter não foi fixado na configuração.
+     */
+    public boolean isAutomatico() {
+        return automatico;
+    }
+
+    public void setAutomatico(boolean automatico) {
+        this.automatico = automatico;
+    }
+
     public String getServiceName() {
         return serviceName;
     }
@@ -56,7 +106,15 @@ public class Adapter {
     }
     
     public Path getOrigem() {
-        return Path.of(String.format("/dev/dvb/adapter%d/dvr0", adapter));
+        return Path.of(String.format(modeloOrigem, adapter));
+    }
+
+    /**
+     * Caminho do dvr com %d no lugar do número do adapter (ex.: um named pipe
+     * alimentado por uma simulação, no lugar do dispositivo).
+     */
+    public void setModeloOrigem(String modeloOrigem) {
+        this.modeloOrigem = modeloOrigem;
     }
     
     public Path getDestino() {
@@ -71,4 +129,127 @@ public class Adapter {
         return scale;
     }
 
+    public boolean isFiltrarTs() {
+        return filtrarTs;
+    }
+
+    public void setFiltrarTs(boolean filtrarTs) {
+        this.filtrarTs = filtrarTs;
+    }
+
+    public Modo getModo() {
+        return modo;
+    }
+
+    public void setModo(Modo modo) {
+        this.modo = modo;
+    }
+
+    public Captura getCaptura() {
+        return captura;
+    }
+
+    public void setCaptura(Captura captura) {
+        this.captura = captura;
+    }
+
+    public boolean isAoVivo() {
+        return aoVivo;
+    }
+
+    public void setAoVivo(boolean aoVivo) {
+        this.aoVivo = aoVivo;
+    }
+
+    /**
+     * @return latência alvo (ms) do upload ao vivo, da gravação ao servidor.
+     */
+    public long getLatenciaAlvo() {
+        return latenciaAlvo;
+    }
+
+    public void setLatenciaAlvo(long latenciaAlvo) {
+        this.latenciaAlvo = latenciaAlvo;
+    }
+
+    /**
+     * @return espaço máximo (bytes) dos segmentos no destino, 0 se ilimitado.
+     */
+    public long getCota() {
+        return cota;
+    }
+
+    public void setCota(long cota) {
+        this.cota = cota;
+    }
+
+    /**
+     * @return prioridade da gravação no controle adaptativo de qualidade:
+     * as de menor prioridade são degradadas primeiro.
+     */
+    public int getPrioridade() {
+        return prioridade;
+    }
+
+    public void setPrioridade(int prioridade) {
+        this.prioridade = prioridade;
+    }
+
+    /**
+     * @return true se cada segmento é acompanhado do índice de quadros-chave
+     * e do mosaico de miniaturas ({@code HHmmss.idx} e {@code HHmmss.jpg}),
+     * enviados junto com ele.
+     */
+    public boolean isAnexos() {
+        return anexos;
+    }
+
+    public void setAnexos(boolean anexos) {
+        this.anexos = anexos;
+    }
+
+    /**
+     * @return segundos entre as miniaturas do mosaico, 0 sem mosaico.
+     */
+    public int getIntervaloMiniaturas() {
+        return intervaloMiniaturas;
+    }
+
+    public void setIntervaloMiniaturas(int intervaloMiniaturas) {
+        this.intervaloMiniaturas = intervaloMiniaturas;
+    }
+
+    /**
+     * @return true se a outra configuração grava da mesma forma (sintonia,
+     * ffmpeg e destino): o gravador não precisa ser reiniciado.
+     */
+    public boolean mesmaGravacao(Adapter outro) {
+        return automatico == outro.automatico
+                && (automatico || adapter == outro.adapter)
+                && Objects.equals(serviceName, outro.serviceName)
+                && Objects.equals(scale, outro.scale)
+                && getDestino().equals(outro.getDestino())
+                && filtrarTs == outro.filtrarTs
+                && modo == outro.modo
+                && captura == outro.captura
+                && aoVivo == outro.aoVivo
+                && latenciaAlvo == outro.latenciaAlvo
+                && anexos == outro.anexos
+                && (!anexos || intervaloMiniaturas == outro.intervaloMiniaturas);
+    }
+
+    /**
+     * @return true se a outra configuração envia da mesma forma (destino e
+     * endpoint): o upload não precisa ser reiniciado.
+     */
+    public boolean mesmoUpload(Adapter outro) {
+        return Objects.equals(gravador, outro.gravador)
+                && Objects.equals(praca, outro.praca)
+                && rede == outro.rede
+                && getDestino().equals(outro.getDestino())
+                && aoVivo == outro.aoVivo
+                && latenciaAlvo == outro.latenciaAlvo
+                && anexos == outro.anexos;
+    }
+
 }
@@ -0,0 +1,118 @@
+package br.com.spotcom.gravador.config;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.configuration.SubnodeConfiguration;
+
+/**
+ * Catálogo dos serviços do channels-file (formato dvbv5), agrupados por
+ * multiplex (frequência). Serviços do mesmo multiplex são recebidos por um
+ * único sintonizador.
+ */
+public class CatalogoCanais {
+
+    /**
+     * Serviço do channels-file.
+     */
+    public record Canal(String nome, int serviceId, int pidVideo, List<Integer> pidsAudio, long frequencia) {
+    }
+
+    private final Map<String, Canal> canais = new LinkedHashMap<>();
+    private final Map<Long, List<Canal>> multiplexes = new TreeMap<>();
+
+    public static CatalogoCanais carrega(Path channelsFile) throws ConfigurationException {
+        var catalogo = new CatalogoCanais();
+        var ini = new HierarchicalINIConfiguration(channelsFile.toFile());
+        for (var nome : ini.getSections()) {
+            if (nome == null) {
+                continue;
+            }
+            var secao = ini.getSection(nome);
+            var canal = new Canal(
+                    nome,
+                    inteiro(secao, nome, "SERVICE_ID", -1),
+                    inteiro(secao, nome, "VIDEO_PID", -1),
+                    pids(secao, nome, "AUDIO_PID"),
+                    longo(secao, nome, "FREQUENCY")
+            );
+            catalogo.canais.put(nome, canal);
+            catalogo.multiplexes.computeIfAbsent(canal.frequencia(), k -> new ArrayList<>()).add(canal);
+        }
+        return catalogo;
+    }
+
+    /**
+     * @return serviço com o nome informado ou null se não existir.
+     */
+    public Canal canal(String nome) {
+        return canais.get(nome);
+    }
+
+    /**
+     * @return serviços do multiplex da frequência informada.
+     */
+    public List<Canal> multiplex(long frequencia) {
+        return Collections.unmodifiableList(multiplexes.getOrDefault(frequencia, List.of()));
+    }
+
+    /**
+     * @return multiplexes (frequência e serviços), em ordem de frequência.
+     */
+    public Map<Long, List<Canal>> getMultiplexes() {
+        return Collections.unmodifiableMap(multiplexes);
+    }
+
+    public int tamanho() {
+        return canais.size();
+    }
+
+    private static int inteiro(SubnodeConfiguration secao, String nome, String chave, int padrao) {
+        var valor = secao.getString(chave);
+        if (valor == null) {
+            return padrao;
+        }
+        try {
+            return Integer.parseInt(valor.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(chave + " inválido em \"" + nome + "\" no channels.conf configurado.");
+        }
+    }
+
+    private static long longo(SubnodeConfiguration secao, String nome, String chave) {
+        var valor = secao.getString(chave);
+        if (valor == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(valor.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(chave + " inválido em \"" + nome + "\" no channels.conf configurado.");
+        }
+    }
+
+    private static List<Integer> pids(SubnodeConfiguration secao, String nome, String chave) {
+        // "AUDIO_PID = 259 260": o INI pode entregar um ou vários valores
+        List<Integer> pids = new ArrayList<>();
+        for (var valor : secao.getStringArray(chave)) {
+            for (var pid : valor.trim().split("\\s+")) {
+                if (pid.isEmpty()) {
+                    continue;
+                }
+                try {
+                    pids.add(Integer.parseInt(pid));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException(chave + " inválido em \"" + nome + "\" no channels.conf configurado.");
+                }
+            }
+        }
+        return List.copyOf(pids);
+    }
+
+}
@@ -10,11 +10,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 import javax.json.Json;
 import javax.json.JsonReader;
 import org.apache.commons.configuration.ConfigurationException;
-import org.apache.commons.configuration.HierarchicalINIConfiguration;
 
 /**
  *
@@ -23,10 +28,33 @@ import org.apache.commons.configuration.HierarchicalINIConfiguration;
 public class Configuracao {
     
     private Path channelsFile;
-    private final List<Adapter> adapters = new ArrayList<>();
+    private volatile List<Adapter> adapters = new ArrayList<>();
     private String gravador;
     private URI servidor;
     private boolean uploadAtivo;
+    private int tamanhoBufferDvr;
+    private String origemDvr;
+    private long tamanhoTransbordo;
+    private boolean multiRendicao;
+    private boolean qualidadeAdaptativa;
+    private boolean particaoNucleos;
+    private int nucleosReservados;
+    private boolean http2;
+    private int uploadsSimultaneos;
+    private int uploadsPorAdapter;
+    private long bandaRecente;
+    private long bandaAtrasado;
+    private String enderecoMetricas;
+    private int tempoFalhaTs;
+    private List<String> comandoZap;
+    private final List<Integer> sintonizadores = new ArrayList<>();
+    private CatalogoCanais catalogo;
+    private int retencaoAlta;
+    private int retencaoBaixa;
+    private int remocoesPorSegundo;
+    private EscalonadorSintonizadores escalonador;
+    private int tempoLock;
+    private int portaMetricas;
     
     public static Configuracao load(File file) throws IOException, ConfigurationException {
         try (var reader = new FileReader(file)) {
@@ -51,6 +79,84 @@ public class Configuracao {
             }
             
             config.uploadAtivo = jsonObject.getBoolean("upload", true);
+            config.http2 = jsonObject.getBoolean("http2", true);
+            config.uploadsSimultaneos = jsonObject.getInt("uploads-simultaneos", 4);
+            config.uploadsPorAdapter = jsonObject.getInt("uploads-por-adapter", 2);
+            if (config.uploadsSimultaneos <= 0 || config.uploadsPorAdapter <= 0) {
+                throw new IllegalArgumentException("Limites de uploads simultâneos inválidos.");
+            }
+
+            // limites de banda (kbit/s, 0 = ilimitado) do segmento mais recente e dos atrasados
+            config.bandaRecente = jsonObject.getJsonNumber("banda-recente") != null
+                    ? jsonObject.getJsonNumber("banda-recente").longValue() : 0;
+            config.bandaAtrasado = jsonObject.getJsonNumber("banda-atrasado") != null
+                    ? jsonObject.getJsonNumber("banda-atrasado").longValue() : 0;
+            if (config.bandaRecente < 0 || config.bandaAtrasado < 0) {
+                throw new IllegalArgumentException("Limites de banda de upload inválidos.");
+            }
+
+            // endpoint local das métricas (formato Prometheus), porta 0 desativa
+            config.enderecoMetricas = jsonObject.getString("metricas-endereco", "127.0.0.1");
+            config.portaMetricas = jsonObject.getInt("metricas-porta", 9400);
+            if (config.portaMetricas < 0 || config.portaMetricas > 65535) {
+                throw new IllegalArgumentException("Porta das métricas inválida: " + config.portaMetricas);
+            }
+
+            // segundos sem stream saudável (ou sem progresso do ffmpeg) até reiniciar zap/gravador
+            config.tempoFalhaTs = jsonObject.getInt("tempo-falha-ts", 10);
+            if (config.tempoFalhaTs < 2) {
+                throw new IllegalArgumentException("tempo-falha-ts deve ser de pelo menos 2 segundos.");
+            }
+
+            // dvr de cada adapter (%d = número); em simulações, um named pipe no lugar do dispositivo
+            config.origemDvr = jsonObject.getString("dvr-origem", "/dev/dvb/adapter%d/dvr0").trim();
+            if (!config.origemDvr.contains("%d")) {
+                throw new IllegalArgumentException("\"dvr-origem\" deve conter %d (número do adapter): " + config.origemDvr);
+            }
+
+            // comando do zap (permite um zap falso em testes) e segundos para o sintonizador obter lock
+            String comandoZap = jsonObject.getString("zap-comando", "dvbv5-zap").trim();
+            if (comandoZap.isEmpty()) {
+                throw new IllegalArgumentException("\"zap-comando\" não pode ser vazio.");
+            }
+            config.comandoZap = List.of(comandoZap.split("\\s+"));
+            config.tempoLock = jsonObject.getInt("tempo-lock", 15);
+            if (config.tempoLock < 1) {
+                throw new IllegalArgumentException("tempo-lock deve ser de pelo menos 1 segundo.");
+            }
+
+            // uso do disco (%) que dispara a remoção dos segmentos mais antigos já enviados, até a marca baixa
+            config.retencaoAlta = jsonObject.getInt("retencao-alta", 90);
+            config.retencaoBaixa = jsonObject.getInt("retencao-baixa", 80);
+            if (config.retencaoBaixa <= 0 || config.retencaoBaixa >= config.retencaoAlta || config.retencaoAlta > 100) {
+                throw new IllegalArgumentException("Marcas de retenção inválidas (0 < retencao-baixa < retencao-alta <= 100).");
+            }
+            config.remocoesPorSegundo = jsonObject.getInt("retencao-remocoes", 10);
+            if (config.remocoesPorSegundo <= 0) {
+                throw new IllegalArgumentException("\"retencao-remocoes\" deve ser positivo.");
+            }
+
+            // renditions (scale) do mesmo serviço num único ffmpeg
+            config.multiRendicao = jsonObject.getBoolean("multi-rendicao", true);
+            // reduz preset, crf e resolução das gravações de menor prioridade quando o encoder não acompanha
+            config.qualidadeAdaptativa = jsonObject.getBoolean("qualidade-adaptativa", false);
+            // divide os núcleos entre os ffmpeg (threads e afinidade), deixando os primeiros para a JVM
+            config.particaoNucleos = jsonObject.getBoolean("particao-nucleos", false);
+            config.nucleosReservados = jsonObject.getInt("nucleos-reservados", 1);
+            if (config.nucleosReservados < 0) {
+                throw new IllegalArgumentException("Valor de \"nucleos-reservados\" inválido.");
+            }
+
+            // buffer circular (em MB) do leitor compartilhado de cada dvr0
+            config.tamanhoBufferDvr = jsonObject.getInt("buffer-dvr", 16) * 1024 * 1024;
+            if (config.tamanhoBufferDvr <= 0) {
+                throw new IllegalArgumentException("Tamanho de \"buffer-dvr\" inválido.");
+            }
+            // arquivo de transbordo (em MB) de cada gravador, no destino; 0 = desativado
+            config.tamanhoTransbordo = jsonObject.getInt("transbordo", 0) * 1024L * 1024L;
+            if (config.tamanhoTransbordo < 0) {
+                throw new IllegalArgumentException("Tamanho de \"transbordo\" inválido.");
+            }
 
             String channelsFile = jsonObject.getString("channels-file", null);
             if (channelsFile == null) {
@@ -61,6 +167,18 @@ public class Configuracao {
                 throw new IllegalArgumentException("Arquivo configurado em \"channels-file\" não existe.");
             }
             
+            // adapters disponíveis para os serviços sem "adapter" fixo (atribuídos por multiplex)
+            var jsonSintonizadores = jsonObject.getJsonArray("sintonizadores");
+            if (jsonSintonizadores != null) {
+                for (int i = 0; i < jsonSintonizadores.size(); i++) {
+                    int numero = jsonSintonizadores.getInt(i);
+                    if (numero < 0 || config.sintonizadores.contains(numero)) {
+                        throw new IllegalArgumentException("Sintonizador " + numero + " inválido ou repetido.");
+                    }
+                    config.sintonizadores.add(numero);
+                }
+            }
+
             var jsonArray = jsonObject.getJsonArray("adapters");
             if (jsonArray != null) {
                 for (var e: jsonArray) {
@@ -74,9 +192,55 @@ public class Configuracao {
                             obj.getString("scale", ""),
                             obj.getString("caminho", "")
                     );
-                    if (adapter.getAdapter() < 0) {
+                    adapter.setAutomatico(adapter.getAdapter() < 0 && !config.sintonizadores.isEmpty());
+                    // antes das demais validações, que identificam o adapter pelo número
+                    if (adapter.getAdapter() < 0 && !adapter.isAutomatico()) {
                         throw new IllegalArgumentException("Falta o número do adapter");
                     }
+                    adapter.setModeloOrigem(config.origemDvr);
+                    adapter.setFiltrarTs(obj.getBoolean("filtro-ts", true));
+                    String modo = obj.getString("mode", "transcode");
+                    try {
+                        adapter.setModo(Adapter.Modo.valueOf(modo.toUpperCase()));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Modo \"" + modo + "\" inválido no adapter " + adapter.getAdapter());
+                    }
+                    String captura = obj.getString("captura", "canal");
+                    try {
+                        adapter.setCaptura(Adapter.Captura.valueOf(captura.toUpperCase()));
+                    } catch (IllegalArgumentException ex) {
+                        throw new IllegalArgumentException("Captura \"" + captura + "\" inválida no adapter " + adapter.getAdapter());
+                    }
+                    if (adapter.getCaptura() == Adapter.Captura.DIRETO && adapter.isAutomatico()) {
+                        throw new IllegalArgumentException("Captura \"direto\" exige adapter fixo (serviço \"" + adapter.getServiceName() + "\")");
+                    }
+                    adapter.setAoVivo(obj.getBoolean("live", false));
+                    adapter.setLatenciaAlvo(obj.getInt("latencia-alvo", 5) * 1000L);
+                    // cota em MB dos segmentos no destino, 0 = sem cota (só as marcas do disco)
+                    adapter.setCota(obj.getInt("cota", 0) * 1024L * 1024L);
+                    adapter.setPrioridade(obj.getInt("prioridade", 0));
+                    // índice de quadros-chave e mosaico de miniaturas enviados com cada segmento
+                    adapter.setAnexos(obj.getBoolean("anexos", false));
+                    adapter.setIntervaloMiniaturas(obj.getInt("miniaturas-intervalo", 10));
+                    if (adapter.getCota() < 0) {
+                        throw new IllegalArgumentException("\"cota\" inválida no adapter " + adapter.getAdapter());
+                    }
+                    if (adapter.getIntervaloMiniaturas() < 0) {
+                        throw new IllegalArgumentException("\"miniaturas-intervalo\" inválido no adapter " + adapter.getAdapter());
+                    }
+                    if (adapter.getLatenciaAlvo() < 1000) {
+                        throw new IllegalArgumentException("\"latencia-alvo\" inválida no adapter " + adapter.getAdapter());
+                    }
+                    if (adapter.getModo() == Adapter.Modo.COPY && !adapter.getScale().isBlank()) {
+                        throw new IllegalArgumentException("Adapter " + adapter.getAdapter() + " em modo \"copy\" não pode ter \"scale\"");
+                    }
+                    if (adapter.isAutomatico() && obj.getString("caminho", "").isBlank()) {
+                        // o número do adapter pode mudar, o destino não
+                        throw new IllegalArgumentException("Falta o \"caminho\" do serviço \"" + adapter.getServiceName() + "\" sem adapter fixo");
+                    }
+                    if (config.sintonizadores.contains(adapter.getAdapter())) {
+                        throw new IllegalArgumentException("Adapter " + adapter.getAdapter() + " fixo também listado em \"sintonizadores\"");
+                    }
                     if (adapter.getServiceName() == null) {
                         throw new IllegalArgumentException("Falta o \"service-name\" do adapter " + adapter.getAdapter());
                     }
@@ -86,35 +250,183 @@ public class Configuracao {
                     if (adapter.getRede() <= 0) {
                         throw new IllegalArgumentException("Falta a \"rede\" do adapter " + adapter.getAdapter());
                     }
-                    if (config.adapters.stream().anyMatch(a -> a.getAdapter() == adapter.getAdapter())) {
-                        throw new IllegalArgumentException("Adapter " + adapter.getAdapter() + " duplicado!");
-                    }
                     config.adapters.add(adapter);
                 }
             }
         }
         
-        // carrega serviceId do channels-file
-        var ini = new HierarchicalINIConfiguration(config.channelsFile.toFile());
+        // carrega serviceId e frequência do channels-file
+        config.catalogo = CatalogoCanais.carrega(config.channelsFile);
+        Map<Integer, Long> frequencias = new HashMap<>();
+        List<Adapter> automaticos = new ArrayList<>();
         for (var adapter: config.adapters) {
-            var service = ini.getSection(adapter.getServiceName());
-            if (service == null) throw new IllegalArgumentException("Service \"" + adapter.getServiceName() + "\" não encontrado no channels.conf configurado.");
-            String serviceId = service.getString("SERVICE_ID");
-            if (serviceId == null) throw new IllegalArgumentException("ServiceId não encontrado para \"" + adapter.getServiceName() + "\" no channels.conf configurado.");
-            try {
-                adapter.setServiceId(Integer.parseInt(serviceId));
-            } catch (NumberFormatException ex) {
-                throw new IllegalArgumentException("ServiceId inválido em \"" + adapter.getServiceName() + "\" no channels.conf configurado.");
+            var canal = config.catalogo.canal(adapter.getServiceName());
+            if (canal == null) throw new IllegalArgumentException("Service \"" + adapter.getServiceName() + "\" não encontrado no channels.conf configurado.");
+            if (canal.serviceId() < 0) throw new IllegalArgumentException("ServiceId não encontrado para \"" + adapter.getServiceName() + "\" no channels.conf configurado.");
+            adapter.setServiceId(canal.serviceId());
+
+            if (adapter.isAutomatico()) {
+                automaticos.add(adapter);
+                continue;
+            }
+            // vários serviços podem usar o mesmo adapter, desde que estejam na mesma frequência
+            Long anterior = frequencias.putIfAbsent(adapter.getAdapter(), canal.frequencia());
+            if (anterior != null && anterior != canal.frequencia()) {
+                throw new IllegalArgumentException("Adapter " + adapter.getAdapter() + " configurado com serviços em frequências diferentes.");
+            }
+        }
+        if (!config.sintonizadores.isEmpty()) {
+            config.escalonador = new EscalonadorSintonizadores(config.sintonizadores);
+            config.escalonador.reatribui(automaticos, config.catalogo);
+        }
+
+        // o dvr0 só pode ser aberto uma vez: na captura direta o ffmpeg é o único leitor
+        Map<Integer, Long> porAdapter = config.adapters.stream()
+                .filter(e -> !e.isAutomatico())
+                .collect(Collectors.groupingBy(Adapter::getAdapter, Collectors.counting()));
+        for (var adapter: config.adapters) {
+            if (adapter.getCaptura() == Adapter.Captura.DIRETO && porAdapter.get(adapter.getAdapter()) > 1) {
+                throw new IllegalArgumentException("Adapter " + adapter.getAdapter() + " com captura \"direto\" não pode ser compartilhado.");
+            }
+        }
+
+        // duas gravações no mesmo destino sobrescreveriam os arquivos uma da outra
+        Set<Path> destinos = new HashSet<>();
+        for (var adapter: config.adapters) {
+            if (!destinos.add(adapter.getDestino())) {
+                throw new IllegalArgumentException("Destino " + adapter.getDestino() + " duplicado (adapter " + adapter.getAdapter() + ").");
             }
         }
         
         return config;
     }
 
+    /**
+     * Alterações de uma nova configuração: saídas cujos gravadores e uploads
+     * devem ser encerrados (objetos atuais) ou iniciados (novos objetos), as
+     * chaves alteradas que só valem após reiniciar o processo e se a
+     * prioridade de alguma saída mantida mudou (já aplicada no objeto atual).
+     */
+    public record Diferenca(List<Adapter> gravacaoRemovida, List<Adapter> gravacaoAdicionada,
+            List<Adapter> uploadRemovido, List<Adapter> uploadAdicionado, List<String> requerReinicio,
+            boolean prioridadeAlterada) {
+
+        public boolean isVazia() {
+            return gravacaoRemovida.isEmpty() && gravacaoAdicionada.isEmpty()
+                    && uploadRemovido.isEmpty() && uploadAdicionado.isEmpty();
+        }
+
+    }
+
+    /**
+     * Aplica os adapters da nova configuração, comparando cada saída pelo
+     * destino. Saídas sem alteração mantêm o objeto atual (e com ele o número
+     * do adapter atribuído). As demais chaves não são aplicadas, só
+     * informadas em {@link Diferenca#requerReinicio()}.
+     *
+     * @throws IllegalArgumentException se não há sintonizadores para os
+     * novos serviços; nesse caso nada é alterado.
+     */
+    public synchronized Diferenca aplica(Configuracao nova) {
+        // "gravador" é aplicado em cada saída (endpoint do upload)
+        gravador = nova.gravador;
+        List<String> requerReinicio = new ArrayList<>();
+        compara(requerReinicio, "servidor", servidor, nova.servidor);
+        compara(requerReinicio, "upload", uploadAtivo, nova.uploadAtivo);
+        compara(requerReinicio, "http2", http2, nova.http2);
+        compara(requerReinicio, "uploads-simultaneos", uploadsSimultaneos, nova.uploadsSimultaneos);
+        compara(requerReinicio, "uploads-por-adapter", uploadsPorAdapter, nova.uploadsPorAdapter);
+        compara(requerReinicio, "banda-recente", bandaRecente, nova.bandaRecente);
+        compara(requerReinicio, "banda-atrasado", bandaAtrasado, nova.bandaAtrasado);
+        compara(requerReinicio, "metricas-endereco", enderecoMetricas, nova.enderecoMetricas);
+        compara(requerReinicio, "metricas-porta", portaMetricas, nova.portaMetricas);
+        compara(requerReinicio, "tempo-falha-ts", tempoFalhaTs, nova.tempoFalhaTs);
+        compara(requerReinicio, "transbordo", tamanhoTransbordo, nova.tamanhoTransbordo);
+        compara(requerReinicio, "retencao-alta", retencaoAlta, nova.retencaoAlta);
+        compara(requerReinicio, "retencao-baixa", retencaoBaixa, nova.retencaoBaixa);
+        compara(requerReinicio, "retencao-remocoes", remocoesPorSegundo, nova.remocoesPorSegundo);
+        compara(requerReinicio, "zap-comando", comandoZap, nova.comandoZap);
+        compara(requerReinicio, "tempo-lock", tempoLock, nova.tempoLock);
+        compara(requerReinicio, "sintonizadores", sintonizadores, nova.sintonizadores);
+        compara(requerReinicio, "multi-rendicao", multiRendicao, nova.multiRendicao);
+        compara(requerReinicio, "qualidade-adaptativa", qualidadeAdaptativa, nova.qualidadeAdaptativa);
+        compara(requerReinicio, "particao-nucleos", particaoNucleos, nova.particaoNucleos);
+        compara(requerReinicio, "nucleos-reservados", nucleosReservados, nova.nucleosReservados);
+        compara(requerReinicio, "buffer-dvr", tamanhoBufferDvr, nova.tamanhoBufferDvr);
+        compara(requerReinicio, "dvr-origem", origemDvr, nova.origemDvr);
+        compara(requerReinicio, "channels-file", channelsFile, nova.channelsFile);
+
+        Map<Path, Adapter> atuais = new HashMap<>();
+        adapters.forEach(e -> atuais.put(e.getDestino(), e));
+        List<Adapter> lista = new ArrayList<>();
+        List<Adapter> gravacaoRemovida = new ArrayList<>();
+        List<Adapter> gravacaoAdicionada = new ArrayList<>();
+        List<Adapter> uploadRemovido = new ArrayList<>();
+        List<Adapter> uploadAdicionado = new ArrayList<>();
+        boolean prioridadeAlterada = false;
+        for (var novo : nova.adapters) {
+            var atual = atuais.remove(novo.getDestino());
+            if (atual != null) {
+                // cota e prioridade só afetam retenção e controle de qualidade: aplicadas sem reiniciar nada
+                prioridadeAlterada |= atual.getPrioridade() != novo.getPrioridade();
+                atual.setCota(novo.getCota());
+                atual.setPrioridade(novo.getPrioridade());
+            }
+            boolean mesmaGravacao = atual != null && atual.mesmaGravacao(novo);
+            boolean mesmoUpload = atual != null && atual.mesmoUpload(novo);
+            if (mesmaGravacao && mesmoUpload) {
+                lista.add(atual);
+                continue;
+            }
+            lista.add(novo);
+            if (!mesmaGravacao) {
+                if (atual != null) {
+                    gravacaoRemovida.add(atual);
+                }
+                gravacaoAdicionada.add(novo);
+            }
+            if (!mesmoUpload) {
+                if (atual != null) {
+                    uploadRemovido.add(atual);
+                }
+                uploadAdicionado.add(novo);
+            }
+        }
+        // destinos que deixaram de existir
+        gravacaoRemovida.addAll(atuais.values());
+        uploadRemovido.addAll(atuais.values());
+
+        if (escalonador != null) {
+            escalonador.reatribui(lista.stream().filter(Adapter::isAutomatico).toList(), nova.catalogo);
+        }
+        catalogo = nova.catalogo;
+        adapters = List.copyOf(lista);
+        return new Diferenca(gravacaoRemovida, gravacaoAdicionada, uploadRemovido, uploadAdicionado, requerReinicio,
+                prioridadeAlterada);
+    }
+
+    private static void compara(List<String> alteradas, String chave, Object atual, Object novo) {
+        if (!Objects.equals(atual, novo)) {
+            alteradas.add(chave);
+        }
+    }
+
     public Path getChannelsFile() {
         return channelsFile;
     }
 
+    public CatalogoCanais getCatalogo() {
+        return catalogo;
+    }
+
+    /**
+     * @return escalonador dos serviços sem adapter fixo, ou null se
+     * "sintonizadores" não foi configurado.
+     */
+    public EscalonadorSintonizadores getEscalonador() {
+        return escalonador;
+    }
+
     public List<Adapter> getAdapters() {
         return Collections.unmodifiableList(adapters);
     }
@@ -130,5 +442,122 @@ public class Configuracao {
     public boolean isUploadAtivo() {
         return uploadAtivo;
     }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    public int getUploadsSimultaneos() {
+        return uploadsSimultaneos;
+    }
+
+    public int getUploadsPorAdapter() {
+        return uploadsPorAdapter;
+    }
+
+    /**
+     * @return limite de banda (kbit/s) do envio do segmento mais recente, 0
+     * se ilimitado.
+     */
+    public long getBandaRecente() {
+        return bandaRecente;
+    }
+
+    /**
+     * @return limite de banda (kbit/s) do envio dos segmentos atrasados, 0 se
+     * ilimitado.
+     */
+    public long getBandaAtrasado() {
+        return bandaAtrasado;
+    }
+
+    public String getEnderecoMetricas() {
+        return enderecoMetricas;
+    }
+
+    /**
+     * @return porta do endpoint de métricas, 0 se desativado.
+     */
+    public int getPortaMetricas() {
+        return portaMetricas;
+    }
+
+    /**
+     * @return tempo (ms) sem stream saudável ou sem progresso do ffmpeg até
+     * reiniciar o dvbv5-zap ou o gravador.
+     */
+    public long getTempoFalhaTs() {
+        return tempoFalhaTs * 1000L;
+    }
+
+    /**
+     * @return comando do dvbv5-zap (executável e argumentos iniciais), ao
+     * qual são acrescentados os argumentos de sintonia.
+     */
+    public List<String> getComandoZap() {
+        return comandoZap;
+    }
+
+    /**
+     * @return tempo (ms) para o sintonizador obter lock antes de reiniciar o
+     * dvbv5-zap.
+     */
+    public long getTempoLock() {
+        return tempoLock * 1000L;
+    }
+
+    /**
+     * @return uso do disco (%) a partir do qual os segmentos mais antigos já
+     * enviados são removidos.
+     */
+    public int getRetencaoAlta() {
+        return retencaoAlta;
+    }
+
+    /**
+     * @return uso do disco (%) em que a remoção para.
+     */
+    public int getRetencaoBaixa() {
+        return retencaoBaixa;
+    }
+
+    /**
+     * @return limite de remoções de segmentos por segundo.
+     */
+    public int getRemocoesPorSegundo() {
+        return remocoesPorSegundo;
+    }
+
+    public boolean isMultiRendicao() {
+        return multiRendicao;
+    }
+
+    public boolean isQualidadeAdaptativa() {
+        return qualidadeAdaptativa;
+    }
+
+    public boolean isParticaoNucleos() {
+        return particaoNucleos;
+    }
+
+    /**
+     * @return núcleos (os primeiros) deixados para a JVM, o zap e os
+     * gravadores que não recodificam.
+     */
+    public int getNucleosReservados() {
+        return nucleosReservados;
+    }
+
+    public int getTamanhoBufferDvr() {
+        return tamanhoBufferDvr;
+    }
+
+    /**
+     * @return tamanho, em bytes, do arquivo de transbordo de cada gravador; 0
+     * se desativado.
+     */
+    public long getTamanhoTransbordo() {
+        return tamanhoTransbordo;
+    }
     
 }
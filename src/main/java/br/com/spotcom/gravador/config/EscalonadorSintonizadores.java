@@ -0,0 +1,136 @@
+package br.com.spotcom.gravador.config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Distribui os serviços com sintonizador automático entre os sintonizadores
+ * disponíveis: todos os serviços de um multiplex (mesma frequência) usam o
+ * mesmo sintonizador, então é possível gravar mais serviços do que há
+ * sintonizadores.
+ * <p>
+ * Os sintonizadores que sobram ficam de reserva. Quando um sintonizador
+ * falha, o multiplex dele é movido para uma reserva; o sintonizador que
+ * falhou fica em quarentena e volta a ser reserva após
+ * {@value #QUARENTENA_MS} ms.
+ */
+public class EscalonadorSintonizadores {
+
+    public static final long QUARENTENA_MS = 10 * 60 * 1000;
+
+    private final Map<Integer, Long> atribuicoes = new LinkedHashMap<>();
+    private final Set<Integer> reservas = new LinkedHashSet<>();
+    private final Map<Integer, Long> quarentena = new LinkedHashMap<>();
+
+    /**
+     * Todos os sintonizadores começam como reserva: os serviços são
+     * atribuídos por {@link #reatribui(List, CatalogoCanais)}.
+     *
+     * @param sintonizadores números dos adapters disponíveis para atribuição
+     * automática.
+     */
+    public EscalonadorSintonizadores(List<Integer> sintonizadores) {
+        reservas.addAll(sintonizadores);
+    }
+
+    /**
+     * Atribui os serviços (nova configuração): multiplexes que já têm
+     * sintonizador o mantêm, os novos recebem uma reserva e os sintonizadores
+     * de multiplexes sem serviços voltam a ser reserva. Sem reservas
+     * suficientes nada é alterado.
+     *
+     * @param adapters serviços com sintonizador automático; recebem o número
+     * do adapter atribuído.
+     */
+    public synchronized void reatribui(List<Adapter> adapters, CatalogoCanais catalogo) {
+        Map<Long, List<Adapter>> porFrequencia = new TreeMap<>();
+        for (var adapter : adapters) {
+            var canal = catalogo.canal(adapter.getServiceName());
+            porFrequencia.computeIfAbsent(canal.frequencia(), k -> new ArrayList<>()).add(adapter);
+        }
+        long liberados = atribuicoes.values().stream().filter(e -> !porFrequencia.containsKey(e)).count();
+        long novos = porFrequencia.keySet().stream().filter(e -> !atribuicoes.containsValue(e)).count();
+        if (novos > reservas.size() + liberados) {
+            throw new IllegalArgumentException("Serviços em " + porFrequencia.size() + " frequências para "
+                    + (atribuicoes.size() + reservas.size()) + " sintonizadores.");
+        }
+
+        var it = atribuicoes.entrySet().iterator();
+        while (it.hasNext()) {
+            var e = it.next();
+            if (!porFrequencia.containsKey(e.getValue())) {
+                reservas.add(e.getKey());
+                it.remove();
+            }
+        }
+        porFrequencia.forEach((frequencia, servicos) -> {
+            int sintonizador = atribuicoes.entrySet().stream()
+                    .filter(e -> e.getValue().equals(frequencia))
+                    .mapToInt(Map.Entry::getKey)
+                    .findFirst()
+                    .orElseGet(() -> {
+                        int reserva = reservas.iterator().next();
+                        reservas.remove(reserva);
+                        atribuicoes.put(reserva, frequencia);
+                        return reserva;
+                    });
+            servicos.forEach(e -> e.setAdapter(sintonizador));
+        });
+    }
+
+    /**
+     * Registra a falha do sintonizador e escolhe uma reserva para o seu
+     * multiplex.
+     *
+     * @return sintonizador que passa a receber o multiplex, ou -1 se o
+     * sintonizador não tem atribuição automática ou não há reserva.
+     */
+    public synchronized int falhou(int sintonizador, long agora) {
+        var frequencia = atribuicoes.get(sintonizador);
+        if (frequencia == null) {
+            return -1;
+        }
+        liberaQuarentena(agora);
+        if (reservas.isEmpty()) {
+            return -1;
+        }
+        int reserva = reservas.iterator().next();
+        reservas.remove(reserva);
+        atribuicoes.remove(sintonizador);
+        atribuicoes.put(reserva, frequencia);
+        quarentena.put(sintonizador, agora);
+        return reserva;
+    }
+
+    private void liberaQuarentena(long agora) {
+        var it = quarentena.entrySet().iterator();
+        while (it.hasNext()) {
+            var e = it.next();
+            if (agora - e.getValue() >= QUARENTENA_MS) {
+                reservas.add(e.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return frequência atribuída a cada sintonizador.
+     */
+    public synchronized Map<Integer, Long> getAtribuicoes() {
+        return Map.copyOf(atribuicoes);
+    }
+
+    public synchronized Set<Integer> getReservas() {
+        return Set.copyOf(reservas);
+    }
+
+    public synchronized boolean isAutomatico(int sintonizador) {
+        return atribuicoes.containsKey(sintonizador);
+    }
+
+}
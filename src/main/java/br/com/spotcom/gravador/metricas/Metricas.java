@@ -0,0 +1,265 @@
+package br.com.spotcom.gravador.metricas;
+
+import br.com.spotcom.gravador.config.Adapter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Registro de métricas do processo, exportado no formato texto do Prometheus.
+ * <p>
+ * Os contadores e resumos usam LongAdder/DoubleAdder e os medidores um campo
+ * volátil: nenhuma atualização bloqueia. As séries são criadas uma vez (por
+ * nome e rótulos) e guardadas por quem as atualiza; também é possível
+ * registrar séries lidas por função no momento da coleta, para valores que
+ * já são mantidos pelos componentes (bytes lidos do dvr, fila de upload).
+ * <p>
+ * Os rótulos são informados em pares chave, valor.
+ */
+public final class Metricas {
+
+    private static final Metricas GLOBAL = new Metricas();
+
+    public static Metricas global() {
+        return GLOBAL;
+    }
+
+    private enum Tipo {
+        counter, gauge, summary
+    }
+
+    private static final class Familia {
+
+        final String nome;
+        final String ajuda;
+        final Tipo tipo;
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Familia(String nome, String ajuda, Tipo tipo) {
+            this.nome = nome;
+            this.ajuda = ajuda;
+            this.tipo = tipo;
+        }
+
+    }
+
+    public static final class Contador {
+
+        private final LongAdder valor = new LongAdder();
+
+        public void incrementa() {
+            valor.increment();
+        }
+
+        public void soma(long n) {
+            valor.add(n);
+        }
+
+        public long get() {
+            return valor.sum();
+        }
+
+    }
+
+    public static final class Medidor {
+
+        private volatile double valor;
+
+        public void define(double valor) {
+            this.valor = valor;
+        }
+
+        public double get() {
+            return valor;
+        }
+
+    }
+
+    /**
+     * Soma e contagem das observações (latências, em segundos).
+     */
+    public static final class Resumo {
+
+        private final LongAdder contagem = new LongAdder();
+        private final DoubleAdder soma = new DoubleAdder();
+
+        public void registra(double valor) {
+            contagem.increment();
+            soma.add(valor);
+        }
+
+        public long getContagem() {
+            return contagem.sum();
+        }
+
+        public double getSoma() {
+            return soma.sum();
+        }
+
+    }
+
+    private final Map<String, Familia> familias = new ConcurrentSkipListMap<>();
+
+    public Contador contador(String nome, String ajuda, String... rotulos) {
+        return (Contador) serie(nome, ajuda, Tipo.counter, rotulos, Contador::new);
+    }
+
+    /**
+     * Contador lido por função na coleta (substitui a função anterior da
+     * mesma série).
+     */
+    public void contador(String nome, String ajuda, LongSupplier funcao, String... rotulos) {
+        registra(nome, ajuda, Tipo.counter, rotulos, funcao);
+    }
+
+    public Medidor medidor(String nome, String ajuda, String... rotulos) {
+        return (Medidor) serie(nome, ajuda, Tipo.gauge, rotulos, Medidor::new);
+    }
+
+    /**
+     * Medidor lido por função na coleta (substitui a função anterior da
+     * mesma série).
+     */
+    public void medidor(String nome, String ajuda, DoubleSupplier funcao, String... rotulos) {
+        registra(nome, ajuda, Tipo.gauge, rotulos, funcao);
+    }
+
+    public Resumo resumo(String nome, String ajuda, String... rotulos) {
+        return (Resumo) serie(nome, ajuda, Tipo.summary, rotulos, Resumo::new);
+    }
+
+    private Object serie(String nome, String ajuda, Tipo tipo, String[] rotulos, Supplier<Object> nova) {
+        return familia(nome, ajuda, tipo).series.computeIfAbsent(formataRotulos(rotulos), k -> nova.get());
+    }
+
+    private void registra(String nome, String ajuda, Tipo tipo, String[] rotulos, Object funcao) {
+        var rotulo = formataRotulos(rotulos);
+        familia(nome, ajuda, tipo).series.put(rotulo, funcao);
+    }
+
+    /**
+     * Remove a série com os rótulos informados e as que têm rótulos
+     * adicionais depois deles (por PID, por classe). Chamado por quem
+     * registrou a série quando o componente sai da configuração: as séries
+     * lidas por função mantêm o componente (e seus buffers) alcançável.
+     */
+    public void remove(String nome, String... rotulos) {
+        var familia = familias.get(nome);
+        if (familia == null) {
+            return;
+        }
+        var rotulo = formataRotulos(rotulos);
+        // sem o '}' final: os rótulos adicionais começam com ','
+        var prefixo = rotulo.isEmpty() ? "" : rotulo.substring(0, rotulo.length() - 1);
+        familia.series.keySet().removeIf(k -> k.startsWith(prefixo)
+                && (prefixo.isEmpty() || k.charAt(prefixo.length()) == '}' || k.charAt(prefixo.length()) == ','));
+    }
+
+    /**
+     * Remove a série lida pela função informada, se ainda for ela a
+     * registrada: outra instância do componente pode já ter registrado a
+     * sua com os mesmos rótulos.
+     */
+    public void removeSe(String nome, Object funcao, String... rotulos) {
+        var familia = familias.get(nome);
+        if (familia != null) {
+            familia.series.remove(formataRotulos(rotulos), funcao);
+        }
+    }
+
+    private Familia familia(String nome, String ajuda, Tipo tipo) {
+        var familia = familias.computeIfAbsent(nome, k -> new Familia(nome, ajuda, tipo));
+        if (familia.tipo != tipo) {
+            throw new IllegalArgumentException("Métrica " + nome + " já registrada como " + familia.tipo);
+        }
+        return familia;
+    }
+
+    /**
+     * Rótulos comuns das métricas de um adapter configurado.
+     */
+    public static String[] rotulos(Adapter adapter, String... outros) {
+        var rotulos = new String[6 + outros.length];
+        rotulos[0] = "adapter";
+        rotulos[1] = String.valueOf(adapter.getAdapter());
+        rotulos[2] = "servico";
+        rotulos[3] = adapter.getServiceName();
+        rotulos[4] = "destino";
+        rotulos[5] = adapter.getDestino().getFileName().toString();
+        System.arraycopy(outros, 0, rotulos, 6, outros.length);
+        return rotulos;
+    }
+
+    private static String formataRotulos(String[] rotulos) {
+        if (rotulos.length % 2 != 0) {
+            throw new IllegalArgumentException("Rótulos devem ser pares chave, valor");
+        }
+        if (rotulos.length == 0) {
+            return "";
+        }
+        var sb = new StringBuilder("{");
+        for (int i = 0; i < rotulos.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(rotulos[i]).append("=\"");
+            var valor = rotulos[i + 1] == null ? "" : rotulos[i + 1];
+            for (char c : valor.toCharArray()) {
+                switch (c) {
+                    case '\\' -> sb.append("\\\\");
+                    case '"' -> sb.append("\\\"");
+                    case '\n' -> sb.append("\\n");
+                    default -> sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Escreve todas as séries no formato texto do Prometheus (0.0.4).
+     */
+    public void escreve(Appendable saida) throws IOException {
+        for (var familia : familias.values()) {
+            saida.append("# HELP ").append(familia.nome).append(' ').append(familia.ajuda).append('\n');
+            saida.append("# TYPE ").append(familia.nome).append(' ').append(familia.tipo.name()).append('\n');
+            for (var serie : familia.series.entrySet()) {
+                var rotulo = serie.getKey();
+                switch (serie.getValue()) {
+                    case Contador c -> linha(saida, familia.nome, rotulo, c.get());
+                    case Medidor m -> linha(saida, familia.nome, rotulo, m.get());
+                    case Resumo r -> {
+                        linha(saida, familia.nome + "_sum", rotulo, r.getSoma());
+                        linha(saida, familia.nome + "_count", rotulo, r.getContagem());
+                    }
+                    case LongSupplier f -> linha(saida, familia.nome, rotulo, f.getAsLong());
+                    case DoubleSupplier f -> linha(saida, familia.nome, rotulo, f.getAsDouble());
+                    default -> throw new IllegalStateException(serie.getValue().toString());
+                }
+            }
+        }
+    }
+
+    private static void linha(Appendable saida, String nome, String rotulo, long valor) throws IOException {
+        saida.append(nome).append(rotulo).append(' ').append(Long.toString(valor)).append('\n');
+    }
+
+    private static void linha(Appendable saida, String nome, String rotulo, double valor) throws IOException {
+        String texto;
+        if (Double.isNaN(valor)) {
+            texto = "NaN";
+        } else if (Double.isInfinite(valor)) {
+            texto = valor > 0 ? "+Inf" : "-Inf";
+        } else {
+            texto = Double.toString(valor);
+        }
+        saida.append(nome).append(rotulo).append(' ').append(texto).append('\n');
+    }
+
+}
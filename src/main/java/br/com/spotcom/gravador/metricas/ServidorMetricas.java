@@ -0,0 +1,57 @@
+package br.com.spotcom.gravador.metricas;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Endpoint HTTP local ({@code GET /metrics}) com as métricas de
+ * {@link Metricas} no formato texto do Prometheus.
+ */
+public class ServidorMetricas {
+
+    private final HttpServer server;
+    private final Metricas metricas;
+
+    public ServidorMetricas(String endereco, int porta, Metricas metricas) throws IOException {
+        this.metricas = metricas;
+        this.server = HttpServer.create(new InetSocketAddress(endereco, porta), 0);
+        this.server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "metricas");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.server.createContext("/metrics", this::trata);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPorta() {
+        return server.getAddress().getPort();
+    }
+
+    private void trata(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var texto = new StringBuilder(16 * 1024);
+            metricas.escreve(texto);
+            var bytes = texto.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package br.com.spotcom.gravador.simulacao;
+
+import br.com.spotcom.gravador.AlimentadorFifo;
+import br.com.spotcom.gravador.LeitorDvr;
+import br.com.spotcom.gravador.ts.PacoteTs;
+import com.github.kokorin.jaffree.net.FtpServer;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compara o custo, na JVM, de entregar o stream do {@code LeitorDvr} ao
+ * ffmpeg pelo ChannelInput do Jaffree (captura "canal") e por named pipe
+ * (captura "fifo"), sem ffmpeg nem placa.
+ * <p>
+ * Um gerador escreve TS sintético, no ritmo informado, num pipe que faz o
+ * papel do dvr0. O papel do ffmpeg é feito por um processo externo que
+ * descarta o que lê: {@code curl ftp://...} no servidor FTP local do Jaffree
+ * ou {@code cat} no pipe. Para cada modo são medidos o tempo de CPU do
+ * processo (descontado o gerador), os bytes alocados no heap e as coletas.
+ * <p>
+ * Uso: java -cp gravador3.jar br.com.spotcom.gravador.simulacao.BancadaCaptura [segundos] [Mbit/s]
+ */
+public class BancadaCaptura {
+
+    private record Medida(String modo, long bytes, long cpuNanos, long alocados, long coletas, long duracaoNanos) {
+
+        @Override
+        public String toString() {
+            double segundos = duracaoNanos / 1e9;
+            return String.format("%-6s %8.1f MB %7.1f Mbit/s  CPU %6.0f ms (%5.1f%%)  heap alocado %8.1f MB  coletas %d",
+                    modo, bytes / 1e6, bytes * 8 / 1e6 / segundos, cpuNanos / 1e6, 100.0 * cpuNanos / duracaoNanos,
+                    alocados / 1e6, coletas);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int segundos = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int mbits = args.length > 1 ? Integer.parseInt(args[1]) : 80;
+        var dir = Files.createTempDirectory("bancada-captura");
+
+        System.out.println("TS sintético a " + mbits + " Mbit/s por " + segundos + " s em cada modo");
+        // primeira rodada só aquece o JIT
+        executa("canal", dir, 3, mbits);
+        executa("fifo", dir, 3, mbits);
+        var canal = executa("canal", dir, segundos, mbits);
+        var fifo = executa("fifo", dir, segundos, mbits);
+        System.out.println(canal);
+        System.out.println(fifo);
+        System.out.printf("fifo/canal: CPU %.2f, heap alocado %.2f%n",
+                (double) fifo.cpuNanos() / canal.cpuNanos(), (double) fifo.alocados() / Math.max(1, canal.alocados()));
+        System.exit(0);
+    }
+
+    private static Medida executa(String modo, Path dir, int segundos, int mbits) throws Exception {
+        var dvr = dir.resolve("dvr0-" + modo);
+        Files.deleteIfExists(dvr);
+        new ProcessBuilder("mkfifo", dvr.toString()).inheritIO().start().waitFor();
+
+        var gerador = new Thread(() -> gera(dvr, segundos, mbits), "gerador");
+        gerador.setDaemon(true);
+        gerador.start();
+
+        var leitor = new LeitorDvr(dvr, 16 * 1024 * 1024);
+        var cursor = leitor.abrirCursor();
+        Process consumidor;
+        FtpServer ftp = null;
+        AlimentadorFifo alimentador = null;
+        if (modo.equals("canal")) {
+            // o mesmo servidor que o ChannelInput usa para entregar o canal ao ffmpeg
+            ftp = FtpServer.onRandomPorts(cursor);
+            var servidor = new Thread(ftp, "ftp");
+            servidor.setDaemon(true);
+            servidor.start();
+            consumidor = new ProcessBuilder("curl", "-s", "--disable-epsv", "-o", "/dev/null", "ftp://" + ftp.getAddressAndPort() + "/dvr0")
+                    .inheritIO().redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        } else {
+            alimentador = AlimentadorFifo.inicia(cursor, "bancada");
+            consumidor = new ProcessBuilder("cat", alimentador.getFifo().toString())
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        }
+
+        var so = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long cpu0 = so.getProcessCpuTime() - threads.getThreadCpuTime(gerador.threadId());
+        long alocados0 = threads.getTotalThreadAllocatedBytes();
+        long coletas0 = coletas();
+        long t0 = System.nanoTime();
+        long bytes0 = cursor.position();
+
+        gerador.join();
+        // o que ainda está no anel e nos pipes
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        long duracao = System.nanoTime() - t0;
+        long bytes = cursor.position() - bytes0;
+        long cpu = so.getProcessCpuTime() - threads.getThreadCpuTime(gerador.threadId());
+        var medida = new Medida(modo, bytes, Math.max(0, cpu - cpu0),
+                threads.getTotalThreadAllocatedBytes() - alocados0, coletas() - coletas0, duracao);
+
+        cursor.close();
+        if (alimentador != null) {
+            alimentador.stop();
+        }
+        if (ftp != null) {
+            ftp.close();
+        }
+        consumidor.destroy();
+        consumidor.waitFor(5, TimeUnit.SECONDS);
+        Files.deleteIfExists(dvr);
+        if (leitor.getDescartes() > 0) {
+            System.out.println(modo + ": consumidor descartado por atraso, medida inválida");
+        }
+        return medida;
+    }
+
+    /**
+     * Escreve pacotes TS (um PID de vídeo, contador de continuidade
+     * correto) no ritmo informado, em blocos a cada 10 ms.
+     */
+    private static void gera(Path dvr, int segundos, int mbits) {
+        int porBloco = (int) ((long) mbits * 1_000_000 / 8 / 100 / PacoteTs.TAMANHO);
+        var bloco = ByteBuffer.allocateDirect(porBloco * PacoteTs.TAMANHO);
+        int continuidade = 0;
+        try (var canal = FileChannel.open(dvr, StandardOpenOption.WRITE)) {
+            long inicio = System.nanoTime();
+            for (long n = 0; n < segundos * 100L; n++) {
+                bloco.clear();
+                for (int i = 0; i < porBloco; i++) {
+                    bloco.put((byte) 0x47).put((byte) 0x01).put((byte) 0x00).put((byte) (0x10 | continuidade));
+                    continuidade = (continuidade + 1) & 0x0f;
+                    for (int j = 4; j < PacoteTs.TAMANHO; j++) {
+                        bloco.put((byte) j);
+                    }
+                }
+                bloco.flip();
+                while (bloco.hasRemaining()) {
+                    canal.write(bloco);
+                }
+                long espera = inicio + (n + 1) * 10_000_000 - System.nanoTime();
+                if (espera > 0) {
+                    TimeUnit.NANOSECONDS.sleep(espera);
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            System.out.println("Gerador encerrado: " + ex);
+        }
+    }
+
+    private static long coletas() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+                .sum();
+    }
+
+}
@@ -0,0 +1,115 @@
+package br.com.spotcom.gravador.simulacao;
+
+import br.com.spotcom.gravador.DivisorNucleos;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Compara o total de quadros por segundo de vários libx264 simultâneos com a
+ * divisão padrão de threads e com os núcleos divididos pelo
+ * {@link DivisorNucleos} ({@code -threads} e {@code taskset}), como faz o
+ * GerenciadorGravacao com "particao-nucleos".
+ * <p>
+ * Cada processo codifica o testsrc2 do lavfi (sem placa) o mais rápido
+ * possível, descartando a saída; os quadros vêm do {@code -progress}.
+ * <p>
+ * Uso: java -cp gravador3.jar br.com.spotcom.gravador.simulacao.BancadaNucleos [processos] [segundos] [núcleos reservados] [resolução]
+ */
+public class BancadaNucleos {
+
+    public static void main(String[] args) throws Exception {
+        int processos = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int segundos = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int reservados = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        String resolucao = args.length > 3 ? args[3] : "1280x720";
+
+        int total = Runtime.getRuntime().availableProcessors();
+        reservados = Math.min(reservados, total - 1);
+        var livres = IntStream.range(reservados, total).boxed().toList();
+        Map<Integer, Integer> prioridades = new LinkedHashMap<>();
+        for (int i = 0; i < processos; i++) {
+            prioridades.put(i, 0);
+        }
+        var divisao = DivisorNucleos.divide(livres, prioridades);
+
+        System.out.println(processos + " libx264 " + resolucao + " por " + segundos + " s, " + total + " núcleos ("
+                + reservados + " reservados)");
+        if (livres.size() < processos) {
+            // núcleos repetidos entre processos: as duas execuções disputam os mesmos núcleos
+            System.out.println("Aviso: " + livres.size() + " núcleos livres para " + processos
+                    + " processos, a divisão compartilha núcleos e a comparação mede só o custo das threads");
+        }
+        double padrao = executa(processos, segundos, resolucao, null);
+        System.out.printf("padrão:      %7.1f quadros/s%n", padrao);
+        double dividido = executa(processos, segundos, resolucao, divisao);
+        System.out.printf("dividido:    %7.1f quadros/s  %s%n", dividido, divisao.values());
+        System.out.printf("dividido/padrão: %.2f%n", dividido / padrao);
+    }
+
+    /**
+     * @return soma dos quadros por segundo dos processos.
+     */
+    private static double executa(int processos, int segundos, String resolucao, Map<Integer, List<Integer>> divisao)
+            throws IOException, InterruptedException {
+        List<Process> lista = new ArrayList<>();
+        List<AtomicLong> quadros = new ArrayList<>();
+        List<Thread> leitores = new ArrayList<>();
+        long inicio = System.nanoTime();
+        for (int i = 0; i < processos; i++) {
+            List<String> comando = new ArrayList<>();
+            var nucleos = divisao != null ? divisao.get(i) : null;
+            if (nucleos != null) {
+                comando.addAll(List.of("taskset", "-c", nucleos.stream().map(String::valueOf).collect(Collectors.joining(","))));
+            }
+            comando.addAll(List.of("ffmpeg", "-hide_banner", "-nostats", "-loglevel", "error", "-progress", "pipe:1"));
+            if (nucleos != null) {
+                comando.addAll(List.of("-filter_threads", String.valueOf(nucleos.size())));
+            }
+            comando.addAll(List.of("-f", "lavfi", "-i", "testsrc2=size=" + resolucao + ":rate=30",
+                    "-t", String.valueOf(segundos * 10), "-c:v", "libx264"));
+            if (nucleos != null) {
+                comando.addAll(List.of("-threads", String.valueOf(nucleos.size())));
+            }
+            comando.addAll(List.of("-f", "null", "-"));
+
+            var processo = new ProcessBuilder(comando).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            var contador = new AtomicLong();
+            var leitor = new Thread(() -> le(processo, contador));
+            leitor.start();
+            lista.add(processo);
+            quadros.add(contador);
+            leitores.add(leitor);
+        }
+
+        Thread.sleep(segundos * 1000L);
+        long soma = quadros.stream().mapToLong(AtomicLong::get).sum();
+        double decorrido = (System.nanoTime() - inicio) / 1e9;
+        lista.forEach(Process::destroy);
+        for (var leitor : leitores) {
+            leitor.join(5000);
+        }
+        return soma / decorrido;
+    }
+
+    private static void le(Process processo, AtomicLong quadros) {
+        try (var leitor = new BufferedReader(new InputStreamReader(processo.getInputStream()))) {
+            String linha;
+            while ((linha = leitor.readLine()) != null) {
+                if (linha.startsWith("frame=")) {
+                    quadros.set(Long.parseLong(linha.substring(6).trim()));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            // processo encerrado
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+package br.com.spotcom.gravador.simulacao;
+
+import br.com.spotcom.gravador.ts.PacoteTs;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reproduz um arquivo MPEG-TS, em laço, num caminho que faz o papel do dvr0
+ * (normalmente um named pipe lido pelo gravador), no ritmo do PCR: cada
+ * pacote com PCR só é escrito quando o relógio alcança o seu instante.
+ * <p>
+ * A cada volta o PCR e os PTS/DTS são deslocados pela duração do arquivo e
+ * os contadores de continuidade seguem em sequência, assim o ffmpeg vê um
+ * stream contínuo, como o de um sintonizador. Se o leitor fecha o pipe
+ * (gravador reiniciado), o caminho é reaberto e a reprodução continua do
+ * mesmo ponto.
+ */
+public class ReprodutorTs {
+
+    private static final long CICLO = 1L << 33;
+    private static final int PACOTES_POR_ESCRITA = 64;
+
+    private final ByteBuffer ts;
+    private final Path destino;
+    private final int pidPcr;
+    private final long primeiroPcr;
+    // duração de uma volta (90 kHz): do primeiro ao último PCR mais um intervalo médio
+    private final long duracao;
+    private final int[] continuidade = new int[8192];
+    private final Thread thread;
+    private volatile boolean ativo = true;
+    private volatile long escritos;
+
+    /**
+     * @param ts conteúdo do arquivo ({@link #carrega(Path)}), compartilhado
+     * entre reprodutores (só é lido).
+     */
+    public ReprodutorTs(ByteBuffer ts, Path destino) {
+        this.ts = ts.duplicate();
+        this.destino = destino;
+
+        int pid = -1;
+        long primeiro = -1;
+        long ultimo = -1;
+        int total = 0;
+        for (int pos = 0; pos + PacoteTs.TAMANHO <= this.ts.limit(); pos += PacoteTs.TAMANHO) {
+            if (!temPcr(this.ts, pos) || (pid >= 0 && PacoteTs.pid(this.ts, pos) != pid)) {
+                continue;
+            }
+            pid = PacoteTs.pid(this.ts, pos);
+            long pcr = pcr(this.ts, pos);
+            if (primeiro < 0) {
+                primeiro = pcr;
+            }
+            ultimo = primeiro + Math.floorMod(pcr - primeiro, CICLO);
+            total++;
+        }
+        if (total < 2) {
+            throw new IllegalArgumentException("Arquivo TS sem PCR");
+        }
+        this.pidPcr = pid;
+        this.primeiroPcr = primeiro;
+        this.duracao = (ultimo - primeiro) + (ultimo - primeiro) / (total - 1);
+
+        this.thread = new Thread(this::executa, "reprodutor-" + destino);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Lê o arquivo inteiro para a memória, a partir do primeiro pacote e
+     * descartando o pacote incompleto no final.
+     */
+    public static ByteBuffer carrega(Path arquivo) throws IOException {
+        try (var canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+            var buf = ByteBuffer.allocateDirect((int) canal.size());
+            while (buf.hasRemaining() && canal.read(buf) >= 0) {
+                // lê tudo
+            }
+            buf.flip();
+            int inicio = PacoteTs.ressincroniza(buf, 0, buf.limit());
+            if (inicio < 0) {
+                throw new IOException("Arquivo " + arquivo + " não é MPEG-TS");
+            }
+            buf.position(inicio);
+            buf.limit(inicio + (buf.limit() - inicio) / PacoteTs.TAMANHO * PacoteTs.TAMANHO);
+            return buf.slice();
+        }
+    }
+
+    /**
+     * @return duração de uma volta do arquivo, em ms.
+     */
+    public long getDuracao() {
+        return duracao / 90;
+    }
+
+    /**
+     * @return bytes já escritos no destino.
+     */
+    public long getEscritos() {
+        return escritos;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        ativo = false;
+        thread.interrupt();
+        // libera a thread presa na abertura se ninguém abriu o pipe (O_RDWR não bloqueia)
+        try {
+            FileChannel.open(destino, StandardOpenOption.READ, StandardOpenOption.WRITE).close();
+        } catch (IOException ex) {
+            // pipe já removido
+        }
+    }
+
+    private void executa() {
+        var bloco = ByteBuffer.allocateDirect(PacoteTs.TAMANHO * PACOTES_POR_ESCRITA);
+        int pos = 0;
+        long deslocamento = 0;
+        while (ativo) {
+            try (var canal = FileChannel.open(destino, StandardOpenOption.WRITE)) {
+                // o ritmo recomeça no primeiro PCR após (re)abrir
+                long base = -1;
+                long inicio = 0;
+                while (ativo) {
+                    if (pos + PacoteTs.TAMANHO > ts.limit()) {
+                        pos = 0;
+                        deslocamento += duracao;
+                    }
+                    int p = bloco.position();
+                    bloco.put(p, ts, pos, PacoteTs.TAMANHO);
+                    bloco.position(p + PacoteTs.TAMANHO);
+                    reescreve(bloco, p, deslocamento);
+
+                    if (PacoteTs.pid(ts, pos) == pidPcr && temPcr(ts, pos)) {
+                        long instante = Math.floorMod(pcr(ts, pos) - primeiroPcr, CICLO) + deslocamento;
+                        escreve(canal, bloco);
+                        if (base < 0) {
+                            base = instante;
+                            inicio = System.nanoTime();
+                        } else {
+                            long espera = inicio + (instante - base) * 1_000_000_000L / 90_000 - System.nanoTime();
+                            if (espera > 0) {
+                                TimeUnit.NANOSECONDS.sleep(espera);
+                            }
+                        }
+                    } else if (!bloco.hasRemaining()) {
+                        escreve(canal, bloco);
+                    }
+                    pos += PacoteTs.TAMANHO;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException ex) {
+                // leitor fechou o pipe: o que estava no bloco é descartado, como no dvr0
+                bloco.clear();
+                if (ativo) {
+                    System.out.println(LocalDateTime.now().toString() + " - Reprodução em " + destino + " interrompida: " + ex.getMessage());
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(200);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void escreve(FileChannel canal, ByteBuffer bloco) throws IOException {
+        bloco.flip();
+        while (bloco.hasRemaining()) {
+            escritos += canal.write(bloco);
+        }
+        bloco.clear();
+    }
+
+    /**
+     * Continuidade em sequência e, a partir da segunda volta, PCR e PTS/DTS
+     * deslocados.
+     */
+    private void reescreve(ByteBuffer buf, int pos, long deslocamento) {
+        int pid = PacoteTs.pid(buf, pos);
+        if (pid == PacoteTs.PID_NULO) {
+            return;
+        }
+        int cc;
+        if (PacoteTs.temPayload(buf, pos)) {
+            cc = continuidade[pid];
+            continuidade[pid] = (cc + 1) & 0x0F;
+        } else {
+            cc = (continuidade[pid] - 1) & 0x0F;
+        }
+        buf.put(pos + 3, (byte) ((buf.get(pos + 3) & 0xF0) | cc));
+        if (deslocamento == 0) {
+            return;
+        }
+
+        if (temPcr(buf, pos)) {
+            long base = (pcr(buf, pos) + deslocamento) % CICLO;
+            buf.put(pos + 6, (byte) (base >> 25));
+            buf.put(pos + 7, (byte) (base >> 17));
+            buf.put(pos + 8, (byte) (base >> 9));
+            buf.put(pos + 9, (byte) (base >> 1));
+            buf.put(pos + 10, (byte) (((base & 1) << 7) | (buf.get(pos + 10) & 0x7F)));
+        }
+
+        int payload = PacoteTs.inicioPayload(buf, pos);
+        if (!PacoteTs.inicioUnidade(buf, pos) || payload < 0 || payload + 19 > PacoteTs.TAMANHO) {
+            return;
+        }
+        int p = pos + payload;
+        if (buf.get(p) != 0 || buf.get(p + 1) != 0 || buf.get(p + 2) != 1 || !temCabecalhoPes(buf.get(p + 3) & 0xFF)) {
+            return;
+        }
+        int flags = (buf.get(p + 7) & 0xC0) >> 6;
+        if ((flags & 0x02) != 0) {
+            escreveTimestamp(buf, p + 9, (timestamp(buf, p + 9) + deslocamento) % CICLO);
+        }
+        if (flags == 0x03) {
+            escreveTimestamp(buf, p + 14, (timestamp(buf, p + 14) + deslocamento) % CICLO);
+        }
+    }
+
+    private static boolean temCabecalhoPes(int streamId) {
+        return switch (streamId) {
+            case 0xBC, 0xBE, 0xBF, 0xF0, 0xF1, 0xF2, 0xF8, 0xFF -> false;
+            default -> true;
+        };
+    }
+
+    private static boolean temPcr(ByteBuffer buf, int pos) {
+        return PacoteTs.temAdaptacao(buf, pos) && (buf.get(pos + 4) & 0xFF) >= 7 && (buf.get(pos + 5) & 0x10) != 0;
+    }
+
+    /**
+     * @return base do PCR (90 kHz).
+     */
+    private static long pcr(ByteBuffer buf, int pos) {
+        return ((long) (buf.get(pos + 6) & 0xFF) << 25)
+                | ((buf.get(pos + 7) & 0xFF) << 17)
+                | ((buf.get(pos + 8) & 0xFF) << 9)
+                | ((buf.get(pos + 9) & 0xFF) << 1)
+                | ((buf.get(pos + 10) & 0x80) >> 7);
+    }
+
+    private static long timestamp(ByteBuffer buf, int pos) {
+        return ((long) (buf.get(pos) & 0x0E) << 29)
+                | ((buf.get(pos + 1) & 0xFF) << 22)
+                | ((buf.get(pos + 2) & 0xFE) << 14)
+                | ((buf.get(pos + 3) & 0xFF) << 7)
+                | ((buf.get(pos + 4) & 0xFE) >> 1);
+    }
+
+    private static void escreveTimestamp(ByteBuffer buf, int pos, long valor) {
+        buf.put(pos, (byte) ((buf.get(pos) & 0xF0) | ((valor >> 29) & 0x0E) | 0x01));
+        buf.put(pos + 1, (byte) (valor >> 22));
+        buf.put(pos + 2, (byte) (((valor >> 14) & 0xFE) | 0x01));
+        buf.put(pos + 3, (byte) (valor >> 7));
+        buf.put(pos + 4, (byte) (((valor << 1) & 0xFE) | 0x01));
+    }
+
+    /**
+     * Cria o named pipe, se ainda não existir.
+     */
+    public static void criaFifo(Path caminho) throws IOException, InterruptedException {
+        if (Files.exists(caminho)) {
+            return;
+        }
+        Files.createDirectories(caminho.getParent());
+        var mkfifo = new ProcessBuilder("mkfifo", caminho.toString()).inheritIO().start();
+        if (mkfifo.waitFor() != 0) {
+            throw new IOException("mkfifo " + caminho + " falhou");
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package br.com.spotcom.gravador.simulacao;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Servidor local que implementa a API de upload para testes e simulações:
+ * <ul>
+ * <li>{@code GET /upload/{gravador}/{praca}/{rede}/latest}</li>
+ * <li>{@code POST /upload/{gravador}/{praca}/{rede}/{data}/{arquivo}} (arquivo inteiro)</li>
+ * <li>{@code GET .../{arquivo}/offset}, {@code POST .../{arquivo}/append?offset=N}
+ * e {@code POST .../{arquivo}/finalize?size=N&sha256=H} (envio retomável)</li>
+ * </ul>
+ * Os arquivos são gravados em {@code <dir>/{gravador}/{praca}/{rede}/{data}/}.
+ * <p>
+ * Para simular a rede, cada requisição pode ser atrasada e uma fração dos
+ * POSTs pode falhar (503, corpo descartado).
+ * <p>
+ * Uso: java -cp gravador3.jar br.com.spotcom.gravador.simulacao.ServidorUploadStub [porta] [dir] [latência ms] [taxa de falhas]
+ */
+public class ServidorUploadStub {
+
+    private static final String PARCIAL = ".parcial";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Path dir;
+    private volatile long latencia;
+    private volatile double taxaFalhas;
+    private volatile Consumer<Path> recebido = arquivo -> {
+    };
+
+    public ServidorUploadStub(int porta, Path dir) throws IOException {
+        this.dir = dir;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", porta), 0);
+        // threads de plataforma: a leitura do corpo pelo HttpServer prende (pin) a virtual thread
+        // ao carrier e, com um só núcleo, um append interrompido pararia os demais pedidos
+        this.server.setExecutor(executor);
+        this.server.createContext("/upload/", this::trata);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPorta() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Atraso (ms) antes de tratar cada requisição.
+     */
+    public void setLatencia(long latencia) {
+        this.latencia = latencia;
+    }
+
+    /**
+     * Fração (0 a 1) dos POSTs respondidos com 503.
+     */
+    public void setTaxaFalhas(double taxaFalhas) {
+        this.taxaFalhas = taxaFalhas;
+    }
+
+    /**
+     * Chamado com o caminho de cada arquivo recebido por completo.
+     */
+    public void setRecebido(Consumer<Path> recebido) {
+        this.recebido = recebido;
+    }
+
+    private void trata(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            var partes = exchange.getRequestURI().getPath().substring("/upload/".length()).split("/");
+            var metodo = exchange.getRequestMethod();
+            var parametros = parametros(exchange.getRequestURI());
+            if (latencia > 0) {
+                Thread.sleep(latencia);
+            }
+            if (metodo.equals("POST") && ThreadLocalRandom.current().nextDouble() < taxaFalhas) {
+                exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+                responde(exchange, 503, "");
+                return;
+            }
+
+            if (partes.length == 4 && partes[3].equals("latest") && metodo.equals("GET")) {
+                latest(exchange, dir.resolve(partes[0]).resolve(partes[1]).resolve(partes[2].trim()));
+                return;
+            }
+            if (partes.length < 5) {
+                responde(exchange, 404, "");
+                return;
+            }
+            Path arquivo = dir.resolve(partes[0]).resolve(partes[1]).resolve(partes[2].trim())
+                    .resolve(partes[3]).resolve(partes[4]);
+            Path parcial = arquivo.resolveSibling(arquivo.getFileName() + PARCIAL);
+            Files.createDirectories(arquivo.getParent());
+
+            String acao = partes.length > 5 ? partes[5] : "";
+            switch (acao) {
+                case "" -> {
+                    // arquivo inteiro
+                    try (var in = exchange.getRequestBody()) {
+                        Files.copy(in, arquivo, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    Files.deleteIfExists(parcial);
+                    responde(exchange, 201, "");
+                    recebido.accept(arquivo);
+                }
+                case "offset" -> {
+                    if (Files.exists(parcial)) {
+                        responde(exchange, 200, String.valueOf(Files.size(parcial)));
+                    } else {
+                        responde(exchange, 404, "");
+                    }
+                }
+                case "append" -> {
+                    long offset = Long.parseLong(parametros.getOrDefault("offset", "0"));
+                    long atual = Files.exists(parcial) ? Files.size(parcial) : 0;
+                    if (offset != atual) {
+                        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+                        responde(exchange, 409, String.valueOf(atual));
+                        return;
+                    }
+                    try (InputStream in = exchange.getRequestBody();
+                            var out = Files.newOutputStream(parcial, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                        in.transferTo(out);
+                    }
+                    responde(exchange, 204, "");
+                }
+                case "finalize" -> {
+                    long tamanho = Long.parseLong(parametros.getOrDefault("size", "-1"));
+                    String hash = parametros.getOrDefault("sha256", "");
+                    if (!Files.exists(parcial) || Files.size(parcial) != tamanho || !sha256(parcial).equalsIgnoreCase(hash)) {
+                        Files.deleteIfExists(parcial);
+                        responde(exchange, 409, "");
+                        return;
+                    }
+                    Files.move(parcial, arquivo, StandardCopyOption.REPLACE_EXISTING);
+                    responde(exchange, 201, "");
+                    recebido.accept(arquivo);
+                }
+                default -> responde(exchange, 404, "");
+            }
+        } catch (RuntimeException ex) {
+            System.err.println("Falha na requisição " + exchange.getRequestURI() + ": " + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void latest(HttpExchange exchange, Path dirRede) throws IOException {
+        LocalDateTime ultimo = null;
+        if (Files.isDirectory(dirRede)) {
+            try (var datas = Files.newDirectoryStream(dirRede)) {
+                for (var dirData : datas) {
+                    try (var arquivos = Files.newDirectoryStream(dirData, "[0-9][0-9][0-9][0-9][0-9][0-9].mp4")) {
+                        for (var arquivo : arquivos) {
+                            var nome = arquivo.getFileName().toString();
+                            var hora = LocalDate.parse(dirData.getFileName().toString(), DateTimeFormatter.ISO_LOCAL_DATE)
+                                    .atTime(LocalTime.parse(nome.substring(0, 6), DateTimeFormatter.ofPattern("HHmmss")));
+                            if (ultimo == null || hora.isAfter(ultimo)) {
+                                ultimo = hora;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (ultimo == null) {
+            responde(exchange, 404, "");
+        } else {
+            responde(exchange, 200, ultimo.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        }
+    }
+
+    private static void responde(HttpExchange exchange, int status, String corpo) throws IOException {
+        byte[] bytes = corpo.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (var out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static Map<String, String> parametros(URI uri) {
+        Map<String, String> parametros = new HashMap<>();
+        if (uri.getQuery() != null) {
+            for (var par : uri.getQuery().split("&")) {
+                int i = par.indexOf('=');
+                if (i > 0) {
+                    parametros.put(par.substring(0, i), par.substring(i + 1));
+                }
+            }
+        }
+        return parametros;
+    }
+
+    private static String sha256(Path arquivo) throws IOException {
+        try (var in = Files.newInputStream(arquivo)) {
+            var digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1024 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int porta = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Path dir = Path.of(args.length > 1 ? args[1] : "recebidos");
+        var servidor = new ServidorUploadStub(porta, dir);
+        servidor.setLatencia(args.length > 2 ? Long.parseLong(args[2]) : 0);
+        servidor.setTaxaFalhas(args.length > 3 ? Double.parseDouble(args[3]) : 0);
+        servidor.start();
+        System.out.println(LocalDateTime.now().toString() + " - Servidor de upload (stub) em 127.0.0.1:" + servidor.getPorta() + ", gravando em " + dir.toAbsolutePath());
+    }
+
+}
@@ -0,0 +1,495 @@
+package br.com.spotcom.gravador.simulacao;
+
+import br.com.spotcom.gravador.ts.PacoteTs;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Teste de carga ponta a ponta sem sintonizador: zap, gravador, segmentos e
+ * upload, com o gravador real ({@code Main}) num processo filho.
+ * <p>
+ * Cada adapter recebe, por um named pipe configurado em "dvr-origem", o
+ * mesmo arquivo TS reproduzido no ritmo do PCR ({@link ReprodutorTs}); o
+ * dvbv5-zap é o {@link ZapFalso} e o servidor é o {@link ServidorUploadStub}
+ * no processo da simulação, com latência e falhas configuráveis. Sem
+ * {@code --ts}, um TS de 60 s (1080i, 10 Mbit/s CBR) é gerado com o ffmpeg.
+ * <p>
+ * Para cada quantidade de adapters, ao final informa:
+ * <ul>
+ * <li>núcleos usados pelo gravador e pelos ffmpeg (fora o aquecimento) e
+ * adapters por núcleo; a carga é sustentada se todos os ffmpeg mantêm a
+ * velocidade em pelo menos 95% das amostras e nenhum consumidor do dvr é
+ * descartado;</li>
+ * <li>distribuição da latência do upload (fim do segmento até o servidor
+ * recebê-lo por completo);</li>
+ * <li>lacunas entre segmentos consecutivos (duração pelo ffprobe), separadas
+ * em corte, reinício (os reinícios do ffmpeg provocados com
+ * {@code --reinicios}) e meia-noite.</li>
+ * </ul>
+ * Os segmentos são de 10 minutos: para medir latência e cortes, rode por
+ * pelo menos 25 minutos. Para a meia-noite, rode a simulação sob o
+ * libfaketime (ex.: {@code faketime -f '@2024-03-31 23:50:00' java ...}),
+ * herdado pelo gravador e pelos ffmpeg.
+ * <p>
+ * Uso: java -cp gravador3.jar br.com.spotcom.gravador.simulacao.SimulacaoCarga
+ * [--ts arquivo.ts] [--adapters 1,2,4] [--minutos 25] [--modo transcode|copy]
+ * [--latencia ms] [--falhas taxa] [--reinicios n] [--dir dir]
+ */
+public class SimulacaoCarga {
+
+    private static final long AMOSTRAGEM_MS = 5000;
+    private static final long AQUECIMENTO_MS = 60000;
+    private static final double VELOCIDADE_MINIMA = 0.97;
+    private static final double AMOSTRAS_SUSTENTADAS = 0.95;
+    private static final long SEGMENTO_S = 600;
+    private static final Pattern METRICA = Pattern.compile("^(\\w+)\\{([^}]*)\\} (\\S+)$");
+    private static final Pattern ROTULO_ADAPTER = Pattern.compile("adapter=\"(\\d+)\"");
+    private static final DateTimeFormatter FORMATO_ARQUIVO = DateTimeFormatter.ofPattern("HHmmss");
+
+    private record Reinicio(int adapter, long instante) {
+    }
+
+    private record Segmento(int adapter, LocalDateTime inicio, double duracao) {
+
+        LocalDateTime fim() {
+            return inicio.plusNanos((long) (duracao * 1e9));
+        }
+    }
+
+    private record Resultado(int adapters, double nucleos, boolean sustentado, String motivo) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var opcoes = opcoes(args);
+        var adapters = Arrays.stream(opcoes.getOrDefault("adapters", "1,2,4").split(",")).map(String::trim).map(Integer::parseInt).toList();
+        int minutos = Integer.parseInt(opcoes.getOrDefault("minutos", "25"));
+        var dir = opcoes.containsKey("dir") ? Files.createDirectories(Path.of(opcoes.get("dir"))) : Files.createTempDirectory("carga");
+
+        var arquivoTs = opcoes.containsKey("ts") ? Path.of(opcoes.get("ts")) : geraTs(dir);
+        var ts = ReprodutorTs.carrega(arquivoTs);
+        int serviceId = servico(ts);
+        System.out.println(LocalDateTime.now().toString() + " - Fonte " + arquivoTs + ", serviço " + serviceId
+                + ", volta de " + new ReprodutorTs(ts, dir).getDuracao() / 1000.0 + " s");
+
+        List<Resultado> resultados = new ArrayList<>();
+        for (int n : adapters) {
+            resultados.add(executa(n, minutos, ts, serviceId, dir.resolve("carga-" + n), opcoes));
+        }
+
+        System.out.println();
+        System.out.println("adapters  núcleos  adapters/núcleo  sustentado");
+        for (var r : resultados) {
+            System.out.printf("%8d  %7.2f  %15.2f  %s%n", r.adapters(), r.nucleos(), r.adapters() / r.nucleos(),
+                    r.sustentado() ? "sim" : "não (" + r.motivo() + ")");
+        }
+        System.out.println("Núcleos disponíveis: " + Runtime.getRuntime().availableProcessors());
+        System.exit(0);
+    }
+
+    private static Resultado executa(int adapters, int minutos, ByteBuffer ts, int serviceId, Path dir, Map<String, String> opcoes)
+            throws IOException, InterruptedException {
+        System.out.println(LocalDateTime.now().toString() + " - " + adapters + " adapters por " + minutos + " min em " + dir);
+        Files.createDirectories(dir);
+        String modo = opcoes.getOrDefault("modo", "transcode");
+        int reinicios = Integer.parseInt(opcoes.getOrDefault("reinicios", "0"));
+
+        Map<Path, Long> recebidos = new ConcurrentHashMap<>();
+        var servidor = new ServidorUploadStub(0, dir.resolve("recebidos"));
+        servidor.setLatencia(Long.parseLong(opcoes.getOrDefault("latencia", "0")));
+        servidor.setTaxaFalhas(Double.parseDouble(opcoes.getOrDefault("falhas", "0")));
+        servidor.setRecebido(arquivo -> recebidos.putIfAbsent(arquivo, System.currentTimeMillis()));
+        servidor.start();
+
+        var modeloOrigem = dir.resolve("dvb").toAbsolutePath() + "/adapter%d/dvr0";
+        List<ReprodutorTs> reprodutores = new ArrayList<>();
+        var channels = new StringBuilder();
+        for (int i = 0; i < adapters; i++) {
+            var fifo = Path.of(String.format(modeloOrigem, i));
+            ReprodutorTs.criaFifo(fifo);
+            // o gravador só cria o último nível do "caminho", como numa instalação
+            Files.createDirectories(destino(dir, i));
+            var reprodutor = new ReprodutorTs(ts, fifo);
+            reprodutor.start();
+            reprodutores.add(reprodutor);
+            channels.append("[CARGA ").append(i).append("]\n")
+                    .append("\tSERVICE_ID = ").append(serviceId).append('\n')
+                    .append("\tFREQUENCY = ").append(473142857L + i * 6000000L).append("\n\n");
+        }
+        Files.writeString(dir.resolve("channels.conf"), channels);
+
+        int portaMetricas;
+        try (var socket = new ServerSocket(0)) {
+            portaMetricas = socket.getLocalPort();
+        }
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        // o gravador roda no diretório da simulação: entradas relativas do classpath deixariam de valer
+        var classpath = Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(p -> Path.of(p).toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator));
+        var json = new StringBuilder();
+        json.append("{\n")
+                .append("  \"gravador\": \"CARGA\",\n")
+                .append("  \"servidor\": \"127.0.0.1:").append(servidor.getPorta()).append("\",\n")
+                .append("  \"channels-file\": \"").append(dir.resolve("channels.conf").toAbsolutePath()).append("\",\n")
+                .append("  \"dvr-origem\": \"").append(modeloOrigem).append("\",\n")
+                .append("  \"zap-comando\": \"").append(java).append(" -cp ").append(classpath)
+                .append(" br.com.spotcom.gravador.simulacao.ZapFalso 500\",\n")
+                .append("  \"metricas-porta\": ").append(portaMetricas).append(",\n")
+                .append("  \"adapters\": [\n");
+        for (int i = 0; i < adapters; i++) {
+            json.append("    {\"adapter\": ").append(i).append(", \"service-name\": \"CARGA ").append(i)
+                    .append("\", \"praca\": \"SIM\", \"rede\": ").append(100 + i)
+                    .append(", \"mode\": \"").append(modo).append("\", \"caminho\": \"")
+                    .append(destino(dir, i)).append("\"}").append(i < adapters - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        Files.writeString(dir.resolve("config.json"), json);
+
+        var gravador = new ProcessBuilder(java, "-cp", classpath, "br.com.spotcom.gravador.Main")
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("gravador.log").toFile())
+                .start();
+        var raiz = gravador.toHandle();
+
+        var client = HttpClient.newHttpClient();
+        var uriMetricas = URI.create("http://127.0.0.1:" + portaMetricas + "/metrics");
+        Map<Long, Long> cpuPorPid = new HashMap<>();
+        long[] cpuTotal = {0};
+        long cpuAquecido = -1;
+        long inicio = System.currentTimeMillis();
+        long aquecido = inicio + AQUECIMENTO_MS;
+        long fim = inicio + minutos * 60_000L;
+        long intervaloReinicio = reinicios > 0 ? (fim - aquecido) / (reinicios + 1) : Long.MAX_VALUE;
+        long proximoReinicio = aquecido + intervaloReinicio;
+        List<Reinicio> reiniciosFeitos = new ArrayList<>();
+        Map<Integer, List<Double>> velocidades = new TreeMap<>();
+        Map<String, Double> ultimas = new HashMap<>();
+
+        while (System.currentTimeMillis() < fim && gravador.isAlive()) {
+            TimeUnit.MILLISECONDS.sleep(AMOSTRAGEM_MS);
+            long agora = System.currentTimeMillis();
+            amostraCpu(raiz, cpuPorPid, cpuTotal);
+            if (agora < aquecido) {
+                continue;
+            }
+            if (cpuAquecido < 0) {
+                cpuAquecido = cpuTotal[0];
+                aquecido = agora;
+            }
+            amostraMetricas(client, uriMetricas, velocidades, ultimas);
+
+            if (reiniciosFeitos.size() < reinicios && agora >= proximoReinicio) {
+                int adapter = reiniciosFeitos.size() % adapters;
+                if (derrubaFfmpeg(raiz, destino(dir, adapter))) {
+                    reiniciosFeitos.add(new Reinicio(adapter, agora));
+                    System.out.println(LocalDateTime.now().toString() + " - ffmpeg do adapter " + adapter + " derrubado");
+                }
+                proximoReinicio += intervaloReinicio;
+            }
+        }
+        amostraCpu(raiz, cpuPorPid, cpuTotal);
+        double nucleos = cpuAquecido < 0 ? 0
+                : (cpuTotal[0] - cpuAquecido) / 1e6 / Math.max(1, System.currentTimeMillis() - aquecido);
+        boolean terminouAntes = !gravador.isAlive();
+
+        var descendentes = raiz.descendants().toList();
+        gravador.destroy();
+        if (!gravador.waitFor(30, TimeUnit.SECONDS)) {
+            gravador.destroyForcibly();
+        }
+        descendentes.forEach(ProcessHandle::destroy);
+        reprodutores.forEach(ReprodutorTs::stop);
+        servidor.stop();
+
+        // sustentação
+        var motivos = new ArrayList<String>();
+        if (terminouAntes) {
+            motivos.add("gravador encerrou, ver gravador.log");
+        }
+        double descartes = ultimas.entrySet().stream()
+                .filter(e -> e.getKey().startsWith("gravador_dvr_descartes_total")).mapToDouble(Map.Entry::getValue).sum();
+        if (descartes > 0) {
+            motivos.add(String.format("%.0f descartes do dvr", descartes));
+        }
+        double minima = Double.MAX_VALUE;
+        for (int i = 0; i < adapters; i++) {
+            var lista = velocidades.getOrDefault(i, List.of());
+            long boas = lista.stream().filter(v -> v >= VELOCIDADE_MINIMA).count();
+            minima = Math.min(minima, lista.stream().mapToDouble(Double::doubleValue).min().orElse(0));
+            if (lista.isEmpty() || boas < AMOSTRAS_SUSTENTADAS * lista.size()) {
+                motivos.add("adapter " + i + " abaixo de " + VELOCIDADE_MINIMA + "x em "
+                        + (lista.isEmpty() ? 100 : Math.round(100.0 * (lista.size() - boas) / lista.size())) + "% das amostras");
+            }
+        }
+
+        // segmentos, lacunas e latência
+        List<Segmento> segmentos = new ArrayList<>();
+        for (int i = 0; i < adapters; i++) {
+            segmentos.addAll(segmentos(i, destino(dir, i)));
+        }
+        Map<String, List<Double>> lacunas = new TreeMap<>();
+        Map<String, Segmento> porChave = new HashMap<>();
+        for (int i = 0; i < segmentos.size(); i++) {
+            var atual = segmentos.get(i);
+            porChave.put(atual.adapter() + " " + atual.inicio(), atual);
+            if (i + 1 == segmentos.size() || segmentos.get(i + 1).adapter() != atual.adapter() || atual.duracao() < 0) {
+                continue;
+            }
+            var proximo = segmentos.get(i + 1);
+            double lacuna = Duration.between(atual.fim(), proximo.inicio()).toMillis() / 1000.0;
+            lacunas.computeIfAbsent(tipoLacuna(atual, proximo, reiniciosFeitos), k -> new ArrayList<>()).add(lacuna);
+        }
+        List<Double> latencias = new ArrayList<>();
+        recebidos.forEach((arquivo, instante) -> {
+            if (!arquivo.getFileName().toString().endsWith(".mp4")) {
+                return;
+            }
+            int adapter = Integer.parseInt(arquivo.getParent().getParent().getFileName().toString().trim()) - 100;
+            var hora = LocalDate.parse(arquivo.getParent().getFileName().toString(), DateTimeFormatter.ISO_LOCAL_DATE)
+                    .atTime(LocalTime.parse(arquivo.getFileName().toString().substring(0, 6), FORMATO_ARQUIVO));
+            var segmento = porChave.get(adapter + " " + hora);
+            var fimSegmento = segmento != null && segmento.duracao() >= 0 ? segmento.fim() : proximoCorte(hora);
+            latencias.add((instante - fimSegmento.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()) / 1000.0);
+        });
+
+        System.out.println();
+        System.out.printf("== %d adapters, %d min, %s ==%n", adapters, minutos, modo);
+        System.out.printf("CPU: %.2f núcleos -> %.2f adapters/núcleo; sustentado: %s%n", nucleos, adapters / nucleos,
+                motivos.isEmpty() ? "sim" : "não (" + String.join("; ", motivos) + ")");
+        System.out.printf("velocidade mínima do ffmpeg: %.2f; reinícios do ffmpeg: %.0f (%d provocados)%n",
+                minima == Double.MAX_VALUE ? 0 : minima,
+                ultimas.entrySet().stream().filter(e -> e.getKey().startsWith("gravador_ffmpeg_reinicios_total"))
+                        .mapToDouble(Map.Entry::getValue).sum(),
+                reiniciosFeitos.size());
+        System.out.println("latência do upload (s): " + distribuicao(latencias));
+        if (lacunas.isEmpty()) {
+            System.out.println("lacunas: nenhum par de segmentos consecutivos medido");
+        }
+        lacunas.forEach((tipo, lista) -> System.out.println("lacunas de " + tipo + " (s): " + distribuicao(lista)));
+        System.out.println();
+
+        return new Resultado(adapters, nucleos, motivos.isEmpty(), String.join("; ", motivos));
+    }
+
+    private static Path destino(Path dir, int adapter) {
+        return dir.resolve("gravacoes").resolve("adapter" + adapter).toAbsolutePath();
+    }
+
+    /**
+     * Soma o tempo de CPU do gravador e dos seus filhos (sem os zaps falsos,
+     * que não existem na produção). O que um ffmpeg consumiu depois da
+     * última amostra antes de terminar não é contado.
+     */
+    private static void amostraCpu(ProcessHandle raiz, Map<Long, Long> cpuPorPid, long[] total) {
+        Stream.concat(Stream.of(raiz), raiz.descendants()).forEach(p -> {
+            var info = p.info();
+            if (info.arguments().map(a -> Arrays.asList(a).contains(ZapFalso.class.getName())).orElse(false)) {
+                return;
+            }
+            info.totalCpuDuration().ifPresent(d -> {
+                var anterior = cpuPorPid.put(p.pid(), d.toNanos());
+                total[0] += d.toNanos() - (anterior != null ? anterior : 0);
+            });
+        });
+    }
+
+    private static void amostraMetricas(HttpClient client, URI uri, Map<Integer, List<Double>> velocidades, Map<String, Double> ultimas)
+            throws InterruptedException {
+        String texto;
+        try {
+            texto = client.send(HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(5)).build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+        } catch (IOException ex) {
+            return;
+        }
+        for (var linha : texto.split("\n")) {
+            var m = METRICA.matcher(linha);
+            if (!m.matches()) {
+                continue;
+            }
+            double valor;
+            try {
+                valor = Double.parseDouble(m.group(3));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            ultimas.put(m.group(1) + "{" + m.group(2) + "}", valor);
+            var adapter = ROTULO_ADAPTER.matcher(m.group(2));
+            if (m.group(1).equals("gravador_ffmpeg_speed") && adapter.find() && valor > 0) {
+                velocidades.computeIfAbsent(Integer.parseInt(adapter.group(1)), k -> new ArrayList<>()).add(valor);
+            }
+        }
+    }
+
+    /**
+     * Derruba (como uma falha) o ffmpeg que grava no destino.
+     */
+    private static boolean derrubaFfmpeg(ProcessHandle raiz, Path destino) {
+        return raiz.descendants()
+                .filter(p -> p.info().command().map(c -> c.endsWith("ffmpeg")).orElse(false))
+                .filter(p -> p.info().arguments().map(a -> String.join(" ", a).contains(destino + "/")).orElse(false))
+                .findFirst()
+                .map(ProcessHandle::destroyForcibly)
+                .orElse(false);
+    }
+
+    private static String tipoLacuna(Segmento atual, Segmento proximo, List<Reinicio> reinicios) {
+        if (!proximo.inicio().toLocalDate().equals(atual.inicio().toLocalDate())) {
+            return "meia-noite";
+        }
+        long fim = atual.fim().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long seguinte = proximo.inicio().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        for (var r : reinicios) {
+            if (r.adapter() == atual.adapter() && r.instante() >= fim - 15000 && r.instante() <= seguinte + 1000) {
+                return "reinício";
+            }
+        }
+        return proximo.inicio().toLocalTime().toSecondOfDay() % SEGMENTO_S == 0 ? "corte" : "outro reinício";
+    }
+
+    private static LocalDateTime proximoCorte(LocalDateTime hora) {
+        var dia = hora.truncatedTo(ChronoUnit.DAYS);
+        long segundos = Duration.between(dia, hora).toSeconds();
+        return dia.plusSeconds((segundos / SEGMENTO_S + 1) * SEGMENTO_S);
+    }
+
+    /**
+     * Segmentos do destino em ordem, com a duração medida pelo ffprobe (-1
+     * se não foi possível medir).
+     */
+    private static List<Segmento> segmentos(int adapter, Path destino) throws IOException, InterruptedException {
+        List<Segmento> segmentos = new ArrayList<>();
+        if (!Files.isDirectory(destino)) {
+            return segmentos;
+        }
+        List<Path> arquivos;
+        try (var lista = Files.walk(destino, 2)) {
+            arquivos = lista.filter(p -> p.getFileName().toString().matches("\\d{6}\\.mp4")
+                    && p.getParent().getFileName().toString().matches("\\d{8}")).sorted().toList();
+        }
+        for (var arquivo : arquivos) {
+            var hora = LocalDate.parse(arquivo.getParent().getFileName().toString(), DateTimeFormatter.BASIC_ISO_DATE)
+                    .atTime(LocalTime.parse(arquivo.getFileName().toString().substring(0, 6), FORMATO_ARQUIVO));
+            segmentos.add(new Segmento(adapter, hora, duracao(arquivo)));
+        }
+        return segmentos;
+    }
+
+    private static double duracao(Path arquivo) throws InterruptedException {
+        try {
+            var ffprobe = new ProcessBuilder("ffprobe", "-v", "error", "-show_entries", "format=duration",
+                    "-of", "default=noprint_wrappers=1:nokey=1", arquivo.toString()).start();
+            var saida = new String(ffprobe.getInputStream().readAllBytes()).trim();
+            return ffprobe.waitFor() == 0 ? Double.parseDouble(saida) : -1;
+        } catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static String distribuicao(List<Double> valores) {
+        if (valores.isEmpty()) {
+            return "sem amostras";
+        }
+        var ordenados = valores.stream().sorted().toList();
+        return String.format("n=%d p50=%.2f p90=%.2f p99=%.2f máx=%.2f", ordenados.size(),
+                percentil(ordenados, 0.50), percentil(ordenados, 0.90), percentil(ordenados, 0.99),
+                ordenados.get(ordenados.size() - 1));
+    }
+
+    private static double percentil(List<Double> ordenados, double q) {
+        int i = (int) Math.ceil(q * ordenados.size()) - 1;
+        return ordenados.get(Math.max(0, Math.min(ordenados.size() - 1, i)));
+    }
+
+    /**
+     * @return primeiro programa da PAT do arquivo.
+     */
+    private static int servico(ByteBuffer ts) {
+        for (int pos = 0; pos + PacoteTs.TAMANHO <= ts.limit(); pos += PacoteTs.TAMANHO) {
+            if (PacoteTs.pid(ts, pos) != PacoteTs.PID_PAT || !PacoteTs.inicioUnidade(ts, pos)) {
+                continue;
+            }
+            int payload = PacoteTs.inicioPayload(ts, pos);
+            if (payload < 0) {
+                continue;
+            }
+            int secao = pos + payload + 1 + (ts.get(pos + payload) & 0xFF);
+            if (secao + 8 > pos + PacoteTs.TAMANHO || ts.get(secao) != 0) {
+                continue;
+            }
+            int tamanho = ((ts.get(secao + 1) & 0x0F) << 8) | (ts.get(secao + 2) & 0xFF);
+            int fim = Math.min(secao + 3 + tamanho - 4, pos + PacoteTs.TAMANHO);
+            for (int i = secao + 8; i + 4 <= fim; i += 4) {
+                int programa = ((ts.get(i) & 0xFF) << 8) | (ts.get(i + 1) & 0xFF);
+                if (programa != 0) {
+                    return programa;
+                }
+            }
+        }
+        throw new IllegalArgumentException("PAT sem programas no arquivo TS");
+    }
+
+    /**
+     * TS de 60 s com vídeo e áudio de teste do lavfi, em CBR como uma
+     * transmissão.
+     */
+    private static Path geraTs(Path dir) throws IOException, InterruptedException {
+        var arquivo = dir.resolve("fonte.ts");
+        if (Files.exists(arquivo)) {
+            return arquivo;
+        }
+        System.out.println(LocalDateTime.now().toString() + " - Gerando " + arquivo);
+        var ffmpeg = new ProcessBuilder("ffmpeg", "-hide_banner", "-loglevel", "error", "-y",
+                "-f", "lavfi", "-i", "testsrc2=size=1920x1080:rate=30000/1001",
+                "-f", "lavfi", "-i", "sine=frequency=1000:sample_rate=48000",
+                "-t", "60", "-c:v", "libx264", "-preset", "veryfast", "-pix_fmt", "yuv420p", "-flags", "+ildct+ilme",
+                "-b:v", "8M", "-maxrate", "8M", "-bufsize", "8M", "-g", "30",
+                "-c:a", "aac", "-b:a", "128k",
+                "-f", "mpegts", "-muxrate", "10M", "-mpegts_service_id", "1", arquivo.toString())
+                .inheritIO()
+                .start();
+        if (ffmpeg.waitFor() != 0) {
+            throw new IOException("Não foi possível gerar o TS de teste com o ffmpeg");
+        }
+        return arquivo;
+    }
+
+    private static Map<String, String> opcoes(String[] args) {
+        Map<String, String> opcoes = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Opção inválida: " + args[i]);
+            }
+            opcoes.put(args[i].substring(2), args[i + 1]);
+        }
+        return opcoes;
+    }
+
+}
@@ -0,0 +1,52 @@
+package br.com.spotcom.gravador.simulacao;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Substituto do dvbv5-zap para testes sem sintonizador: imprime linhas de
+ * status no formato do dvbv5-zap, sem lock até o atraso informado e com lock
+ * a partir daí, até ser encerrado.
+ * <p>
+ * Os argumentos de sintonia acrescentados pelo gravador são ignorados. Com
+ * atraso negativo nunca obtém lock.
+ * <p>
+ * Uso (config.json): {@code "zap-comando": "java -cp gravador3.jar br.com.spotcom.gravador.simulacao.ZapFalso 800"}
+ */
+public class ZapFalso {
+
+    public static void main(String[] args) throws InterruptedException {
+        long atraso = 1000;
+        String adapter = "0";
+        for (int i = 0; i < args.length; i++) {
+            if (i == 0 && args[i].matches("-?\\d+")) {
+                atraso = Long.parseLong(args[i]);
+            } else if (args[i].equals("-a") && i + 1 < args.length) {
+                adapter = args[++i];
+            }
+        }
+
+        var random = ThreadLocalRandom.current();
+        System.out.println("using demux 'dvb0.demux0'");
+        System.out.println("reading channels from file");
+        long inicio = System.currentTimeMillis();
+        while (atraso < 0 || System.currentTimeMillis() - inicio < atraso) {
+            System.out.printf("       (0x00) Signal= %.2fdBm%n", -90 + random.nextDouble(5));
+            System.out.flush();
+            TimeUnit.MILLISECONDS.sleep(Math.min(200, Math.max(1, atraso)));
+        }
+
+        boolean primeiro = true;
+        while (true) {
+            System.out.printf("Lock   (0x1f) Signal= %.2fdBm C/N= %.2fdB UCB= 0 postBER= 0%n",
+                    -40 + random.nextDouble(3), 30 + random.nextDouble(3));
+            if (primeiro) {
+                System.out.println("DVR interface '/dev/dvb/adapter" + adapter + "/dvr0' can now be opened");
+                primeiro = false;
+            }
+            System.out.flush();
+            TimeUnit.SECONDS.sleep(1);
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package br.com.spotcom.gravador.ts;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Canal de leitura que entrega ao ffmpeg somente os pacotes de um programa do
+ * multiplex, aplicando {@link FiltroPrograma} sobre o canal de origem.
+ * <p>
+ * Implementa SeekableByteChannel apenas para ser aceito pelo ChannelInput do
+ * Jaffree: a origem é um stream ao vivo, então position(long) é ignorado e
+ * size() retorna 0, assim como ocorre com o dispositivo dvr0.
+ */
+public class CanalFiltrado implements SeekableByteChannel, OrigemTransferivel {
+
+    // ~1 MB, múltiplo do tamanho do pacote TS
+    private static final int TAMANHO_BUFFER = PacoteTs.TAMANHO * 5577;
+    private static final PoolBuffers POOL = new PoolBuffers(TAMANHO_BUFFER, 32);
+
+    private final ReadableByteChannel origem;
+    private final FiltroPrograma filtro;
+    private ByteBuffer entrada;
+    private ByteBuffer saida;
+    private long posicao;
+    private boolean fimOrigem;
+    private volatile boolean aberto = true;
+
+    public CanalFiltrado(ReadableByteChannel origem, int serviceId) {
+        this.origem = origem;
+        this.filtro = new FiltroPrograma(serviceId);
+        this.entrada = POOL.obter();
+        this.saida = POOL.obter();
+        this.saida.flip();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!preenche()) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), saida.remaining());
+        dst.put(dst.position(), saida, saida.position(), n);
+        dst.position(dst.position() + n);
+        saida.position(saida.position() + n);
+        posicao += n;
+        return n;
+    }
+
+    /**
+     * Escreve os pacotes filtrados diretamente do buffer de saída (off-heap)
+     * no destino.
+     */
+    @Override
+    public synchronized long transferePara(WritableByteChannel destino) throws IOException {
+        if (!preenche()) {
+            return -1;
+        }
+        int n = destino.write(saida);
+        posicao += n;
+        return n;
+    }
+
+    /**
+     * Filtra a origem até haver pacotes na saída.
+     *
+     * @return false no fim da origem.
+     */
+    private boolean preenche() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        while (!saida.hasRemaining()) {
+            if (fimOrigem) {
+                return false;
+            }
+            saida.clear();
+            int lidos = origem.read(entrada);
+            if (lidos < 0) {
+                fimOrigem = true;
+            }
+            entrada.flip();
+            filtro.filtra(entrada, saida);
+            entrada.compact();
+            saida.flip();
+        }
+        return true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return posicao;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        // stream ao vivo, não há como reposicionar
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return 0;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return aberto;
+    }
+
+    @Override
+    public void close() throws IOException {
+        aberto = false;
+        // fechar a origem fora do lock desbloqueia uma leitura em andamento
+        try {
+            origem.close();
+        } finally {
+            synchronized (this) {
+                POOL.devolver(entrada);
+                POOL.devolver(saida);
+                entrada = null;
+                saida = null;
+            }
+        }
+    }
+
+    public FiltroPrograma getFiltro() {
+        return filtro;
+    }
+
+}
@@ -0,0 +1,31 @@
+package br.com.spotcom.gravador.ts;
+
+/**
+ * CRC-32/MPEG-2 usado nas seções PSI (PAT, PMT) do transport stream.
+ */
+final class Crc32Mpeg {
+
+    private static final int[] TABELA = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            TABELA[i] = crc;
+        }
+    }
+
+    private Crc32Mpeg() {
+    }
+
+    static int calcular(byte[] dados, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ TABELA[((crc >>> 24) ^ dados[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+}
@@ -0,0 +1,208 @@
+package br.com.spotcom.gravador.ts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Filtro de PIDs que mantém apenas um programa (serviço) do multiplex.
+ * <p>
+ * Interpreta PAT e PMT para descobrir os PIDs do serviço e repassa somente a
+ * PMT, os elementary streams e o PCR do programa. A PAT original é substituída
+ * por uma PAT reescrita contendo apenas o programa filtrado, assim o ffmpeg
+ * continua encontrando o programa com {@code -map 0:p:<serviceId>}.
+ * <p>
+ * Não é thread-safe e não aloca memória por pacote.
+ */
+public class FiltroPrograma {
+
+    private static final int TABELA_PAT = 0x00;
+    private static final int TABELA_PMT = 0x02;
+
+    private final int serviceId;
+    private final SecaoPsi secaoPat = new SecaoPsi();
+    private final SecaoPsi secaoPmt = new SecaoPsi();
+    private final boolean[] pidsPrograma = new boolean[8192];
+    private final int[] listaPids = new int[8192];
+    private int totalPids;
+    private int pidPmt = -1;
+    private int versaoPat = -1;
+    private int versaoPmt = -1;
+
+    private final byte[] pat = new byte[PacoteTs.TAMANHO];
+    private boolean patPronta;
+    private int continuidadePat;
+
+    private long pacotesLidos;
+    private long pacotesRepassados;
+    private long perdasSincronismo;
+
+    public FiltroPrograma(int serviceId) {
+        this.serviceId = serviceId;
+    }
+
+    /**
+     * Processa os pacotes completos disponíveis em entrada e grava em saida
+     * os pacotes do programa. Pacotes incompletos permanecem na entrada para
+     * a próxima chamada (a entrada deve ser compactada pelo chamador).
+     */
+    public void filtra(ByteBuffer entrada, ByteBuffer saida) {
+        int pos = entrada.position();
+        int limite = entrada.limit();
+        while (limite - pos >= PacoteTs.TAMANHO && saida.remaining() >= PacoteTs.TAMANHO) {
+            if (!PacoteTs.sync(entrada, pos)) {
+                perdasSincronismo++;
+                int proximo = PacoteTs.ressincroniza(entrada, pos + 1, limite);
+                if (proximo < 0) {
+                    // mantém os últimos bytes, podem conter o início de um pacote
+                    pos = limite - PacoteTs.TAMANHO + 1;
+                    break;
+                }
+                pos = proximo;
+                continue;
+            }
+            pacotesLidos++;
+            processa(entrada, pos, saida);
+            pos += PacoteTs.TAMANHO;
+        }
+        entrada.position(pos);
+    }
+
+    private void processa(ByteBuffer entrada, int pos, ByteBuffer saida) {
+        int pid = PacoteTs.pid(entrada, pos);
+        if (pid == PacoteTs.PID_PAT) {
+            if (!PacoteTs.tei(entrada, pos)) {
+                for (boolean secao = secaoPat.adiciona(entrada, pos); secao; secao = secaoPat.proxima()) {
+                    interpretaPat();
+                }
+            }
+            if (patPronta) {
+                pat[3] = (byte) (0x10 | continuidadePat);
+                continuidadePat = (continuidadePat + 1) & 0x0F;
+                saida.put(pat);
+                pacotesRepassados++;
+            }
+            return;
+        }
+        if (pid == pidPmt) {
+            if (!PacoteTs.tei(entrada, pos)) {
+                for (boolean secao = secaoPmt.adiciona(entrada, pos); secao; secao = secaoPmt.proxima()) {
+                    interpretaPmt();
+                }
+            }
+            repassa(entrada, pos, saida);
+            return;
+        }
+        if (pidsPrograma[pid]) {
+            repassa(entrada, pos, saida);
+        }
+    }
+
+    private void repassa(ByteBuffer entrada, int pos, ByteBuffer saida) {
+        saida.put(saida.position(), entrada, pos, PacoteTs.TAMANHO);
+        saida.position(saida.position() + PacoteTs.TAMANHO);
+        pacotesRepassados++;
+    }
+
+    private void interpretaPat() {
+        if (secaoPat.tabela() != TABELA_PAT || !secaoPat.atual() || secaoPat.versao() == versaoPat) {
+            return;
+        }
+        int fim = secaoPat.tamanho() - 4;
+        for (int i = 8; i + 4 <= fim; i += 4) {
+            if (secaoPat.u16(i) == serviceId) {
+                int novoPidPmt = secaoPat.pid(i + 2);
+                if (novoPidPmt != pidPmt) {
+                    pidPmt = novoPidPmt;
+                    versaoPmt = -1;
+                    secaoPmt.reinicia();
+                    limpaPids();
+                }
+                versaoPat = secaoPat.versao();
+                montaPat(secaoPat.u16(3), versaoPat);
+                return;
+            }
+        }
+    }
+
+    private void interpretaPmt() {
+        if (secaoPmt.tabela() != TABELA_PMT || !secaoPmt.atual()
+                || secaoPmt.u16(3) != serviceId || secaoPmt.versao() == versaoPmt) {
+            return;
+        }
+        versaoPmt = secaoPmt.versao();
+        limpaPids();
+        adicionaPid(secaoPmt.pid(8));
+        int fim = secaoPmt.tamanho() - 4;
+        int i = 12 + secaoPmt.comprimento12(10);
+        while (i + 5 <= fim) {
+            adicionaPid(secaoPmt.pid(i + 1));
+            i += 5 + secaoPmt.comprimento12(i + 3);
+        }
+    }
+
+    private void adicionaPid(int pid) {
+        if (pid == PacoteTs.PID_NULO || pid == PacoteTs.PID_PAT || pidsPrograma[pid]) {
+            return;
+        }
+        pidsPrograma[pid] = true;
+        listaPids[totalPids++] = pid;
+    }
+
+    private void limpaPids() {
+        for (int i = 0; i < totalPids; i++) {
+            pidsPrograma[listaPids[i]] = false;
+        }
+        totalPids = 0;
+    }
+
+    /**
+     * Monta o pacote da PAT reescrita, contendo somente o programa filtrado.
+     */
+    private void montaPat(int transportStreamId, int versao) {
+        Arrays.fill(pat, (byte) 0xFF);
+        pat[0] = PacoteTs.SYNC;
+        pat[1] = 0x40; // payload_unit_start, PID 0
+        pat[2] = 0x00;
+        pat[4] = 0x00; // pointer_field
+        int s = 5;
+        pat[s] = TABELA_PAT;
+        pat[s + 1] = (byte) 0xB0; // section_syntax_indicator + section_length (13)
+        pat[s + 2] = 13;
+        pat[s + 3] = (byte) (transportStreamId >> 8);
+        pat[s + 4] = (byte) transportStreamId;
+        pat[s + 5] = (byte) (0xC1 | (versao << 1));
+        pat[s + 6] = 0x00;
+        pat[s + 7] = 0x00;
+        pat[s + 8] = (byte) (serviceId >> 8);
+        pat[s + 9] = (byte) serviceId;
+        pat[s + 10] = (byte) (0xE0 | (pidPmt >> 8));
+        pat[s + 11] = (byte) pidPmt;
+        int crc = Crc32Mpeg.calcular(pat, s, 12);
+        pat[s + 12] = (byte) (crc >> 24);
+        pat[s + 13] = (byte) (crc >> 16);
+        pat[s + 14] = (byte) (crc >> 8);
+        pat[s + 15] = (byte) crc;
+        patPronta = true;
+    }
+
+    public int getServiceId() {
+        return serviceId;
+    }
+
+    public int getPidPmt() {
+        return pidPmt;
+    }
+
+    public long getPacotesLidos() {
+        return pacotesLidos;
+    }
+
+    public long getPacotesRepassados() {
+        return pacotesRepassados;
+    }
+
+    public long getPerdasSincronismo() {
+        return perdasSincronismo;
+    }
+
+}
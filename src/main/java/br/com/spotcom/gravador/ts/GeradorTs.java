@@ -0,0 +1,149 @@
+package br.com.spotcom.gravador.ts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gera um multiplex MPEG-TS sintético (PAT, PMTs e pacotes de vídeo/áudio de
+ * vários programas) para benchmarks e simulações. O conteúdo dos payloads
+ * elementares não é decodificável, apenas a estrutura de transporte é válida.
+ */
+public class GeradorTs {
+
+    private final int[] servicos;
+    private final int[] continuidade = new int[8192];
+    private final byte[] secao = new byte[1024];
+
+    /**
+     * @param servicos service ids dos programas do multiplex. O programa i usa
+     * PMT no PID 0x100 + i * 0x10, vídeo no PID da PMT + 1 e áudio no PID da
+     * PMT + 2.
+     */
+    public GeradorTs(int... servicos) {
+        this.servicos = servicos.clone();
+    }
+
+    public static int pidPmt(int indice) {
+        return 0x100 + indice * 0x10;
+    }
+
+    /**
+     * Preenche o buffer com pacotes completos até acabar o espaço. A cada
+     * ciclo são emitidos PAT e PMTs seguidos de 20 pacotes de vídeo e 2 de
+     * áudio por programa.
+     *
+     * @return número de pacotes gerados.
+     */
+    public int preenche(ByteBuffer buf) {
+        int pacotes = 0;
+        while (buf.remaining() >= PacoteTs.TAMANHO) {
+            pacotes += ciclo(buf);
+        }
+        return pacotes;
+    }
+
+    private int ciclo(ByteBuffer buf) {
+        int pacotes = 0;
+        if (!escreveSecao(buf, PacoteTs.PID_PAT, montaPat())) {
+            return pacotes;
+        }
+        pacotes++;
+        for (int i = 0; i < servicos.length; i++) {
+            if (!escreveSecao(buf, pidPmt(i), montaPmt(i))) {
+                return pacotes;
+            }
+            pacotes++;
+        }
+        for (int n = 0; n < 22; n++) {
+            for (int i = 0; i < servicos.length; i++) {
+                if (buf.remaining() < PacoteTs.TAMANHO) {
+                    return pacotes;
+                }
+                escreveDados(buf, pidPmt(i) + (n < 20 ? 1 : 2), n == 0);
+                pacotes++;
+            }
+        }
+        return pacotes;
+    }
+
+    private int montaPat() {
+        int n = 8;
+        for (int i = 0; i < servicos.length; i++) {
+            secao[n++] = (byte) (servicos[i] >> 8);
+            secao[n++] = (byte) servicos[i];
+            secao[n++] = (byte) (0xE0 | (pidPmt(i) >> 8));
+            secao[n++] = (byte) pidPmt(i);
+        }
+        return cabecalho(0x00, 1, n);
+    }
+
+    private int montaPmt(int indice) {
+        int pid = pidPmt(indice);
+        int n = 8;
+        secao[n++] = (byte) (0xE0 | ((pid + 1) >> 8)); // PCR no PID de vídeo
+        secao[n++] = (byte) (pid + 1);
+        secao[n++] = (byte) 0xF0;
+        secao[n++] = 0;
+        // vídeo H.264
+        secao[n++] = 0x1B;
+        secao[n++] = (byte) (0xE0 | ((pid + 1) >> 8));
+        secao[n++] = (byte) (pid + 1);
+        secao[n++] = (byte) 0xF0;
+        secao[n++] = 0;
+        // áudio AAC (LATM)
+        secao[n++] = 0x11;
+        secao[n++] = (byte) (0xE0 | ((pid + 2) >> 8));
+        secao[n++] = (byte) (pid + 2);
+        secao[n++] = (byte) 0xF0;
+        secao[n++] = 0;
+        return cabecalho(0x02, servicos[indice], n);
+    }
+
+    private int cabecalho(int tabela, int extensao, int fim) {
+        int tamanho = fim + 4;
+        secao[0] = (byte) tabela;
+        secao[1] = (byte) (0xB0 | ((tamanho - 3) >> 8));
+        secao[2] = (byte) (tamanho - 3);
+        secao[3] = (byte) (extensao >> 8);
+        secao[4] = (byte) extensao;
+        secao[5] = (byte) 0xC1;
+        secao[6] = 0;
+        secao[7] = 0;
+        int crc = Crc32Mpeg.calcular(secao, 0, fim);
+        secao[fim] = (byte) (crc >> 24);
+        secao[fim + 1] = (byte) (crc >> 16);
+        secao[fim + 2] = (byte) (crc >> 8);
+        secao[fim + 3] = (byte) crc;
+        return tamanho;
+    }
+
+    private boolean escreveSecao(ByteBuffer buf, int pid, int tamanho) {
+        if (buf.remaining() < PacoteTs.TAMANHO) {
+            return false;
+        }
+        int inicio = buf.position();
+        cabecalhoPacote(buf, pid, true);
+        buf.put((byte) 0); // pointer_field
+        buf.put(secao, 0, tamanho);
+        while (buf.position() < inicio + PacoteTs.TAMANHO) {
+            buf.put((byte) 0xFF);
+        }
+        return true;
+    }
+
+    private void escreveDados(ByteBuffer buf, int pid, boolean inicio) {
+        int fim = buf.position() + PacoteTs.TAMANHO;
+        cabecalhoPacote(buf, pid, inicio);
+        while (buf.position() < fim) {
+            buf.put((byte) 0xA5);
+        }
+    }
+
+    private void cabecalhoPacote(ByteBuffer buf, int pid, boolean inicio) {
+        buf.put(PacoteTs.SYNC);
+        buf.put((byte) ((inicio ? 0x40 : 0x00) | (pid >> 8)));
+        buf.put((byte) pid);
+        buf.put((byte) (0x10 | continuidade[pid]));
+        continuidade[pid] = (continuidade[pid] + 1) & 0x0F;
+    }
+
+}
@@ -0,0 +1,258 @@
+package br.com.spotcom.gravador.ts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Analisador da saúde de um transport stream, alimentado com o stream
+ * completo do adapter. Contabiliza por PID:
+ * <ul>
+ * <li>erros de continuidade (continuity counter fora de sequência, exceto
+ * pacote duplicado ou com discontinuity_indicator);</li>
+ * <li>pacotes com TEI (transport error indicator, erro não corrigido pelo
+ * demodulador);</li>
+ * <li>lacunas de PCR (intervalo entre PCRs consecutivos maior que
+ * {@value #LACUNA_PCR_MS} ms no relógio do stream);</li>
+ * <li>janelas de {@value #JANELA_MS} ms sem nenhum pacote de um PID que tinha
+ * pacotes na janela anterior;</li>
+ * </ul>
+ * e as perdas de sincronismo do stream.
+ * <p>
+ * Uma janela é saudável quando recebeu pacotes, não perdeu sincronismo e
+ * menos de 1% dos pacotes têm TEI; {@link #getUltimaJanelaSaudavel()}
+ * permite detectar a perda de sinal do sintonizador.
+ * <p>
+ * {@link #analisa(ByteBuffer)} deve ser chamado sempre pela mesma thread; os
+ * contadores podem ser lidos de qualquer thread.
+ */
+public class MonitorTs {
+
+    public static final long JANELA_MS = 1000;
+    public static final long LACUNA_PCR_MS = 100;
+
+    private static final int TOTAL_PIDS = 8192;
+    // o PCR tem 33 bits de base a 90 kHz e extensão de 0 a 299 (27 MHz)
+    private static final long CICLO_PCR = (1L << 33) * 300;
+    private static final long LACUNA_PCR = LACUNA_PCR_MS * 27000;
+
+    private final int[] ultimaContinuidade = new int[TOTAL_PIDS];
+    private final long[] ultimoPcr = new long[TOTAL_PIDS];
+    private final int[] pacotesJanela = new int[TOTAL_PIDS];
+    private final int[] pacotesJanelaAnterior = new int[TOTAL_PIDS];
+    private final AtomicLongArray pacotes = new AtomicLongArray(TOTAL_PIDS);
+    private final AtomicLongArray errosContinuidade = new AtomicLongArray(TOTAL_PIDS);
+    private final AtomicLongArray errosTei = new AtomicLongArray(TOTAL_PIDS);
+    private final AtomicLongArray lacunasPcr = new AtomicLongArray(TOTAL_PIDS);
+    private final AtomicLongArray janelasSemDados = new AtomicLongArray(TOTAL_PIDS);
+
+    private volatile long perdasSincronismo;
+    private volatile long totalErrosContinuidade;
+    private volatile long totalErrosTei;
+    private volatile long totalLacunasPcr;
+    private volatile long totalJanelasSemDados;
+    private volatile long ultimoPacote;
+    private volatile long ultimaJanelaSaudavel;
+
+    private long inicioJanela;
+    private long perdasJanela;
+    private long pacotesTotalJanela;
+    private long teiJanela;
+
+    public MonitorTs() {
+        reinicia();
+    }
+
+    /**
+     * Reinicia o acompanhamento de continuidade e PCR (após reabrir o
+     * stream); os contadores acumulados são mantidos.
+     */
+    public final void reinicia() {
+        Arrays.fill(ultimaContinuidade, -1);
+        Arrays.fill(ultimoPcr, -1);
+        Arrays.fill(pacotesJanela, 0);
+        Arrays.fill(pacotesJanelaAnterior, 0);
+        long agora = System.currentTimeMillis();
+        inicioJanela = agora;
+        perdasJanela = 0;
+        pacotesTotalJanela = 0;
+        teiJanela = 0;
+        if (ultimaJanelaSaudavel == 0) {
+            ultimaJanelaSaudavel = agora;
+        }
+    }
+
+    /**
+     * Analisa os pacotes completos disponíveis no buffer. Pacotes
+     * incompletos permanecem no buffer para a próxima chamada (o buffer deve
+     * ser compactado pelo chamador).
+     */
+    public void analisa(ByteBuffer buf) {
+        int pos = buf.position();
+        int limite = buf.limit();
+        while (limite - pos >= PacoteTs.TAMANHO) {
+            if (!PacoteTs.sync(buf, pos)) {
+                perdasSincronismo++;
+                perdasJanela++;
+                int proximo = PacoteTs.ressincroniza(buf, pos + 1, limite);
+                if (proximo < 0) {
+                    pos = limite - PacoteTs.TAMANHO + 1;
+                    break;
+                }
+                pos = proximo;
+                continue;
+            }
+            processa(buf, pos);
+            pos += PacoteTs.TAMANHO;
+        }
+        buf.position(pos);
+
+        long agora = System.currentTimeMillis();
+        ultimoPacote = agora;
+        if (agora - inicioJanela >= JANELA_MS) {
+            fechaJanela(agora);
+        }
+    }
+
+    private void processa(ByteBuffer buf, int pos) {
+        int pid = PacoteTs.pid(buf, pos);
+        pacotesTotalJanela++;
+        if (pid == PacoteTs.PID_NULO) {
+            return;
+        }
+        pacotesJanela[pid]++;
+        pacotes.lazySet(pid, pacotes.get(pid) + 1);
+
+        if (PacoteTs.tei(buf, pos)) {
+            // cabeçalho não confiável: não atualiza continuidade nem PCR
+            teiJanela++;
+            errosTei.lazySet(pid, errosTei.get(pid) + 1);
+            totalErrosTei++;
+            return;
+        }
+
+        boolean descontinuidade = false;
+        if (PacoteTs.temAdaptacao(buf, pos) && (buf.get(pos + 4) & 0xFF) > 0) {
+            int flags = buf.get(pos + 5) & 0xFF;
+            descontinuidade = (flags & 0x80) != 0;
+            if ((flags & 0x10) != 0 && (buf.get(pos + 4) & 0xFF) >= 7) {
+                verificaPcr(pid, pcr(buf, pos + 6), descontinuidade);
+            }
+        }
+
+        if (PacoteTs.temPayload(buf, pos)) {
+            int cc = PacoteTs.continuidade(buf, pos);
+            int anterior = ultimaContinuidade[pid];
+            // pacote duplicado (mesmo cc) é permitido uma vez pela norma
+            if (anterior >= 0 && !descontinuidade && cc != anterior && cc != ((anterior + 1) & 0x0F)) {
+                errosContinuidade.lazySet(pid, errosContinuidade.get(pid) + 1);
+                totalErrosContinuidade++;
+            }
+            ultimaContinuidade[pid] = cc;
+        }
+    }
+
+    private void verificaPcr(int pid, long pcr, boolean descontinuidade) {
+        long anterior = ultimoPcr[pid];
+        ultimoPcr[pid] = pcr;
+        if (anterior < 0 || descontinuidade) {
+            return;
+        }
+        long delta = Math.floorMod(pcr - anterior, CICLO_PCR);
+        if (delta > LACUNA_PCR) {
+            lacunasPcr.lazySet(pid, lacunasPcr.get(pid) + 1);
+            totalLacunasPcr++;
+        }
+    }
+
+    private static long pcr(ByteBuffer buf, int pos) {
+        long base = ((long) (buf.get(pos) & 0xFF) << 25)
+                | ((buf.get(pos + 1) & 0xFF) << 17)
+                | ((buf.get(pos + 2) & 0xFF) << 9)
+                | ((buf.get(pos + 3) & 0xFF) << 1)
+                | ((buf.get(pos + 4) & 0x80) >> 7);
+        int extensao = ((buf.get(pos + 4) & 0x01) << 8) | (buf.get(pos + 5) & 0xFF);
+        return base * 300 + extensao;
+    }
+
+    private void fechaJanela(long agora) {
+        for (int pid = 0; pid < TOTAL_PIDS; pid++) {
+            if (pacotesJanelaAnterior[pid] > 0 && pacotesJanela[pid] == 0) {
+                janelasSemDados.lazySet(pid, janelasSemDados.get(pid) + 1);
+                totalJanelasSemDados++;
+            }
+        }
+        System.arraycopy(pacotesJanela, 0, pacotesJanelaAnterior, 0, TOTAL_PIDS);
+        Arrays.fill(pacotesJanela, 0);
+
+        if (pacotesTotalJanela > 0 && perdasJanela == 0 && teiJanela * 100 < pacotesTotalJanela) {
+            ultimaJanelaSaudavel = agora;
+        }
+        inicioJanela = agora;
+        perdasJanela = 0;
+        pacotesTotalJanela = 0;
+        teiJanela = 0;
+    }
+
+    /**
+     * @return horário (epoch ms) da última leitura de dados.
+     */
+    public long getUltimoPacote() {
+        return ultimoPacote;
+    }
+
+    /**
+     * @return horário (epoch ms) do fim da última janela saudável.
+     */
+    public long getUltimaJanelaSaudavel() {
+        return ultimaJanelaSaudavel;
+    }
+
+    /**
+     * @return true se o PID já recebeu pacotes.
+     */
+    public boolean isPresente(int pid) {
+        return pacotes.get(pid) > 0;
+    }
+
+    public long getPacotes(int pid) {
+        return pacotes.get(pid);
+    }
+
+    public long getErrosContinuidade(int pid) {
+        return errosContinuidade.get(pid);
+    }
+
+    public long getErrosTei(int pid) {
+        return errosTei.get(pid);
+    }
+
+    public long getLacunasPcr(int pid) {
+        return lacunasPcr.get(pid);
+    }
+
+    public long getJanelasSemDados(int pid) {
+        return janelasSemDados.get(pid);
+    }
+
+    public long getPerdasSincronismo() {
+        return perdasSincronismo;
+    }
+
+    public long getErrosContinuidade() {
+        return totalErrosContinuidade;
+    }
+
+    public long getErrosTei() {
+        return totalErrosTei;
+    }
+
+    public long getLacunasPcr() {
+        return totalLacunasPcr;
+    }
+
+    public long getJanelasSemDados() {
+        return totalJanelasSemDados;
+    }
+
+}
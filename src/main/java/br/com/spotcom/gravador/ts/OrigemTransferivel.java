@@ -0,0 +1,21 @@
+package br.com.spotcom.gravador.ts;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Origem de stream que escreve os próprios buffers (off-heap) no destino,
+ * sem a cópia intermediária de um {@link #read(java.nio.ByteBuffer)}.
+ */
+public interface OrigemTransferivel extends ReadableByteChannel {
+
+    /**
+     * Escreve no destino os próximos bytes do stream, aguardando se ainda não
+     * houver nenhum.
+     *
+     * @return bytes escritos, ou -1 no fim do stream.
+     */
+    long transferePara(WritableByteChannel destino) throws IOException;
+
+}
@@ -0,0 +1,77 @@
+package br.com.spotcom.gravador.ts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Acesso aos campos do cabeçalho de pacotes MPEG-TS (ISO/IEC 13818-1)
+ * diretamente no ByteBuffer, sem cópia e sem alocação.
+ */
+public final class PacoteTs {
+
+    public static final int TAMANHO = 188;
+    public static final byte SYNC = 0x47;
+    public static final int PID_PAT = 0x0000;
+    public static final int PID_NULO = 0x1FFF;
+
+    private PacoteTs() {
+    }
+
+    public static boolean sync(ByteBuffer buf, int pos) {
+        return buf.get(pos) == SYNC;
+    }
+
+    public static boolean tei(ByteBuffer buf, int pos) {
+        return (buf.get(pos + 1) & 0x80) != 0;
+    }
+
+    public static boolean inicioUnidade(ByteBuffer buf, int pos) {
+        return (buf.get(pos + 1) & 0x40) != 0;
+    }
+
+    public static int pid(ByteBuffer buf, int pos) {
+        return ((buf.get(pos + 1) & 0x1F) << 8) | (buf.get(pos + 2) & 0xFF);
+    }
+
+    public static boolean temAdaptacao(ByteBuffer buf, int pos) {
+        return (buf.get(pos + 3) & 0x20) != 0;
+    }
+
+    public static boolean temPayload(ByteBuffer buf, int pos) {
+        return (buf.get(pos + 3) & 0x10) != 0;
+    }
+
+    public static int continuidade(ByteBuffer buf, int pos) {
+        return buf.get(pos + 3) & 0x0F;
+    }
+
+    /**
+     * @return offset do payload relativo ao início do pacote ou -1 se o pacote
+     * não possui payload (ou o adaptation field é inválido).
+     */
+    public static int inicioPayload(ByteBuffer buf, int pos) {
+        if (!temPayload(buf, pos)) {
+            return -1;
+        }
+        int offset = 4;
+        if (temAdaptacao(buf, pos)) {
+            offset += 1 + (buf.get(pos + 4) & 0xFF);
+        }
+        return offset < TAMANHO ? offset : -1;
+    }
+
+    /**
+     * Procura o próximo byte de sincronismo a partir de pos, confirmando com o
+     * pacote seguinte quando houver dados suficientes no buffer.
+     *
+     * @return posição do próximo pacote válido ou -1 se não encontrado.
+     */
+    public static int ressincroniza(ByteBuffer buf, int pos, int limite) {
+        for (int i = pos; i + TAMANHO <= limite; i++) {
+            if (buf.get(i) == SYNC && (i + TAMANHO >= limite || buf.get(i + TAMANHO) == SYNC)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
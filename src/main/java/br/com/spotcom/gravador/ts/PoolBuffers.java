@@ -0,0 +1,42 @@
+package br.com.spotcom.gravador.ts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool de ByteBuffers diretos de tamanho fixo, reaproveitados entre reinícios
+ * dos gravadores para não alocar memória off-heap a cada abertura de canal.
+ */
+public class PoolBuffers {
+
+    private final int tamanho;
+    private final BlockingQueue<ByteBuffer> livres;
+
+    public PoolBuffers(int tamanho, int capacidade) {
+        this.tamanho = tamanho;
+        this.livres = new ArrayBlockingQueue<>(capacidade);
+    }
+
+    public ByteBuffer obter() {
+        var buffer = livres.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(tamanho);
+        }
+        return buffer;
+    }
+
+    public void devolver(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != tamanho) {
+            return;
+        }
+        buffer.clear();
+        // se o pool estiver cheio o buffer é simplesmente descartado
+        livres.offer(buffer);
+    }
+
+    public int getTamanho() {
+        return tamanho;
+    }
+
+}
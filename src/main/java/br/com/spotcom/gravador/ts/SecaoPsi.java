@@ -0,0 +1,159 @@
+package br.com.spotcom.gravador.ts;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Remonta uma seção PSI que pode estar dividida em vários pacotes TS.
+ * Usa um array pré-alocado, sem alocação por pacote.
+ */
+final class SecaoPsi {
+
+    private static final int TAMANHO_MAXIMO = 4096;
+
+    final byte[] dados = new byte[TAMANHO_MAXIMO];
+    private int tamanho;
+    private boolean montando;
+    // fim, no pacote, da última seção copiada
+    private int fimSecao;
+    // restante do payload após a seção devolvida, para proxima()
+    private ByteBuffer pendente;
+    private int inicioPendente;
+    private int fimPendente;
+
+    /**
+     * Adiciona o payload do pacote à seção em montagem.
+     *
+     * @return true se uma seção completa e com CRC válido está disponível em
+     * {@link #dados}; outras seções do mesmo pacote são obtidas com
+     * {@link #proxima()}.
+     */
+    boolean adiciona(ByteBuffer buf, int pos) {
+        pendente = null;
+        int payload = PacoteTs.inicioPayload(buf, pos);
+        if (payload < 0) {
+            return false;
+        }
+        int inicio = pos + payload;
+        int fim = pos + PacoteTs.TAMANHO;
+
+        if (PacoteTs.inicioUnidade(buf, pos)) {
+            int ponteiro = buf.get(inicio) & 0xFF;
+            inicio++;
+            int nova = inicio + ponteiro;
+            // bytes antes do ponteiro finalizam a seção anterior; a seguinte começa no ponteiro
+            if (montando && ponteiro > 0 && copia(buf, inicio, Math.min(nova, fim))) {
+                guarda(buf, nova, fim);
+                return true;
+            }
+            return inicia(buf, nova, fim);
+        } else if (!montando) {
+            return false;
+        }
+        return continua(buf, inicio, fim);
+    }
+
+    /**
+     * Continua no payload do último pacote, após a seção devolvida (várias
+     * seções curtas, como PMTs de programas no mesmo PID, podem estar no
+     * mesmo pacote).
+     *
+     * @return true se outra seção completa e com CRC válido está disponível
+     * em {@link #dados}.
+     */
+    boolean proxima() {
+        var buf = pendente;
+        if (buf == null) {
+            return false;
+        }
+        pendente = null;
+        return inicia(buf, inicioPendente, fimPendente);
+    }
+
+    private boolean inicia(ByteBuffer buf, int inicio, int fim) {
+        // 0xFF: enchimento até o fim do pacote
+        if (inicio >= fim || (buf.get(inicio) & 0xFF) == 0xFF) {
+            montando = false;
+            return false;
+        }
+        tamanho = 0;
+        montando = true;
+        return continua(buf, inicio, fim);
+    }
+
+    private boolean continua(ByteBuffer buf, int inicio, int fim) {
+        if (copia(buf, inicio, fim)) {
+            guarda(buf, fimSecao, fim);
+            return true;
+        }
+        // seção completa com CRC inválido: as seguintes do pacote ainda valem
+        if (!montando && fimSecao < fim) {
+            return inicia(buf, fimSecao, fim);
+        }
+        return false;
+    }
+
+    private void guarda(ByteBuffer buf, int inicio, int fim) {
+        pendente = buf;
+        inicioPendente = inicio;
+        fimPendente = fim;
+    }
+
+    private boolean copia(ByteBuffer buf, int inicio, int fim) {
+        int anterior = tamanho;
+        int n = Math.min(fim - inicio, TAMANHO_MAXIMO - tamanho);
+        buf.get(inicio, dados, tamanho, n);
+        tamanho += n;
+        fimSecao = fim;
+        if (tamanho < 3) {
+            return false;
+        }
+        int total = 3 + (((dados[1] & 0x0F) << 8) | (dados[2] & 0xFF));
+        if (total > TAMANHO_MAXIMO) {
+            montando = false;
+            tamanho = 0;
+            return false;
+        }
+        if (tamanho < total) {
+            return false;
+        }
+        tamanho = total;
+        montando = false;
+        fimSecao = inicio + total - anterior;
+        return total >= 4 && Crc32Mpeg.calcular(dados, 0, total) == 0;
+    }
+
+    int tamanho() {
+        return tamanho;
+    }
+
+    int tabela() {
+        return dados[0] & 0xFF;
+    }
+
+    int versao() {
+        return (dados[5] >> 1) & 0x1F;
+    }
+
+    boolean atual() {
+        return (dados[5] & 0x01) != 0;
+    }
+
+    int u16(int offset) {
+        return ((dados[offset] & 0xFF) << 8) | (dados[offset + 1] & 0xFF);
+    }
+
+    int pid(int offset) {
+        return u16(offset) & 0x1FFF;
+    }
+
+    int comprimento12(int offset) {
+        return u16(offset) & 0x0FFF;
+    }
+
+    void reinicia() {
+        tamanho = 0;
+        montando = false;
+        pendente = null;
+    }
+
+}
@@ -0,0 +1,153 @@
+package br.com.spotcom.gravador;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.simulacao.ServidorUploadStub;
+import java.io.StringReader;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Envio retomável contra o {@link ServidorUploadStub}: consulta do offset,
+ * retomada depois de uma conexão interrompida e as respostas 409.
+ */
+class EnvioRetomavelTest {
+
+    private static final int TAMANHO = 256 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private ServidorUploadStub servidor;
+    private MotorUpload motor;
+    private Adapter adapter;
+    private Path segmento;
+    private byte[] conteudo;
+    private URI uri;
+
+    @BeforeEach
+    void prepara() throws Exception {
+        servidor = new ServidorUploadStub(0, dir.resolve("recebidos"));
+        servidor.start();
+        var channels = Files.writeString(dir.resolve("channels.conf"), "");
+        var configuracao = Configuracao.load(new StringReader("{\"gravador\": \"TESTE\", \"servidor\": \"127.0.0.1:"
+                + servidor.getPorta() + "\", \"http2\": false, \"channels-file\": \"" + channels + "\"}"));
+        motor = new MotorUpload(configuracao);
+        adapter = new Adapter("TESTE", 0, "SERVICO", "TST", 100, "", dir.resolve("adapter0").toString());
+
+        conteudo = new byte[TAMANHO];
+        new Random(42).nextBytes(conteudo);
+        segmento = Files.write(Files.createDirectories(dir.resolve("adapter0").resolve("20240331")).resolve("100000.mp4"), conteudo);
+        uri = configuracao.getServidor().resolve("/upload/TESTE/TST/100/2024-03-31/100000.mp4");
+    }
+
+    @AfterEach
+    void encerra() throws InterruptedException {
+        motor.fechar(5000);
+        servidor.stop();
+    }
+
+    private EnvioRetomavel envio() {
+        return new EnvioRetomavel(motor, adapter, MotorUpload.Classe.ATRASADO, uri, segmento);
+    }
+
+    private Path recebido() {
+        return dir.resolve("recebidos/TESTE/TST/100/2024-03-31/100000.mp4");
+    }
+
+    @Test
+    void semNadaRecebidoOffsetEZero() throws Exception {
+        assertEquals(0, envio().consultaOffset());
+    }
+
+    @Test
+    void enviaInteiro() throws Exception {
+        var envio = envio();
+        envio.consultaOffset();
+        envio.append(TAMANHO);
+        assertEquals(TAMANHO, envio.getEnviado());
+        assertTrue(envio.finaliza(TAMANHO));
+        assertArrayEquals(conteudo, Files.readAllBytes(recebido()));
+    }
+
+    @Test
+    void retomaDepoisDaConexaoInterrompida() throws Exception {
+        int metade = TAMANHO / 2;
+        // append que promete o arquivo inteiro, mas a conexão cai depois da metade
+        try (var socket = new Socket("127.0.0.1", servidor.getPorta())) {
+            var saida = socket.getOutputStream();
+            saida.write(("POST " + uri.getPath() + "/append?offset=0 HTTP/1.1\r\nHost: 127.0.0.1\r\n"
+                    + "Content-Type: application/octet-stream\r\nContent-Length: " + TAMANHO + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            saida.write(conteudo, 0, metade);
+            saida.flush();
+            long limite = System.currentTimeMillis() + 10000;
+            while (envio().consultaOffset() < metade && System.currentTimeMillis() < limite) {
+                Thread.sleep(20);
+            }
+        }
+
+        var envio = envio();
+        assertEquals(metade, envio.consultaOffset());
+        envio.append(TAMANHO);
+        assertEquals(TAMANHO, envio.getEnviado());
+        assertTrue(envio.finaliza(TAMANHO));
+        assertArrayEquals(conteudo, Files.readAllBytes(recebido()));
+    }
+
+    @Test
+    void appendComOffsetDiferenteContinuaDoOffsetDoServidor() throws Exception {
+        int parte = TAMANHO / 4;
+        var primeiro = envio();
+        primeiro.consultaOffset();
+        primeiro.append(parte);
+
+        // sem consultar o offset: o servidor responde 409 com o que já possui
+        var envio = envio();
+        envio.append(TAMANHO);
+        assertEquals(parte, envio.getEnviado());
+        envio.append(TAMANHO);
+        assertEquals(TAMANHO, envio.getEnviado());
+        assertTrue(envio.finaliza(TAMANHO));
+        assertArrayEquals(conteudo, Files.readAllBytes(recebido()));
+    }
+
+    @Test
+    void finalizaComHashDiferenteRecomecaDoInicio() throws Exception {
+        // o servidor recebeu outro conteúdo com o mesmo tamanho
+        var outro = Arrays.copyOf(conteudo, TAMANHO);
+        outro[TAMANHO - 1] ^= 1;
+        var original = segmento;
+        segmento = Files.write(dir.resolve("outro.mp4"), outro);
+        var corrompido = envio();
+        corrompido.consultaOffset();
+        corrompido.append(TAMANHO);
+        segmento = original;
+
+        var envio = envio();
+        assertEquals(TAMANHO, envio.consultaOffset());
+        assertFalse(envio.finaliza(TAMANHO));
+        assertEquals(0, envio.getEnviado());
+        assertEquals(0, envio.consultaOffset());
+        assertFalse(Files.exists(recebido()));
+
+        envio.append(TAMANHO);
+        assertTrue(envio.finaliza(TAMANHO));
+        assertArrayEquals(conteudo, Files.readAllBytes(recebido()));
+    }
+
+}
@@ -0,0 +1,140 @@
+package br.com.spotcom.gravador;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.metricas.Metricas;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Lock do sintonizador a partir de saídas gravadas do dvbv5-zap, reproduzidas
+ * por um zap falso ({@code zap/zap-gravado.sh}).
+ */
+class GerenciadorZapTest {
+
+    @TempDir
+    Path dir;
+
+    private Supervisor supervisor;
+    private GerenciadorZap zap;
+    private final List<Integer> sintonias = new CopyOnWriteArrayList<>();
+
+    private Supervisor.Filho inicia(int adapter, String saidaGravada) throws Exception {
+        var script = Path.of(getClass().getResource("zap/zap-gravado.sh").toURI());
+        var saida = Path.of(getClass().getResource("zap/" + saidaGravada).toURI());
+        var channels = Files.writeString(dir.resolve("channels.conf"), """
+                [SERVICO HD]
+                \tSERVICE_ID = 60000
+                \tFREQUENCY = 473142857
+                \tDELIVERY_SYSTEM = ISDBT
+                [SERVICO SD]
+                \tSERVICE_ID = 60001
+                \tFREQUENCY = 473142857
+                \tDELIVERY_SYSTEM = ISDBT
+                [OUTRO MUX]
+                \tSERVICE_ID = 61000
+                \tFREQUENCY = 479142857
+                \tDELIVERY_SYSTEM = ISDBT
+                """);
+        var configuracao = Configuracao.load(new StringReader("{\"gravador\": \"TESTE\", \"tempo-lock\": 1"
+                + ", \"zap-comando\": \"sh " + script + " " + saida + "\""
+                + ", \"channels-file\": \"" + channels + "\""
+                + ", \"adapters\": [{\"adapter\": " + adapter + ", \"service-name\": \"SERVICO HD\", \"praca\": \"TST\", \"rede\": 100"
+                + ", \"caminho\": \"" + dir.resolve("adapter" + adapter) + "\"}]}"));
+        supervisor = new Supervisor();
+        zap = new GerenciadorZap(configuracao, supervisor);
+        zap.setAoSintonizar(sintonias::add);
+        zap.start();
+        supervisor.start();
+        return zap.getFilho(adapter);
+    }
+
+    @AfterEach
+    void encerra() {
+        if (supervisor != null) {
+            supervisor.stop();
+            zap.stop();
+        }
+    }
+
+    private static double medidor(String nome, int adapter) {
+        return Metricas.global().medidor(nome, "", "adapter", String.valueOf(adapter)).get();
+    }
+
+    private static boolean aguarda(BooleanSupplier condicao, long timeout) throws InterruptedException {
+        long limite = System.currentTimeMillis() + timeout;
+        while (!condicao.getAsBoolean()) {
+            if (System.currentTimeMillis() > limite) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    @Test
+    void comLockFicaPronto() throws Exception {
+        var filho = inicia(10, "lock.txt");
+        assertTrue(aguarda(filho::isPronto, 5000));
+        assertTrue(aguarda(() -> medidor("gravador_zap_cn", 10) == 36.6, 5000));
+        assertEquals(1, medidor("gravador_zap_lock", 10));
+        assertEquals(-33, medidor("gravador_zap_sinal", 10));
+        assertEquals(List.of(10), sintonias);
+    }
+
+    @Test
+    void semLockReiniciaOZap() throws Exception {
+        var filho = inicia(11, "sem-lock.txt");
+        // tempo-lock de 1 s, backoff de 1 s: nova sintonia sem nunca ficar pronto
+        assertTrue(aguarda(() -> sintonias.size() >= 2, 10000));
+        assertFalse(filho.isPronto());
+        assertEquals(0, medidor("gravador_zap_lock", 11));
+        assertTrue(Metricas.global().contador("gravador_zap_reinicios_total", "", "adapter", "11").get() >= 1);
+        assertTrue(filho.getFalhasSeguidas() >= 1);
+    }
+
+    @Test
+    void lockPerdidoZeraOMedidor() throws Exception {
+        var filho = inicia(12, "lock-perdido.txt");
+        assertTrue(aguarda(filho::isPronto, 5000));
+        assertTrue(aguarda(() -> medidor("gravador_zap_sinal", 12) == -80, 5000));
+        assertEquals(0, medidor("gravador_zap_lock", 12));
+        assertEquals(0, medidor("gravador_zap_cn", 12));
+        // a perda de lock não derruba o zap: quem reinicia é o monitor do adapter, sem stream saudável
+        assertTrue(filho.isPronto());
+        assertEquals(List.of(12), sintonias);
+    }
+
+    @Test
+    void ressintonizaSoQuandoOMultiplexMuda() throws Exception {
+        var filho = inicia(13, "lock.txt");
+        var caminho = dir.resolve("adapter13").toString();
+
+        // mesmo multiplex: o zap continua
+        assertEquals(Set.of(), zap.sincroniza(List.of(new Adapter("TESTE", 13, "SERVICO SD", "TST", 100, "", caminho))));
+        assertSame(filho, zap.getFilho(13));
+
+        // serviço fora do channels-file: não há como comparar, o zap continua
+        assertEquals(Set.of(), zap.sincroniza(List.of(new Adapter("TESTE", 13, "INEXISTENTE", "TST", 100, "", caminho))));
+        assertSame(filho, zap.getFilho(13));
+
+        // outra frequência: novo filho, que os gravadores do adapter passam a aguardar
+        assertEquals(Set.of(13), zap.sincroniza(List.of(new Adapter("TESTE", 13, "OUTRO MUX", "TST", 100, "", caminho))));
+        assertNotSame(filho, zap.getFilho(13));
+    }
+
+}
@@ -0,0 +1,109 @@
+package br.com.spotcom.gravador;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Fechamento dos segmentos pelo {@link IndiceSegmentos}: um segmento só está
+ * fechado quando o ffmpeg o lista no -segment_list, não quando o seguinte
+ * aparece.
+ */
+class IndiceSegmentosTest {
+
+    @TempDir
+    Path dir;
+
+    private IndiceSegmentos indice;
+    private Path dirData;
+
+    @BeforeEach
+    void prepara() throws Exception {
+        dirData = Files.createDirectories(dir.resolve("20260314"));
+        indice = new IndiceSegmentos(dir);
+        indice.iniciar();
+    }
+
+    @AfterEach
+    void encerra() {
+        indice.fechar();
+    }
+
+    private void lista(String... nomes) throws Exception {
+        Files.writeString(IndiceSegmentos.lista(dir), String.join("\n", nomes) + "\n",
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Aguarda o acompanhamento do diretório refletir o esperado.
+     */
+    private <T> T aguarda(Supplier<T> consulta, T esperado) throws InterruptedException {
+        long limite = System.currentTimeMillis() + 10000;
+        T valor;
+        while (!Objects.equals(valor = consulta.get(), esperado) && System.currentTimeMillis() < limite) {
+            indice.aguardaAlteracao(indice.getVersao(), 200, TimeUnit.MILLISECONDS);
+        }
+        return valor;
+    }
+
+    @Test
+    void fechadoSoQuandoListado() throws Exception {
+        var primeiro = Files.writeString(dirData.resolve("100000.mp4"), "a");
+        var segundo = Files.writeString(dirData.resolve("101000.mp4"), "b");
+        assertEquals(segundo, aguarda(indice::ultimo, segundo));
+
+        // o seguinte já existe, mas o primeiro ainda não foi concluído
+        assertNull(indice.proximoFechado(null));
+        assertNull(indice.ultimoFechado());
+
+        lista("100000.mp4");
+        assertEquals(primeiro, aguarda(() -> indice.proximoFechado(null), primeiro));
+        assertEquals(primeiro, indice.ultimoFechado());
+        assertNull(indice.proximoFechado(LocalDateTime.of(2026, 3, 14, 10, 0)));
+
+        // o último é fechado sem que exista um seguinte
+        lista("101000.mp4");
+        assertEquals(segundo, aguarda(indice::ultimoFechado, segundo));
+    }
+
+    @Test
+    void listaRecriadaPorNovoFfmpeg() throws Exception {
+        Files.writeString(dirData.resolve("100000.mp4"), "a");
+        lista("100000.mp4", "100500.mp4");
+        var segundo = Files.writeString(dirData.resolve("100500.mp4"), "b");
+        // listado antes de indexado
+        assertEquals(segundo, aguarda(indice::ultimoFechado, segundo));
+
+        // reinício: a lista começa do zero, menor que o já lido
+        Files.delete(IndiceSegmentos.lista(dir));
+        var terceiro = Files.writeString(dirData.resolve("101000.mp4"), "c");
+        lista("101000.mp4");
+        assertEquals(terceiro, aguarda(indice::ultimoFechado, terceiro));
+    }
+
+    @Test
+    void ffmpegEncerradoNoMeioDoSegmento() throws Exception {
+        var interrompido = Files.writeString(dirData.resolve("100000.mp4"), "a");
+        var seguinte = Files.writeString(dirData.resolve("100312.mp4"), "b");
+        assertEquals(seguinte, aguarda(indice::ultimo, seguinte));
+        assertNull(indice.proximoFechado(null));
+
+        // nunca listado, mas sem escrita há mais que SEM_ESCRITA_MS
+        Files.setLastModifiedTime(interrompido, FileTime.fromMillis(System.currentTimeMillis() - IndiceSegmentos.SEM_ESCRITA_MS - 1000));
+        assertEquals(interrompido, indice.proximoFechado(null));
+        assertNull(indice.proximoFechado(LocalDateTime.of(2026, 3, 14, 10, 0)));
+    }
+
+}
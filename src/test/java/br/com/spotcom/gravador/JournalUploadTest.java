@@ -0,0 +1,82 @@
+package br.com.spotcom.gravador;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Índice das falhas do {@link JournalUpload}: próxima tentativa e falhas em
+ * ordem, mantidos a cada mudança de estado e ao reabrir o journal.
+ */
+class JournalUploadTest {
+
+    private static final LocalDateTime A = LocalDateTime.of(2026, 3, 14, 10, 0);
+    private static final LocalDateTime B = A.plusMinutes(10);
+    private static final LocalDateTime C = A.plusMinutes(20);
+
+    @TempDir
+    Path dir;
+
+    private JournalUpload journal;
+
+    @BeforeEach
+    void abre() throws Exception {
+        journal = new JournalUpload(dir);
+        journal.abrir();
+    }
+
+    @AfterEach
+    void fecha() {
+        journal.fechar();
+    }
+
+    @Test
+    void proximaTentativaAcompanhaAsFalhas() throws Exception {
+        assertEquals(Long.MAX_VALUE, journal.proximaTentativa());
+
+        long b = journal.falhou(B, 1000);
+        long a = journal.falhou(A, 2000);
+        assertEquals(b, journal.proximaTentativa());
+        assertEquals(List.of(A, B), List.copyOf(journal.falhas().keySet()));
+
+        // nova falha do mesmo segmento: backoff maior, a tentativa antiga sai do índice
+        long b2 = journal.falhou(B, 1000);
+        assertEquals(Math.min(a, b2), journal.proximaTentativa());
+
+        journal.enviando(A);
+        assertEquals(b2, journal.proximaTentativa());
+        assertEquals(List.of(B), List.copyOf(journal.falhas().keySet()));
+
+        journal.concluido(B, hora -> null);
+        assertEquals(Long.MAX_VALUE, journal.proximaTentativa());
+        assertEquals(List.of(), List.copyOf(journal.falhas().keySet()));
+    }
+
+    @Test
+    void indiceRecarregadoEDescartado() throws Exception {
+        journal.falhou(A, 1000);
+        long c = journal.falhou(C, 0);
+        journal.enviando(B);
+        journal.fechar();
+
+        journal = new JournalUpload(dir);
+        journal.abrir();
+        assertEquals(List.of(A, C), List.copyOf(journal.falhas().keySet()));
+        assertEquals(c, journal.proximaTentativa());
+
+        // arquivo de C removido pela retenção
+        journal.descartaRemovidos(hora -> !hora.equals(C));
+        assertEquals(List.of(A), List.copyOf(journal.falhas().keySet()));
+
+        // a base passa por A
+        journal.setMarca(B);
+        assertEquals(Long.MAX_VALUE, journal.proximaTentativa());
+    }
+
+}
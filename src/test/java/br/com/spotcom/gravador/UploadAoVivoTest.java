@@ -0,0 +1,120 @@
+package br.com.spotcom.gravador;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import br.com.spotcom.gravador.config.Adapter;
+import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.simulacao.ServidorUploadStub;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Latência do envio ao vivo contra o {@link ServidorUploadStub}: medida do
+ * instante de captura do fragmento (início do segmento + tfdt), não da
+ * última escrita do arquivo.
+ */
+class UploadAoVivoTest {
+
+    private static final int TIMESCALE = 90000;
+    private static final int TRACK = 1;
+
+    @TempDir
+    Path dir;
+
+    private ServidorUploadStub servidor;
+    private MotorUpload motor;
+    private Adapter adapter;
+    private Configuracao configuracao;
+
+    @BeforeEach
+    void prepara() throws Exception {
+        servidor = new ServidorUploadStub(0, dir.resolve("recebidos"));
+        servidor.start();
+        var channels = Files.writeString(dir.resolve("channels.conf"), "");
+        configuracao = Configuracao.load(new StringReader("{\"gravador\": \"TESTE\", \"servidor\": \"127.0.0.1:"
+                + servidor.getPorta() + "\", \"http2\": false, \"channels-file\": \"" + channels + "\"}"));
+        motor = new MotorUpload(configuracao);
+        adapter = new Adapter("TESTE", 0, "SERVICO", "TST", 100, "", dir.resolve("adapter0").toString());
+    }
+
+    @AfterEach
+    void encerra() throws InterruptedException {
+        motor.fechar(5000);
+        servidor.stop();
+    }
+
+    private static byte[] box(String tipo, byte[]... conteudo) {
+        var corpo = new ByteArrayOutputStream();
+        for (var c : conteudo) {
+            corpo.writeBytes(c);
+        }
+        return ByteBuffer.allocate(8 + corpo.size()).putInt(8 + corpo.size())
+                .put(tipo.getBytes(StandardCharsets.US_ASCII)).put(corpo.toByteArray()).array();
+    }
+
+    private static byte[] moov() {
+        // tkhd versão 0: version/flags, creation, modification, track_ID, ...
+        var tkhd = box("tkhd", ByteBuffer.allocate(84).putInt(0).putInt(0).putInt(0).putInt(TRACK).array());
+        // mdhd versão 1: version/flags, creation (64), modification (64), timescale, duration (64), ...
+        var mdhd = box("mdhd", ByteBuffer.allocate(36).putInt(0x01000000).putLong(0).putLong(0).putInt(TIMESCALE).array());
+        return box("moov", box("trak", tkhd, box("mdia", mdhd)));
+    }
+
+    private static byte[] fragmento(long tempoMidiaMs) {
+        var tfhd = box("tfhd", ByteBuffer.allocate(8).putInt(0x020000).putInt(TRACK).array());
+        var tfdt = box("tfdt", ByteBuffer.allocate(12).putInt(0x01000000).putLong(tempoMidiaMs * TIMESCALE / 1000).array());
+        var moof = box("moof", box("mfhd", new byte[8]), box("traf", tfhd, tfdt));
+        return ByteBuffer.allocate(moof.length + 1008).put(moof).put(box("mdat", new byte[1000])).array();
+    }
+
+    @Test
+    void latenciaDesdeACapturaDoFragmento() throws Exception {
+        // segmento aberto há 10 s; o arquivo é escrito agora (o mtime não conta)
+        var inicio = LocalDateTime.now().minusSeconds(10).truncatedTo(ChronoUnit.SECONDS);
+        var arquivo = Files.createDirectories(adapter.getDestino().resolve(inicio.format(DateTimeFormatter.BASIC_ISO_DATE)))
+                .resolve(inicio.format(DateTimeFormatter.ofPattern("HHmmss")) + ".mp4");
+        Files.write(arquivo, moov());
+        Files.write(arquivo, fragmento(2000), StandardOpenOption.APPEND);
+        long inicioMs = inicio.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        var uri = configuracao.getServidor().resolve("/upload/TESTE/TST/100/" + inicio.toLocalDate() + "/" + arquivo.getFileName());
+        var envio = new EnvioRetomavel(motor, adapter, MotorUpload.Classe.RECENTE, uri, arquivo);
+        envio.consultaOffset();
+        var aoVivo = new UploadAoVivo(envio, 2000);
+
+        long antes = System.currentTimeMillis();
+        aoVivo.enviaFragmentos();
+        long depois = System.currentTimeMillis();
+        assertEquals(Files.size(arquivo), envio.getEnviado());
+        // captura do fragmento: início do segmento + 2 s de mídia
+        long latencia = aoVivo.getUltimaLatencia();
+        assertTrue(latencia >= antes - (inicioMs + 2000) && latencia <= depois - (inicioMs + 2000), "latência " + latencia);
+
+        // dois fragmentos novos: conta o mais antigo
+        Files.write(arquivo, fragmento(4000), StandardOpenOption.APPEND);
+        Files.write(arquivo, fragmento(6000), StandardOpenOption.APPEND);
+        antes = System.currentTimeMillis();
+        aoVivo.enviaFragmentos();
+        depois = System.currentTimeMillis();
+        latencia = aoVivo.getUltimaLatencia();
+        assertTrue(latencia >= antes - (inicioMs + 4000) && latencia <= depois - (inicioMs + 4000), "latência " + latencia);
+
+        aoVivo.finaliza();
+        assertEquals(Files.size(arquivo), Files.size(dir.resolve("recebidos/TESTE/TST/100").resolve(inicio.toLocalDate().toString())
+                .resolve(arquivo.getFileName())));
+    }
+
+}
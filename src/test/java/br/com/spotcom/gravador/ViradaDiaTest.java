@@ -0,0 +1,219 @@
+package br.com.spotcom.gravador;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import br.com.spotcom.gravador.config.Configuracao;
+import br.com.spotcom.gravador.simulacao.ServidorUploadStub;
+import java.io.DataOutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Virada do dia com um relógio simulado: o {@link GerenciadorGravacao}
+ * prepara o diretório do dia seguinte com antecedência e o {@link Upload}
+ * envia, contra o {@link ServidorUploadStub}, os segmentos que um segment
+ * muxer simulado (sem ffmpeg) grava através da meia-noite.
+ */
+class ViradaDiaTest {
+
+    private static final long SEGMENTO = 600;
+    private static final LocalDate DIA = LocalDate.of(2026, 3, 14);
+
+    @TempDir
+    Path dir;
+
+    private Supervisor supervisor;
+    private GerenciadorZap zap;
+    private GerenciadorGravacao gerenciador;
+    private Configuracao configuracao;
+    private ServidorUploadStub servidor;
+    private MotorUpload motor;
+    private Upload upload;
+
+    /**
+     * Relógio que só avança quando mandado.
+     */
+    static class RelogioSimulado extends Clock {
+
+        private final ZoneId zona;
+        private volatile Instant instante;
+
+        RelogioSimulado(LocalDateTime inicio, ZoneId zona) {
+            this.zona = zona;
+            this.instante = inicio.atZone(zona).toInstant();
+        }
+
+        void avanca(Duration duracao) {
+            instante = instante.plus(duracao);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return zona;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return new RelogioSimulado(LocalDateTime.ofInstant(instante, this.zona), zone);
+        }
+
+        @Override
+        public Instant instant() {
+            return instante;
+        }
+
+    }
+
+    /**
+     * Inicia o gerenciador com um adapter de captura direta cujo zap nunca
+     * fica pronto: só a preparação dos diretórios é exercitada.
+     */
+    private Path inicia(Clock relogio) throws Exception {
+        var script = Path.of(getClass().getResource("zap/zap-gravado.sh").toURI());
+        var saida = Path.of(getClass().getResource("zap/sem-lock.txt").toURI());
+        var channels = Files.writeString(dir.resolve("channels.conf"), """
+                [SERVICO HD]
+                \tSERVICE_ID = 60000
+                \tFREQUENCY = 473142857
+                \tDELIVERY_SYSTEM = ISDBT
+                """);
+        var destino = dir.resolve("adapter20");
+        var servidorUpload = servidor != null ? ", \"servidor\": \"127.0.0.1:" + servidor.getPorta() + "\", \"http2\": false" : "";
+        configuracao = Configuracao.load(new StringReader("{\"gravador\": \"TESTE\", \"tempo-lock\": 600" + servidorUpload
+                + ", \"zap-comando\": \"sh " + script + " " + saida + "\""
+                + ", \"channels-file\": \"" + channels + "\""
+                + ", \"adapters\": [{\"adapter\": 20, \"service-name\": \"SERVICO HD\", \"praca\": \"TST\", \"rede\": 100"
+                + ", \"captura\": \"direto\", \"caminho\": \"" + destino + "\"}]}"));
+        supervisor = new Supervisor();
+        zap = new GerenciadorZap(configuracao, supervisor);
+        gerenciador = new GerenciadorGravacao(configuracao, supervisor, zap, relogio);
+        zap.start();
+        gerenciador.start();
+        supervisor.start();
+        return configuracao.getAdapters().iterator().next().getDestino();
+    }
+
+    @AfterEach
+    void encerra() throws InterruptedException {
+        if (motor != null) {
+            motor.fechar(5000);
+        }
+        if (servidor != null) {
+            servidor.stop();
+        }
+        if (supervisor != null) {
+            supervisor.stop();
+            gerenciador.stopAndWait(5000);
+            zap.stop();
+        }
+    }
+
+    @Test
+    void preparaDiaSeguinteComAntecedencia() throws Exception {
+        var relogio = new RelogioSimulado(DIA.atTime(23, 50), ZoneId.systemDefault());
+        var destino = inicia(relogio);
+
+        assertTrue(Files.isDirectory(DiretoriosData.diretorio(destino, DIA)));
+        assertTrue(Files.isDirectory(DiretoriosData.diretorio(destino, DIA.plusDays(1))));
+        assertFalse(Files.exists(DiretoriosData.diretorio(destino, DIA.plusDays(2))));
+
+        // mesmo dia: nada muda
+        gerenciador.verificaDia();
+        assertFalse(Files.exists(DiretoriosData.diretorio(destino, DIA.plusDays(2))));
+
+        relogio.avanca(Duration.ofMinutes(10));
+        gerenciador.verificaDia();
+        assertTrue(Files.isDirectory(DiretoriosData.diretorio(destino, DIA.plusDays(2))));
+    }
+
+    @Test
+    void uploadAtravessaMeiaNoite() throws Exception {
+        servidor = new ServidorUploadStub(0, dir.resolve("recebidos"));
+        List<Path> recebidos = new CopyOnWriteArrayList<>();
+        servidor.setRecebido(recebidos::add);
+        servidor.start();
+        var inicio = DIA.atTime(23, 50);
+        var relogio = new RelogioSimulado(inicio, ZoneId.systemDefault());
+        var destino = inicia(relogio);
+        var formatoArquivo = DateTimeFormatter.ofPattern("HHmmss");
+
+        // 23:50 a 00:10, cortando nos múltiplos de 10 minutos (segment_atclocktime); cada segmento
+        // concluído é listado como faz o -segment_list do ffmpeg e o de 00:10 fica em gravação
+        Files.createDirectories(IndiceSegmentos.lista(destino).getParent());
+        DataOutputStream segmento = null;
+        String nome = null;
+        for (long s = 0; s <= 20 * 60; s++) {
+            var agora = LocalDateTime.now(relogio);
+            if (segmento == null || agora.toLocalTime().toSecondOfDay() % SEGMENTO == 0) {
+                if (segmento != null) {
+                    segmento.close();
+                    Files.writeString(IndiceSegmentos.lista(destino), nome + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                // strftime do ffmpeg: o diretório do dia precisa já existir
+                nome = agora.format(formatoArquivo) + ".mp4";
+                var arquivo = DiretoriosData.diretorio(destino, agora.toLocalDate()).resolve(nome);
+                assertTrue(Files.isDirectory(arquivo.getParent()), "diretório inexistente para " + arquivo);
+                segmento = new DataOutputStream(Files.newOutputStream(arquivo));
+            }
+            segmento.writeLong(relogio.instant().getEpochSecond());
+            relogio.avanca(Duration.ofSeconds(1));
+        }
+        segmento.close();
+
+        var adapter = configuracao.getAdapters().iterator().next();
+        motor = new MotorUpload(configuracao);
+        upload = new Upload(adapter, configuracao, motor);
+        var thread = new Thread(upload);
+        thread.start();
+        try {
+            long limite = System.currentTimeMillis() + 20000;
+            while (recebidos.size() < 2 && System.currentTimeMillis() < limite) {
+                Thread.sleep(100);
+            }
+            // dá tempo para um envio indevido do segmento em gravação
+            Thread.sleep(1500);
+        } finally {
+            upload.stop();
+            thread.interrupt();
+            thread.join(10000);
+        }
+
+        // cada segmento no dia em que começou, inteiro; o que está em gravação não é enviado
+        var rede = dir.resolve("recebidos/TESTE/TST/100");
+        var antes = rede.resolve(DIA.toString()).resolve("235000.mp4");
+        var depois = rede.resolve(DIA.plusDays(1).toString()).resolve("000000.mp4");
+        assertEquals(Set.of(antes, depois), Set.copyOf(recebidos));
+        assertEquals(2, recebidos.size());
+        assertArrayEquals(Files.readAllBytes(DiretoriosData.diretorio(destino, DIA).resolve("235000.mp4")), Files.readAllBytes(antes));
+        assertArrayEquals(Files.readAllBytes(DiretoriosData.diretorio(destino, DIA.plusDays(1)).resolve("000000.mp4")),
+                Files.readAllBytes(depois));
+
+        // a marca do journal passa da meia-noite: o próximo início não reenvia nada
+        var journal = new JournalUpload(destino);
+        journal.abrir();
+        try {
+            assertEquals(DIA.plusDays(1).atStartOfDay(), journal.getMarca());
+        } finally {
+            journal.fechar();
+        }
+    }
+
+}
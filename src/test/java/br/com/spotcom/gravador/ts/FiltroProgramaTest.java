@@ -0,0 +1,145 @@
+package br.com.spotcom.gravador.ts;
+
+import static br.com.spotcom.gravador.ts.SecoesTeste.buffer;
+import static br.com.spotcom.gravador.ts.SecoesTeste.concatena;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pacote;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pacotes;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pat;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pmt;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Filtro de um programa do multiplex: PIDs repassados, a PAT reescrita e as
+ * PATs/PMTs em vários pacotes, várias por pacote ou com CRC inválido.
+ */
+class FiltroProgramaTest {
+
+    private static final byte[] DADOS = new byte[]{0x00};
+
+    private FiltroPrograma filtro;
+
+    private List<ByteBuffer> filtra(byte[]... pacotes) {
+        var entrada = buffer(pacotes);
+        var saida = ByteBuffer.allocate(entrada.capacity());
+        filtro.filtra(entrada, saida);
+        assertEquals(entrada.limit(), entrada.position());
+        saida.flip();
+        List<ByteBuffer> repassados = new ArrayList<>();
+        for (int pos = 0; pos < saida.limit(); pos += PacoteTs.TAMANHO) {
+            repassados.add(saida.slice(pos, PacoteTs.TAMANHO));
+        }
+        return repassados;
+    }
+
+    private static Set<Integer> pids(List<ByteBuffer> pacotes) {
+        var pids = new TreeSet<Integer>();
+        pacotes.forEach(p -> pids.add(PacoteTs.pid(p, 0)));
+        return pids;
+    }
+
+    @Test
+    void mantemSoOPrograma() {
+        filtro = new FiltroPrograma(20);
+        var entrada = ByteBuffer.allocate(PacoteTs.TAMANHO * 400);
+        new GeradorTs(10, 20, 30).preenche(entrada);
+        entrada.flip();
+        var saida = ByteBuffer.allocate(entrada.capacity());
+        filtro.filtra(entrada, saida);
+        saida.flip();
+
+        assertEquals(GeradorTs.pidPmt(1), filtro.getPidPmt());
+        List<ByteBuffer> repassados = new ArrayList<>();
+        for (int pos = 0; pos < saida.limit(); pos += PacoteTs.TAMANHO) {
+            repassados.add(saida.slice(pos, PacoteTs.TAMANHO));
+        }
+        int pmt = GeradorTs.pidPmt(1);
+        assertEquals(Set.of(PacoteTs.PID_PAT, pmt, pmt + 1, pmt + 2), pids(repassados));
+        assertEquals(filtro.getPacotesRepassados(), repassados.size());
+    }
+
+    @Test
+    void patReescritaComUmPrograma() {
+        filtro = new FiltroPrograma(20);
+        var repassados = filtra(pacotes(0, pat(5, 10, 0x100, 20, 0x200, 30, 0x300)));
+
+        assertEquals(1, repassados.size());
+        var secao = new SecaoPsi();
+        assertTrue(secao.adiciona(repassados.get(0), 0));
+        assertEquals(5, secao.versao());
+        // um programa: cabeçalho (8) + 4 + CRC (4)
+        assertEquals(16, secao.tamanho());
+        assertEquals(20, secao.u16(8));
+        assertEquals(0x200, secao.pid(10));
+    }
+
+    @Test
+    void pmtsDeVariosProgramasNoMesmoPacote() {
+        // os dois programas com a PMT no mesmo PID, as duas seções no mesmo pacote
+        filtro = new FiltroPrograma(20);
+        var repassados = filtra(
+                pacotes(0, pat(0, 10, 0x100, 20, 0x100)),
+                pacotes(0x100, concatena(pmt(10, 0, 0, 0x101), pmt(20, 0, 0, 0x201))),
+                pacote(0x101, true, DADOS),
+                pacote(0x201, true, DADOS));
+
+        assertEquals(Set.of(PacoteTs.PID_PAT, 0x100, 0x201), pids(repassados));
+    }
+
+    @Test
+    void pmtEmVariosPacotes() {
+        filtro = new FiltroPrograma(20);
+        var pmt = pmt(20, 0, 60, 0x201, 0x202, 0x203, 0x204);
+        var repassados = filtra(
+                pacotes(0, pat(0, 20, 0x200)),
+                pacotes(0x200, pmt),
+                pacote(0x204, true, DADOS),
+                pacote(0x205, true, DADOS));
+
+        // o último elementary stream está no segundo pacote da PMT
+        assertEquals(Set.of(PacoteTs.PID_PAT, 0x200, 0x204), pids(repassados));
+    }
+
+    @Test
+    void novaVersaoDaPmtTrocaOsPids() {
+        filtro = new FiltroPrograma(20);
+        var repassados = filtra(
+                pacotes(0, pat(0, 20, 0x200)),
+                pacotes(0x200, pmt(20, 0, 0, 0x201)),
+                pacotes(0x200, pmt(20, 1, 0, 0x202)),
+                pacote(0x201, true, DADOS),
+                pacote(0x202, true, DADOS));
+
+        assertEquals(Set.of(PacoteTs.PID_PAT, 0x200, 0x202), pids(repassados));
+    }
+
+    @Test
+    void crcInvalidoIgnorado() {
+        filtro = new FiltroPrograma(20);
+        var corrompida = pat(0, 20, 0x200);
+        corrompida[10] ^= 0x01;
+        var corrompidaPmt = pmt(20, 0, 0, 0x201);
+        corrompidaPmt[14] ^= 0x01;
+
+        // sem PAT válida nada é repassado
+        assertEquals(List.of(), filtra(pacotes(0, corrompida), pacotes(0x200, pmt(20, 0, 0, 0x201)), pacote(0x201, true, DADOS)));
+        assertEquals(-1, filtro.getPidPmt());
+
+        // PMT corrompida: os PIDs continuam os da anterior
+        var repassados = filtra(
+                pacotes(0, pat(0, 20, 0x200)),
+                pacotes(0x200, pmt(20, 0, 0, 0x202)),
+                pacotes(0x200, corrompidaPmt),
+                pacote(0x201, true, DADOS),
+                pacote(0x202, true, DADOS));
+        assertEquals(Set.of(PacoteTs.PID_PAT, 0x200, 0x202), pids(repassados));
+    }
+
+}
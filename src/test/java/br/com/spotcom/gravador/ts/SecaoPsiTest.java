@@ -0,0 +1,122 @@
+package br.com.spotcom.gravador.ts;
+
+import static br.com.spotcom.gravador.ts.SecoesTeste.buffer;
+import static br.com.spotcom.gravador.ts.SecoesTeste.concatena;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pacote;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pacotes;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pat;
+import static br.com.spotcom.gravador.ts.SecoesTeste.pmt;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Remontagem de seções PSI: continuação em vários pacotes, várias seções no
+ * mesmo pacote e o CRC.
+ */
+class SecaoPsiTest {
+
+    private final SecaoPsi secao = new SecaoPsi();
+
+    private void assertSecao(byte[] esperada) {
+        assertEquals(esperada.length, secao.tamanho());
+        assertArrayEquals(esperada, Arrays.copyOf(secao.dados, secao.tamanho()));
+    }
+
+    @Test
+    void secaoNumPacote() {
+        var pat = pat(3, 10, 0x100);
+        var buf = buffer(pacotes(0, pat));
+
+        assertTrue(secao.adiciona(buf, 0));
+        assertSecao(pat);
+        assertEquals(0x00, secao.tabela());
+        assertEquals(3, secao.versao());
+        assertTrue(secao.atual());
+        // o restante do pacote é enchimento
+        assertFalse(secao.proxima());
+    }
+
+    @Test
+    void secaoContinuadaEmOutroPacote() {
+        var pmt = pmt(10, 0, 60, 0x101, 0x102, 0x103, 0x104, 0x105, 0x106);
+        assertTrue(pmt.length > 2 * (PacoteTs.TAMANHO - 4));
+        var buf = buffer(pacotes(0x100, pmt));
+
+        assertFalse(secao.adiciona(buf, 0));
+        assertFalse(secao.adiciona(buf, PacoteTs.TAMANHO));
+        assertTrue(secao.adiciona(buf, 2 * PacoteTs.TAMANHO));
+        assertSecao(pmt);
+    }
+
+    @Test
+    void continuacaoSemInicioIgnorada() {
+        var pmt = pmt(10, 0, 60, 0x101, 0x102, 0x103);
+        var buf = buffer(pacotes(0x100, pmt));
+
+        // entrou no meio da seção: espera o próximo início
+        assertFalse(secao.adiciona(buf, PacoteTs.TAMANHO));
+        assertFalse(secao.adiciona(buf, 0));
+        assertTrue(secao.adiciona(buf, PacoteTs.TAMANHO));
+        assertSecao(pmt);
+    }
+
+    @Test
+    void variasSecoesNoMesmoPacote() {
+        var primeira = pmt(10, 0, 0, 0x101);
+        var segunda = pmt(20, 0, 0, 0x201);
+        var buf = buffer(pacotes(0x100, concatena(primeira, segunda)));
+
+        assertTrue(secao.adiciona(buf, 0));
+        assertSecao(primeira);
+        assertTrue(secao.proxima());
+        assertSecao(segunda);
+        assertEquals(20, secao.u16(3));
+        assertFalse(secao.proxima());
+    }
+
+    @Test
+    void fimDaAnteriorEInicioDaSeguinteNoMesmoPacote() {
+        var longa = pmt(10, 0, 60, 0x101, 0x102, 0x103);
+        var curta = pmt(20, 0, 0, 0x201);
+        int noPrimeiro = PacoteTs.TAMANHO - 5;
+        var resto = Arrays.copyOfRange(longa, noPrimeiro, longa.length);
+        var primeiro = pacote(0x100, true, concatena(new byte[1], Arrays.copyOf(longa, noPrimeiro)));
+        // pointer_field: bytes que ainda pertencem à seção anterior
+        var segundo = pacote(0x100, true, concatena(new byte[]{(byte) resto.length}, resto, curta));
+        var buf = buffer(primeiro, segundo);
+
+        assertFalse(secao.adiciona(buf, 0));
+        assertTrue(secao.adiciona(buf, PacoteTs.TAMANHO));
+        assertSecao(longa);
+        assertTrue(secao.proxima());
+        assertSecao(curta);
+        assertFalse(secao.proxima());
+    }
+
+    @Test
+    void crcInvalido() {
+        var pat = pat(0, 10, 0x100);
+        pat[9] ^= 0x01;
+
+        assertFalse(secao.adiciona(buffer(pacotes(0, pat)), 0));
+        assertFalse(secao.proxima());
+    }
+
+    @Test
+    void crcInvalidoNaoPerdeAsSeguintes() {
+        var corrompida = pmt(10, 0, 0, 0x101);
+        corrompida[13] ^= 0x01;
+        var valida = pmt(20, 0, 0, 0x201);
+        var buf = buffer(pacotes(0x100, concatena(corrompida, valida)));
+
+        assertTrue(secao.adiciona(buf, 0));
+        assertSecao(valida);
+        assertFalse(secao.proxima());
+    }
+
+}
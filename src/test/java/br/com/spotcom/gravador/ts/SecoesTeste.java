@@ -0,0 +1,117 @@
+package br.com.spotcom.gravador.ts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Monta seções PSI e pacotes TS para os testes do pacote.
+ */
+final class SecoesTeste {
+
+    private SecoesTeste() {
+    }
+
+    /**
+     * @return seção com sintaxe longa (versão atual) e CRC.
+     */
+    static byte[] secao(int tabela, int extensao, int versao, byte[] corpo) {
+        int tamanho = 8 + corpo.length + 4;
+        var s = new byte[tamanho];
+        s[0] = (byte) tabela;
+        s[1] = (byte) (0xB0 | ((tamanho - 3) >> 8));
+        s[2] = (byte) (tamanho - 3);
+        s[3] = (byte) (extensao >> 8);
+        s[4] = (byte) extensao;
+        s[5] = (byte) (0xC1 | (versao << 1));
+        System.arraycopy(corpo, 0, s, 8, corpo.length);
+        int crc = Crc32Mpeg.calcular(s, 0, tamanho - 4);
+        s[tamanho - 4] = (byte) (crc >> 24);
+        s[tamanho - 3] = (byte) (crc >> 16);
+        s[tamanho - 2] = (byte) (crc >> 8);
+        s[tamanho - 1] = (byte) crc;
+        return s;
+    }
+
+    /**
+     * @param programas pares service id, PID da PMT.
+     */
+    static byte[] pat(int versao, int... programas) {
+        var corpo = new byte[programas.length * 2];
+        for (int i = 0; i < programas.length; i += 2) {
+            corpo[i * 2] = (byte) (programas[i] >> 8);
+            corpo[i * 2 + 1] = (byte) programas[i];
+            corpo[i * 2 + 2] = (byte) (0xE0 | (programas[i + 1] >> 8));
+            corpo[i * 2 + 3] = (byte) programas[i + 1];
+        }
+        return secao(0x00, 1, versao, corpo);
+    }
+
+    /**
+     * PMT com PCR no primeiro elementary stream.
+     *
+     * @param descritor bytes de descritor em cada elementary stream (para
+     * seções que ocupam vários pacotes).
+     */
+    static byte[] pmt(int serviceId, int versao, int descritor, int... pids) {
+        var corpo = new ByteArrayOutputStream();
+        corpo.write(0xE0 | (pids[0] >> 8));
+        corpo.write(pids[0]);
+        corpo.write(0xF0);
+        corpo.write(0);
+        for (int pid : pids) {
+            corpo.write(0x1B);
+            corpo.write(0xE0 | (pid >> 8));
+            corpo.write(pid);
+            corpo.write(0xF0 | (descritor >> 8));
+            corpo.write(descritor);
+            corpo.writeBytes(new byte[descritor]);
+        }
+        return secao(0x02, serviceId, versao, corpo.toByteArray());
+    }
+
+    static byte[] concatena(byte[]... partes) {
+        var saida = new ByteArrayOutputStream();
+        for (var parte : partes) {
+            saida.writeBytes(parte);
+        }
+        return saida.toByteArray();
+    }
+
+    /**
+     * @return pacote com o payload informado, completado com 0xFF. Com
+     * inicio, o payload deve começar pelo pointer_field.
+     */
+    static byte[] pacote(int pid, boolean inicio, byte[] payload) {
+        var p = new byte[PacoteTs.TAMANHO];
+        Arrays.fill(p, (byte) 0xFF);
+        p[0] = PacoteTs.SYNC;
+        p[1] = (byte) ((inicio ? 0x40 : 0x00) | (pid >> 8));
+        p[2] = (byte) pid;
+        p[3] = 0x10;
+        System.arraycopy(payload, 0, p, 4, payload.length);
+        return p;
+    }
+
+    /**
+     * @return pacotes que levam as seções, começando no primeiro (pointer 0).
+     */
+    static byte[] pacotes(int pid, byte[] secoes) {
+        var saida = new ByteArrayOutputStream();
+        int pos = 0;
+        boolean primeiro = true;
+        while (pos < secoes.length) {
+            int n = Math.min(secoes.length - pos, PacoteTs.TAMANHO - 4 - (primeiro ? 1 : 0));
+            var payload = Arrays.copyOfRange(secoes, pos, pos + n);
+            saida.writeBytes(pacote(pid, primeiro, primeiro ? concatena(new byte[1], payload) : payload));
+            pos += n;
+            primeiro = false;
+        }
+        return saida.toByteArray();
+    }
+
+    static ByteBuffer buffer(byte[]... pacotes) {
+        return ByteBuffer.wrap(concatena(pacotes));
+    }
+
+}
@@ -0,0 +1,5 @@
+#!/bin/sh
+# dvbv5-zap falso: reproduz a saída gravada (primeiro argumento) e continua
+# rodando como o verdadeiro; os demais argumentos (-P -r -c ... serviço) são ignorados
+cat "$1"
+exec sleep 60